@@ -12,6 +12,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.Locale;
 
 /**
  * @author Victor Khovanskiy
@@ -23,9 +24,13 @@ public class ClientMain {
     }
 
     private void execute(String[] args) throws IOException {
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = Integer.parseInt(args[0]);
+        // requests on a key go straight to the primary of the key's shard, the other commands go to the node
+        KeyValueClient client = new KeyValueClient(host, port);
         Network network = new Network();
 
-        int serverConnection = network.connect("localhost", Integer.parseInt(args[0]), true);
+        int serverConnection = network.connect(host, port, true);
         network.setConnectionListener(new Network.ConnectionListener() {
             @Override
             public void onConnected(int connectionId) {
@@ -47,9 +52,19 @@ public class ClientMain {
         while (true) {
             String line = reader.readLine();
             if (line == null || line.equals("q")) {
+                client.close();
                 network.stop();
                 return;
             }
+            String[] slices = line.trim().split(" +");
+            if (isKeyed(slices)) {
+                try {
+                    System.out.println("Server response: " + client.execute(slices[1], line.trim()));
+                } catch (IOException e) {
+                    System.out.println("Failed: " + e.getMessage());
+                }
+                continue;
+            }
             network.send(serverConnection, line);
             /*MessageHandler parser = new MessageHandler(line);
             try {
@@ -61,4 +76,16 @@ public class ClientMain {
             }*/
         }
     }
+
+    private static boolean isKeyed(String[] slices) {
+        switch (slices[0].toLowerCase(Locale.US)) {
+            case "get":
+                return slices.length == 2 || slices.length == 4;
+            case "set":
+                return slices.length == 3 || slices.length == 4;
+            case "delete":
+                return slices.length == 2;
+        }
+        return false;
+    }
 }
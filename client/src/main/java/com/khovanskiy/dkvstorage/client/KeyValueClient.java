@@ -0,0 +1,306 @@
+package com.khovanskiy.dkvstorage.client;
+
+import com.khovanskiy.dkvstorage.vr.Node;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client of the storage sending requests straight to the primaries of the keys' shards.
+ * <p>
+ * The client learns the shards and their primaries by "primary -" from any known node, keeps them
+ * and finds the key's shard by @code{Node.getShard} as the nodes do. Its connections ask the nodes
+ * to answer requests to another node's primary by "NOT_PRIMARY shard host:port" instead of forwarding
+ * them, so a request takes one hop, and a redirect or a broken connection updates the cached primaries.
+ * <p>
+ * The client's connections join its session of a random negative id, and the writes carry request-numbers
+ * of the session. A write retried after a broken connection keeps its number, so the replicas' client-tables
+ * execute it once even if the first attempt has been committed.
+ *
+ * @author Victor Khovanskiy
+ */
+public class KeyValueClient implements Closeable {
+    /**
+     * Number of attempts to find the key's primary
+     */
+    public static final int MAX_ATTEMPTS = 5;
+    /**
+     * Time in milliseconds the client waits before the second attempt, it doubles with each next one,
+     * so the attempts outlast the view change electing a new primary
+     */
+    public static final long RETRY_DELAY = 100;
+
+    private static final String NOT_PRIMARY = "NOT_PRIMARY ";
+
+    /**
+     * Addresses "host:port" of the known nodes
+     */
+    private final Set<String> nodes = new LinkedHashSet<>();
+    private final Map<String, Connection> connections = new HashMap<>();
+    /**
+     * Id of the client's session, the negative ids don't meet the nodes' numbers
+     */
+    private final int sessionId = -1 - new SecureRandom().nextInt(Integer.MAX_VALUE);
+    /**
+     * Request-number of the last write, it starts from the current time, so a later client drawing
+     * the same id continues the numbers
+     */
+    private long requestNumber = System.currentTimeMillis() * 1000;
+    /**
+     * Addresses of the shards' primaries by the shards' indices
+     */
+    private String[] primaries;
+
+    /**
+     * @param host host of any node
+     * @param port port of the node
+     * @throws IOException if no node tells the shards
+     */
+    public KeyValueClient(String host, int port) throws IOException {
+        nodes.add(host + ":" + port);
+        refresh();
+    }
+
+    public synchronized int getShardCount() {
+        return primaries.length;
+    }
+
+    /**
+     * Gets the cached primary of the shard
+     *
+     * @param shard shard's index
+     * @return "host:port"
+     */
+    public synchronized String getPrimary(int shard) {
+        return primaries[shard];
+    }
+
+    public String get(String key) throws IOException {
+        return execute(key, "get " + key);
+    }
+
+    public String set(String key, String value) throws IOException {
+        return write(key, "set " + key + " " + value);
+    }
+
+    /**
+     * @param ttl time to live in seconds
+     */
+    public String set(String key, String value, long ttl) throws IOException {
+        return write(key, "set " + key + " " + value + " " + ttl);
+    }
+
+    public String delete(String key) throws IOException {
+        return write(key, "delete " + key);
+    }
+
+    /**
+     * Sends the write as the next request of the session, its retries keep the request-number
+     */
+    private synchronized String write(String key, String command) throws IOException {
+        return execute(key, "request " + (++requestNumber) + " " + command);
+    }
+
+    /**
+     * Reads one page of the range, any node merges the pages of all the shards
+     *
+     * @param from  lowest key (inclusive) or null
+     * @param to    highest key (exclusive) or null
+     * @param limit maximal number of keys
+     * @param token continuation token of the previous page or null
+     * @return lines "VALUE key value" followed by "END" or "NEXT token"
+     */
+    public synchronized List<String> scan(String from, String to, int limit, String token) throws IOException {
+        String command = "scan " + (from != null ? from : "-") + " " + (to != null ? to : "-") + " " + limit + (token != null ? " " + token : "");
+        IOException failure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            String address = primaries[attempt % primaries.length];
+            try {
+                Connection connection = connect(address);
+                connection.send(command);
+                List<String> lines = new ArrayList<>();
+                String line;
+                do {
+                    line = connection.readLine();
+                    lines.add(line);
+                } while (line.startsWith("VALUE "));
+                return lines;
+            } catch (IOException e) {
+                failure = e;
+                disconnect(address);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Sends the command on the key to the primary of the key's shard
+     *
+     * @param key     key
+     * @param command command
+     * @return reply
+     * @throws IOException if the primary isn't found in @code{MAX_ATTEMPTS} attempts
+     */
+    public synchronized String execute(String key, String command) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            // the nodes lower the case of the commands
+            int shard = Node.getShard(key.toLowerCase(Locale.US), primaries.length);
+            String address = primaries[shard];
+            String reply;
+            try {
+                reply = connect(address).call(command);
+            } catch (IOException e) {
+                // the primary may be down, the other nodes elect a new one
+                failure = e;
+                disconnect(address);
+                pause(attempt);
+                refreshQuietly();
+                continue;
+            }
+            if (!reply.startsWith(NOT_PRIMARY)) {
+                return reply;
+            }
+            // "NOT_PRIMARY shard host:port"
+            String[] slices = reply.split(" ");
+            String primary = slices[2];
+            if (primary.equals(address)) {
+                // the node doesn't know the primary of the new view yet
+                pause(attempt);
+            }
+            primaries[Integer.parseInt(slices[1])] = primary;
+            nodes.add(primary);
+        }
+        throw failure != null ? failure : new IOException("No primary of the key " + key + " is found");
+    }
+
+    /**
+     * Asks the known nodes for the shards and their primaries
+     *
+     * @throws IOException if no node answers
+     */
+    public synchronized void refresh() throws IOException {
+        IOException failure = null;
+        for (String address : new ArrayList<>(nodes)) {
+            try {
+                Connection connection = connect(address);
+                connection.send("primary -");
+                List<String> shards = new ArrayList<>();
+                for (String line = connection.readLine(); !line.equals("END"); line = connection.readLine()) {
+                    // "SHARD index primary host:port"
+                    shards.add(line.split(" ")[3]);
+                }
+                primaries = shards.toArray(new String[shards.size()]);
+                nodes.addAll(shards);
+                return;
+            } catch (IOException e) {
+                failure = e;
+                disconnect(address);
+            }
+        }
+        throw failure != null ? failure : new IOException("No nodes");
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void pause(int attempt) {
+        try {
+            Thread.sleep(RETRY_DELAY << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Connection connect(String address) throws IOException {
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            connection = new Connection(address, sessionId);
+            connections.put(address, connection);
+        }
+        return connection;
+    }
+
+    private void disconnect(String address) {
+        Connection connection = connections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Connection to the node, it asks the node for redirects and joins the client's session
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final Writer writer;
+
+        Connection(String address, int sessionId) throws IOException {
+            int colon = address.lastIndexOf(':');
+            socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            for (String command : new String[]{"redirect", "session " + sessionId}) {
+                String reply = call(command);
+                if (!reply.equals("ACCEPTED")) {
+                    close();
+                    throw new IOException("Unexpected reply of " + address + ": " + reply);
+                }
+            }
+        }
+
+        String call(String command) throws IOException {
+            send(command);
+            return readLine();
+        }
+
+        void send(String command) throws IOException {
+            writer.write(command);
+            writer.write('\n');
+            writer.flush();
+        }
+
+        String readLine() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Connection is closed");
+            }
+            return line;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
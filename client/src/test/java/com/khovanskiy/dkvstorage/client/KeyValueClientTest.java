@@ -0,0 +1,185 @@
+package com.khovanskiy.dkvstorage.client;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class KeyValueClientTest {
+    private static final String HOST = "127.0.0.1";
+
+    private final List<FakeNode> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (FakeNode node : nodes) {
+            node.close();
+        }
+    }
+
+    private FakeNode start(Handler handler) throws IOException {
+        FakeNode node = new FakeNode(handler);
+        nodes.add(node);
+        return node;
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+        final FakeNode primary = start(new Handler() {
+            @Override
+            public String answer(FakeNode node, String line) {
+                return "STORED";
+            }
+        });
+        FakeNode backup = start(new Handler() {
+            @Override
+            public String answer(FakeNode node, String line) {
+                if (line.equals("primary -")) {
+                    return "SHARD 0 0 " + node.getAddress() + "\nEND";
+                }
+                return "NOT_PRIMARY 0 " + primary.getAddress();
+            }
+        });
+        KeyValueClient client = new KeyValueClient(HOST, backup.getPort());
+        try {
+            Assert.assertEquals(backup.getAddress(), client.getPrimary(0));
+            Assert.assertEquals("STORED", client.set("key", "value"));
+            Assert.assertEquals(primary.getAddress(), client.getPrimary(0));
+            Assert.assertEquals(1, backup.getWrites().size());
+            Assert.assertEquals(1, primary.getWrites().size());
+            Assert.assertEquals(backup.getWrites().get(0), primary.getWrites().get(0));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRetryKeepsRequestNumber() throws Exception {
+        FakeNode node = start(new Handler() {
+            @Override
+            public String answer(FakeNode node, String line) {
+                if (line.equals("primary -")) {
+                    return "SHARD 0 0 " + node.getAddress() + "\nEND";
+                }
+                // the first attempt breaks after the node got it
+                return written++ == 0 ? null : "STORED";
+            }
+
+            private int written;
+        });
+        KeyValueClient client = new KeyValueClient(HOST, node.getPort());
+        try {
+            Assert.assertEquals("STORED", client.set("key", "value"));
+            List<String> writes = node.getWrites();
+            Assert.assertEquals(2, writes.size());
+            Assert.assertTrue(writes.get(0).matches("request \\d+ set key value"));
+            Assert.assertEquals(writes.get(0), writes.get(1));
+
+            Assert.assertEquals("STORED", client.delete("key"));
+            Assert.assertNotEquals(writes.get(0).split(" ")[1], node.getWrites().get(2).split(" ")[1]);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Answer of the node to the command other than the connection's setup
+     */
+    private interface Handler {
+        /**
+         * @return reply lines or null to break the connection
+         */
+        String answer(FakeNode node, String line);
+    }
+
+    /**
+     * Node played by the test, it accepts the connection's setup and records the writes
+     */
+    private static class FakeNode {
+        private final ServerSocket server;
+        private final List<String> writes = new CopyOnWriteArrayList<>();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        FakeNode(final Handler handler) throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = server.accept();
+                            sockets.add(socket);
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket, handler);
+                                }
+                            });
+                            thread.setDaemon(true);
+                            thread.start();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serve(Socket socket, Handler handler) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String reply;
+                    if (line.equals("redirect") || line.startsWith("session -")) {
+                        reply = "ACCEPTED";
+                    } else {
+                        if (line.startsWith("request ")) {
+                            writes.add(line);
+                        }
+                        reply = handler.answer(this, line);
+                    }
+                    if (reply == null) {
+                        break;
+                    }
+                    writer.write(reply + "\n");
+                    writer.flush();
+                }
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        String getAddress() {
+            return HOST + ":" + getPort();
+        }
+
+        List<String> getWrites() {
+            return writes;
+        }
+
+        void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
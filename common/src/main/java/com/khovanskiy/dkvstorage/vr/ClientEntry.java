@@ -7,10 +7,15 @@ import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
  * @author Victor Khovanskiy
  */
 public class ClientEntry {
-    private String result;
-    private boolean processing;
+    private volatile String result;
+    private volatile boolean processing;
     private int clientId;
     private long requestNumber;
+    private volatile long executedNumber;
+    /**
+     * Op-number of the last executed request
+     */
+    private long operationNumber;
 
     public ClientEntry(int clientId) {
         this.clientId = clientId;
@@ -24,6 +29,17 @@ public class ClientEntry {
         this.requestNumber = requestNumber;
     }
 
+    /**
+     * Gets request-number of the last executed request, unlike the request-number it is the same on all replicas
+     */
+    public long getExecutedNumber() {
+        return executedNumber;
+    }
+
+    public void setExecutedNumber(long executedNumber) {
+        this.executedNumber = executedNumber;
+    }
+
     public String getResult() {
         return result;
     }
@@ -33,6 +49,24 @@ public class ClientEntry {
     }
 
 
+    /**
+     * Records the result of the executed request unless a later request of the client has been executed,
+     * requests on different keys may finish out of order
+     *
+     * @param operationNumber op-number of the request
+     * @param requestNumber   request-number
+     * @param result          result
+     */
+    public synchronized void onExecuted(long operationNumber, long requestNumber, String result) {
+        if (operationNumber < this.operationNumber) {
+            return;
+        }
+        this.operationNumber = operationNumber;
+        this.result = result;
+        this.executedNumber = requestNumber;
+        this.processing = false;
+    }
+
     public boolean isProcessing() {
         return processing;
     }
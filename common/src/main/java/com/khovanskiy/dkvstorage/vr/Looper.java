@@ -8,6 +8,10 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class Looper implements Runnable {
 
     private LinkedBlockingQueue<Runnable> events = new LinkedBlockingQueue<>();
+    /**
+     * Runs after an event when no other events are queued, null if there is nothing to run
+     */
+    private volatile Runnable idleHandler;
 
     @Override
     public void run() {
@@ -15,6 +19,10 @@ public class Looper implements Runnable {
             try {
                 Runnable event = events.take();
                 event.run();
+                Runnable handler = idleHandler;
+                if (handler != null && events.isEmpty()) {
+                    handler.run();
+                }
             } catch (InterruptedException ignored) {
             } catch (Exception e) {
                 e.printStackTrace();
@@ -28,4 +36,8 @@ public class Looper implements Runnable {
         } catch (InterruptedException ignored) {
         }
     }
+
+    public void setIdleHandler(Runnable idleHandler) {
+        this.idleHandler = idleHandler;
+    }
 }
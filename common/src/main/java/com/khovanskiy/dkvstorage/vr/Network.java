@@ -1,8 +1,11 @@
 package com.khovanskiy.dkvstorage.vr;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -14,17 +17,29 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Line-based network of connections.
+ * <p>
+ * Besides lines, connections carry bulk chunks: the line "#length header" followed by length raw bytes.
+ * Chunks are queued apart from lines and a chunk is written only when there are no lines to write,
+ * so a large transfer delays other messages at most by one chunk. File chunks are written by
+ * @code{FileChannel.transferTo} without copying them to the heap. Chunks are accepted only from the
+ * connections identified as peers' ones by the listener and only up to @code{maxBulkLength} bytes,
+ * the connection sending other chunks is dropped.
+ *
  * @author Victor Khovanskiy
  */
 public class Network {
 
     private final static String LINE_SEPARATOR = "\n";
+    private final static char BULK_PREFIX = '#';
+    public final static int DEFAULT_MAX_BULK_LENGTH = 64 * 1024;
     private final LinkedList<Request> pendingChanges = new LinkedList<>();
     private final Map<Integer, Connection> connections = new HashMap<>();
     private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(4);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
     private final Selector selector;
     private AtomicBoolean running = new AtomicBoolean(false);
+    private volatile int maxBulkLength = DEFAULT_MAX_BULK_LENGTH;
     private ConnectionListener listener = new ConnectionListener();
     private final Runnable runnable = new Runnable() {
         @Override
@@ -115,6 +130,8 @@ public class Network {
         try {
             SocketChannel client = server.accept();
             client.configureBlocking(false);
+            // replies and PREPARE_OKs are small and sent one by one, they mustn't wait for delayed ACKs
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
             Connection connection;
             connection = nextConnection((InetSocketAddress) client.getRemoteAddress(), false);
             SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ, connection);
@@ -141,7 +158,7 @@ public class Network {
 
     private void onConnected(Connection connection) {
         synchronized (connection.getQueue()) {
-            if (!connection.getQueue().isEmpty()) {
+            if (!connection.getQueue().isEmpty() || !connection.getBulkQueue().isEmpty()) {
                 connection.getKey().interestOps(SelectionKey.OP_WRITE);
             } else {
                 connection.getKey().interestOps(SelectionKey.OP_READ);
@@ -161,7 +178,12 @@ public class Network {
         Queue<ByteBuffer> queue = connection.getQueue();
         synchronized (queue) {
             queue.clear();
+            connection.getBulkQueue().clear();
+            connection.current = null;
         }
+        connection.line.reset();
+        connection.bulk = null;
+        connection.peer = false;
         if (connection.isKeepConnection()) {
             reconnect(connection);
         }
@@ -184,52 +206,113 @@ public class Network {
             onDisconnected(connection);
             return;
         }
-        int start = 0;
-        int length = 0;
         byte[] bytes = readBuffer.array();
-        for (int i = 0; i < readCount; ++i) {
-            if (bytes[i] == '\n' || bytes[i] == '\r') {
-                if (length > 0) {
-                    String newPart = new String(bytes, start, length, StandardCharsets.UTF_8);
-                    listener.onReceived(connection.getId(), connection.buffer + newPart);
-                    connection.buffer = "";
-                    length = 0;
-                } else if (connection.buffer.length() > 0) {
-                    listener.onReceived(connection.getId(), connection.buffer);
-                    connection.buffer = "";
+        int i = 0;
+        while (i < readCount) {
+            if (connection.bulk != null) {
+                // raw bytes of the bulk chunk
+                int count = Math.min(connection.bulk.remaining(), readCount - i);
+                connection.bulk.put(bytes, i, count);
+                i += count;
+                if (!connection.bulk.hasRemaining()) {
+                    ByteBuffer payload = connection.bulk;
+                    connection.bulk = null;
+                    payload.flip();
+                    listener.onReceivedBulk(connection.getId(), connection.bulkHeader, payload);
                 }
-                while (i < readCount && (bytes[i] == '\n' || bytes[i] == '\r')) {
-                    ++i;
-                }
-                if (i == readCount) {
-                    break;
+                continue;
+            }
+            byte b = bytes[i++];
+            if (b != '\n' && b != '\r') {
+                connection.line.write(b);
+                continue;
+            }
+            if (connection.line.size() == 0) {
+                continue;
+            }
+            // lines are decoded as a whole, so multibyte characters aren't broken by reads
+            String line = new String(connection.line.toByteArray(), StandardCharsets.UTF_8);
+            connection.line.reset();
+            if (line.charAt(0) == BULK_PREFIX) {
+                if (!startBulk(connection, line)) {
+                    // the rest of the stream can't be told apart from the chunk's bytes
+                    listener.onDisconnected(connection.getId());
+                    onDisconnected(connection);
+                    return;
                 }
-                start = i;
-                length = 1;
             } else {
-                ++length;
+                if (!connection.peer && listener.isPeerIdentification(line)) {
+                    connection.peer = true;
+                }
+                listener.onReceived(connection.getId(), line);
             }
         }
-        if (length > 0) {
-            connection.buffer += new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the header line "#length header" of the chunk
+     *
+     * @return false if the chunk isn't accepted from the connection or the header is malformed
+     */
+    private boolean startBulk(Connection connection, String line) {
+        int space = line.indexOf(' ');
+        if (!connection.peer || space < 2) {
+            return false;
         }
+        int length;
+        try {
+            length = Integer.parseInt(line.substring(1, space));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (length < 0 || length > maxBulkLength) {
+            return false;
+        }
+        connection.bulkHeader = line.substring(space + 1);
+        if (length == 0) {
+            listener.onReceivedBulk(connection.getId(), connection.bulkHeader, ByteBuffer.allocate(0));
+        } else {
+            connection.bulk = ByteBuffer.allocate(length);
+        }
+        return true;
     }
 
-    private synchronized void onWritable(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
+    private synchronized void onWritable(SelectionKey key) {
         Connection connection = (Connection) key.attachment();
+        try {
+            write(key, connection);
+        } catch (IOException e) {
+            // the key would stay writable, so the broken connection is dropped as on failed read
+            listener.onDisconnected(connection.getId());
+            onDisconnected(connection);
+        }
+    }
+
+    private void write(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
         Queue<ByteBuffer> queue = connection.getQueue();
         synchronized (queue) {
-            while (!queue.isEmpty()) {
-                ByteBuffer buffer = queue.peek();
-                channel.write(buffer);
-                if (buffer.remaining() > 0) {
-                    break;
+            while (true) {
+                // the started chunk is finished first, then lines go ahead of the next chunk
+                if (connection.current == null) {
+                    while (!queue.isEmpty()) {
+                        ByteBuffer buffer = queue.peek();
+                        channel.write(buffer);
+                        if (buffer.remaining() > 0) {
+                            return;
+                        }
+                        queue.poll();
+                    }
+                    connection.current = connection.getBulkQueue().poll();
+                    if (connection.current == null) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
                 }
-                queue.poll();
-            }
-            if (queue.isEmpty()) {
-                key.interestOps(SelectionKey.OP_READ);
+                if (!connection.current.write(channel)) {
+                    return;
+                }
+                connection.current = null;
             }
         }
     }
@@ -276,6 +359,48 @@ public class Network {
         selector.wakeup();
     }
 
+    /**
+     * Sends bulk chunk from the buffer by @code{connectionId}
+     *
+     * @param connectionId connection's id
+     * @param header       line describing the chunk
+     * @param payload      bytes of the chunk
+     */
+    public void sendBulk(int connectionId, String header, ByteBuffer payload) {
+        sendBulk(connectionId, new Bulk(header(header, payload.remaining()), payload, null, 0, 0));
+    }
+
+    /**
+     * Sends bulk chunk from the file by @code{connectionId}
+     *
+     * @param connectionId connection's id
+     * @param header       line describing the chunk
+     * @param file         file
+     * @param position     position of the chunk in the file
+     * @param count        length of the chunk
+     */
+    public void sendBulk(int connectionId, String header, FileChannel file, long position, int count) {
+        sendBulk(connectionId, new Bulk(header(header, count), null, file, position, count));
+    }
+
+    private static ByteBuffer header(String header, int length) {
+        return ByteBuffer.wrap((BULK_PREFIX + Integer.toString(length) + " " + header + LINE_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendBulk(int connectionId, Bulk bulk) {
+        Connection connection = getConnection(connectionId);
+
+        Queue<ByteBuffer> queue = connection.getQueue();
+        synchronized (queue) {
+            connection.getBulkQueue().add(bulk);
+        }
+        synchronized (pendingChanges) {
+            pendingChanges.add(new Request(connection, RequestType.CHANGEOPS, SelectionKey.OP_WRITE));
+        }
+
+        selector.wakeup();
+    }
+
     public int server(String host, int port) throws IOException {
         InetSocketAddress address = new InetSocketAddress(host, port);
         ServerSocketChannel channel = ServerSocketChannel.open();
@@ -328,6 +453,7 @@ public class Network {
         try {
             SocketChannel channel = SocketChannel.open();
             channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
             SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
             connection.setKey(key);
             channel.connect(connection.getAddress());
@@ -339,6 +465,16 @@ public class Network {
         this.listener = listener;
     }
 
+    /**
+     * @param maxBulkLength largest length of the received chunk
+     */
+    public void setMaxBulkLength(int maxBulkLength) {
+        if (maxBulkLength < 0) {
+            throw new IllegalArgumentException("Illegal bulk length: " + maxBulkLength);
+        }
+        this.maxBulkLength = maxBulkLength;
+    }
+
     private enum RequestType {
         REGISTER, DISCONNECT, CONNECT, CHANGEOPS, CLOSE
     }
@@ -357,9 +493,24 @@ public class Network {
             System.out.println("Received from [" + connectionId + "]: " + line);
         }
 
+        public void onReceivedBulk(int connectionId, String header, ByteBuffer payload) {
+            System.out.println("Received from [" + connectionId + "]: " + header + " and " + payload.remaining() + " bytes");
+        }
+
         public void onDisconnected(int connectionId) {
             System.out.println("Disconnected from " + connectionId);
         }
+
+        /**
+         * Checks whether the line identifies the connection as a peer's one which may send bulk chunks,
+         * called on the network's thread before the line is handed over
+         *
+         * @param line received line
+         * @return true if the connection is a peer's one
+         */
+        public boolean isPeerIdentification(String line) {
+            return false;
+        }
     }
 
     private class Request {
@@ -386,13 +537,62 @@ public class Network {
         }
     }
 
+    /**
+     * Bulk chunk being written: its header and then its payload
+     */
+    private static class Bulk {
+        private final ByteBuffer header;
+        private final ByteBuffer payload;
+        private final FileChannel file;
+        private long position;
+        private int count;
+
+        Bulk(ByteBuffer header, ByteBuffer payload, FileChannel file, long position, int count) {
+            this.header = header;
+            this.payload = payload;
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        /**
+         * @return true if the whole chunk is written
+         */
+        boolean write(SocketChannel channel) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (payload != null) {
+                channel.write(payload);
+                return !payload.hasRemaining();
+            }
+            while (count > 0) {
+                long written = file.transferTo(position, count, channel);
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                count -= written;
+            }
+            return true;
+        }
+    }
+
     private class Connection {
         private final int id;
         private final LinkedList<ByteBuffer> queue = new LinkedList<>();
+        private final LinkedList<Bulk> bulkQueue = new LinkedList<>();
         private final InetSocketAddress address;
         private boolean keepConnection;
         private SelectionKey key;
-        private String buffer = "";
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private Bulk current;
+        private String bulkHeader;
+        private ByteBuffer bulk;
+        private boolean peer;
 
         public Connection(int connectionId, String host, int port) {
             this.id = connectionId;
@@ -412,6 +612,10 @@ public class Network {
             return queue;
         }
 
+        public LinkedList<Bulk> getBulkQueue() {
+            return bulkQueue;
+        }
+
         public InetSocketAddress getAddress() {
             return address;
         }
@@ -0,0 +1,1043 @@
+package com.khovanskiy.dkvstorage.vr;
+
+import com.khovanskiy.dkvstorage.vr.message.Message;
+import com.khovanskiy.dkvstorage.vr.message.ReplyMessage;
+import com.khovanskiy.dkvstorage.vr.operation.DeleteOperation;
+import com.khovanskiy.dkvstorage.vr.operation.GetOperation;
+import com.khovanskiy.dkvstorage.vr.operation.Operation;
+import com.khovanskiy.dkvstorage.vr.operation.ScanOperation;
+import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+import com.khovanskiy.dkvstorage.vr.replica.StateTransferState;
+
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process hosting replicas of the shards.
+ * <p>
+ * Each shard is a separate group of replicas with its own log, op-numbers and view, and a key belongs to
+ * the shard chosen by @code{getShard}. The replicas of the node share the network, the connections to
+ * the other nodes and the replica's thread: messages carry the shard they belong to, and clients' commands
+ * go to the replica of the key's shard. A client's command on another shard than its requests in flight
+ * waits for their replies, so replies keep the order of commands.
+ *
+ * @author Victor Khovanskiy
+ */
+public class Node {
+    /**
+     * Marks the client's requests in flight on all the shards
+     */
+    private static final int ALL_SHARDS = -1;
+
+    private final int nodeNumber;
+    private final String host;
+    private final int port;
+    /**
+     * Wrappers of the shards' replicas by the shards' indices
+     */
+    private final List<Wrapper> shards = new ArrayList<>();
+    private final Map<Integer, Map<Integer, Client>> connectionClients = new HashMap<>();
+    private int nextClientId = 0;
+    private final Map<Integer, Integer> replicaToConnection = new HashMap<>();
+    private final Map<Integer, Client> connectionToClient = new HashMap<>();
+    private final ExecutorService backgroundExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Looper looper = new Looper();
+    private Timer timer;
+    private boolean looping;
+    /**
+     * Number of the started shards, the network runs while there are any
+     */
+    private int started;
+    private final Network.ConnectionListener connectionListener = new Network.ConnectionListener() {
+        @Override
+        public void onConnected(int connectionId) {
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    Node.this.onConnected(connectionId);
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(int connectionId) {
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    Node.this.onDisconnected(connectionId);
+                }
+            });
+        }
+
+        @Override
+        public void onAccept(int connectionId) {
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    Node.this.onAccepted(connectionId);
+                }
+            });
+        }
+
+        @Override
+        public void onReceived(final int connectionId, final String line) {
+            // messages are handled by the looper as well as durability callbacks of the journal
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    Node.this.onReceived(connectionId, line);
+                }
+            });
+        }
+
+        @Override
+        public boolean isPeerIdentification(String line) {
+            return line.matches("node \\d+");
+        }
+
+        @Override
+        public void onReceivedBulk(final int connectionId, final String header, final ByteBuffer payload) {
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    Node.this.onReceivedBulk(connectionId, header, payload);
+                }
+            });
+        }
+    };
+    private Map<Integer, Replica> replicas = new HashMap<>();
+    private Network network;
+    private int timeout;
+    private long currentTimerTicks = 0;
+
+    /**
+     * @param nodeNumber number of the node, it is the replica number of its replicas in all the shards
+     * @param host       host to listen on
+     * @param port       port to listen on
+     */
+    public Node(int nodeNumber, String host, int port) {
+        this.nodeNumber = nodeNumber;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Gets the shard of the key by jump consistent hash, so a new shard takes keys only from the others
+     *
+     * @param key   key
+     * @param count number of shards
+     * @return shard's index
+     */
+    public static int getShard(String key, int count) {
+        // FNV-1a of the bytes, the replicas and the clients get the same hash whatever their JVMs are
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        long shard = -1;
+        long next = 0;
+        while (next < count) {
+            shard = next;
+            hash = hash * 2862933555777941757L + 1;
+            next = (long) ((shard + 1) * ((double) (1L << 31) / (double) ((hash >>> 33) + 1)));
+        }
+        return (int) shard;
+    }
+
+    public int getNodeNumber() {
+        return nodeNumber;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Adds the wrapper of the next shard's replica, all the shards are added before the node starts
+     *
+     * @param wrapper wrapper
+     */
+    void addShard(Wrapper wrapper) {
+        if (wrapper.getShard() != shards.size()) {
+            throw new IllegalArgumentException("Shard " + wrapper.getShard() + " is added after " + shards.size() + " shards");
+        }
+        shards.add(wrapper);
+    }
+
+    /**
+     * Starts the network with the first started shard, the shards span the same nodes
+     *
+     * @param configuration shard's configuration
+     * @param timeout       timeout of the failure detection in milliseconds
+     */
+    synchronized void start(List<Replica> configuration, int timeout) throws IOException {
+        if (started++ > 0) {
+            return;
+        }
+        this.timeout = timeout;
+
+        network = new Network();
+        network.setMaxBulkLength(StateTransferState.CHUNK_SIZE);
+        replicaToConnection.clear();
+        replicas.clear();
+        for (Replica anotherReplica : configuration) {
+            if (anotherReplica.getReplicaNumber() == nodeNumber) {
+                continue;
+            }
+            int connectionId = network.connect(anotherReplica.getHost(), anotherReplica.getPort(), true);
+            replicaToConnection.put(anotherReplica.getReplicaNumber(), connectionId);
+            replicas.put(connectionId, anotherReplica);
+        }
+        network.setConnectionListener(connectionListener);
+        network.server(host, port);
+        network.start();
+        // the looper outlives restarts, a second thread would handle events concurrently
+        if (!looping) {
+            looper.setIdleHandler(new Runnable() {
+                @Override
+                public void run() {
+                    for (Wrapper shard : shards) {
+                        if (shard.isRunning()) {
+                            shard.getReplica().onIdle();
+                        }
+                    }
+                }
+            });
+            backgroundExecutor.submit(looper);
+            looping = true;
+        }
+
+        // TODO make more smart solution
+        // cancelled timer can't be used again, so the restarted node gets a new one
+        timer = new Timer();
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                looper.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        Node.this.onTimerTick();
+                    }
+                });
+            }
+        }, 0, timeout / 2);
+    }
+
+    /**
+     * Stops the network with the last running shard
+     */
+    synchronized void stop() throws IOException {
+        if (started == 0 || --started > 0) {
+            return;
+        }
+        network.stop();
+        timer.cancel();
+    }
+
+    /**
+     * Runs the event on the replicas' thread
+     *
+     * @param event event
+     */
+    void post(Runnable event) {
+        looper.run(event);
+    }
+
+    /**
+     * Runs the event on the replicas' thread after the delay
+     *
+     * @param event event
+     * @param delay delay
+     * @param unit  unit of the delay
+     */
+    void postDelayed(final Runnable event, long delay, TimeUnit unit) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                looper.run(event);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Runs the task on the background thread, the looper isn't held up by it
+     *
+     * @param task task
+     */
+    void execute(Runnable task) {
+        backgroundExecutor.submit(task);
+    }
+
+    void sendToReplica(int replicaId, String line) {
+        sendToConnection(replicaToConnection.get(replicaId), line);
+    }
+
+    void sendToReplica(int replicaId, String header, ByteBuffer payload) {
+        network.sendBulk(replicaToConnection.get(replicaId), header, payload);
+    }
+
+    void sendToReplica(int replicaId, String header, FileChannel file, long position, int count) {
+        network.sendBulk(replicaToConnection.get(replicaId), header, file, position, count);
+    }
+
+    void sendToOtherReplicas(String message) {
+        for (Map.Entry<Integer, Integer> entry : replicaToConnection.entrySet()) {
+            if (nodeNumber != entry.getKey()) {
+                sendToConnection(entry.getValue(), message);
+            }
+        }
+    }
+
+    void sendToConnection(int connectionId, String message) {
+        network.send(connectionId, message);
+    }
+
+    /**
+     * Notes the reply sent to the client and releases the commands waiting for it, called on the replicas' thread
+     *
+     * @param client client
+     * @param shard  shard of the request
+     * @param reply  reply
+     */
+    void onReplied(final Client client, int shard, ReplyMessage reply) {
+        client.onReplied();
+        client.advanceToken(shard, reply.getOperationNumber());
+        if (client.getPending() == 0 && client.hasWaiting()) {
+            // the reply may be sent amid the replica's processing, so the waiting commands run after it
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    runWaiting(client);
+                }
+            });
+        }
+    }
+
+    private void onTimerTick() {
+        for (Wrapper shard : shards) {
+            if (shard.isRunning()) {
+                shard.getReplica().onReceivedTimeout();
+            }
+        }
+    }
+
+    private void onConnected(int connectionId) {
+        Utils.log(nodeNumber, "Connected to remote " + network.dump(connectionId));
+        sendToConnection(connectionId, "node " + nodeNumber);
+        Replica replica = replicas.get(connectionId);
+        replica.setLastTimestamp(System.currentTimeMillis());
+    }
+
+    private void onDisconnected(int connectionId) {
+        Utils.log(nodeNumber, "Disconnected " + network.dump(connectionId));
+        Replica replica = replicas.get(connectionId);
+        if (replica != null) {
+            for (Wrapper shard : shards) {
+                if (shard.isRunning() && shard.getReplica().getPrimaryNumber() == replica.getReplicaNumber()) {
+                    shard.getReplica().onPrimaryDisconnected();
+                }
+            }
+        }
+    }
+
+    private void onAccepted(int connectionId) {
+        Utils.log(nodeNumber, "Accepted " + network.dump(connectionId));
+    }
+
+    private void onReceived(int connectionId, String line) {
+        Utils.log(nodeNumber, "Received from " + network.dump(connectionId) + ": " + line);
+        Replica replica = replicas.get(connectionId);
+        if (replica != null) {
+            replica.setLastTimestamp(System.currentTimeMillis());
+        }
+        try {
+            if (processMessage(connectionId, line)) {
+                return;
+            }
+            JsonObject jsonObject = Message.parse(line);
+            Wrapper shard = getRunningShard(Message.getShard(jsonObject));
+            if (shard != null) {
+                shard.onReceived(getClient(connectionId), connectionId, Message.decode(jsonObject));
+            }
+        } catch (Exception e) {
+            System.out.println("Parse error + " + line);
+            e.printStackTrace();
+        }
+    }
+
+    private void onReceivedBulk(int connectionId, String header, ByteBuffer payload) {
+        try {
+            JsonObject jsonObject = Message.parse(header);
+            Wrapper shard = getRunningShard(Message.getShard(jsonObject));
+            if (shard != null) {
+                shard.onReceivedBulk(Message.decode(jsonObject).withPayload(payload));
+            }
+        } catch (Exception e) {
+            System.out.println("Parse error + " + header);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the shard to handle its message, messages of a stopped shard are dropped
+     *
+     * @param index shard's index
+     * @return shard or null
+     */
+    private Wrapper getRunningShard(int index) {
+        if (index < 0 || index >= shards.size() || !shards.get(index).isRunning()) {
+            Utils.log(nodeNumber, "Shard " + index + " isn't running");
+            return null;
+        }
+        return shards.get(index);
+    }
+
+    /**
+     * Gets the shard of the key, the first shard without the key
+     *
+     * @param key key or null
+     * @return shard
+     */
+    private Wrapper getShard(String key) {
+        return shards.size() == 1 || key == null ? shards.get(0) : shards.get(getShard(key, shards.size()));
+    }
+
+    private boolean processMessage(int connectionId, String line) {
+        String[] slices = line.trim().toLowerCase(Locale.US).split(" +");
+        if (slices.length == 0) {
+            return false;
+        }
+        switch (slices[0]) {
+            case "node": {
+                if (slices.length != 2) {
+                    return false;
+                }
+                processNode(connectionId, Utils.parseInt(slices[1]));
+                return true;
+            }
+            case "get":
+                // get <key> [after <token> | lag <milliseconds>], bounded reads may be served by backups
+                if (slices.length == 2) {
+                    processClientRequest(new GetOperation(slices[1]), connectionId);
+                    return true;
+                }
+                if (slices.length != 4) {
+                    return false;
+                }
+                long bound = Utils.parseLong(slices[3], -1);
+                if (bound < 0) {
+                    return false;
+                }
+                switch (slices[2]) {
+                    case "after":
+                        processBoundedRead(new GetOperation(slices[1]), connectionId, bound, Long.MAX_VALUE);
+                        return true;
+                    case "lag":
+                        processBoundedRead(new GetOperation(slices[1]), connectionId, 0, bound);
+                        return true;
+                }
+                return false;
+            case "set":
+            case "delete": {
+                Operation operation = parseWrite(slices, 0);
+                if (operation == null) {
+                    return false;
+                }
+                if (isKeyTooLong(operation)) {
+                    processError(connectionId, "key is too long");
+                    return true;
+                }
+                processClientRequest(operation, connectionId);
+                return true;
+            }
+            case "session": {
+                // session <id>, the negative id chosen by the client numbers its writes across connections
+                if (slices.length != 2) {
+                    return false;
+                }
+                int sessionId = Utils.parseInt(slices[1], 0);
+                if (sessionId >= 0) {
+                    return false;
+                }
+                getClient(connectionId).setSessionId(sessionId);
+                sendToConnection(connectionId, "ACCEPTED");
+                return true;
+            }
+            case "request": {
+                // request <number> set|delete ..., the write of the session the client may retry by another connection
+                if (slices.length < 3) {
+                    return false;
+                }
+                long number = Utils.parseLong(slices[1], 0);
+                Operation operation = parseWrite(slices, 2);
+                if (number <= 0 || operation == null) {
+                    return false;
+                }
+                if (!getClient(connectionId).hasSession()) {
+                    processError(connectionId, "no session");
+                    return true;
+                }
+                if (isKeyTooLong(operation)) {
+                    processError(connectionId, "key is too long");
+                    return true;
+                }
+                processClientRequest(operation, connectionId, number);
+                return true;
+            }
+            case "scan":
+                // scan <from> <to> [limit] [token], "-" stands for unbounded side
+                if (slices.length < 3 || slices.length > 5) {
+                    return false;
+                }
+                if (slices.length == 5 && !ScanOperation.isToken(slices[4])) {
+                    processError(connectionId, "bad token");
+                    return true;
+                }
+                processClientRequest(new ScanOperation(bound(slices[1]), bound(slices[2]),
+                        slices.length > 3 ? Utils.parseInt(slices[3], ScanOperation.DEFAULT_LIMIT) : ScanOperation.DEFAULT_LIMIT,
+                        slices.length > 4 ? slices[4] : null), connectionId);
+                return true;
+            case "prefix":
+                // prefix <prefix> [limit] [token]
+                if (slices.length < 2 || slices.length > 4) {
+                    return false;
+                }
+                if (slices.length == 4 && !ScanOperation.isToken(slices[3])) {
+                    processError(connectionId, "bad token");
+                    return true;
+                }
+                processClientRequest(ScanOperation.prefix(slices[1],
+                        slices.length > 2 ? Utils.parseInt(slices[2], ScanOperation.DEFAULT_LIMIT) : ScanOperation.DEFAULT_LIMIT,
+                        slices.length > 3 ? slices[3] : null), connectionId);
+                return true;
+            case "ping":
+                if (slices.length != 1) {
+                    return false;
+                }
+                processPing(connectionId);
+                return true;
+            case "pong":
+                if (slices.length != 1)
+                    return false;
+                processPong(connectionId);
+                return true;
+            case "token":
+                // token [key], op-number the state of the key's shard seen by the connection includes,
+                // "get <key> after <token>" reads no older one
+                if (slices.length > 2)
+                    return false;
+                processToken(connectionId, getShard(slices.length == 2 ? slices[1] : null));
+                return true;
+            case "primary": {
+                // primary [key | -], primary of the key's shard, "-" lists primaries of all the shards
+                if (slices.length > 2)
+                    return false;
+                if (slices.length == 2 && slices[1].equals("-")) {
+                    processShards(connectionId);
+                    return true;
+                }
+                sendToConnection(connectionId, "leader = " + getShard(slices.length == 2 ? slices[1] : null).getReplica().getPrimaryNumber());
+                return true;
+            }
+            case "redirect":
+                // the connection's requests to another node's primary are answered by "NOT_PRIMARY" instead of forwarding
+                if (slices.length != 1)
+                    return false;
+                getClient(connectionId).markAsRedirected();
+                sendToConnection(connectionId, "ACCEPTED");
+                return true;
+            case "stats":
+                if (slices.length != 1)
+                    return false;
+                processStats(connectionId, 0);
+                return true;
+            case "accepted":
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the set command, whose words are key, value and optional ttl in seconds, or the delete command
+     *
+     * @param slices words of the command
+     * @param offset index of the command's name
+     * @return operation or null if the command is malformed
+     */
+    private static Operation parseWrite(String[] slices, int offset) {
+        int length = slices.length - offset;
+        switch (slices[offset]) {
+            case "set":
+                if (length != 3 && length != 4) {
+                    return null;
+                }
+                long ttl = length == 4 ? Utils.parseInt(slices[offset + 3], -1) : 0;
+                return ttl < 0 ? null : new SetOperation(slices[offset + 1], slices[offset + 2], ttl);
+            case "delete":
+                return length == 2 ? new DeleteOperation(slices[offset + 1]) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the key of the set command before it's replicated, the storage of the shard would reject it
+     * on every replica otherwise
+     *
+     * @param operation write operation
+     * @return true if the storage can't keep the key
+     */
+    private boolean isKeyTooLong(Operation operation) {
+        if (!(operation instanceof SetOperation)) {
+            return false;
+        }
+        // the limit is fixed when the storage is created, so it's read outside the apply thread
+        int maxKeyLength = getShard(operation.getKey()).getReplica().getStorage().getMaxKeyLength();
+        return maxKeyLength != Integer.MAX_VALUE
+                && operation.getKey().getBytes(StandardCharsets.UTF_8).length > maxKeyLength;
+    }
+
+    private static String bound(String key) {
+        return key.equals("-") ? null : key;
+    }
+
+    private void processNode(int connectionId, int clientId) {
+        Client client = getClient(connectionId);
+        /*if (client.hasConnectionId()) {
+            int oldConnectionId = client.getConnectionId();
+            network.disconnect(oldConnectionId);
+        }*/
+        client.markAsReplica();
+        sendToConnection(connectionId, "ACCEPTED");
+    }
+
+    private void processClientRequest(Operation operation, int connectionId) {
+        processClientRequest(operation, connectionId, 0);
+    }
+
+    /**
+     * @param operation     operation
+     * @param connectionId  connection of the client
+     * @param requestNumber request-number in the client's session or 0 if the node numbers the request
+     */
+    private void processClientRequest(final Operation operation, int connectionId, final long requestNumber) {
+        /*Map<Integer, Client> clients = connectionClients.get(connectionId);
+        if (clients == null) {
+            clients = new HashMap<>();
+            connectionClients.put(connectionId, clients);
+        }*/
+
+        final Client client = getClient(connectionId);
+        client.setConnectionId(connectionId);
+
+        if (operation.getKey() == null && shards.size() > 1) {
+            // scans read all the shards
+            runInOrder(client, new Runnable() {
+                @Override
+                public void run() {
+                    scatter((ScanOperation) operation, client);
+                }
+            });
+            return;
+        }
+        final Wrapper shard = getShard(operation.getKey());
+        if (client.isRedirected() && !shard.getReplica().isPrimary()) {
+            runInOrder(client, new Runnable() {
+                @Override
+                public void run() {
+                    sendToConnection(client.getConnectionId(), "NOT_PRIMARY " + shard.getShard() + " " + getPrimaryAddress(shard));
+                }
+            });
+            return;
+        }
+        // the primary orders the client's requests, only commands answered locally wait for their replies,
+        // the requests following a local read, whose reply the primary's ones might overtake, and the requests
+        // to another shard, whose replies might overtake the ones of the shard
+        if (client.hasWaiting() || client.isBlocked() || client.getPending() > 0 && client.getShard() != shard.getShard()) {
+            client.addWaiting(new Runnable() {
+                @Override
+                public void run() {
+                    submitRequest(shard, operation, client, requestNumber);
+                }
+            });
+            return;
+        }
+        submitRequest(shard, operation, client, requestNumber);
+    }
+
+    private static void submitRequest(Wrapper shard, Operation operation, Client client, long requestNumber) {
+        client.setShard(shard.getShard());
+        if (requestNumber > 0) {
+            shard.submitRequest(operation, client, client.getSessionId(), requestNumber);
+        } else {
+            shard.submitRequest(operation, client);
+        }
+    }
+
+    /**
+     * Sends lines "SHARD index primary host:port" for all the shards followed by "END"
+     *
+     * @param connectionId connection
+     */
+    private void processShards(int connectionId) {
+        for (Wrapper shard : shards) {
+            sendToConnection(connectionId, "SHARD " + shard.getShard() + " " + shard.getReplica().getPrimaryNumber() + " " + getPrimaryAddress(shard));
+        }
+        sendToConnection(connectionId, "END");
+    }
+
+    /**
+     * Gets address of the shard's primary known to the local replica
+     *
+     * @param shard shard
+     * @return "host:port"
+     */
+    private static String getPrimaryAddress(Wrapper shard) {
+        Replica replica = shard.getReplica();
+        Replica primary = replica.getConfiguration().get(replica.getIndex(replica.getPrimaryNumber()));
+        return primary.getHost() + ":" + primary.getPort();
+    }
+
+    /**
+     * Sends the scan to all the shards and replies with the merged page once all the pages come
+     *
+     * @param operation scan
+     * @param client    client
+     */
+    private void scatter(ScanOperation operation, Client client) {
+        client.setShard(ALL_SHARDS);
+        client.onRequested();
+        Gather gather = new Gather(client, operation.getLimit());
+        for (Wrapper shard : shards) {
+            shard.submitRequest(operation, gather);
+        }
+    }
+
+    /**
+     * Executes the read on this backup if its state satisfies the bound, otherwise processes it as usual
+     *
+     * @param operation    read-only operation
+     * @param connectionId connection of the client
+     * @param afterNumber  op-number the state has to include
+     * @param maxLag       time in milliseconds the state may be behind the primary's one
+     */
+    private void processBoundedRead(final Operation operation, int connectionId, final long afterNumber, final long maxLag) {
+        final Client client = getClient(connectionId);
+        client.setConnectionId(connectionId);
+        final Wrapper shard = getShard(operation.getKey());
+        runInOrder(client, new Runnable() {
+            @Override
+            public void run() {
+                // the connection never sees state older than the one its replies reflected, its own writes included
+                long number = Math.max(afterNumber, client.getToken(shard.getShard()));
+                client.setShard(shard.getShard());
+                shard.submitBoundedRead(operation, client, number, maxLag);
+            }
+        });
+    }
+
+    /**
+     * Answers the malformed command by "CLIENT_ERROR message" in order with the connection's other replies
+     *
+     * @param connectionId connection's id
+     * @param message      description of the error
+     */
+    private void processError(int connectionId, final String message) {
+        final Client client = getClient(connectionId);
+        client.setConnectionId(connectionId);
+        runInOrder(client, new Runnable() {
+            @Override
+            public void run() {
+                sendToConnection(client.getConnectionId(), "CLIENT_ERROR " + message);
+            }
+        });
+    }
+
+    private void processToken(int connectionId, final Wrapper shard) {
+        final Client client = getClient(connectionId);
+        client.setConnectionId(connectionId);
+        runInOrder(client, new Runnable() {
+            @Override
+            public void run() {
+                sendToConnection(client.getConnectionId(), "TOKEN " + client.getToken(shard.getShard()));
+            }
+        });
+    }
+
+    /**
+     * Runs the command answered locally once the client's requests in flight are answered,
+     * so replies keep the order of commands
+     *
+     * @param client  client
+     * @param command command
+     */
+    private void runInOrder(Client client, Runnable command) {
+        if (client.getPending() == 0 && !client.hasWaiting() && !client.isBlocked()) {
+            command.run();
+        } else {
+            client.addWaiting(command);
+        }
+    }
+
+    private void runWaiting(Client client) {
+        while (client.getPending() == 0 && client.hasWaiting()) {
+            client.pollWaiting().run();
+        }
+    }
+
+    private void processPing(int connectionId) {
+        sendToConnection(connectionId, "pong");
+    }
+
+    /**
+     * Sends the storage's statistics of the shard and then of the next ones, the names are prefixed
+     * by the shard if there are several
+     *
+     * @param connectionId connection
+     * @param index        shard's index
+     */
+    private void processStats(final int connectionId, final int index) {
+        final Replica replica = shards.get(index).getReplica();
+        final String prefix = shards.size() > 1 ? "shard" + index + "." : "";
+        // the storage belongs to the apply thread
+        replica.runOnStateMachine(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, Long> entry : replica.getStorage().statistics().entrySet()) {
+                    sendToConnection(connectionId, "STAT " + prefix + entry.getKey() + " " + entry.getValue());
+                }
+                sendToConnection(connectionId, "STAT " + prefix + "expiring " + replica.getExpiringCount());
+                if (index + 1 == shards.size()) {
+                    sendToConnection(connectionId, "END");
+                    return;
+                }
+                // only the replicas' thread submits tasks to the apply stages
+                looper.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        processStats(connectionId, index + 1);
+                    }
+                });
+            }
+        });
+    }
+
+    private void processPong(int connectionId) {
+        Replica replica = replicas.get(connectionId);
+        if (replica != null) {
+            replica.setLastTimestamp(currentTimerTicks);
+        }
+    }
+
+    private Client getClient(int clientId) {
+        Client client = connectionToClient.get(clientId);
+        if (client == null) {
+            client = new Client(clientId);
+            connectionToClient.put(clientId, client);
+        }
+        return client;
+    }
+
+    class Client {
+        public int getClientId() {
+            return clientId;
+        }
+
+        private int clientId;
+        private int requestNumber;
+        private int connectionId;
+        private boolean hasConnectionId = false;
+        private boolean isReplica = false;
+        /**
+         * Whether requests to another node's primary are answered by the primary's address
+         */
+        private boolean isRedirected = false;
+        /**
+         * Id of the client's session, the replicas' client-tables execute the session's writes once,
+         * 0 if the connection has no session
+         */
+        private int sessionId;
+        /**
+         * Highest op-numbers of the replies sent to the client by the shards
+         */
+        private final long[] tokens = new long[shards.size()];
+        /**
+         * Shard of the requests in flight or @code{ALL_SHARDS}
+         */
+        private int shard;
+        /**
+         * Number of the client's requests waiting for replies
+         */
+        private int pending;
+        /**
+         * Commands waiting for the replies to the requests in flight
+         */
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        /**
+         * Whether the client's read is executed locally, the following requests wait for its reply
+         */
+        private boolean blocked;
+
+        public Client(int clientId) {
+            this.clientId = clientId;
+        }
+
+        public void markAsReplica() {
+            this.isReplica = true;
+        }
+
+        public boolean isReplica() {
+            return this.isReplica;
+        }
+
+        public void markAsRedirected() {
+            this.isRedirected = true;
+        }
+
+        public boolean isRedirected() {
+            return this.isRedirected;
+        }
+
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        public void setSessionId(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        public boolean hasSession() {
+            return sessionId < 0;
+        }
+
+        public boolean hasConnectionId() {
+            return this.hasConnectionId;
+        }
+
+        public int getConnectionId() {
+            return this.connectionId;
+        }
+
+        public void setConnectionId(int connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        /**
+         * Sends the result of the client's request, called by the replicas' and the reply threads
+         *
+         * @param result result
+         */
+        public void sendResult(String result) {
+            sendToConnection(connectionId, result);
+        }
+
+        public long getToken(int shard) {
+            return tokens[shard];
+        }
+
+        public void advanceToken(int shard, long operationNumber) {
+            tokens[shard] = Math.max(tokens[shard], operationNumber);
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public void setShard(int shard) {
+            this.shard = shard;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        public void onRequested() {
+            ++pending;
+        }
+
+        public void onReplied() {
+            if (pending > 0) {
+                --pending;
+            }
+            if (pending == 0) {
+                blocked = false;
+            }
+        }
+
+        public boolean isBlocked() {
+            return blocked;
+        }
+
+        public void block() {
+            blocked = true;
+        }
+
+        public boolean hasWaiting() {
+            return !waiting.isEmpty();
+        }
+
+        public void addWaiting(Runnable command) {
+            waiting.add(command);
+        }
+
+        public Runnable pollWaiting() {
+            return waiting.poll();
+        }
+    }
+
+    /**
+     * Client of the scan's parts, it merges the pages of the shards and replies to the scan's client
+     */
+    private class Gather extends Client {
+        private final Client owner;
+        private final int limit;
+        private final List<String> pages = new ArrayList<>();
+
+        Gather(Client owner, int limit) {
+            super(owner.getClientId());
+            this.owner = owner;
+            this.limit = limit;
+        }
+
+        @Override
+        public void sendResult(String result) {
+            // the pages come from the reply threads of the shards
+            synchronized (this) {
+                pages.add(result);
+                if (pages.size() < shards.size()) {
+                    return;
+                }
+            }
+            owner.sendResult(ScanOperation.merge(pages, limit));
+            looper.run(new Runnable() {
+                @Override
+                public void run() {
+                    owner.onReplied();
+                    runWaiting(owner);
+                }
+            });
+        }
+
+        @Override
+        public void advanceToken(int shard, long operationNumber) {
+            owner.advanceToken(shard, operationNumber);
+        }
+    }
+}
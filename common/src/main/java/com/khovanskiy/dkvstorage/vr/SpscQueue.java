@@ -0,0 +1,168 @@
+package com.khovanskiy.dkvstorage.vr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of one producer thread and one consumer thread.
+ * <p>
+ * Elements are kept in the ring buffer. Each side owns its position and publishes it by an atomic write,
+ * and reads the other side's position only when the ring seems full or empty, so neither side locks.
+ * The consumer spins for a while when the queue is empty and then parks until the producer offers an element.
+ *
+ * @author Victor Khovanskiy
+ */
+public class SpscQueue<E> {
+
+    private static final int SPINS = 128;
+
+    private final Object[] buffer;
+    private final int mask;
+    /**
+     * Position of the next element to poll, written by the consumer
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Position of the next element to offer, written by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Head the producer saw last
+     */
+    private long cachedHead;
+    /**
+     * Tail the consumer saw last
+     */
+    private long cachedTail;
+    /**
+     * Consumer parked on the empty queue, null if it is running
+     */
+    private volatile Thread sleeping;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity least number of elements the queue holds, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds the element unless the queue is full, called by the producer
+     *
+     * @param element element
+     * @return whether the element is added
+     */
+    public boolean offer(E element) {
+        long position = tail.get();
+        if (position - cachedHead == buffer.length) {
+            cachedHead = head.get();
+            if (position - cachedHead == buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) position & mask] = element;
+        // the volatile write publishes the element and is ordered before the check of the sleeping consumer
+        tail.set(position + 1);
+        Thread consumer = sleeping;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the element waiting for the consumer while the queue is full, called by the producer
+     *
+     * @param element element
+     * @return whether the element is added, false if the queue is closed
+     */
+    public boolean put(E element) {
+        while (!offer(element)) {
+            if (closed) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the head of the queue, called by the consumer
+     *
+     * @return element or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        if (position == cachedTail) {
+            cachedTail = tail.get();
+            if (position == cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) position & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * Removes the head of the queue waiting while the queue is empty, called by the consumer
+     *
+     * @return element or null if the queue is closed
+     */
+    public E take() {
+        for (int i = 0; ; ++i) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                return null;
+            }
+            if (i < SPINS) {
+                continue;
+            }
+            sleeping = Thread.currentThread();
+            element = poll();
+            if (element == null && !closed) {
+                LockSupport.park(this);
+            }
+            sleeping = null;
+            if (element != null) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Wakes the consumer up, it takes nothing from the closed queue
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = sleeping;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public int size() {
+        long position = head.get();
+        return (int) (tail.get() - position);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
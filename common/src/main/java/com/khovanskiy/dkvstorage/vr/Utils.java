@@ -25,6 +25,14 @@ public class Utils {
         }
     }
 
+    public static long parseLong(String s, long d) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ignored) {
+            return d;
+        }
+    }
+
     public static void log(int i, String s) {
         System.out.println("{REPLICA " + i + "} = " + s);
     }
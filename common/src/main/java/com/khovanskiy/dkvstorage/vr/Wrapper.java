@@ -3,112 +3,113 @@ package com.khovanskiy.dkvstorage.vr;
 import com.khovanskiy.dkvstorage.vr.message.Message;
 import com.khovanskiy.dkvstorage.vr.message.ReplyMessage;
 import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
-import com.khovanskiy.dkvstorage.vr.operation.DeleteOperation;
-import com.khovanskiy.dkvstorage.vr.operation.GetOperation;
 import com.khovanskiy.dkvstorage.vr.operation.Operation;
-import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
 import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messaging of the shard's replica, its messages and its clients' requests go through the node's network
+ *
+ * @author Victor Khovanskiy
+ */
 public class Wrapper {
     private final Replica currentReplica;
-    private final Map<Integer, Map<Integer, Client>> connectionClients = new HashMap<>();
-    private int nextClientId = 0;
-    private final Map<Integer, Integer> replicaToConnection = new HashMap<>();
-    private final Map<Long, Client> requestToClient = new HashMap<>();
-    private final Map<Integer, Client> connectionToClient = new HashMap<>();
-    private final ExecutorService backgroundExecutor = Executors.newCachedThreadPool();
-    private final Looper looper = new Looper();
-    private final Timer timer = new Timer();
-    private final Network.ConnectionListener connectionListener = new Network.ConnectionListener() {
-        @Override
-        public void onConnected(int connectionId) {
-            looper.run(new Runnable() {
-                @Override
-                public void run() {
-                    Wrapper.this.onConnected(connectionId);
-                }
-            });
-        }
+    /**
+     * Node hosting the replica, it owns the network shared by the shards
+     */
+    private final Node node;
+    private final int shard;
+    private final Map<RequestKey, Node.Client> requestToClient = new ConcurrentHashMap<>();
+    private long requestNumber;
+    private volatile boolean running;
+
+    /**
+     * @param replica replica
+     * @param node    node hosting the replica
+     * @param shard   shard of the replica
+     */
+    public Wrapper(Replica replica, Node node, int shard) {
+        this.currentReplica = replica;
+        this.node = node;
+        this.shard = shard;
+        node.addShard(this);
+    }
 
-        @Override
-        public void onDisconnected(int connectionId) {
-            looper.run(new Runnable() {
-                @Override
-                public void run() {
-                    Wrapper.this.onDisconnected(connectionId);
-                }
-            });
-        }
+    public void start(int timeout) throws IOException {
+        node.start(currentReplica.getConfiguration(), timeout);
+        running = true;
+    }
 
-        @Override
-        public void onAccept(int connectionId) {
-            looper.run(new Runnable() {
-                @Override
-                public void run() {
-                    Wrapper.this.onAccepted(connectionId);
-                }
-            });
-        }
+    public void stop() throws IOException {
+        running = false;
+        node.stop();
+    }
 
-        @Override
-        public void onReceived(int connectionId, String line) {
-            Wrapper.this.onReceived(connectionId, line);
-        }
-    };
-    private final TimerTask timerTask = new TimerTask() {
-        @Override
-        public void run() {
-            looper.run(new Runnable() {
-                @Override
-                public void run() {
-                    Wrapper.this.onTimerTick();
-                }
-            });
-        }
-    };
-    private Map<Integer, Replica> replicas = new HashMap<>();
-    private Network network;
-    private long requestNumber;
-    private int timeout;
-    private long currentTimerTicks = 0;
+    public Replica getReplica() {
+        return currentReplica;
+    }
 
-    public Wrapper(Replica replica) {
-        this.currentReplica = replica;
+    public int getShard() {
+        return shard;
     }
 
-    public void start(int timeout) throws IOException {
-        this.timeout = timeout;
+    /**
+     * Whether the replica is started, messages of the stopped one are dropped
+     */
+    public boolean isRunning() {
+        return running;
+    }
 
-        network = new Network();
-        for (Replica anotherReplica : currentReplica.getConfiguration()) {
-            if (anotherReplica.getReplicaNumber() == currentReplica.getReplicaNumber()) {
-                continue;
-            }
-            int connectionId = network.connect(anotherReplica.getHost(), anotherReplica.getPort(), true);
-            replicaToConnection.put(anotherReplica.getReplicaNumber(), connectionId);
-            replicas.put(connectionId, anotherReplica);
-        }
-        network.setConnectionListener(connectionListener);
-        network.server(currentReplica.getHost(), currentReplica.getPort());
-        network.start();
-        backgroundExecutor.submit(looper);
+    /**
+     * Runs the event on the replica's thread
+     *
+     * @param event event
+     */
+    public void post(Runnable event) {
+        node.post(event);
+    }
 
-        // TODO make more smart solution
-        timer.scheduleAtFixedRate(timerTask, 0, timeout / 2);
+    /**
+     * Runs the event on the replica's thread after the delay
+     *
+     * @param event event
+     * @param delay delay
+     * @param unit  unit of the delay
+     */
+    public void postDelayed(Runnable event, long delay, TimeUnit unit) {
+        node.postDelayed(event, delay, unit);
     }
 
-    public void stop() throws IOException {
-        network.stop();
-        timer.cancel();
+    /**
+     * Runs the task on the background thread, the looper isn't held up by it
+     *
+     * @param task task
+     */
+    public void execute(Runnable task) {
+        node.execute(task);
     }
 
     public void sendToReplica(int replicaId, Message message) {
-        sendToConnection(replicaToConnection.get(replicaId), message);
+        node.sendToReplica(replicaId, encode(message));
+    }
+
+    /**
+     * Sends the message to the replicas, it is encoded once
+     *
+     * @param replicaIds replicas' numbers
+     * @param message    message
+     */
+    public void sendToReplicas(Collection<Integer> replicaIds, Message message) {
+        String line = encode(message);
+        for (int replicaId : replicaIds) {
+            node.sendToReplica(replicaId, line);
+        }
     }
 
     public void sendToPrimary(Message message) {
@@ -120,194 +121,137 @@ public class Wrapper {
     }*/
 
     public void forwardReply(ReplyMessage reply) {
-        Client client = requestToClient.get(reply.getRequestNumber());
+        Node.Client client = requestToClient.get(new RequestKey(reply.getClientId(), reply.getRequestNumber()));
         if (client == null) {
+            return;
+        }
+        sendToClient(client, reply);
+        node.onReplied(client, shard, reply);
+    }
 
+    /**
+     * Sends the replies of the apply stage from its reply thread, the clients' bookkeeping is done
+     * on the replica's thread afterwards
+     *
+     * @param replies replies in the order of execution
+     */
+    public void forwardReplies(final List<ReplyMessage> replies) {
+        final Node.Client[] clients = new Node.Client[replies.size()];
+        for (int i = 0; i < clients.length; ++i) {
+            ReplyMessage reply = replies.get(i);
+            clients[i] = requestToClient.get(new RequestKey(reply.getClientId(), reply.getRequestNumber()));
+            if (clients[i] != null) {
+                sendToClient(clients[i], replies.get(i));
+            }
         }
-        sendToClient(requestToClient.get(reply.getRequestNumber()), reply);
+        node.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < clients.length; ++i) {
+                    if (clients[i] != null) {
+                        node.onReplied(clients[i], shard, replies.get(i));
+                    }
+                }
+            }
+        });
     }
 
-    protected void sendToClient(Client client, ReplyMessage reply) {
-        int connectionId = client.getConnectionId();
+    protected void sendToClient(Node.Client client, ReplyMessage reply) {
         if (client.isReplica()) {
-            sendToConnection(connectionId, reply);
+            sendToConnection(client.getConnectionId(), reply);
         } else {
-            sendToConnection(connectionId, reply.getResult());
+            client.sendResult(reply.getResult());
         }
     }
 
-    public void sendToConnection(int connectionId, Message message) {
-        sendToConnection(connectionId, Message.encode(message).toString());
-    }
-
-    protected void sendToConnection(int connectionId, String message) {
-        network.send(connectionId, message);
+    /**
+     * Sends the message with the payload as bulk chunk
+     *
+     * @param replicaId replica's number
+     * @param message   message
+     * @param payload   payload
+     */
+    public void sendToReplica(int replicaId, Message message, ByteBuffer payload) {
+        node.sendToReplica(replicaId, encode(message), payload);
     }
 
-    public void sendToOtherReplicas(Message message) {
-        sendToOtherReplicas(Message.encode(message).toString());
+    /**
+     * Sends the message with the file's region as bulk chunk
+     *
+     * @param replicaId replica's number
+     * @param message   message
+     * @param file      file
+     * @param position  position of the region
+     * @param count     length of the region
+     */
+    public void sendToReplica(int replicaId, Message message, FileChannel file, long position, int count) {
+        node.sendToReplica(replicaId, encode(message), file, position, count);
     }
 
-    protected void sendToOtherReplicas(String message) {
-        for (Map.Entry<Integer, Integer> entry : replicaToConnection.entrySet()) {
-            if (currentReplica.getReplicaNumber() != entry.getKey()) {
-                sendToConnection(entry.getValue(), message);
-            }
-        }
+    public void sendToConnection(int connectionId, Message message) {
+        node.sendToConnection(connectionId, encode(message));
     }
 
-    private void onTimerTick() {
-        // TODO: uncomment this if it really needed by DKVS task
-
-        /*long currentTimestamp = System.currentTimeMillis();
-        Map<Integer, Replica> newNodes = new HashMap<>(replicas.size());
-        for (Map.Entry<Integer, Replica> entry : replicas.entrySet()) {
-            int connectionId = entry.getKey();
-            Replica replica = entry.getValue();
-            if (Math.abs(currentTimestamp - replica.getLastTimestamp()) > timeout) {
-                Utils.log(currentReplica.getReplicaNumber(), "Force disconnect from " + network.dump(connectionId));
-                network.disconnect(connectionId);
-
-                int newConnectionId = network.connect(replica.getHost(), replica.getPort(), true);
-
-                newNodes.put(newConnectionId, replica);
-                replicaToConnection.put(replica.getReplicaNumber(), newConnectionId);
-            } else {
-                newNodes.put(connectionId, replica);
-            }
-        }
-        replicas = newNodes;
-        sendToOtherReplicas("ping");/**/
-
-        currentReplica.onReceivedTimeout();
+    public void sendToOtherReplicas(Message message) {
+        node.sendToOtherReplicas(encode(message));
     }
 
-    private void onConnected(int connectionId) {
-        Utils.log(currentReplica.getReplicaNumber(), "Connected to remote " + network.dump(connectionId));
-        sendToConnection(connectionId, "node " + currentReplica.getReplicaNumber());
-        Replica replica = replicas.get(connectionId);
-        replica.setLastTimestamp(System.currentTimeMillis());
+    /**
+     * Encodes the message tagged by the replica's shard
+     */
+    private String encode(Message message) {
+        return Message.encode(message, shard).toString();
     }
 
-    private void onDisconnected(int connectionId) {
-        Utils.log(currentReplica.getReplicaNumber(), "Disconnected " + network.dump(connectionId));
-        Replica replica = replicas.get(connectionId);
-        if (replica != null) {
-            if (currentReplica.getPrimaryNumber() == replica.getReplicaNumber()) {
-                currentReplica.onPrimaryDisconnected();
-            }
-        } else {
-
+    /**
+     * Handles the message of the shard's replicas or of the client
+     *
+     * @param client       sender
+     * @param connectionId sender's connection
+     * @param message      message
+     */
+    void onReceived(Node.Client client, int connectionId, Message message) {
+        // TODO: replace workaround
+        if (message.getMessageType().equals(RequestMessage.TYPE)) {
+            RequestMessage request = (RequestMessage) message;
+            client.setConnectionId(connectionId);
+            requestToClient.put(new RequestKey(request.getClientId(), request.getRequestNumber()), client);
         }
+        message.delegateProcessing(currentReplica);
     }
 
-    private void onAccepted(int connectionId) {
-        Utils.log(currentReplica.getReplicaNumber(), "Accepted " + network.dump(connectionId));
+    void onReceivedBulk(Message message) {
+        message.delegateProcessing(currentReplica);
     }
 
-    private void onReceived(int connectionId, String line) {
-        Utils.log(currentReplica.getReplicaNumber(), "Received from " + network.dump(connectionId) + ": " + line);
-        Replica replica = replicas.get(connectionId);
-        if (replica != null) {
-            replica.setLastTimestamp(System.currentTimeMillis());
-        }
-        try {
-            if (processMessage(connectionId, line)) {
-                return;
-            }
-            Message message = Message.decode(line);
-            // TODO: replace workaround
-            if (message.getMessageType().equals(RequestMessage.TYPE)) {
-                Client client = getClient(connectionId);
-                client.setConnectionId(connectionId);
-                requestToClient.put(((RequestMessage)message).getRequestNumber(), client);
-            }
-            message.delegateProcessing(currentReplica);
-        } catch (Exception e) {
-            System.out.println("Parse error + " + line);
-            e.printStackTrace();
-        }
+    void submitRequest(Operation operation, Node.Client client) {
+        submitRequest(newRequest(operation, client));
     }
 
-    private boolean processMessage(int connectionId, String line) {
-        String[] slices = line.trim().toLowerCase(Locale.US).split(" +");
-        if (slices.length == 0) {
-            return false;
-        }
-        switch (slices[0]) {
-            case "node": {
-                if (slices.length != 2) {
-                    return false;
-                }
-                processNode(connectionId, Utils.parseInt(slices[1]));
-                return true;
-            }
-            case "get":
-                if (slices.length != 2) {
-                    return false;
-                }
-                processClientRequest(new GetOperation(slices[1]), connectionId);
-                return true;
-            case "set":
-                if (slices.length != 3) {
-                    return false;
-                }
-                processClientRequest(new SetOperation(slices[1], slices[2]), connectionId);
-                return true;
-            case "delete":
-                if (slices.length != 2) {
-                    return false;
-                }
-                processClientRequest(new DeleteOperation(slices[1]), connectionId);
-                return true;
-            case "ping":
-                if (slices.length != 1) {
-                    return false;
-                }
-                processPing(connectionId);
-                return true;
-            case "pong":
-                if (slices.length != 1)
-                    return false;
-                processPong(connectionId);
-                return true;
-            case "primary": {
-                if (slices.length != 1)
-                    return false;
-                sendToConnection(connectionId, "leader = " + currentReplica.getPrimaryNumber());
-                return true;
-            }
-            case "accepted":
-                return true;
-        }
-        return false;
+    /**
+     * Submits the request of the client's session, the request keeps its number when the client retries it
+     * by another connection, so the client-table executes it once
+     *
+     * @param operation     operation
+     * @param client        client
+     * @param sessionId     client's id of the session
+     * @param requestNumber request-number in the session
+     */
+    void submitRequest(Operation operation, Node.Client client, int sessionId, long requestNumber) {
+        submitRequest(newRequest(operation, client, sessionId, requestNumber));
     }
 
-    private void processNode(int connectionId, int clientId) {
-        Client client = getClient(connectionId);
-        /*if (client.hasConnectionId()) {
-            int oldConnectionId = client.getConnectionId();
-            network.disconnect(oldConnectionId);
-        }*/
-        client.markAsReplica();
-        sendToConnection(connectionId, "ACCEPTED");
+    private RequestMessage newRequest(Operation operation, Node.Client client) {
+        return newRequest(operation, client, currentReplica.getReplicaNumber(), ++requestNumber);
     }
 
-    private void processClientRequest(Operation operation, int connectionId) {
-        /*Map<Integer, Client> clients = connectionClients.get(connectionId);
-        if (clients == null) {
-            clients = new HashMap<>();
-            connectionClients.put(connectionId, clients);
-        }*/
-
-        Client client = getClient(connectionId);
-        client.setConnectionId(connectionId);
-
-        ++requestNumber;
-        RequestMessage request = new RequestMessage(operation, currentReplica.getReplicaNumber(), requestNumber);
-
-        requestToClient.put(requestNumber, client);
+    private RequestMessage newRequest(Operation operation, Node.Client client, int clientId, long requestNumber) {
+        requestToClient.put(new RequestKey(clientId, requestNumber), client);
+        client.onRequested();
+        return new RequestMessage(operation, clientId, requestNumber);
+    }
 
+    private void submitRequest(RequestMessage request) {
         if (currentReplica.isPrimary()) {
             currentReplica.onReceivedRequest(request);
         } else {
@@ -327,85 +271,47 @@ public class Wrapper {
         }*/
     }
 
-    private void processPing(int connectionId) {
-        sendToConnection(connectionId, "pong");
-    }
-
-    private void processPong(int connectionId) {
-        Replica replica = replicas.get(connectionId);
-        if (replica != null) {
-            replica.setLastTimestamp(currentTimerTicks);
-        }
-    }
-
-    private Client getClient(int clientId) {
-        Client client = connectionToClient.get(clientId);
-        if (client == null) {
-            client = new Client(clientId);
-            connectionToClient.put(clientId, client);
+    /**
+     * Executes the read on this backup if its state satisfies the bound, otherwise processes it as usual
+     *
+     * @param operation   read-only operation
+     * @param client      client
+     * @param afterNumber op-number the state has to include
+     * @param maxLag      time in milliseconds the state may be behind the primary's one
+     */
+    void submitBoundedRead(Operation operation, Node.Client client, long afterNumber, long maxLag) {
+        RequestMessage request = newRequest(operation, client);
+        if (!currentReplica.isPrimary() && currentReplica.onReceivedBoundedRead(request, afterNumber, maxLag)) {
+            client.block();
+        } else {
+            submitRequest(request);
         }
-        return client;
     }
 
-    /*private class Node {
-        private int nodeId;
-        private long lastTick;
-
-        public Node(int nodeid) {
-            this.nodeId = nodeid;
-        }
-
-        public int getNodeId() {
-            return this.nodeId;
-        }
-
-        public long getLastTick() {
-            return this.lastTick;
-        }
-
-        public void setLastTick(long lastTick) {
-            this.lastTick = lastTick;
-        }
-    }*/
-
-    private class Client {
-        public int getClientId() {
-            return clientId;
-        }
-
-        private int clientId;
-        private int requestNumber;
-        private int connectionId;
-        private boolean hasConnectionId = false;
-        private boolean isReplica = false;
+    /**
+     * Request-number of the client, the nodes and the sessions number their requests independently
+     */
+    private static final class RequestKey {
+        private final int clientId;
+        private final long requestNumber;
 
-        public Client(int clientId) {
+        RequestKey(int clientId, long requestNumber) {
             this.clientId = clientId;
+            this.requestNumber = requestNumber;
         }
 
-        public RequestMessage nextRequest(Operation operation) {
-            ++requestNumber;
-            return new RequestMessage(operation, clientId, requestNumber);
-        }
-
-        public void markAsReplica() {
-            this.isReplica = true;
-        }
-
-        public boolean isReplica() {
-            return this.isReplica;
-        }
-
-        public boolean hasConnectionId() {
-            return this.hasConnectionId;
-        }
-
-        public int getConnectionId() {
-            return this.connectionId;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) o;
+            return clientId == other.clientId && requestNumber == other.requestNumber;
         }
 
-        public void setConnectionId(int connectionId) {
-            this.connectionId = connectionId;
+        @Override
+        public int hashCode() {
+            return 31 * clientId + Long.hashCode(requestNumber);
         }
     }
 }
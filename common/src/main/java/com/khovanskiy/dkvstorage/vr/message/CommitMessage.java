@@ -4,6 +4,7 @@ import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 
 /**
  * @author Victor Khovanskiy
@@ -16,15 +17,22 @@ public class CommitMessage extends Message {
 
     private final long viewNumber;
     private final long commitNumber;
+    private final long leaseTimestamp;
 
     public CommitMessage(JsonObject jSonObject) {
         this.viewNumber = jSonObject.getJsonNumber(VIEW_NUMBER).longValue();
         this.commitNumber = jSonObject.getJsonNumber(COMMIT_NUMBER).longValue();
+        this.leaseTimestamp = jSonObject.containsKey(LEASE) ? jSonObject.getJsonNumber(LEASE).longValue() : NO_LEASE;
     }
 
     public CommitMessage(long viewNumber, long commitNumber) {
+        this(viewNumber, commitNumber, NO_LEASE);
+    }
+
+    public CommitMessage(long viewNumber, long commitNumber, long leaseTimestamp) {
         this.viewNumber = viewNumber;
         this.commitNumber = commitNumber;
+        this.leaseTimestamp = leaseTimestamp;
     }
 
     public long getViewNumber() {
@@ -35,6 +43,13 @@ public class CommitMessage extends Message {
         return commitNumber;
     }
 
+    /**
+     * Gets the primary's time the message was sent at, @code{NO_LEASE} if it doesn't renew the lease
+     */
+    public long getLeaseTimestamp() {
+        return leaseTimestamp;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedCommit(this);
@@ -47,9 +62,12 @@ public class CommitMessage extends Message {
 
     @Override
     protected JsonObject encode() {
-        return Json.createObjectBuilder()
+        JsonObjectBuilder builder = Json.createObjectBuilder()
                 .add(VIEW_NUMBER, viewNumber)
-                .add(COMMIT_NUMBER, commitNumber)
-                .build();
+                .add(COMMIT_NUMBER, commitNumber);
+        if (leaseTimestamp != NO_LEASE) {
+            builder.add(LEASE, leaseTimestamp);
+        }
+        return builder.build();
     }
 }
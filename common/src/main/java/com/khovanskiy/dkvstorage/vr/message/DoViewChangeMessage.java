@@ -18,6 +18,7 @@ public class DoViewChangeMessage extends Message {
     public static final String COMMIT_NUMBER = "commitNumber";
     public static final String REPLICA_NUMBER = "replicaNumber";
     public static final String LOG = "log";
+    public static final String CHECKPOINT_NUMBER = "checkpointNumber";
 
     private final long viewNumber;
     private final long lastNormalViewNumber;
@@ -25,6 +26,7 @@ public class DoViewChangeMessage extends Message {
     private final long commitNumber;
     private final int replicaNumber;
     private final ReplicaLog log;
+    private final long checkpointNumber;
 
     public DoViewChangeMessage(JsonObject jsonObject) {
         viewNumber = jsonObject.getJsonNumber(VIEW_NUMBER).intValue();
@@ -33,16 +35,18 @@ public class DoViewChangeMessage extends Message {
         commitNumber = jsonObject.getJsonNumber(COMMIT_NUMBER).intValue();
         replicaNumber = jsonObject.getInt(REPLICA_NUMBER);
         log = ReplicaLog.decode(jsonObject.get(LOG).toString());
+        checkpointNumber = jsonObject.containsKey(CHECKPOINT_NUMBER) ? jsonObject.getJsonNumber(CHECKPOINT_NUMBER).longValue() : 0;
     }
 
     public DoViewChangeMessage(long viewNumber, long lastNormalViewNumber, long operationNumber,
-                               long commitNumber, int replicaNumber, ReplicaLog log) {
+                               long commitNumber, int replicaNumber, ReplicaLog log, long checkpointNumber) {
         this.viewNumber = viewNumber;
         this.lastNormalViewNumber = lastNormalViewNumber;
         this.operationNumber = operationNumber;
         this.commitNumber = commitNumber;
         this.replicaNumber = replicaNumber;
         this.log = log;
+        this.checkpointNumber = checkpointNumber;
     }
 
     public long getViewNumber() {
@@ -69,6 +73,15 @@ public class DoViewChangeMessage extends Message {
         return log;
     }
 
+    /**
+     * Gets commit-number of the sender's latest checkpoint, its log may be truncated up to it
+     *
+     * @return commit-number or 0 if the sender has no checkpoint
+     */
+    public long getCheckpointNumber() {
+        return checkpointNumber;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedDoViewChange(this);
@@ -88,6 +101,7 @@ public class DoViewChangeMessage extends Message {
                 .add(COMMIT_NUMBER, commitNumber)
                 .add(REPLICA_NUMBER, replicaNumber)
                 .add(LOG, ReplicaLog.encode(log))
+                .add(CHECKPOINT_NUMBER, checkpointNumber)
                 .build();
     }
 }
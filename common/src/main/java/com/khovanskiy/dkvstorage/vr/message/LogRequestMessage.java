@@ -0,0 +1,81 @@
+package com.khovanskiy.dkvstorage.vr.message;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Request of the committed log range by the recovering replica
+ *
+ * @author Victor Khovanskiy
+ */
+public class LogRequestMessage extends Message {
+
+    public static final String TYPE = "logRequest";
+    public static final String REPLICA_NUMBER = "replicaNumber";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String FROM = "from";
+    public static final String TO = "to";
+
+    private final int replicaNumber;
+    private final long timestamp;
+    private final long from;
+    private final long to;
+
+    /**
+     * @param replicaNumber number of the recovering replica
+     * @param timestamp     nonce of the recovery
+     * @param from          op-number of the first requested operation
+     * @param to            op-number of the last requested operation
+     */
+    public LogRequestMessage(int replicaNumber, long timestamp, long from, long to) {
+        this.replicaNumber = replicaNumber;
+        this.timestamp = timestamp;
+        this.from = from;
+        this.to = to;
+    }
+
+    public LogRequestMessage(JsonObject jsonObject) {
+        replicaNumber = jsonObject.getInt(REPLICA_NUMBER);
+        timestamp = jsonObject.getJsonNumber(TIMESTAMP).longValue();
+        from = jsonObject.getJsonNumber(FROM).longValue();
+        to = jsonObject.getJsonNumber(TO).longValue();
+    }
+
+    public int getReplicaNumber() {
+        return replicaNumber;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    @Override
+    public void delegateProcessing(Replica replica) {
+        replica.onReceivedLogRequest(this);
+    }
+
+    @Override
+    public String getMessageType() {
+        return TYPE;
+    }
+
+    @Override
+    protected JsonObject encode() {
+        return Json.createObjectBuilder()
+                .add(REPLICA_NUMBER, replicaNumber)
+                .add(TIMESTAMP, timestamp)
+                .add(FROM, from)
+                .add(TO, to)
+                .build();
+    }
+}
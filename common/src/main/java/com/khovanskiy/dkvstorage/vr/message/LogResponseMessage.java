@@ -0,0 +1,101 @@
+package com.khovanskiy.dkvstorage.vr.message;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+import com.khovanskiy.dkvstorage.vr.replica.ReplicaLog;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Committed log range sent to the recovering replica
+ *
+ * @author Victor Khovanskiy
+ */
+public class LogResponseMessage extends Message {
+
+    public static final String TYPE = "logResponse";
+    public static final String REPLICA_NUMBER = "replicaNumber";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String FROM = "from";
+    public static final String TO = "to";
+    public static final String LOG = "log";
+
+    private final int replicaNumber;
+    private final long timestamp;
+    private final long from;
+    private final long to;
+    private final ReplicaLog log;
+
+    /**
+     * @param replicaNumber number of the sender
+     * @param timestamp     nonce of the recovery
+     * @param from          op-number of the first requested operation
+     * @param to            op-number of the last requested operation
+     * @param log           requested operations or null if the sender doesn't hold them
+     */
+    public LogResponseMessage(int replicaNumber, long timestamp, long from, long to, ReplicaLog log) {
+        this.replicaNumber = replicaNumber;
+        this.timestamp = timestamp;
+        this.from = from;
+        this.to = to;
+        this.log = log;
+    }
+
+    public LogResponseMessage(JsonObject jsonObject) {
+        replicaNumber = jsonObject.getInt(REPLICA_NUMBER);
+        timestamp = jsonObject.getJsonNumber(TIMESTAMP).longValue();
+        from = jsonObject.getJsonNumber(FROM).longValue();
+        to = jsonObject.getJsonNumber(TO).longValue();
+        if (!jsonObject.isNull(LOG)) {
+            log = ReplicaLog.decode(jsonObject.getJsonObject(LOG).toString());
+        } else {
+            log = null;
+        }
+    }
+
+    public int getReplicaNumber() {
+        return replicaNumber;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public ReplicaLog getLog() {
+        return log;
+    }
+
+    @Override
+    public void delegateProcessing(Replica replica) {
+        replica.onReceivedLogResponse(this);
+    }
+
+    @Override
+    public String getMessageType() {
+        return TYPE;
+    }
+
+    @Override
+    protected JsonObject encode() {
+        JsonObjectBuilder builder = Json.createObjectBuilder()
+                .add(REPLICA_NUMBER, replicaNumber)
+                .add(TIMESTAMP, timestamp)
+                .add(FROM, from)
+                .add(TO, to);
+        if (log != null) {
+            builder.add(LOG, ReplicaLog.encode(log));
+        } else {
+            builder.addNull(LOG);
+        }
+        return builder.build();
+    }
+}
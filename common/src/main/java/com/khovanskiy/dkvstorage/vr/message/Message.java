@@ -4,9 +4,11 @@ import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
 import javax.json.JsonString;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 
 /**
  * @author Victor Khovanskiy
@@ -15,18 +17,58 @@ public abstract class Message {
 
     private static final String MESSAGE_TYPE = "type";
     private static final String MESSAGE_CONTENT = "content";
+    /**
+     * Name of the field with the time the primary sent the message at, it renews the primary's lease
+     */
+    public static final String LEASE = "lease";
+    /**
+     * Lease timestamp of messages which don't renew the lease
+     */
+    public static final long NO_LEASE = Long.MIN_VALUE;
+
+    /**
+     * Name of the field with the shard whose replicas exchange the message, it is absent for the first shard
+     */
+    public static final String SHARD = "shard";
 
     public static JsonObject encode(Message message) {
-        return Json.createObjectBuilder()
+        return encode(message, 0);
+    }
+
+    /**
+     * Encodes the message of the shard's replica
+     *
+     * @param message message
+     * @param shard   shard's index
+     * @return encoded message
+     */
+    public static JsonObject encode(Message message, int shard) {
+        JsonObjectBuilder builder = Json.createObjectBuilder()
                 .add(Message.MESSAGE_TYPE, message.getMessageType())
-                .add(Message.MESSAGE_CONTENT, message.encode())
-                .build();
+                .add(Message.MESSAGE_CONTENT, message.encode());
+        if (shard != 0) {
+            builder.add(Message.SHARD, shard);
+        }
+        return builder.build();
     }
 
     public static Message decode(String jsonString) {
+        return decode(parse(jsonString));
+    }
+
+    public static JsonObject parse(String jsonString) {
         JsonReader jsonReader = Json.createReader(new StringReader(jsonString));
-        JsonObject jsonObject = jsonReader.readObject();
-        return decode(jsonObject);
+        return jsonReader.readObject();
+    }
+
+    /**
+     * Gets the shard of the encoded message
+     *
+     * @param jsonObject encoded message
+     * @return shard's index
+     */
+    public static int getShard(JsonObject jsonObject) {
+        return jsonObject.getInt(Message.SHARD, 0);
     }
 
     public static Message decode(JsonObject jsonObject) {
@@ -54,10 +96,28 @@ public abstract class Message {
                 return new RecoveryResponseMessage(content);
             case ReplyMessage.TYPE:
                 return new ReplyMessage(content);
+            case SnapshotRequestMessage.TYPE:
+                return new SnapshotRequestMessage(content);
+            case SnapshotChunkMessage.TYPE:
+                return new SnapshotChunkMessage(content);
+            case LogRequestMessage.TYPE:
+                return new LogRequestMessage(content);
+            case LogResponseMessage.TYPE:
+                return new LogResponseMessage(content);
         }
         throw new IllegalArgumentException("Unknown message type: \"" + type + "\"");
     }
 
+    /**
+     * Attaches the payload of the bulk chunk which carried the message
+     *
+     * @param payload payload
+     * @return message with the payload
+     */
+    public Message withPayload(ByteBuffer payload) {
+        throw new IllegalArgumentException("Message " + getMessageType() + " has no payload");
+    }
+
     public void delegateProcessing(Replica replica) {
 
     }
@@ -3,46 +3,94 @@ package com.khovanskiy.dkvstorage.vr.message;
 import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
+ * Batch of requests prepared by the primary, they get consecutive op-numbers ending with the message's one
+ *
  * @author Victor Khovanskiy
  */
 public class PrepareMessage extends Message {
 
     public static final String TYPE = "prepare";
-    public static final String REQUEST_MESSAGE = "request";
+    public static final String REQUESTS = "requests";
     public static final String VIEW_NUMBER = "viewNumber";
     public static final String OPERATION_NUMBER = "operationNumber";
     public static final String COMMIT_NUMBER = "commitNumber";
 
     private long viewNumber;
-    private RequestMessage request;
+    private List<RequestMessage> requests;
     private long operationNumber;
     private long commitNumber;
+    private long leaseTimestamp = NO_LEASE;
 
     public PrepareMessage(JsonObject jsonObject) {
-        this.request = (RequestMessage) Message.decode(jsonObject.getJsonObject(REQUEST_MESSAGE));
+        JsonArray array = jsonObject.getJsonArray(REQUESTS);
+        this.requests = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); ++i) {
+            requests.add((RequestMessage) Message.decode(array.getJsonObject(i)));
+        }
         this.viewNumber = jsonObject.getJsonNumber(VIEW_NUMBER).longValue();
         this.operationNumber = jsonObject.getJsonNumber(OPERATION_NUMBER).longValue();
         this.commitNumber = jsonObject.getJsonNumber(COMMIT_NUMBER).longValue();
+        if (jsonObject.containsKey(LEASE)) {
+            this.leaseTimestamp = jsonObject.getJsonNumber(LEASE).longValue();
+        }
     }
 
     public PrepareMessage(RequestMessage message, long viewNumber, long operationNumber, long commitNumber) {
-        this.request = message;
+        this(Collections.singletonList(message), viewNumber, operationNumber, commitNumber);
+    }
+
+    /**
+     * @param requests        requests in the order of their op-numbers
+     * @param viewNumber      view-number
+     * @param operationNumber op-number of the last request
+     * @param commitNumber    commit-number
+     */
+    public PrepareMessage(List<RequestMessage> requests, long viewNumber, long operationNumber, long commitNumber) {
+        this.requests = requests;
         this.viewNumber = viewNumber;
         this.operationNumber = operationNumber;
         this.commitNumber = commitNumber;
     }
 
-    public RequestMessage getRequest() {
-        return request;
+    /**
+     * @param requests        requests in the order of their op-numbers
+     * @param viewNumber      view-number
+     * @param operationNumber op-number of the last request
+     * @param commitNumber    commit-number
+     * @param leaseTimestamp  the primary's time the message is sent at, @code{NO_LEASE} if it doesn't renew the lease
+     */
+    public PrepareMessage(List<RequestMessage> requests, long viewNumber, long operationNumber, long commitNumber, long leaseTimestamp) {
+        this(requests, viewNumber, operationNumber, commitNumber);
+        this.leaseTimestamp = leaseTimestamp;
+    }
+
+    public List<RequestMessage> getRequests() {
+        return requests;
     }
 
     public long getViewNumber() {
         return viewNumber;
     }
 
+    /**
+     * Gets op-number of the first request of the batch
+     */
+    public long getFirstOperationNumber() {
+        return operationNumber - requests.size() + 1;
+    }
+
+    /**
+     * Gets op-number of the last request of the batch
+     */
     public long getOperationNumber() {
         return operationNumber;
     }
@@ -51,6 +99,10 @@ public class PrepareMessage extends Message {
         return commitNumber;
     }
 
+    public long getLeaseTimestamp() {
+        return leaseTimestamp;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedPrepare(this);
@@ -63,16 +115,23 @@ public class PrepareMessage extends Message {
 
     @Override
     protected JsonObject encode() {
-        return Json.createObjectBuilder()
-                .add(REQUEST_MESSAGE, Message.encode(request))
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (RequestMessage request : requests) {
+            array.add(Message.encode(request));
+        }
+        JsonObjectBuilder builder = Json.createObjectBuilder()
+                .add(REQUESTS, array)
                 .add(VIEW_NUMBER, viewNumber)
                 .add(OPERATION_NUMBER, operationNumber)
-                .add(COMMIT_NUMBER, commitNumber)
-                .build();
+                .add(COMMIT_NUMBER, commitNumber);
+        if (leaseTimestamp != NO_LEASE) {
+            builder.add(LEASE, leaseTimestamp);
+        }
+        return builder.build();
     }
 
     @Override
     public String toString() {
-        return "prepare " + viewNumber + " " + request + " " + operationNumber + " " + commitNumber;
+        return "prepare " + viewNumber + " " + requests + " " + operationNumber + " " + commitNumber;
     }
 }
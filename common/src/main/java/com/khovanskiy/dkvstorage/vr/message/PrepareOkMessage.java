@@ -4,6 +4,7 @@ import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 
 /**
  * @author Victor Khovanskiy
@@ -14,6 +15,7 @@ public class PrepareOkMessage extends Message {
     public static final String VIEW_NUMBER = "viewNumber";
     public static final String OPERATION_NUMBER = "operationNumber";
     public static final String REPLICA_NUMBER = "replica";
+    public static final String RETRANSMIT = "retransmit";
 
     public long getViewNumber() {
         return viewNumber;
@@ -27,20 +29,49 @@ public class PrepareOkMessage extends Message {
         return replicaNumber;
     }
 
+    /**
+     * Whether the backup misses operations following the op-number and asks to send them again
+     */
+    public boolean isRetransmit() {
+        return retransmit;
+    }
+
+    /**
+     * Gets lease timestamp of the last message the backup received from the primary,
+     * the backup doesn't join view change for the lease duration since then
+     */
+    public long getLeaseTimestamp() {
+        return leaseTimestamp;
+    }
+
     private long viewNumber;
     private long operationNumber;
     private int replicaNumber;
+    private boolean retransmit;
+    private long leaseTimestamp;
 
     public PrepareOkMessage(JsonObject jsonObject) {
         this.viewNumber = jsonObject.getJsonNumber(VIEW_NUMBER).longValue();
         this.operationNumber = jsonObject.getJsonNumber(OPERATION_NUMBER).longValue();
         this.replicaNumber = jsonObject.getInt(REPLICA_NUMBER);
+        this.retransmit = jsonObject.containsKey(RETRANSMIT) && jsonObject.getBoolean(RETRANSMIT);
+        this.leaseTimestamp = jsonObject.containsKey(LEASE) ? jsonObject.getJsonNumber(LEASE).longValue() : NO_LEASE;
     }
 
     public PrepareOkMessage(long viewNumber, long operationNumber, int replicaNumber) {
+        this(viewNumber, operationNumber, replicaNumber, false);
+    }
+
+    public PrepareOkMessage(long viewNumber, long operationNumber, int replicaNumber, boolean retransmit) {
+        this(viewNumber, operationNumber, replicaNumber, retransmit, NO_LEASE);
+    }
+
+    public PrepareOkMessage(long viewNumber, long operationNumber, int replicaNumber, boolean retransmit, long leaseTimestamp) {
         this.viewNumber = viewNumber;
         this.operationNumber = operationNumber;
         this.replicaNumber = replicaNumber;
+        this.retransmit = retransmit;
+        this.leaseTimestamp = leaseTimestamp;
     }
 
     @Override
@@ -55,10 +86,14 @@ public class PrepareOkMessage extends Message {
 
     @Override
     protected JsonObject encode() {
-        return Json.createObjectBuilder()
+        JsonObjectBuilder builder = Json.createObjectBuilder()
                 .add(VIEW_NUMBER, viewNumber)
                 .add(OPERATION_NUMBER, operationNumber)
                 .add(REPLICA_NUMBER, replicaNumber)
-                .build();
+                .add(RETRANSMIT, retransmit);
+        if (leaseTimestamp != NO_LEASE) {
+            builder.add(LEASE, leaseTimestamp);
+        }
+        return builder.build();
     }
 }
@@ -13,18 +13,27 @@ public class RecoveryMessage extends Message {
     public static final String TYPE = "recovery";
     public static final String REPLICA_NUMBER = "replicaNumber";
     public static final String TIMESTAMP = "timestamp";
+    public static final String COMMIT_NUMBER = "commitNumber";
 
     private final int replicaNumber;
     private final long timestamp;
+    private final long commitNumber;
 
-    public RecoveryMessage(int replicaNumber, long timestamp) {
+    /**
+     * @param replicaNumber number of the recovering replica
+     * @param timestamp     nonce
+     * @param commitNumber  commit-number of the last operation executed by the recovering replica
+     */
+    public RecoveryMessage(int replicaNumber, long timestamp, long commitNumber) {
         this.replicaNumber = replicaNumber;
         this.timestamp = timestamp;
+        this.commitNumber = commitNumber;
     }
 
     public RecoveryMessage(JsonObject jsonObject) {
         replicaNumber = jsonObject.getJsonNumber(REPLICA_NUMBER).intValue();
         timestamp = jsonObject.getJsonNumber(TIMESTAMP).longValue();
+        commitNumber = jsonObject.containsKey(COMMIT_NUMBER) ? jsonObject.getJsonNumber(COMMIT_NUMBER).longValue() : 0;
     }
 
     public int getReplicaNumber() {
@@ -35,6 +44,10 @@ public class RecoveryMessage extends Message {
         return timestamp;
     }
 
+    public long getCommitNumber() {
+        return commitNumber;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedRecovery(this);
@@ -50,6 +63,7 @@ public class RecoveryMessage extends Message {
         return Json.createObjectBuilder()
                 .add(REPLICA_NUMBER, replicaNumber)
                 .add(TIMESTAMP, timestamp)
+                .add(COMMIT_NUMBER, commitNumber)
                 .build();
     }
 }
@@ -18,20 +18,26 @@ public class RecoveryResponseMessage extends Message {
     public static final String COMMIT_NUMBER = "commitNumber";
     public static final String TIMESTAMP = "timestamp";
     public static final String LOG = "log";
+    public static final String CHECKPOINT_NUMBER = "checkpointNumber";
+    public static final String REPLICA_NUMBER = "replicaNumber";
 
     private final long viewNumber;
     private final long operationNumber;
     private final long commitNumber;
     private final long timestamp;
     private final ReplicaLog log;
+    private final long checkpointNumber;
+    private final int replicaNumber;
 
     public RecoveryResponseMessage(long viewNumber, long operationNumber, long commitNumber,
-                                   long timestamp, ReplicaLog log) {
+                                   long timestamp, ReplicaLog log, long checkpointNumber, int replicaNumber) {
         this.viewNumber = viewNumber;
         this.operationNumber = operationNumber;
         this.commitNumber = commitNumber;
         this.timestamp = timestamp;
         this.log = log;
+        this.checkpointNumber = checkpointNumber;
+        this.replicaNumber = replicaNumber;
     }
 
     public RecoveryResponseMessage(JsonObject jsonObject) {
@@ -44,6 +50,8 @@ public class RecoveryResponseMessage extends Message {
         } else {
             log = null;
         }
+        checkpointNumber = jsonObject.containsKey(CHECKPOINT_NUMBER) ? jsonObject.getJsonNumber(CHECKPOINT_NUMBER).longValue() : 0;
+        replicaNumber = jsonObject.containsKey(REPLICA_NUMBER) ? jsonObject.getInt(REPLICA_NUMBER) : -1;
     }
 
     public long getViewNumber() {
@@ -66,6 +74,22 @@ public class RecoveryResponseMessage extends Message {
         return log;
     }
 
+    /**
+     * Gets commit-number of the checkpoint to transfer before the log, the backup tells the number of its checkpoint
+     *
+     * @return commit-number or 0 if the log follows the state of the recovering replica
+     */
+    public long getCheckpointNumber() {
+        return checkpointNumber;
+    }
+
+    /**
+     * Gets number of the responding replica
+     */
+    public int getReplicaNumber() {
+        return replicaNumber;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedRecoveryResponse(this);
@@ -88,6 +112,8 @@ public class RecoveryResponseMessage extends Message {
         } else {
             builder.addNull(LOG);
         }
+        builder.add(CHECKPOINT_NUMBER, checkpointNumber);
+        builder.add(REPLICA_NUMBER, replicaNumber);
         return builder.build();
     }
 }
@@ -12,10 +12,14 @@ public class ReplyMessage extends Message {
 
     public static final String TYPE = "reply";
     public static final String VIEW_NUMBER = "viewNumber";
+    public static final String CLIENT_ID = "clientId";
     public static final String REQUEST_NUMBER = "requestNumber";
     public static final String OPERATION_RESULT = "result";
+    public static final String OPERATION_NUMBER = "operationNumber";
     private final long viewNumber;
+    private final int clientId;
     private final long requestNumber;
+    private final long operationNumber;
 
     public String getResult() {
         return result;
@@ -25,20 +29,43 @@ public class ReplyMessage extends Message {
 
     public ReplyMessage(JsonObject jsonObject) {
         viewNumber = jsonObject.getJsonNumber(VIEW_NUMBER).intValue();
-        requestNumber = jsonObject.getInt(REQUEST_NUMBER);
+        clientId = jsonObject.getInt(CLIENT_ID);
+        requestNumber = jsonObject.getJsonNumber(REQUEST_NUMBER).longValue();
         result = jsonObject.getString(OPERATION_RESULT);
+        operationNumber = jsonObject.containsKey(OPERATION_NUMBER) ? jsonObject.getJsonNumber(OPERATION_NUMBER).longValue() : 0;
     }
 
-    public ReplyMessage(long viewNumber, long requestNumber, String result) {
+    public ReplyMessage(long viewNumber, int clientId, long requestNumber, String result) {
+        this(viewNumber, clientId, requestNumber, result, 0);
+    }
+
+    public ReplyMessage(long viewNumber, int clientId, long requestNumber, String result, long operationNumber) {
         this.viewNumber = viewNumber;
+        this.clientId = clientId;
         this.requestNumber = requestNumber;
         this.result = result;
+        this.operationNumber = operationNumber;
+    }
+
+    /**
+     * Gets id of the client whose request is answered, the request-number is unique per client only
+     */
+    public int getClientId() {
+        return clientId;
     }
 
     public long getRequestNumber() {
         return requestNumber;
     }
 
+    /**
+     * Gets op-number the result reflects the state after, a replica whose commit-number reached it
+     * has executed the request
+     */
+    public long getOperationNumber() {
+        return operationNumber;
+    }
+
     @Override
     public String getMessageType() {
         return TYPE;
@@ -48,8 +75,10 @@ public class ReplyMessage extends Message {
     protected JsonObject encode() {
         return Json.createObjectBuilder()
                 .add(VIEW_NUMBER, viewNumber)
+                .add(CLIENT_ID, clientId)
                 .add(REQUEST_NUMBER, requestNumber)
                 .add(OPERATION_RESULT, result)
+                .add(OPERATION_NUMBER, operationNumber)
                 .build();
     }
 
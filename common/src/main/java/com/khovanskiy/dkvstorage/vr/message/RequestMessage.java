@@ -15,21 +15,39 @@ public class RequestMessage extends Message {
     public static final String OPERATION = "operation";
     public static final String CLIENT_ID = "clientId";
     public static final String REQUEST_NUMBER = "requestNumber";
+    public static final String TIMESTAMP = "timestamp";
 
     private final Operation operation;
     private final int clientId;
     private final long requestNumber;
+    private final long timestamp;
 
     public RequestMessage(JsonObject jsonObject) {
         this.operation = Operation.decode(jsonObject.getJsonObject(OPERATION));
         this.clientId = jsonObject.getInt(CLIENT_ID);
         this.requestNumber = jsonObject.getJsonNumber(REQUEST_NUMBER).longValue();
+        this.timestamp = jsonObject.containsKey(TIMESTAMP) ? jsonObject.getJsonNumber(TIMESTAMP).longValue() : 0;
     }
 
     public RequestMessage(Operation operation, int clientId, long requestNumber) {
+        this(operation, clientId, requestNumber, 0);
+    }
+
+    private RequestMessage(Operation operation, int clientId, long requestNumber, long timestamp) {
         this.operation = operation;
         this.clientId = clientId;
         this.requestNumber = requestNumber;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Makes copy of the request stamped by the primary
+     *
+     * @param timestamp primary's time in milliseconds when the request got its op-number
+     * @return stamped request
+     */
+    public RequestMessage withTimestamp(long timestamp) {
+        return new RequestMessage(operation, clientId, requestNumber, timestamp);
     }
 
     /**
@@ -59,6 +77,15 @@ public class RequestMessage extends Message {
         return requestNumber;
     }
 
+    /**
+     * Gets time assigned to the request by the primary, it drives the replicated clock
+     *
+     * @return time in milliseconds or 0 if the request isn't stamped yet
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     @Override
     public void delegateProcessing(Replica replica) {
         replica.onReceivedRequest(this);
@@ -75,6 +102,7 @@ public class RequestMessage extends Message {
                 .add(OPERATION, Operation.encode(operation))
                 .add(CLIENT_ID, clientId)
                 .add(REQUEST_NUMBER, requestNumber)
+                .add(TIMESTAMP, timestamp)
                 .build();
     }
 
@@ -0,0 +1,86 @@
+package com.khovanskiy.dkvstorage.vr.message;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.nio.ByteBuffer;
+
+/**
+ * Chunk of the checkpoint's image, bytes of the chunk are the payload of the bulk chunk carrying the message
+ *
+ * @author Victor Khovanskiy
+ */
+public class SnapshotChunkMessage extends Message {
+
+    public static final String TYPE = "snapshotChunk";
+    public static final String NUMBER = "number";
+    public static final String OFFSET = "offset";
+    public static final String LENGTH = "length";
+
+    private final long number;
+    private final long offset;
+    private final long length;
+    private final ByteBuffer data;
+
+    /**
+     * @param number commit-number of the checkpoint
+     * @param offset offset of the chunk in the image
+     * @param length length of the whole image, -1 if the sender doesn't have the checkpoint
+     */
+    public SnapshotChunkMessage(long number, long offset, long length) {
+        this(number, offset, length, ByteBuffer.allocate(0));
+    }
+
+    private SnapshotChunkMessage(long number, long offset, long length, ByteBuffer data) {
+        this.number = number;
+        this.offset = offset;
+        this.length = length;
+        this.data = data;
+    }
+
+    public SnapshotChunkMessage(JsonObject jsonObject) {
+        this(jsonObject.getJsonNumber(NUMBER).longValue(), jsonObject.getJsonNumber(OFFSET).longValue(),
+                jsonObject.getJsonNumber(LENGTH).longValue());
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    @Override
+    public SnapshotChunkMessage withPayload(ByteBuffer payload) {
+        return new SnapshotChunkMessage(number, offset, length, payload);
+    }
+
+    @Override
+    public void delegateProcessing(Replica replica) {
+        replica.onReceivedSnapshotChunk(this);
+    }
+
+    @Override
+    public String getMessageType() {
+        return TYPE;
+    }
+
+    @Override
+    protected JsonObject encode() {
+        return Json.createObjectBuilder()
+                .add(NUMBER, number)
+                .add(OFFSET, offset)
+                .add(LENGTH, length)
+                .build();
+    }
+}
@@ -0,0 +1,93 @@
+package com.khovanskiy.dkvstorage.vr.message;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Request of the checkpoint's chunks by the recovering replica, it acknowledges the bytes preceding the offset
+ *
+ * @author Victor Khovanskiy
+ */
+public class SnapshotRequestMessage extends Message {
+
+    public static final String TYPE = "snapshotRequest";
+    public static final String REPLICA_NUMBER = "replicaNumber";
+    public static final String NUMBER = "number";
+    public static final String OFFSET = "offset";
+    public static final String LIMIT = "limit";
+
+    private final int replicaNumber;
+    private final long number;
+    private final long offset;
+    private final long limit;
+
+    /**
+     * @param replicaNumber number of the requesting replica
+     * @param number        commit-number of the checkpoint
+     * @param offset        number of the received bytes of the checkpoint's image
+     */
+    public SnapshotRequestMessage(int replicaNumber, long number, long offset) {
+        this(replicaNumber, number, offset, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param replicaNumber number of the requesting replica
+     * @param number        commit-number of the checkpoint
+     * @param offset        number of the received bytes of the checkpoint's image
+     * @param limit         offset of the end of the requested range
+     */
+    public SnapshotRequestMessage(int replicaNumber, long number, long offset, long limit) {
+        this.replicaNumber = replicaNumber;
+        this.number = number;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public SnapshotRequestMessage(JsonObject jsonObject) {
+        replicaNumber = jsonObject.getInt(REPLICA_NUMBER);
+        number = jsonObject.getJsonNumber(NUMBER).longValue();
+        offset = jsonObject.getJsonNumber(OFFSET).longValue();
+        limit = jsonObject.containsKey(LIMIT) ? jsonObject.getJsonNumber(LIMIT).longValue() : Long.MAX_VALUE;
+    }
+
+    public int getReplicaNumber() {
+        return replicaNumber;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets offset of the end of the requested range, the donors share the image by ranges
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void delegateProcessing(Replica replica) {
+        replica.onReceivedSnapshotRequest(this);
+    }
+
+    @Override
+    public String getMessageType() {
+        return TYPE;
+    }
+
+    @Override
+    protected JsonObject encode() {
+        return Json.createObjectBuilder()
+                .add(REPLICA_NUMBER, replicaNumber)
+                .add(NUMBER, number)
+                .add(OFFSET, offset)
+                .add(LIMIT, limit)
+                .build();
+    }
+}
@@ -12,18 +12,27 @@ public class StartViewChangeMessage extends Message {
     public static final String TYPE = "startViewChange";
     public static final String VIEW_NUMBER = "viewNumber";
     public static final String REPLICA_NUMBER = "replicaNumber";
+    public static final String COMMIT_NUMBER = "commitNumber";
 
     private final long viewNumber;
     private final int replicaNumber;
+    private final long commitNumber;
 
     public StartViewChangeMessage(JsonObject jsonObject) {
         this.viewNumber = jsonObject.getJsonNumber(VIEW_NUMBER).longValue();
         this.replicaNumber = jsonObject.getJsonNumber(REPLICA_NUMBER).intValue();
+        this.commitNumber = jsonObject.containsKey(COMMIT_NUMBER) ? jsonObject.getJsonNumber(COMMIT_NUMBER).longValue() : 0;
     }
 
-    public StartViewChangeMessage(long viewNumber, int replicaNumber) {
+    /**
+     * @param viewNumber    new view-number
+     * @param replicaNumber number of the sender
+     * @param commitNumber  commit-number of the sender, the logs sent to it during the view change begin after it
+     */
+    public StartViewChangeMessage(long viewNumber, int replicaNumber, long commitNumber) {
         this.viewNumber = viewNumber;
         this.replicaNumber = replicaNumber;
+        this.commitNumber = commitNumber;
     }
 
     public long getViewNumber() {
@@ -34,6 +43,10 @@ public class StartViewChangeMessage extends Message {
         return replicaNumber;
     }
 
+    public long getCommitNumber() {
+        return commitNumber;
+    }
+
     @Override
     public String getMessageType() {
         return TYPE;
@@ -44,6 +57,7 @@ public class StartViewChangeMessage extends Message {
         return Json.createObjectBuilder()
                 .add(VIEW_NUMBER, viewNumber)
                 .add(REPLICA_NUMBER, replicaNumber)
+                .add(COMMIT_NUMBER, commitNumber)
                 .build();
     }
 
@@ -23,6 +23,7 @@ public class DeleteOperation extends Operation {
         this.key = key;
     }
 
+    @Override
     public String getKey() {
         return key;
     }
@@ -34,8 +35,8 @@ public class DeleteOperation extends Operation {
 
     @Override
     public String delegateUpCall(Replica replica) {
-        if (replica.storage.containsKey(key)) {
-            replica.storage.remove(key);
+        replica.cancelExpiry(key);
+        if (replica.getStorage().delete(key)) {
             return "DELETED";
         }
         return "NOT_FOUND";
@@ -23,6 +23,7 @@ public class GetOperation extends Operation {
         this.key = key;
     }
 
+    @Override
     public String getKey() {
         return key;
     }
@@ -34,13 +35,26 @@ public class GetOperation extends Operation {
 
     @Override
     public String delegateUpCall(Replica replica) {
-        String value = replica.storage.get(key);
+        return reply(replica.getStorage().get(key));
+    }
+
+    @Override
+    public String delegateRead(Replica replica, long now) {
+        return reply(replica.isExpired(key, now) ? null : replica.getStorage().peek(key));
+    }
+
+    private String reply(String value) {
         if (value != null) {
             return "VALUE " + key + " " + value;
         }
         return "NOT_FOUND";
     }
 
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
     @Override
     public String getOperationType() {
         return TYPE;
@@ -32,6 +32,8 @@ public abstract class Operation {
                 return new SetOperation(content);
             case DeleteOperation.TYPE:
                 return new DeleteOperation(content);
+            case ScanOperation.TYPE:
+                return new ScanOperation(content);
         }
 
         throw new IllegalArgumentException("Unknown operation type: \"" + type + "\"");
@@ -39,6 +41,35 @@ public abstract class Operation {
 
     public abstract String delegateUpCall(Replica replica);
 
+    /**
+     * Executes the read-only operation apart from the log, it changes nothing and skips the keys expired
+     * by the time instead of dropping them, so the state stays the same as on the other replicas
+     *
+     * @param replica replica
+     * @param now     time in milliseconds
+     * @return result
+     */
+    public String delegateRead(Replica replica, long now) {
+        throw new UnsupportedOperationException("\"" + this + "\" changes the state");
+    }
+
+    /**
+     * Whether the operation doesn't change the state, so the primary holding the lease may execute it
+     * without preparing
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Key the operation touches, operations on different keys may be executed in parallel
+     *
+     * @return key or null if the operation touches many keys
+     */
+    public String getKey() {
+        return null;
+    }
+
     public abstract String getOperationType();
 
     protected abstract JsonObject encode();
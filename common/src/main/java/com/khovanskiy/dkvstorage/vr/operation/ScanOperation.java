@@ -0,0 +1,248 @@
+package com.khovanskiy.dkvstorage.vr.operation;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Reads one page of keys in the range in ascending order.
+ * <p>
+ * The reply holds lines "VALUE key value" followed by "END" if the range is exhausted
+ * or by "NEXT token" where the token continues the range with the next page. A page is
+ * limited by the number of keys and by the size of the reply, so neither side has to
+ * keep more than one page whatever the size of the range is.
+ *
+ * @author Victor Khovanskiy
+ */
+public class ScanOperation extends Operation {
+
+    public static final String TYPE = "scan";
+    public static final String FROM = "from";
+    public static final String TO = "to";
+    public static final String LIMIT = "limit";
+    public static final String AFTER = "after";
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+    public static final int MAX_REPLY_SIZE = 64 * 1024;
+
+    private final String from;
+    private final String to;
+    private final int limit;
+    private final String after;
+
+    public ScanOperation(JsonObject jsonObject) {
+        this.from = jsonObject.containsKey(FROM) ? jsonObject.getString(FROM) : null;
+        this.to = jsonObject.containsKey(TO) ? jsonObject.getString(TO) : null;
+        this.limit = jsonObject.getInt(LIMIT);
+        this.after = jsonObject.containsKey(AFTER) ? jsonObject.getString(AFTER) : null;
+    }
+
+    /**
+     * @param from  lowest key (inclusive) or null
+     * @param to    highest key (exclusive) or null
+     * @param limit maximal number of keys, it is clamped to @code{MAX_LIMIT}
+     * @param token continuation token of the previous page or null
+     */
+    public ScanOperation(String from, String to, int limit, String token) {
+        this.from = from;
+        this.to = to;
+        this.limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        this.after = token != null ? decodeToken(token) : null;
+    }
+
+    /**
+     * Makes scan of keys starting with the prefix
+     */
+    public static ScanOperation prefix(String prefix, int limit, String token) {
+        return new ScanOperation(prefix, successor(prefix), limit, token);
+    }
+
+    /**
+     * Gets the lowest string greater than all strings starting with the prefix
+     *
+     * @return the bound or null if there is no such string
+     */
+    static String successor(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            --end;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Makes the token of the last returned key, it is hex of the key's bytes
+     * so it can be passed in the text protocol whatever the key is
+     */
+    static String encodeToken(String key) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks the continuation token came from @code{encodeToken}, commands with other tokens are rejected
+     *
+     * @param token token
+     * @return true if the token is hex of whole bytes
+     */
+    public static boolean isToken(String token) {
+        if (token.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); ++i) {
+            if (Character.digit(token.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String decodeToken(String token) {
+        if (!isToken(token)) {
+            throw new IllegalArgumentException("Illegal token: " + token);
+        }
+        byte[] bytes = new byte[token.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            int high = Character.digit(token.charAt(2 * i), 16);
+            int low = Character.digit(token.charAt(2 * i + 1), 16);
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Merges pages of the scan read from disjoint parts of the keyspace into one page. A part whose page
+     * isn't the last one may have more keys after its last key, so the merged page stops there
+     *
+     * @param pages pages of the parts
+     * @param limit maximal number of keys
+     * @return merged page
+     */
+    public static String merge(List<String> pages, int limit) {
+        SortedMap<String, String> entries = new TreeMap<>();
+        String bound = null;
+        for (String page : pages) {
+            String last = null;
+            for (String line : page.split("\n")) {
+                if (line.startsWith("VALUE ")) {
+                    int space = line.indexOf(' ', 6);
+                    last = line.substring(6, space < 0 ? line.length() : space);
+                    entries.put(last, line);
+                } else if (line.startsWith("NEXT ") && last != null && (bound == null || last.compareTo(bound) < 0)) {
+                    bound = last;
+                }
+            }
+        }
+        StringBuilder reply = new StringBuilder();
+        int count = 0;
+        String last = null;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (bound != null && entry.getKey().compareTo(bound) > 0) {
+                break;
+            }
+            if (count == limit || (count > 0 && reply.length() >= MAX_REPLY_SIZE)) {
+                return reply.append("NEXT ").append(encodeToken(last)).toString();
+            }
+            reply.append(entry.getValue()).append('\n');
+            last = entry.getKey();
+            ++count;
+        }
+        if (bound != null) {
+            return reply.append("NEXT ").append(encodeToken(last)).toString();
+        }
+        return reply.append("END").toString();
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "scan " + from + " " + to + " " + limit + (after != null ? " " + encodeToken(after) : "");
+    }
+
+    @Override
+    public String delegateUpCall(Replica replica) {
+        // the keys expired by the operation's clock are already dropped
+        return scan(replica, Long.MIN_VALUE);
+    }
+
+    @Override
+    public String delegateRead(Replica replica, long now) {
+        return scan(replica, now);
+    }
+
+    /**
+     * @param now time in milliseconds the skipped keys are expired by, @code{Long.MIN_VALUE} to skip none
+     */
+    private String scan(Replica replica, long now) {
+        String start = after != null && (from == null || after.compareTo(from) >= 0) ? after : from;
+        Iterator<Map.Entry<String, String>> iterator = replica.getStorage().scan(start, to);
+        StringBuilder reply = new StringBuilder();
+        int count = 0;
+        String last = null;
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (entry.getKey().equals(after) || now != Long.MIN_VALUE && replica.isExpired(entry.getKey(), now)) {
+                continue;
+            }
+            if (count == limit || (count > 0 && reply.length() >= MAX_REPLY_SIZE)) {
+                return reply.append("NEXT ").append(encodeToken(last)).toString();
+            }
+            reply.append("VALUE ").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            last = entry.getKey();
+            ++count;
+        }
+        return reply.append("END").toString();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getOperationType() {
+        return TYPE;
+    }
+
+    @Override
+    protected JsonObject encode() {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        if (from != null) {
+            builder.add(FROM, from);
+        }
+        if (to != null) {
+            builder.add(TO, to);
+        }
+        builder.add(LIMIT, limit);
+        if (after != null) {
+            builder.add(AFTER, after);
+        }
+        return builder.build();
+    }
+}
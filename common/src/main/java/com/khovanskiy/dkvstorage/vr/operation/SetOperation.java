@@ -4,6 +4,7 @@ import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 
 /**
  * @author Victor Khovanskiy
@@ -12,20 +13,34 @@ public class SetOperation extends Operation {
     public static final String TYPE = "set";
     public static final String KEY = "key";
     public static final String VALUE = "value";
+    public static final String TTL = "ttl";
 
     private final String key;
     private final String value;
+    private final long ttl;
 
     public SetOperation(JsonObject jsonObject) {
         this.key = jsonObject.getString(KEY);
         this.value = jsonObject.getString(VALUE);
+        this.ttl = jsonObject.containsKey(TTL) ? jsonObject.getJsonNumber(TTL).longValue() : 0;
     }
 
     public SetOperation(String key, String value) {
+        this(key, value, 0);
+    }
+
+    /**
+     * @param key   key
+     * @param value value
+     * @param ttl   time to live in seconds, 0 for the key which never expires
+     */
+    public SetOperation(String key, String value, long ttl) {
         this.key = key;
         this.value = value;
+        this.ttl = ttl;
     }
 
+    @Override
     public String getKey() {
         return key;
     }
@@ -34,14 +49,23 @@ public class SetOperation extends Operation {
         return value;
     }
 
+    public long getTtl() {
+        return ttl;
+    }
+
     @Override
     public String toString() {
-        return "set " + key + " " + value;
+        return "set " + key + " " + value + (ttl > 0 ? " " + ttl : "");
     }
 
     @Override
     public String delegateUpCall(Replica replica) {
-        replica.storage.put(key, value);
+        replica.getStorage().put(key, value);
+        if (ttl > 0) {
+            replica.scheduleExpiry(key, ttl);
+        } else {
+            replica.cancelExpiry(key);
+        }
         return "STORED";
     }
 
@@ -52,9 +76,12 @@ public class SetOperation extends Operation {
 
     @Override
     protected JsonObject encode() {
-        return Json.createObjectBuilder()
+        JsonObjectBuilder builder = Json.createObjectBuilder()
                 .add(KEY, key)
-                .add(VALUE, value)
-                .build();
+                .add(VALUE, value);
+        if (ttl > 0) {
+            builder.add(TTL, ttl);
+        }
+        return builder.build();
     }
 }
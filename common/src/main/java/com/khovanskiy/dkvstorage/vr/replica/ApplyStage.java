@@ -0,0 +1,450 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.ClientEntry;
+import com.khovanskiy.dkvstorage.vr.SpscQueue;
+import com.khovanskiy.dkvstorage.vr.Utils;
+import com.khovanskiy.dkvstorage.vr.message.ReplyMessage;
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+import com.khovanskiy.dkvstorage.vr.operation.Operation;
+import com.khovanskiy.dkvstorage.vr.storage.EntryRejectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Execution of committed operations apart from the protocol.
+ * <p>
+ * The replica's thread orders operations and counts votes, the apply thread executes operations, reads and
+ * other tasks on the state machine in the order they are submitted, and the reply thread encodes and sends
+ * the results. The stages are connected by bounded single-producer single-consumer queues, so the replica's
+ * thread waits for the storage only when the apply queue is full. Until the stage is started, e.g. while
+ * the journal is restored, everything runs on the caller's thread.
+ * <p>
+ * If the storage is split into partitions, the apply thread dispatches operations on a key to the worker
+ * of the key's partition, so operations on a key keep their order and operations on different partitions,
+ * which share no state, run in parallel. Operations on many keys and tasks on the whole state wait until
+ * the workers finish everything dispatched before and run on the apply thread. Each task carries the clock
+ * of its operation, so the result doesn't depend on the interleaving and is the same on all the replicas.
+ * The reply thread sends replies in the order of the tasks.
+ * <p>
+ * An operation the storage rejects changes nothing and is answered by "SERVER_ERROR message" on all the
+ * replicas alike. Any other task which throws, e.g. on I/O failure, may leave the state partly changed,
+ * so the stage fails: it runs and answers nothing after the failure and the replica replaces its state
+ * by recovery.
+ *
+ * @author Victor Khovanskiy
+ */
+class ApplyStage {
+    /**
+     * Maximal number of replies the reply thread sends before it hands them over to the replica's thread
+     */
+    private static final int REPLY_BATCH = 256;
+    /**
+     * Number of checks before the waiting thread parks
+     */
+    private static final int SPINS = 128;
+    /**
+     * Marks the task on the whole state
+     */
+    private static final int ALL_PARTITIONS = -1;
+
+    private final Replica replica;
+    private SpscQueue<Task> tasks;
+    private SpscQueue<Task> replies;
+    private Thread applyThread;
+    private Thread replyThread;
+    /**
+     * Workers of the partitions, null if the storage isn't partitioned
+     */
+    private Worker[] workers;
+    /**
+     * Threads parked until a worker completes a task
+     */
+    private volatile Thread applyWaiting;
+    private volatile Thread replyWaiting;
+    private volatile boolean stopped;
+    /**
+     * Whether a task has thrown since the stage is started
+     */
+    private volatile boolean failed;
+
+    ApplyStage(Replica replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Starts the apply thread, the workers of the partitions and the reply thread
+     *
+     * @param capacity capacity of the queues
+     */
+    void start(int capacity) {
+        stopped = false;
+        failed = false;
+        tasks = new SpscQueue<>(capacity);
+        replies = new SpscQueue<>(capacity);
+        int partitions = replica.getPartitionCount();
+        if (partitions > 1) {
+            workers = new Worker[partitions];
+            for (int i = 0; i < partitions; ++i) {
+                workers[i] = new Worker(capacity);
+                workers[i].thread = daemon(workers[i], "apply-" + replica.getReplicaNumber() + "-" + i);
+            }
+        }
+        applyThread = daemon(new Runnable() {
+            @Override
+            public void run() {
+                for (Task task = tasks.take(); task != null; task = tasks.take()) {
+                    dispatch(task);
+                    if (task.replying) {
+                        replies.put(task);
+                    }
+                }
+            }
+        }, "apply-" + replica.getReplicaNumber());
+        replyThread = daemon(new Runnable() {
+            @Override
+            public void run() {
+                Task task = replies.take();
+                while (task != null && await(task)) {
+                    List<ReplyMessage> batch = new ArrayList<>();
+                    do {
+                        if (task.reply != null) {
+                            batch.add(task.reply);
+                        }
+                        task = null;
+                    } while (batch.size() < REPLY_BATCH && (task = replies.poll()) != null && task.done);
+                    try {
+                        if (!batch.isEmpty() && !failed) {
+                            replica.getWrapper().forwardReplies(batch);
+                        }
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                    if (task == null) {
+                        task = replies.take();
+                    }
+                }
+            }
+        }, "reply-" + replica.getReplicaNumber());
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Whether a task has thrown, the stage runs nothing until it is restarted
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Stops the threads, the submitted tasks which haven't run yet are dropped
+     */
+    void stop() {
+        if (tasks == null) {
+            return;
+        }
+        stopped = true;
+        tasks.close();
+        replies.close();
+        if (workers != null) {
+            for (Worker worker : workers) {
+                worker.queue.close();
+            }
+        }
+        unpark(applyWaiting);
+        unpark(replyWaiting);
+        try {
+            applyThread.join();
+            replyThread.join();
+            if (workers != null) {
+                for (Worker worker : workers) {
+                    worker.thread.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        tasks = null;
+        replies = null;
+        workers = null;
+    }
+
+    /**
+     * Executes the committed operation and records the result in the client-table
+     *
+     * @param request         request
+     * @param entry           client's entry
+     * @param reply           whether to send the result to the client
+     * @param viewNumber      view-number of the reply
+     * @param operationNumber op-number of the operation
+     */
+    void execute(final RequestMessage request, final ClientEntry entry, final boolean reply,
+                 final long viewNumber, final long operationNumber) {
+        Operation operation = request.getOperation();
+        submit(new Task(partition(operation), replica.moveClock(request.getTimestamp()), reply, true, operationNumber) {
+            @Override
+            ReplyMessage apply() {
+                Operation operation = request.getOperation();
+                Utils.log(replica.getReplicaNumber(), "\"" + operation + "\" " + "is executed");
+                String result;
+                try {
+                    result = operation.delegateUpCall(replica);
+                } catch (EntryRejectedException e) {
+                    result = "SERVER_ERROR " + e.getMessage();
+                }
+                entry.onExecuted(operationNumber, request.getRequestNumber(), result);
+                return reply ? new ReplyMessage(viewNumber, request.getClientId(), request.getRequestNumber(), result, operationNumber) : null;
+            }
+        });
+    }
+
+    /**
+     * Executes the read-only request after the submitted operations and sends the result to the client.
+     * The read changes nothing, the keys expired by the replica's current time, which may be ahead of
+     * the replicated clock, are skipped
+     *
+     * @param request         read-only request
+     * @param viewNumber      view-number of the reply
+     * @param operationNumber op-number of the last operation the result reflects
+     */
+    void read(final RequestMessage request, final long viewNumber, final long operationNumber) {
+        final long now = Math.max(replica.getClock(), System.currentTimeMillis());
+        submit(new Task(partition(request.getOperation()), now, true, false, 0) {
+            @Override
+            ReplyMessage apply() {
+                String result = request.getOperation().delegateRead(replica, now);
+                return new ReplyMessage(viewNumber, request.getClientId(), request.getRequestNumber(), result, operationNumber);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the whole state machine after the submitted operations
+     *
+     * @param task task
+     */
+    void run(final Runnable task) {
+        submit(new Task(ALL_PARTITIONS, replica.getClock(), false, true, 0) {
+            @Override
+            ReplyMessage apply() {
+                task.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs the completion of the task on the replica's thread
+     *
+     * @param completion completion
+     */
+    void complete(Runnable completion) {
+        if (tasks == null) {
+            completion.run();
+        } else {
+            replica.getWrapper().post(completion);
+        }
+    }
+
+    private int partition(Operation operation) {
+        String key = operation.getKey();
+        return key != null ? replica.getPartition(key) : ALL_PARTITIONS;
+    }
+
+    private void submit(Task task) {
+        if (tasks == null) {
+            perform(task);
+            if (task.reply != null) {
+                replica.getWrapper().forwardReply(task.reply);
+            }
+            return;
+        }
+        // the replica's thread waits only when the apply thread is a whole queue behind
+        tasks.put(task);
+    }
+
+    /**
+     * Hands the task over to the worker of its partition or runs it once the workers are idle
+     *
+     * @param task task
+     */
+    private void dispatch(Task task) {
+        if (workers == null) {
+            perform(task);
+        } else if (task.partition != ALL_PARTITIONS) {
+            Worker worker = workers[task.partition];
+            ++worker.dispatched;
+            worker.queue.put(task);
+        } else {
+            for (Worker worker : workers) {
+                for (int i = 0; worker.completed != worker.dispatched; ++i) {
+                    if (stopped) {
+                        return;
+                    }
+                    if (i >= SPINS) {
+                        applyWaiting = Thread.currentThread();
+                        if (worker.completed != worker.dispatched && !stopped) {
+                            LockSupport.park(this);
+                        }
+                        applyWaiting = null;
+                    }
+                }
+            }
+            perform(task);
+        }
+    }
+
+    /**
+     * Waits for the task to complete
+     *
+     * @param task task
+     * @return false if the stage is stopped meanwhile
+     */
+    private boolean await(Task task) {
+        for (int i = 0; !task.done; ++i) {
+            if (stopped) {
+                return false;
+            }
+            if (i >= SPINS) {
+                replyWaiting = Thread.currentThread();
+                if (!task.done && !stopped) {
+                    LockSupport.park(this);
+                }
+                replyWaiting = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the keys expired by the task's clock unless the task is a read and applies the task
+     *
+     * @param task task
+     */
+    private void perform(Task task) {
+        if (failed) {
+            task.done = true;
+            return;
+        }
+        try {
+            if (task.operationNumber > 0) {
+                // the expired keys are dropped by the operation too
+                replica.setOperationNumber(task.partition, task.operationNumber);
+            }
+            if (task.writing && task.partition == ALL_PARTITIONS) {
+                for (int i = 0; i < replica.getPartitionCount(); ++i) {
+                    replica.expire(i, task.clock);
+                }
+            } else if (task.writing) {
+                replica.expire(task.partition, task.clock);
+            }
+            task.reply = task.apply();
+        } catch (Throwable e) {
+            if (tasks == null) {
+                // the caller's thread, e.g. restoring the journal, gets the failure
+                throw e;
+            }
+            fail(e);
+        }
+        task.done = true;
+    }
+
+    /**
+     * Stops running and answering tasks and tells the replica about the failure on its thread
+     *
+     * @param e failure
+     */
+    private synchronized void fail(final Throwable e) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        replica.getWrapper().post(new Runnable() {
+            @Override
+            public void run() {
+                replica.onApplyFailed(e);
+            }
+        });
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private abstract static class Task {
+        /**
+         * Partition of the operation's key or @code{ALL_PARTITIONS}
+         */
+        private final int partition;
+        /**
+         * Replicated clock of the operation, the current time of a read
+         */
+        private final long clock;
+        /**
+         * Whether the task's reply goes to the reply thread
+         */
+        private final boolean replying;
+        /**
+         * Whether the task may change the state, so the keys expired by its clock are dropped first
+         */
+        private final boolean writing;
+        /**
+         * Op-number of the operation the storage is told before the task, 0 unless the task is an operation
+         */
+        private final long operationNumber;
+        private ReplyMessage reply;
+        private volatile boolean done;
+
+        Task(int partition, long clock, boolean replying, boolean writing, long operationNumber) {
+            this.partition = partition;
+            this.clock = clock;
+            this.replying = replying;
+            this.writing = writing;
+            this.operationNumber = operationNumber;
+        }
+
+        /**
+         * @return reply to send or null
+         */
+        abstract ReplyMessage apply();
+    }
+
+    /**
+     * Executor of the partition's tasks
+     */
+    private class Worker implements Runnable {
+        private final SpscQueue<Task> queue;
+        private Thread thread;
+        /**
+         * Number of tasks dispatched to the worker, written by the apply thread
+         */
+        private long dispatched;
+        /**
+         * Number of tasks the worker completed
+         */
+        private volatile long completed;
+
+        Worker(int capacity) {
+            this.queue = new SpscQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            for (Task task = queue.take(); task != null; task = queue.take()) {
+                perform(task);
+                completed = completed + 1;
+                unpark(applyWaiting);
+                unpark(replyWaiting);
+            }
+        }
+    }
+}
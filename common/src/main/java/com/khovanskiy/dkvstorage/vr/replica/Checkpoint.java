@@ -0,0 +1,420 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * State of the replica's state machine after execution of the operation with the commit-number:
+ * the replicated clock, the client-table, entries of the storage and deadlines of keys.
+ * Log entries up to the checkpoint's number are not needed to rebuild the state.
+ * <p>
+ * The state is kept in the file "checkpoint-number" of the image [magic, commit-number, CRC32 of body,
+ * length of body, body], the body is the clock followed by records of the clients, of the entries in
+ * ascending key order and of the engine's state if it has one, and the end marker. The image is written and read record by record, so a checkpoint
+ * costs no more heap than a record whatever the size of the state is, and the replicas with the same
+ * state write equal images.
+ *
+ * @author Victor Khovanskiy
+ */
+public class Checkpoint {
+
+    /**
+     * Marker of the last record
+     */
+    public static final int END = 0;
+    /**
+     * Record [client's id, request-number, result] of the client-table, clients precede entries
+     */
+    public static final int CLIENT = 1;
+    /**
+     * Record [key, value, deadline's tick or -1] of the storage
+     */
+    public static final int ENTRY = 2;
+    /**
+     * Record of the storage engine's state besides the entries, it follows the entries
+     */
+    public static final int STATE = 3;
+
+    private static final int MAGIC = 0xC4EC0002;
+    private static final int HEADER = 24;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PREFIX = "checkpoint-";
+    private static final String TEMPORARY = ".tmp";
+
+    private final long number;
+    private final long clock;
+    private final File file;
+    private final long length;
+
+    private Checkpoint(long number, long clock, File file, long length) {
+        this.number = number;
+        this.clock = clock;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Gets file of the checkpoint with the commit-number in the directory
+     */
+    public static File fileOf(File directory, long number) {
+        return new File(directory, PREFIX + number);
+    }
+
+    /**
+     * Verifies the image of the file by its checksum
+     *
+     * @param file file
+     * @return checkpoint or null if the file is absent or broken
+     * @throws IOException
+     */
+    public static Checkpoint open(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (file.length() < HEADER + 9 || input.readInt() != MAGIC) {
+                return null;
+            }
+            long number = input.readLong();
+            int checksum = input.readInt();
+            long length = input.readLong();
+            if (length != file.length() - HEADER) {
+                return null;
+            }
+            CheckedInputStream body = new CheckedInputStream(input, new CRC32());
+            long clock = new DataInputStream(body).readLong();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (body.read(buffer) >= 0) {
+            }
+            if ((int) body.getChecksum().getValue() != checksum) {
+                return null;
+            }
+            return new Checkpoint(number, clock, file, file.length());
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the latest whole checkpoint of the directory, the files left by unfinished writes are deleted
+     *
+     * @param directory directory
+     * @return checkpoint or null if there is none
+     * @throws IOException
+     */
+    public static Checkpoint latest(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        Checkpoint latest = null;
+        for (File file : files) {
+            if (!file.getName().startsWith(PREFIX)) {
+                continue;
+            }
+            long number = numberOf(file);
+            if (number < 0) {
+                file.delete();
+                continue;
+            }
+            if (latest == null || number > latest.number) {
+                Checkpoint checkpoint = open(file);
+                if (checkpoint != null && checkpoint.number == number) {
+                    latest = checkpoint;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Deletes the checkpoints of the directory preceding the commit-number
+     *
+     * @param directory directory
+     * @param number    commit-number of the kept checkpoint
+     */
+    public static void deleteBefore(File directory, long number) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            long fileNumber = file.getName().startsWith(PREFIX) ? numberOf(file) : -1;
+            if (fileNumber >= 0 && fileNumber < number) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return commit-number of the checkpoint's file or -1 if it is another file
+     */
+    private static long numberOf(File file) {
+        try {
+            return Long.parseLong(file.getName().substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens the image for reading of the records
+     *
+     * @return reader positioned at the first record
+     * @throws IOException
+     */
+    public Reader read() throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Deletes the checkpoint's file
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    /**
+     * Gets commit-number of the last operation reflected in the checkpoint
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets length of the image
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writer of the image, the records are written to the temporary file which replaces the checkpoint's file
+     * once it is synced, so the file is whole whenever it exists
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File temporary;
+        private final long number;
+        private final long clock;
+        private final FileOutputStream stream;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream output;
+        private boolean finished;
+
+        /**
+         * @param directory directory of the checkpoints
+         * @param number    commit-number of the checkpoint
+         * @param clock     replicated clock after the operation
+         * @throws IOException
+         */
+        public Writer(File directory, long number, long clock) throws IOException {
+            this.file = fileOf(directory, number);
+            this.temporary = new File(file.getPath() + TEMPORARY);
+            this.number = number;
+            this.clock = clock;
+            this.stream = new FileOutputStream(temporary);
+            stream.getChannel().position(HEADER);
+            this.checked = new CheckedOutputStream(stream, new CRC32());
+            this.output = new DataOutputStream(new BufferedOutputStream(checked, BUFFER_SIZE));
+            output.writeLong(clock);
+        }
+
+        public void writeClient(int clientId, long requestNumber, String result) throws IOException {
+            output.writeByte(CLIENT);
+            output.writeInt(clientId);
+            output.writeLong(requestNumber);
+            writeString(output, result);
+        }
+
+        /**
+         * @param deadline deadline's tick or -1 if the key doesn't expire
+         */
+        public void writeEntry(String key, String value, long deadline) throws IOException {
+            output.writeByte(ENTRY);
+            writeString(output, key);
+            writeString(output, value);
+            output.writeLong(deadline);
+        }
+
+        /**
+         * Starts the record of the storage engine's state, the engine writes the state to the output
+         *
+         * @return output
+         * @throws IOException
+         */
+        public DataOutput writeState() throws IOException {
+            output.writeByte(STATE);
+            return output;
+        }
+
+        /**
+         * Completes the image and replaces the checkpoint's file with it
+         *
+         * @return checkpoint
+         * @throws IOException
+         */
+        public Checkpoint finish() throws IOException {
+            output.writeByte(END);
+            output.flush();
+            FileChannel channel = stream.getChannel();
+            long length = channel.position();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(number).putInt((int) checked.getChecksum().getValue()).putLong(length - HEADER);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            stream.getFD().sync();
+            stream.close();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return new Checkpoint(number, clock, file, length);
+        }
+
+        /**
+         * Drops the unfinished image
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                stream.close();
+                temporary.delete();
+            }
+        }
+
+        private static void writeString(DataOutputStream output, String s) throws IOException {
+            if (s == null) {
+                output.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Reader of the image's records, the record's fields are valid until the next one is read
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream input;
+        private int clientId;
+        private long requestNumber;
+        private String result;
+        private String key;
+        private String value;
+        private long deadline;
+
+        private Reader(File file) throws IOException {
+            InputStream stream = new FileInputStream(file);
+            this.input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+            input.skipBytes(HEADER);
+            input.readLong();
+        }
+
+        /**
+         * Reads the next record
+         *
+         * @return type of the record, @code{END} after the last one
+         * @throws IOException
+         */
+        public int next() throws IOException {
+            int type = input.readByte();
+            switch (type) {
+                case CLIENT:
+                    clientId = input.readInt();
+                    requestNumber = input.readLong();
+                    result = readString(input);
+                    break;
+                case ENTRY:
+                    key = readString(input);
+                    value = readString(input);
+                    deadline = input.readLong();
+                    break;
+                case STATE:
+                case END:
+                    break;
+                default:
+                    throw new IOException("Unknown record " + type);
+            }
+            return type;
+        }
+
+        public int getClientId() {
+            return clientId;
+        }
+
+        public long getRequestNumber() {
+            return requestNumber;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return deadline's tick or -1 if the key doesn't expire
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Gets input of the storage engine's state after @code{STATE} is read, the engine reads the state from it
+         */
+        public DataInput getState() {
+            return input;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+        private static String readString(DataInputStream input) throws IOException {
+            int length = input.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
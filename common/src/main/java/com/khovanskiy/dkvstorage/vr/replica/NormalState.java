@@ -2,22 +2,111 @@ package com.khovanskiy.dkvstorage.vr.replica;
 
 import com.khovanskiy.dkvstorage.vr.ClientEntry;
 import com.khovanskiy.dkvstorage.vr.ReplicaStatus;
-import com.khovanskiy.dkvstorage.vr.Utils;
 import com.khovanskiy.dkvstorage.vr.message.*;
-import com.khovanskiy.dkvstorage.vr.operation.Operation;
 import com.sun.istack.internal.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of normal protocol
+ * <p>
+ * The primary keeps up to the pipeline window of operations unacknowledged by each backup and sends them again
+ * if the backup doesn't acknowledge them in time. A backup keeps PREPARE messages arriving ahead of its log
+ * until the missing ones come instead of recovering at once.
+ * <p>
+ * Normally the primary informs backups about the commit when it sends the next PREPARE message. If no PREPARE
+ * follows the commit within about twice the usual interval between PREPAREs, the primary sends COMMIT message
+ * instead, so backups keep executing without waiting for the next request.
+ * <p>
+ * PREPARE and COMMIT messages carry the time the primary sent them at. A backup promises not to join view change
+ * for the lease duration since it received such message and tells the time back by PREPARE_OK. The primary
+ * holds the lease while f backups have promised, so no other primary can be elected meanwhile, and executes
+ * reads without preparing them once the operations received before the read are executed.
+ * <p>
+ * Backups execute reads of clients that accept older state: either one including the operation of the client's
+ * token, or one behind the primary's for no longer than the client's bound. Other reads go to the primary.
  *
  * @author Victor Khovanskiy
  */
 public class NormalState {
+    /**
+     * Lower bound of the delay of COMMIT heartbeat in microseconds
+     */
+    private static final long MIN_COMMIT_DELAY = 200;
     private final Replica replica;
-    private final Map<Long, Map<Integer, Boolean>> ballotRequestTable = new HashMap<>();
+    /**
+     * Acknowledgements of the backups in the view the primary's pipeline is started in
+     */
+    private QuorumTracker quorumTracker;
+    /**
+     * Op-number of the last entry durable in the local journal
+     */
+    private long durableNumber;
+    /**
+     * Number of the primary's requests waiting for the batch to be sent
+     */
+    private int batched;
+    /**
+     * Whether the delayed sending of the batch is scheduled
+     */
+    private boolean batchScheduled;
+    /**
+     * Op-number of the last request the primary may send to backups, later ones wait in the batch
+     */
+    private long releasedNumber;
+    /**
+     * Progress of each backup indexed by its position in the configuration, null for the primary
+     */
+    private BackupProgress[] backups = new BackupProgress[0];
+    private long pipelineViewNumber = -1;
+    /**
+     * PREPARE messages received ahead of the backup's log by the first op-number
+     */
+    private final TreeMap<Long, PrepareMessage> reordered = new TreeMap<>();
+    /**
+     * Time of the last progress of the backup's log while the reordered messages wait
+     */
+    private long reorderTimestamp;
+    /**
+     * Time in nanoseconds of the last PREPARE message sent by the primary
+     */
+    private long prepareTimestamp;
+    /**
+     * Moving average of the interval between PREPARE messages in nanoseconds
+     */
+    private long prepareInterval;
+    /**
+     * Whether the COMMIT heartbeat is scheduled
+     */
+    private boolean commitScheduled;
+    /**
+     * Lease timestamps the backups told back, the lease is granted since the f-th highest of them
+     */
+    private QuorumTracker leaseTracker;
+    /**
+     * Whether the renewal of the lease is scheduled
+     */
+    private boolean leaseScheduled;
+    /**
+     * Reads waiting for the operations received before them to execute, in the order of op-numbers
+     */
+    private final ArrayDeque<Read> reads = new ArrayDeque<>();
+    /**
+     * Lease timestamp of the last message the backup received from the primary
+     */
+    private long leaseTimestamp = Message.NO_LEASE;
+    /**
+     * Time in nanoseconds the backup's promise not to join view change expires at
+     */
+    private long promisedUntil;
+    /**
+     * Time the backup had last executed all operations committed by the primary at the moment of its message
+     */
+    private long syncTimestamp;
 
     public NormalState(Replica replica) {
         this.replica = replica;
@@ -38,6 +127,14 @@ public class NormalState {
         if (!replica.isPrimary()) {
             return;
         }
+        startPipeline();
+
+        // consensus is paid only on writes while the primary holds the lease
+        if (message.getOperation().isReadOnly() && hasLease()) {
+            reads.add(new Read(replica.getOperationNumber(), message));
+            executeReads();
+            return;
+        }
 
         ClientEntry entry = replica.getClient(message.getClientId());
 
@@ -47,17 +144,22 @@ public class NormalState {
             return;
         }
 
-        // if the request is the most recent one from this client and it has already been executed
+        // if the request is the most recent one from this client, it is in the log already
         if (message.getRequestNumber() == entry.getRequestNumber()) {
-            if (entry.isProcessing()) {
-                // still processing request
-                return;
-            } else {
+            if (entry.getExecutedNumber() == message.getRequestNumber()) {
                 // re-send the response
-                replica.getWrapper().forwardReply(new ReplyMessage(replica.getViewNumber(), message.getRequestNumber(), entry.getResult()));
+                replica.getWrapper().forwardReply(new ReplyMessage(replica.getViewNumber(), message.getClientId(),
+                        message.getRequestNumber(), entry.getResult(), replica.getCommitNumber()));
             }
+            // otherwise the reply goes to the client of the retry once the request is executed
+            return;
         }
 
+        // stamps the request to drive the replicated clock, the clock never goes back even after view change
+        RequestMessage last = replica.getLog().get(replica.getOperationNumber());
+        long timestamp = Math.max(System.currentTimeMillis(), last != null ? last.getTimestamp() : replica.getClock());
+        message = message.withTimestamp(timestamp);
+
         // advances op-number
         replica.setOperationNumber(replica.getOperationNumber() + 1);
 
@@ -68,11 +170,327 @@ public class NormalState {
         entry.setRequestNumber(message.getRequestNumber());
         entry.setProcessing(true);
 
-        // prepare table for ballot by voting backups
-        ballotRequestTable.put(replica.getOperationNumber(), new HashMap<>());
+        // the request waits in the batch, which is sent to the other replicas by one PREPARE message
+        ++batched;
+        if (batched >= replica.getBatchSize()) {
+            sendBatch();
+        } else if (replica.getBatchDelay() > 0 && !batchScheduled) {
+            batchScheduled = true;
+            replica.getWrapper().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    batchScheduled = false;
+                    sendBatch();
+                }
+            }, replica.getBatchDelay(), TimeUnit.MICROSECONDS);
+        }
+
+        // the primary's own copy is written meanwhile, the operation commits when it is durable as well
+        final long viewNumber = replica.getViewNumber();
+        final long operationNumber = replica.getOperationNumber();
+        replica.persist(operationNumber, message, new Runnable() {
+            @Override
+            public void run() {
+                onDurable(viewNumber, operationNumber);
+            }
+        });
+    }
+
+    /**
+     * Sends the batch unless it waits for more requests
+     */
+    void onIdle() {
+        if (replica.getBatchDelay() == 0) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * Sends the batch's requests to the backups
+     */
+    private void sendBatch() {
+        if (batched == 0) {
+            return;
+        }
+        batched = 0;
+        // the log was replaced by view change or recovery, so the requests are not the primary's ones anymore
+        if (replica.getStatus() != ReplicaStatus.NORMAL || !replica.isPrimary() || replica.getViewNumber() != pipelineViewNumber) {
+            return;
+        }
+        releasedNumber = replica.getOperationNumber();
+        replicate();
+    }
+
+    /**
+     * Resets progress of the backups when the replica becomes the primary of the view. The operations after
+     * the commit-number are prepared again, the backups acknowledge the ones they got by START_VIEW
+     */
+    private void startPipeline() {
+        if (pipelineViewNumber == replica.getViewNumber()) {
+            return;
+        }
+        pipelineViewNumber = replica.getViewNumber();
+        long now = System.currentTimeMillis();
+        // backups are tracked by their positions in the configuration
+        int size = replica.getConfiguration().size();
+        int index = replica.getIndex(replica.getReplicaNumber());
+        backups = new BackupProgress[size];
+        for (int i = 0; i < size; ++i) {
+            if (i != index) {
+                backups[i] = new BackupProgress(replica.getCommitNumber(), now);
+            }
+        }
+        // votes of the previous views don't count, the logs might have been replaced since
+        quorumTracker = new QuorumTracker(size, index);
+        quorumTracker.reset(replica.getCommitNumber());
+        leaseTracker = new QuorumTracker(size, index);
+        leaseTracker.reset(Message.NO_LEASE);
+        reads.clear();
+        scheduleLeaseRenewal();
+        batched = 0;
+        releasedNumber = replica.getOperationNumber();
+        replicate();
+    }
+
+    /**
+     * Checks whether f backups promised not to join view change for a while
+     *
+     * @return whether the primary may execute reads without preparing them
+     */
+    private boolean hasLease() {
+        if (replica.getLeaseDuration() == 0 || replica.getStatus() != ReplicaStatus.NORMAL || !replica.isPrimary()
+                || pipelineViewNumber != replica.getViewNumber()) {
+            return false;
+        }
+        long granted = leaseTracker.getQuorumNumber();
+        if (granted == Long.MAX_VALUE) {
+            // the configuration has no backups
+            return true;
+        }
+        if (granted == Message.NO_LEASE) {
+            return false;
+        }
+        // clocks of the backups may run slower, so the primary gives the lease up before their promises expire
+        long duration = TimeUnit.MILLISECONDS.toNanos(replica.getLeaseDuration());
+        return System.nanoTime() - granted < duration - duration / 10;
+    }
+
+    /**
+     * Answers waiting reads whose preceding operations are executed while the lease is held
+     */
+    private void executeReads() {
+        if (replica.getStatus() != ReplicaStatus.NORMAL || !replica.isPrimary()) {
+            // the clients retry as any other request lost by view change
+            reads.clear();
+            return;
+        }
+        while (!reads.isEmpty() && reads.peek().operationNumber <= replica.getCommitNumber() && hasLease()) {
+            Read read = reads.poll();
+            replica.getApplyStage().read(read.request, replica.getViewNumber(), read.operationNumber);
+        }
+    }
+
+    /**
+     * Time the primary sends messages at, the backups tell it back to grant the lease
+     *
+     * @return lease timestamp or @code{Message.NO_LEASE} if leases are disabled
+     */
+    private long getLeaseTimestamp() {
+        return replica.getLeaseDuration() > 0 ? System.nanoTime() : Message.NO_LEASE;
+    }
+
+    /**
+     * Sends COMMIT messages to the backups the primary hasn't sent anything for a quarter of the lease duration,
+     * so the lease is renewed even without client requests
+     */
+    private void scheduleLeaseRenewal() {
+        if (leaseScheduled || replica.getLeaseDuration() == 0) {
+            return;
+        }
+        leaseScheduled = true;
+        final long interval = Math.max(1, replica.getLeaseDuration() / 4);
+        replica.getWrapper().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                leaseScheduled = false;
+                if (replica.getStatus() == ReplicaStatus.NORMAL && replica.isPrimary() && pipelineViewNumber == replica.getViewNumber()) {
+                    sendCommit(interval);
+                    scheduleLeaseRenewal();
+                }
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
 
-        // sends a [PREPARE v, m, n, k] message to the other replicas
-        replica.getWrapper().sendToOtherReplicas(new PrepareMessage(message, replica.getViewNumber(), replica.getOperationNumber(), replica.getCommitNumber()));
+    /**
+     * Promises the primary not to join view change for the lease duration
+     *
+     * @param leaseTimestamp lease timestamp of the primary's message
+     */
+    private void promiseLease(long leaseTimestamp) {
+        if (leaseTimestamp == Message.NO_LEASE || replica.getLeaseDuration() == 0) {
+            return;
+        }
+        this.leaseTimestamp = leaseTimestamp;
+        promisedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(replica.getLeaseDuration());
+    }
+
+    /**
+     * Gets time left till the backup's promise not to join view change expires
+     *
+     * @return time in nanoseconds, 0 if the replica promised nothing
+     */
+    long getLeasePromise() {
+        if (leaseTimestamp == Message.NO_LEASE || replica.getStatus() != ReplicaStatus.NORMAL || replica.isPrimary()) {
+            return 0;
+        }
+        return Math.max(0, promisedUntil - System.nanoTime());
+    }
+
+    /**
+     * Sends a [PREPARE v, m, n, k] message with the released requests each backup hasn't got yet, as many as
+     * the pipeline window lets. Backups at the same point get the same message, so it is encoded once
+     */
+    private void replicate() {
+        List<Integer> pending = null;
+        for (int i = 0; i < backups.length; ++i) {
+            if (backups[i] != null && backups[i].sent < getSendLimit(i)) {
+                if (pending == null) {
+                    pending = new ArrayList<>(backups.length);
+                }
+                pending.add(i);
+            }
+        }
+        if (pending == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long nanoTime = System.nanoTime();
+        long lease = getLeaseTimestamp();
+        if (prepareTimestamp != 0) {
+            prepareInterval += (nanoTime - prepareTimestamp - prepareInterval) / 8;
+        }
+        prepareTimestamp = nanoTime;
+        while (!pending.isEmpty()) {
+            BackupProgress first = backups[pending.get(0)];
+            long from = Math.max(first.sent + 1, replica.getLog().getFirstNumber());
+            long to = getSendLimit(pending.get(0));
+            List<Integer> receivers = new ArrayList<>(pending.size());
+            for (int i = pending.size() - 1; i >= 0; --i) {
+                BackupProgress backup = backups[pending.get(i)];
+                if (Math.max(backup.sent + 1, replica.getLog().getFirstNumber()) == from && getSendLimit(pending.get(i)) == to) {
+                    // the retransmission timer is started by the first operation in flight
+                    if (backup.sent == quorumTracker.getAcknowledged(pending.get(i))) {
+                        backup.progressTimestamp = now;
+                    }
+                    backup.sent = to;
+                    backup.commitNumber = replica.getCommitNumber();
+                    backup.commitTimestamp = now;
+                    receivers.add(replica.getConfiguration().get(pending.remove(i)).getReplicaNumber());
+                }
+            }
+            // the backup is behind the primary's checkpoint and will recover on the gap
+            if (from > to) {
+                continue;
+            }
+            List<RequestMessage> requests = new ArrayList<>((int) (to - from + 1));
+            for (long n = from; n <= to; ++n) {
+                requests.add(replica.getLog().get(n));
+            }
+            replica.getWrapper().sendToReplicas(receivers, new PrepareMessage(requests, replica.getViewNumber(), to, replica.getCommitNumber(), lease));
+        }
+    }
+
+    /**
+     * Sends COMMIT message unless PREPARE message carries the commit-number in time
+     */
+    private void scheduleCommit() {
+        if (commitScheduled) {
+            return;
+        }
+        commitScheduled = true;
+        long delay = Math.max(MIN_COMMIT_DELAY, Math.min(2 * prepareInterval / 1000, replica.getTimeout() * 1000L / 2));
+        replica.getWrapper().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                commitScheduled = false;
+                sendCommit(0);
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Sends a [COMMIT v, k] message to the backups which don't know the commit-number
+     * or haven't heard from the primary for the interval
+     *
+     * @param interval interval in milliseconds, 0 sends only the new commit-number
+     */
+    private void sendCommit(long interval) {
+        if (replica.getStatus() != ReplicaStatus.NORMAL || !replica.isPrimary() || pipelineViewNumber != replica.getViewNumber()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Integer> receivers = null;
+        for (int i = 0; i < backups.length; ++i) {
+            BackupProgress backup = backups[i];
+            if (backup != null && (backup.commitNumber < replica.getCommitNumber()
+                    || interval > 0 && now - backup.commitTimestamp >= interval)) {
+                if (receivers == null) {
+                    receivers = new ArrayList<>(backups.length);
+                }
+                receivers.add(replica.getConfiguration().get(i).getReplicaNumber());
+                backup.commitNumber = replica.getCommitNumber();
+                backup.commitTimestamp = now;
+            }
+        }
+        if (receivers != null) {
+            replica.getWrapper().sendToReplicas(receivers, new CommitMessage(replica.getViewNumber(), replica.getCommitNumber(), getLeaseTimestamp()));
+        }
+    }
+
+    /**
+     * Gets op-number of the last operation the backup may get now
+     *
+     * @param index backup's position in the configuration
+     * @return op-number
+     */
+    private long getSendLimit(int index) {
+        return Math.min(releasedNumber, quorumTracker.getAcknowledged(index) + replica.getPipelineWindow());
+    }
+
+    /**
+     * Retransmits operations not acknowledged by backups in time, and recovers the backup whose log
+     * has stayed behind the reordered messages
+     *
+     * @param timeout timeout in milliseconds
+     */
+    void onTimeout(int timeout) {
+        if (replica.getStatus() != ReplicaStatus.NORMAL) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (replica.isPrimary()) {
+            startPipeline();
+            for (int i = 0; i < backups.length; ++i) {
+                BackupProgress backup = backups[i];
+                if (backup != null && quorumTracker.getAcknowledged(i) < backup.sent && now - backup.progressTimestamp > timeout) {
+                    backup.sent = quorumTracker.getAcknowledged(i);
+                }
+            }
+            replicate();
+            // keeps idle backups informed at the timer's rate
+            sendCommit(timeout / 2);
+        } else {
+            if (!reordered.isEmpty() && reordered.firstEntry().getValue().getViewNumber() != replica.getViewNumber()) {
+                reordered.clear();
+            }
+            // the log might have caught up by recovery
+            prepareReordered();
+            if (!reordered.isEmpty() && now - reorderTimestamp > 2 * timeout) {
+                // the primary retransmits in a timeout, so the missing operations are lost for good
+                reordered.clear();
+                replica.startRecovery();
+            }
+        }
     }
 
     /**
@@ -100,35 +518,104 @@ public class NormalState {
             return;
         }
 
-        // Operation with operation-number + 1 or bigger was missing
-        if (message.getOperationNumber() > replica.getOperationNumber() + 1) {
-            replica.startRecovery();
+        // mark that normally the primary informs backups about the commit when it sends the next PREPARE message
+        replica.setLastTimestamp(System.currentTimeMillis());
+        promiseLease(message.getLeaseTimestamp());
+
+        // messages kept in the previous views don't belong to the log anymore
+        if (!reordered.isEmpty() && reordered.firstEntry().getValue().getViewNumber() != replica.getViewNumber()) {
+            reordered.clear();
+        }
+
+        // Operation with operation-number + 1 or bigger was missing, the message waits for it within the window
+        if (message.getFirstOperationNumber() > replica.getOperationNumber() + 1) {
+            if (message.getOperationNumber() - replica.getOperationNumber() > replica.getPipelineWindow()) {
+                reordered.clear();
+                replica.startRecovery();
+                return;
+            }
+            // the primary retransmits from the operation the backup needs unless its log was truncated before it
+            if (!reordered.isEmpty() && message.getFirstOperationNumber() < reordered.firstKey()) {
+                reordered.clear();
+                replica.startRecovery();
+                return;
+            }
+            if (reordered.isEmpty()) {
+                reorderTimestamp = System.currentTimeMillis();
+                replica.getWrapper().sendToPrimary(new PrepareOkMessage(replica.getViewNumber(), durableNumber, replica.getReplicaNumber(), true, leaseTimestamp));
+            }
+            reordered.put(message.getFirstOperationNumber(), message);
             return;
         }
 
-        // Ignore out-of-order message
+        // Retransmitted operations are already prepared, the primary learns it unless the acknowledgement is on its way
         if (message.getOperationNumber() < replica.getOperationNumber() + 1) {
+            if (message.getOperationNumber() <= durableNumber) {
+                replica.getWrapper().sendToPrimary(new PrepareOkMessage(replica.getViewNumber(), message.getOperationNumber(), replica.getReplicaNumber(), false, leaseTimestamp));
+            }
             return;
         }
 
+        prepare(message);
+        reorderTimestamp = System.currentTimeMillis();
+        prepareReordered();
+        synchronize(message.getCommitNumber());
+    }
+
+    /**
+     * Appends requests of the reordered messages which follow the log now
+     */
+    private void prepareReordered() {
+        while (replica.getStatus() == ReplicaStatus.NORMAL && !reordered.isEmpty()
+                && reordered.firstKey() <= replica.getOperationNumber() + 1) {
+            PrepareMessage next = reordered.pollFirstEntry().getValue();
+            if (next.getOperationNumber() > replica.getOperationNumber()) {
+                prepare(next);
+                reorderTimestamp = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Appends requests of the PREPARE message following the log
+     *
+     * @param message PREPARE message, its first op-number is not greater than the op-number plus one
+     */
+    private void prepare(PrepareMessage message) {
         // won’t accept a prepare with op-number n until it has entries for all earlier requests in its log.
         commitUpTo(message.getCommitNumber());
+        if (replica.getStatus() != ReplicaStatus.NORMAL) {
+            return;
+        }
 
-        //increments its op-number
-        replica.setOperationNumber(replica.getOperationNumber() + 1);
+        // and sends a [PREPARE_OK v, n, i] message to the primary to indicate that this operation and all earlier ones have prepared locally.
+        // The journal syncs entries in batches, so the message is sent when the batch's last entry is durable
+        final long viewNumber = replica.getViewNumber();
+        final long operationNumber = message.getOperationNumber();
+        Runnable onDurable = new Runnable() {
+            @Override
+            public void run() {
+                onDurable(viewNumber, operationNumber);
+            }
+        };
 
-        // adds the request to the end of its log
-        replica.getLog().put(replica.getOperationNumber(), message.getRequest());
+        // requests of the batch already held by the log are skipped
+        List<RequestMessage> requests = message.getRequests();
+        while (replica.getOperationNumber() < operationNumber) {
+            RequestMessage request = requests.get((int) (replica.getOperationNumber() + 1 - message.getFirstOperationNumber()));
 
-        //  updates the client's information in the client-table
-        ClientEntry entry = replica.getClient(message.getRequest().getClientId());
-        entry.setRequestNumber(message.getRequest().getRequestNumber());
+            //increments its op-number
+            replica.setOperationNumber(replica.getOperationNumber() + 1);
 
-        // and sends a [PREPARE_OK v, n, i] message to the primary to indicate that this operation and all earlier ones have prepared locally.
-        replica.getWrapper().sendToPrimary(new PrepareOkMessage(replica.getViewNumber(), replica.getOperationNumber(), replica.getReplicaNumber()));
+            // adds the request to the end of its log
+            replica.getLog().put(replica.getOperationNumber(), request);
 
-        // mark that normally the primary informs backups about the commit when it sends the next PREPARE message
-        replica.setLastTimestamp(System.currentTimeMillis());
+            //  updates the client's information in the client-table
+            ClientEntry entry = replica.getClient(request.getClientId());
+            entry.setRequestNumber(request.getRequestNumber());
+
+            replica.persist(replica.getOperationNumber(), request, replica.getOperationNumber() == operationNumber ? onDurable : null);
+        }
     }
 
     /**
@@ -150,58 +637,117 @@ public class NormalState {
         if (!replica.isPrimary()) {
             return;
         }
+        startPipeline();
 
-        // Ignore committed operations
-        if (message.getOperationNumber() <= replica.getCommitNumber()) {
+        int index = replica.getIndex(message.getReplicaNumber());
+        if (index < 0 || backups[index] == null) {
             return;
         }
 
-        // Update table for PrepareOK messages
-        Map<Integer, Boolean> ballot = ballotRequestTable.get(message.getOperationNumber());
-        if (ballot == null) {
-            return;
+        boolean renewed = message.getLeaseTimestamp() != Message.NO_LEASE && leaseTracker.acknowledge(index, message.getLeaseTimestamp());
+        if (renewed) {
+            executeReads();
+        }
+
+        // Update table for PrepareOK messages, the backup has prepared all earlier operations as well.
+        // The acknowledgement frees the backup's window and restarts its retransmission timer
+        BackupProgress backup = backups[index];
+        boolean acknowledged = quorumTracker.acknowledge(index, message.getOperationNumber());
+        long acknowledgedNumber = quorumTracker.getAcknowledged(index);
+        if (acknowledged) {
+            backup.sent = Math.max(backup.sent, acknowledgedNumber);
+            backup.progressTimestamp = System.currentTimeMillis();
+        }
+        if (message.isRetransmit()) {
+            backup.sent = Math.max(acknowledgedNumber, Math.min(backup.sent, message.getOperationNumber()));
+            backup.progressTimestamp = System.currentTimeMillis();
         }
-        ballot.put(message.getReplicaNumber(), true);
+        replicate();
 
-        // Commit operations agreed by quorum
-        if (message.getOperationNumber() > replica.getCommitNumber() + 1) {
+        // Commit operations agreed by quorum, and the ones held behind the reads answered now
+        if (acknowledged && acknowledgedNumber > replica.getCommitNumber() || renewed) {
+            commitPrepared();
+        }
+    }
+
+    /**
+     * Handles durability of the local log's entry
+     *
+     * @param viewNumber      view-number when the entry was written
+     * @param operationNumber op-number of the entry, all earlier ones are durable too
+     */
+    void onDurable(long viewNumber, long operationNumber) {
+        if (replica.getViewNumber() != viewNumber || operationNumber <= durableNumber) {
+            return;
+        }
+        durableNumber = operationNumber;
+        if (replica.getStatus() != ReplicaStatus.NORMAL) {
             return;
         }
+        if (replica.isPrimary()) {
+            commitPrepared();
+        } else {
+            replica.getWrapper().sendToPrimary(new PrepareOkMessage(viewNumber, operationNumber, replica.getReplicaNumber(), false, leaseTimestamp));
+        }
+    }
 
-        boolean changed = false;
-        while (replica.getCommitNumber() < replica.getOperationNumber()) {
-            ballot = ballotRequestTable.get(replica.getCommitNumber() + 1);
+    void setDurableNumber(long durableNumber) {
+        this.durableNumber = durableNumber;
+    }
+
+    /**
+     * Executes operations of the restored log up to the commit-number
+     *
+     * @param commitNumber last commit-number written to the journal
+     */
+    void restore(long commitNumber) {
+        durableNumber = replica.getOperationNumber();
+        commitUpTo(commitNumber);
+    }
 
+    /**
+     * Commits operations prepared by quorum and durable locally
+     */
+    private void commitPrepared() {
+        // votes are counted since the pipeline is started in the view
+        if (quorumTracker == null || pipelineViewNumber != replica.getViewNumber()) {
+            return;
+        }
+        long quorumNumber = quorumTracker.getQuorumNumber();
+        boolean changed = false;
+        while (replica.getCommitNumber() < replica.getOperationNumber() && replica.getCommitNumber() < durableNumber) {
+            // the read waiting for the lease is answered before the later operations, so their replies wait too
+            if (!reads.isEmpty() && reads.peek().operationNumber <= replica.getCommitNumber()) {
+                break;
+            }
             // The primary waits for f PREPARE_OK messages from different backups;
-            if (ballot.size() >= replica.getConfiguration().size() / 2) {
+            if (replica.getCommitNumber() < quorumNumber) {
                 // at this point it considers the operation (and all earlier ones) to be committed.
                 RequestMessage request = replica.getLog().get(replica.getCommitNumber() + 1);
 
-                // Then, after it has executed all earlier operations (those assigned smaller op-numbers), the primary executes the operation by making an up-call
-                String result = upCall(request.getOperation());
+                // Then, after it has executed all earlier operations (those assigned smaller op-numbers), the primary executes the operation by making an up-call,
+                // updates the client's entry in the client-table to contain the result and sends a [REPLY v, s, x] message to the client.
+                // The apply stage does it in the order of op-numbers while the primary goes on
+                ClientEntry entry = replica.getClient(request.getClientId());
+                replica.getApplyStage().execute(request, entry, true, replica.getViewNumber(), replica.getCommitNumber() + 1);
 
                 // and increments its commit-number.
                 replica.setCommitNumber(replica.getCommitNumber() + 1);
                 changed = true;
 
-                // The primary also updates the client's entry in the client-table to contain the result.
-                ClientEntry entry = replica.getClient(request.getClientId());
-                entry.setResult(result);
-                entry.setProcessing(false);
-
-                // It sends a [REPLY v, s, x] message to the client.
-                replica.getWrapper().forwardReply(new ReplyMessage(replica.getViewNumber(), request.getRequestNumber(), entry.getResult()));
+                // reads waiting for the operation are answered before the later ones, so the replies keep the order of requests
+                executeReads();
 
-                ballotRequestTable.remove(replica.getCommitNumber());
+                replica.checkpointIfNeeded();
             } else {
                 break;
             }
         }
 
-        // TODO: make auto commit by timer
-        // informs the backups of the latest commit by sending them a [COMMIT v, k] message
+        // informs the backups of the latest commit by the next PREPARE message or by the heartbeat
         if (changed) {
-            replica.getWrapper().sendToOtherReplicas(new CommitMessage(replica.getViewNumber(), replica.getCommitNumber()));
+            scheduleCommit();
+            replica.persistCommit();
         }
     }
 
@@ -226,30 +772,115 @@ public class NormalState {
             return;
         }
 
+        // the heartbeat renews the lease, so it is answered
+        if (message.getLeaseTimestamp() != Message.NO_LEASE && replica.getLeaseDuration() > 0 && !replica.isPrimary()) {
+            promiseLease(message.getLeaseTimestamp());
+            replica.getWrapper().sendToPrimary(new PrepareOkMessage(replica.getViewNumber(), durableNumber, replica.getReplicaNumber(), false, leaseTimestamp));
+        }
+
         // Ignore committed operations
         if (message.getCommitNumber() <= replica.getCommitNumber()) {
             return;
         }
 
         commitUpTo(message.getCommitNumber());
+        synchronize(message.getCommitNumber());
+    }
+
+    /**
+     * Notes that the backup has executed everything the primary had committed when sent the message
+     *
+     * @param primaryCommit commit-number of the primary's message
+     */
+    private void synchronize(long primaryCommit) {
+        if (replica.getCommitNumber() >= primaryCommit) {
+            syncTimestamp = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Executes the read on the backup if its state is recent enough for the client
+     *
+     * @param request      read-only request
+     * @param afterNumber  op-number the state has to include, e.g. of the client's last write
+     * @param maxLag       time in milliseconds the state may be behind the primary's one
+     * @return whether the read is accepted, otherwise it has to go to the primary
+     */
+    public boolean handleBoundedRead(@NotNull RequestMessage request, long afterNumber, long maxLag) {
+        if (replica.getStatus() != ReplicaStatus.NORMAL || replica.isPrimary() || !request.getOperation().isReadOnly()) {
+            return false;
+        }
+        if (replica.getCommitNumber() < afterNumber || System.currentTimeMillis() - syncTimestamp > maxLag) {
+            return false;
+        }
+        // the read follows the committed operations on the apply stage
+        replica.getApplyStage().read(request, replica.getViewNumber(), replica.getCommitNumber());
+        return true;
     }
 
     private void executeNextOp() {
         RequestMessage request = replica.getLog().get(replica.getCommitNumber() + 1);
         ClientEntry entry = replica.getClient(request.getClientId());
-        entry.setResult(upCall(request.getOperation()));
-        entry.setProcessing(false);
+        replica.getApplyStage().execute(request, entry, false, replica.getViewNumber(), replica.getCommitNumber() + 1);
         replica.setCommitNumber(replica.getCommitNumber() + 1);
     }
 
-    private void commitUpTo(long primaryCommit) {
+    void commitUpTo(long primaryCommit) {
+        boolean changed = false;
         while (replica.getCommitNumber() < primaryCommit && replica.getCommitNumber() < replica.getOperationNumber()) {
+            // the log was truncated before the operation by others' checkpoint
+            if (replica.getLog().get(replica.getCommitNumber() + 1) == null) {
+                replica.startRecovery();
+                break;
+            }
             executeNextOp();
+            replica.checkpointIfNeeded();
+            changed = true;
+        }
+        if (changed) {
+            replica.persistCommit();
         }
     }
 
-    private String upCall(@NotNull Operation operation) {
-        Utils.log(replica.getReplicaNumber(), "\"" + operation + "\" " + "is executed");
-        return operation.delegateUpCall(replica);
+    /**
+     * Progress of the backup's log as the primary sees it
+     */
+    private static class BackupProgress {
+        /**
+         * Op-number of the last operation sent to the backup
+         */
+        private long sent;
+        /**
+         * Commit-number the backup was told last
+         */
+        private long commitNumber;
+        /**
+         * Time of the last message to the backup
+         */
+        private long commitTimestamp;
+        /**
+         * Time of the last acknowledgement or of the sending into the empty window
+         */
+        private long progressTimestamp;
+
+        BackupProgress(long operationNumber, long progressTimestamp) {
+            this.sent = operationNumber;
+            this.commitNumber = operationNumber;
+            this.progressTimestamp = progressTimestamp;
+            this.commitTimestamp = progressTimestamp;
+        }
+    }
+
+    /**
+     * Read waiting for the operations received before it
+     */
+    private static class Read {
+        private final long operationNumber;
+        private final RequestMessage request;
+
+        Read(long operationNumber, RequestMessage request) {
+            this.operationNumber = operationNumber;
+            this.request = request;
+        }
     }
 }
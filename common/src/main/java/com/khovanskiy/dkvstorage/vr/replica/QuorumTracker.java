@@ -0,0 +1,94 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+/**
+ * Acknowledgements of the primary's log by backups.
+ * <p>
+ * PREPARE_OK message acknowledges the operation and all earlier ones, so it is enough to keep the highest
+ * acknowledged op-number of each replica. The operation is prepared by quorum when f backups acknowledged it,
+ * so the commit point is the f-th highest of these numbers. Neither acknowledgement nor the commit point allocates.
+ *
+ * @author Victor Khovanskiy
+ */
+public class QuorumTracker {
+
+    private final int index;
+    private final long[] acknowledged;
+    /**
+     * Scratch space for selection of the commit point
+     */
+    private final long[] highest;
+
+    /**
+     * @param size  number of replicas in the configuration
+     * @param index position of the primary in the configuration, it doesn't vote
+     */
+    public QuorumTracker(int size, int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Replica " + index + " is out of the configuration of " + size);
+        }
+        this.index = index;
+        this.acknowledged = new long[size];
+        this.highest = new long[size / 2];
+    }
+
+    /**
+     * Forgets acknowledgements, e.g. of the previous view
+     *
+     * @param operationNumber op-number every backup is considered to acknowledge
+     */
+    public void reset(long operationNumber) {
+        for (int i = 0; i < acknowledged.length; ++i) {
+            acknowledged[i] = operationNumber;
+        }
+    }
+
+    /**
+     * Records acknowledgement of the backup
+     *
+     * @param index           backup's position in the configuration
+     * @param operationNumber op-number of the last operation prepared by the backup
+     * @return whether the backup's acknowledged op-number advanced
+     */
+    public boolean acknowledge(int index, long operationNumber) {
+        if (index == this.index || index < 0 || index >= acknowledged.length
+                || operationNumber <= acknowledged[index]) {
+            return false;
+        }
+        acknowledged[index] = operationNumber;
+        return true;
+    }
+
+    public long getAcknowledged(int index) {
+        return acknowledged[index];
+    }
+
+    /**
+     * Gets op-number of the last operation acknowledged by f backups
+     *
+     * @return op-number, @code{Long.MAX_VALUE} if the configuration has no backups to wait for
+     */
+    public long getQuorumNumber() {
+        int quorum = highest.length;
+        if (quorum == 0) {
+            return Long.MAX_VALUE;
+        }
+        // keeps the f highest numbers in descending order, the configuration is small
+        int size = 0;
+        for (int i = 0; i < acknowledged.length; ++i) {
+            if (i == index) {
+                continue;
+            }
+            long number = acknowledged[i];
+            if (size == quorum && number <= highest[size - 1]) {
+                continue;
+            }
+            int j = size < quorum ? size++ : size - 1;
+            while (j > 0 && highest[j - 1] < number) {
+                highest[j] = highest[j - 1];
+                --j;
+            }
+            highest[j] = number;
+        }
+        return highest[quorum - 1];
+    }
+}
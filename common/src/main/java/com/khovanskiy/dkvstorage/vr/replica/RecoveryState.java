@@ -2,24 +2,43 @@ package com.khovanskiy.dkvstorage.vr.replica;
 
 import com.khovanskiy.dkvstorage.vr.ReplicaStatus;
 import com.khovanskiy.dkvstorage.vr.Utils;
+import com.khovanskiy.dkvstorage.vr.message.LogRequestMessage;
+import com.khovanskiy.dkvstorage.vr.message.LogResponseMessage;
 import com.khovanskiy.dkvstorage.vr.message.RecoveryMessage;
 import com.khovanskiy.dkvstorage.vr.message.RecoveryResponseMessage;
-import com.khovanskiy.dkvstorage.vr.replica.Replica;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Implementation of recovery protocol
+ * Implementation of recovery protocol.
+ * <p>
+ * The primary's response carries only the uncommitted suffix of its log. Committed operations are the same
+ * on all replicas, so the recovering replica splits the committed range missing after its state into parts
+ * and fetches them from the primary and the backups at once, as well as the ranges of the checkpoint's image.
+ * A part which a backup can't give is requested from the primary.
  *
  * @author Victor Khovanskiy
  */
 public class RecoveryState {
 
+    /**
+     * Least number of operations worth fetching from another replica
+     */
+    public static final int MIN_PART_SIZE = 256;
+
     private final Replica replica;
     private final List<RecoveryResponseMessage> recoveryResponseMessages = new ArrayList<>();
+    private final List<Part> parts = new ArrayList<>();
     private RecoveryResponseMessage recoveryResponseFromPrimary;
     private long timestamp;
+    /**
+     * Time in milliseconds the last RECOVERY is sent at
+     */
+    private long sent;
+    private boolean transferring;
+    private Checkpoint transferred;
 
     public RecoveryState(Replica replica) {
         this.replica = replica;
@@ -28,13 +47,34 @@ public class RecoveryState {
     public void startRecovery() {
         if (replica.getStatus() != ReplicaStatus.RECOVERING) {
             replica.setStatus(ReplicaStatus.RECOVERING);
+            sendRecovery();
+        }
+    }
 
-            // The recovering replica i sends a [RECOVERY i, x] message to all other replicas, where x is a nonce
-            timestamp = Utils.timeStamp();
-            replica.getWrapper().sendToOtherReplicas(new RecoveryMessage(replica.getReplicaNumber(), timestamp));
+    /**
+     * Begins the recovery anew, e.g. when the transferred checkpoint became obsolete
+     */
+    public void restartRecovery() {
+        if (replica.getStatus() == ReplicaStatus.RECOVERING) {
+            sendRecovery();
         }
     }
 
+    private void sendRecovery() {
+        recoveryResponseMessages.clear();
+        recoveryResponseFromPrimary = null;
+        transferring = false;
+        dropTransferred();
+        parts.clear();
+        replica.cancelStateTransfer();
+
+        // The recovering replica i sends a [RECOVERY i, x] message to all other replicas, where x is a nonce,
+        // and tells what it has executed, so it gets only the missing part of the log
+        timestamp = Utils.timeStamp();
+        sent = System.currentTimeMillis();
+        replica.getWrapper().sendToOtherReplicas(new RecoveryMessage(replica.getReplicaNumber(), timestamp, replica.getCommitNumber()));
+    }
+
     /**
      * Handles RECOVERY message
      *
@@ -47,12 +87,28 @@ public class RecoveryState {
         }
 
         // In this case the replica sends a [RECOVERY_RESPONSE v, x, l, n, k, j] message to the recovering replica
+        Checkpoint checkpoint = replica.getCheckpoint();
         if (replica.isPrimary()) {
-            //  If replica is the primary of its view, l is its log, n is its op-number, and k is the commit-number
-            replica.getWrapper().sendToReplica(message.getReplicaNumber(), new RecoveryResponseMessage(replica.getViewNumber(), replica.getOperationNumber(), replica.getCommitNumber(), message.getTimestamp(), replica.getLog()));
+            //  If replica is the primary of its view, l is its log, n is its op-number, and k is the commit-number.
+            // The log is sent starting after the recovering replica's commit-number, if the log is truncated beyond it
+            // the recovering replica pulls the checkpoint and gets the log after the checkpoint.
+            // The committed operations are fetched from all replicas, so only the rest of the log is sent
+            ReplicaLog log = replica.getLog();
+            long from = Math.min(message.getCommitNumber() + 1, log.getLastNumber() + 1);
+            long checkpointNumber = 0;
+            if (from < log.getFirstNumber() && checkpoint != null) {
+                checkpointNumber = checkpoint.getNumber();
+                from = checkpointNumber + 1;
+            }
+            from = Math.max(from, replica.getCommitNumber() + 1);
+            replica.getWrapper().sendToReplica(message.getReplicaNumber(), new RecoveryResponseMessage(replica.getViewNumber(),
+                    replica.getOperationNumber(), replica.getCommitNumber(), message.getTimestamp(), log.copyFrom(from),
+                    checkpointNumber, replica.getReplicaNumber()));
         } else {
-            // otherwise these values are nil
-            replica.getWrapper().sendToReplica(message.getReplicaNumber(), new RecoveryResponseMessage(0, 0, 0, message.getTimestamp(), null));
+            // otherwise the log is nil, the backup tells what it can give to the recovering replica
+            replica.getWrapper().sendToReplica(message.getReplicaNumber(), new RecoveryResponseMessage(replica.getViewNumber(),
+                    replica.getOperationNumber(), replica.getCommitNumber(), message.getTimestamp(), null,
+                    checkpoint != null ? checkpoint.getNumber() : 0, replica.getReplicaNumber()));
         }
     }
 
@@ -62,7 +118,7 @@ public class RecoveryState {
      * @param message RECOVERY_RESPONSE message
      */
     public void handleRecoveryResponseMessage(RecoveryResponseMessage message) {
-        if (replica.getStatus() != ReplicaStatus.RECOVERING) {
+        if (replica.getStatus() != ReplicaStatus.RECOVERING || transferring) {
             return;
         }
 
@@ -83,17 +139,242 @@ public class RecoveryState {
 
         // The recovering replica waits to receive at least f + 1 RECOVERY_RESPONSE messages from different replicas,
         if (recoveryResponseFromPrimary != null && recoveryResponseMessages.size() >= replica.getConfiguration().size() / 2 + 1) {
-            // Then it updates its state using the information from the primary
-            replica.setViewNumber(recoveryResponseFromPrimary.getViewNumber());
-            replica.setOperationNumber(recoveryResponseFromPrimary.getOperationNumber());
-            replica.setCommitNumber(recoveryResponseFromPrimary.getCommitNumber());
-            replica.setLog(recoveryResponseFromPrimary.getLog());
+            transferring = true;
+            int primary = replica.getPrimaryNumber(recoveryResponseFromPrimary.getViewNumber());
+            long checkpointNumber = recoveryResponseFromPrimary.getCheckpointNumber();
+            if (checkpointNumber > 0) {
+                // operations preceding the primary's log are known only from the checkpoint, which is the same
+                // on the replicas that have taken it
+                List<Integer> donors = new ArrayList<>();
+                donors.add(primary);
+                for (RecoveryResponseMessage response : recoveryResponseMessages) {
+                    if (response.getLog() == null && response.getCheckpointNumber() == checkpointNumber && response.getReplicaNumber() >= 0) {
+                        donors.add(response.getReplicaNumber());
+                    }
+                }
+                replica.startStateTransfer(donors, checkpointNumber);
+            }
+            long from = checkpointNumber > 0 ? checkpointNumber + 1 : replica.getCommitNumber() + 1;
+            requestParts(primary, from, recoveryResponseFromPrimary.getLog().getFirstNumber() - 1);
+            completeIfReady();
+        }
+    }
+
+    /**
+     * Handles LOG_REQUEST message
+     *
+     * @param message LOG_REQUEST message
+     */
+    public void handleLogRequestMessage(LogRequestMessage message) {
+        ReplicaLog log = replica.getLog();
+        ReplicaLog range = null;
+        // only committed operations are given, they are the same on all replicas
+        if (replica.getStatus() != ReplicaStatus.RECOVERING && message.getFrom() >= log.getFirstNumber()
+                && message.getTo() <= replica.getCommitNumber()) {
+            range = log.copyRange(message.getFrom(), message.getTo());
+        }
+        replica.getWrapper().sendToReplica(message.getReplicaNumber(), new LogResponseMessage(replica.getReplicaNumber(),
+                message.getTimestamp(), message.getFrom(), message.getTo(), range));
+    }
+
+    /**
+     * Handles LOG_RESPONSE message
+     *
+     * @param message LOG_RESPONSE message
+     */
+    public void handleLogResponseMessage(LogResponseMessage message) {
+        if (replica.getStatus() != ReplicaStatus.RECOVERING || !transferring || message.getTimestamp() != timestamp) {
+            return;
+        }
+        Part part = null;
+        for (Part candidate : parts) {
+            if (candidate.from == message.getFrom() && candidate.to == message.getTo() && candidate.donor == message.getReplicaNumber()) {
+                part = candidate;
+            }
+        }
+        if (part == null || part.log != null) {
+            return;
+        }
+        if (!isWhole(message.getLog(), part)) {
+            int primary = replica.getPrimaryNumber(recoveryResponseFromPrimary.getViewNumber());
+            if (part.donor == primary) {
+                // the primary has truncated the log since it responded
+                restartRecovery();
+            } else {
+                request(part, primary);
+            }
+            return;
+        }
+        part.log = message.getLog();
+        completeIfReady();
+    }
+
+    /**
+     * Receives the transferred checkpoint
+     *
+     * @param checkpoint checkpoint
+     */
+    public void onStateTransferred(Checkpoint checkpoint) {
+        if (replica.getStatus() != ReplicaStatus.RECOVERING || !transferring) {
+            return;
+        }
+        transferred = checkpoint;
+        completeIfReady();
+    }
+
+    /**
+     * Deletes the file of the transferred checkpoint which isn't installed
+     */
+    private void dropTransferred() {
+        Checkpoint checkpoint = replica.getCheckpoint();
+        if (transferred != null && (checkpoint == null || !checkpoint.getFile().equals(transferred.getFile()))) {
+            transferred.delete();
+        }
+        transferred = null;
+    }
+
+    /**
+     * Requests the parts which are not received in time from the primary, and repeats RECOVERY while no primary
+     * has answered, e.g. the recovering replica was the primary and the others are electing a new one
+     *
+     * @param timeout timeout in milliseconds
+     */
+    public void onTimeout(long timeout) {
+        if (replica.getStatus() != ReplicaStatus.RECOVERING) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!transferring) {
+            if (now - sent > timeout) {
+                sendRecovery();
+            }
+            return;
+        }
+        int primary = replica.getPrimaryNumber(recoveryResponseFromPrimary.getViewNumber());
+        for (Part part : parts) {
+            if (part.log == null && now - part.requested > timeout) {
+                request(part, primary);
+            }
+        }
+    }
+
+    /**
+     * Splits the committed operations between the primary and the backups of its view which have committed them
+     */
+    private void requestParts(int primary, long from, long to) {
+        List<RecoveryResponseMessage> donors = new ArrayList<>();
+        for (RecoveryResponseMessage response : recoveryResponseMessages) {
+            if (response.getLog() == null && response.getReplicaNumber() >= 0
+                    && response.getViewNumber() == recoveryResponseFromPrimary.getViewNumber()) {
+                donors.add(response);
+            }
+        }
+        long size = to - from + 1;
+        if (size <= 0) {
+            return;
+        }
+        int count = (int) Math.max(1, Math.min(donors.size() + 1, size / MIN_PART_SIZE));
+        for (int i = 0; i < count; ++i) {
+            Part part = new Part(from + size * i / count, from + size * (i + 1) / count - 1);
+            parts.add(part);
+            // the last part is the primary's one
+            if (i < donors.size() && i < count - 1 && donors.get(i).getCommitNumber() >= part.to) {
+                request(part, donors.get(i).getReplicaNumber());
+            } else {
+                request(part, primary);
+            }
+        }
+    }
+
+    private void request(Part part, int donor) {
+        part.donor = donor;
+        part.requested = System.currentTimeMillis();
+        replica.getWrapper().sendToReplica(donor, new LogRequestMessage(replica.getReplicaNumber(), timestamp, part.from, part.to));
+    }
 
-            // changes its status to normal
-            replica.setStatus(ReplicaStatus.NORMAL);
+    /**
+     * Checks that the received log holds every operation of the part
+     */
+    private static boolean isWhole(ReplicaLog log, Part part) {
+        if (log == null || log.getFirstNumber() != part.from || log.getLastNumber() != part.to) {
+            return false;
+        }
+        for (long i = part.from; i <= part.to; ++i) {
+            if (log.get(i) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void completeIfReady() {
+        if (recoveryResponseFromPrimary.getCheckpointNumber() > 0 && transferred == null) {
+            return;
+        }
+        for (Part part : parts) {
+            if (part.log == null) {
+                return;
+            }
+        }
+        completeRecovery();
+    }
+
+    /**
+     * Updates the state using the checkpoint and the log stitched from the parts and the primary's log
+     */
+    private void completeRecovery() {
+        transferring = false;
+        if (transferred != null) {
+            try {
+                replica.install(transferred);
+            } catch (IOException e) {
+                Utils.log(replica.getReplicaNumber(), "Can't install checkpoint: " + e.getMessage());
+                restartRecovery();
+                return;
+            }
+            transferred = null;
+        }
+        ReplicaLog log = new ReplicaLog();
+        for (Part part : parts) {
+            for (long i = part.from; i <= part.to; ++i) {
+                log.put(i, part.log.get(i));
+            }
+        }
+        ReplicaLog suffix = recoveryResponseFromPrimary.getLog();
+        for (long i = suffix.getFirstNumber(); i <= suffix.getLastNumber(); ++i) {
+            log.put(i, suffix.get(i));
+        }
+        if (log.isEmpty()) {
+            log.truncateBefore(suffix.getFirstNumber());
+        }
+        parts.clear();
+        replica.setViewNumber(recoveryResponseFromPrimary.getViewNumber());
+        replica.setOperationNumber(recoveryResponseFromPrimary.getOperationNumber());
+        replica.setLog(log);
+
+        // changes its status to normal
+        replica.setStatus(ReplicaStatus.NORMAL);
+
+        // executes the committed operations it missed
+        replica.executeUpTo(recoveryResponseFromPrimary.getCommitNumber());
+
+        // and the recovery protocol is complete.
+        Utils.log(replica.getReplicaNumber(), "Recovery protocol is complete");
+    }
+
+    /**
+     * Range of the committed operations fetched from one replica
+     */
+    private static class Part {
+        private final long from;
+        private final long to;
+        private int donor;
+        private long requested;
+        private ReplicaLog log;
 
-            // and the recovery protocol is complete.
-            Utils.log(replica.getReplicaNumber(), "Recovery protocol is complete");
+        Part(long from, long to) {
+            this.from = from;
+            this.to = to;
         }
     }
 }
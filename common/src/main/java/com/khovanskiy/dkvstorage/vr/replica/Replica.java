@@ -2,23 +2,65 @@ package com.khovanskiy.dkvstorage.vr.replica;
 
 import com.khovanskiy.dkvstorage.vr.*;
 import com.khovanskiy.dkvstorage.vr.message.*;
+import com.khovanskiy.dkvstorage.vr.storage.HashStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.PartitionedStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.TimingWheel;
 import com.sun.istack.internal.NotNull;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Victor Khovanskiy
  */
 public class Replica {
     /**
-     * This is the index into the configuration where this replica is stored.
+     * Duration of the expiry clock's tick in milliseconds
+     */
+    public static final long EXPIRY_TICK = 1000;
+    /**
+     * Minimal number of operations between checkpoints
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+    /**
+     * Minimal time in milliseconds of the replicated clock between checkpoints
+     */
+    public static final long DEFAULT_CHECKPOINT_PERIOD = 60000;
+    /**
+     * Maximal number of requests prepared by one PREPARE message
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    /**
+     * Time in microseconds the primary waits for more requests of the batch, 0 sends the batch once the replica is idle
+     */
+    public static final long DEFAULT_BATCH_DELAY = 0;
+    /**
+     * Number of operations the primary sends to a backup ahead of its acknowledgements
+     */
+    public static final int DEFAULT_PIPELINE_WINDOW = 1024;
+    /**
+     * Duration of the primary's lease in milliseconds
+     */
+    public static final long DEFAULT_LEASE_DURATION = 1000;
+    /**
+     * Capacity of the queues between the replica's thread, the apply thread and the reply thread
+     */
+    public static final int DEFAULT_APPLY_QUEUE = 4096;
+    /**
+     * This is the identifier of this replica, its index into the configuration is found by @code{getIndex}.
      */
     private final int replicaNumber;
     /**
      * This records for each client the number of its most recent request, plus, if the request has been executed, the result sent for that request.
      */
-    private final Map<Integer, ClientEntry> clientTable = new HashMap<>();
+    private final Map<Integer, ClientEntry> clientTable = new ConcurrentHashMap<>();
     /**
      * This is host assigned to this replica
      */
@@ -39,20 +81,96 @@ public class Replica {
      * State with delegating rights to handle RECOVERY protocol
      */
     private final RecoveryState recoveryState = new RecoveryState(this);
+    /**
+     * State with delegating rights to handle transfer of checkpoints
+     */
+    private final StateTransferState stateTransferState = new StateTransferState(this);
 
-    private final Wrapper wrapper = new Wrapper(this);
+    /**
+     * Shard of the keyspace the replica's group serves
+     */
+    private final int shard;
+
+    private final Wrapper wrapper;
+    /**
+     * Executor of committed operations, it owns the storage and the deadlines
+     */
+    private final ApplyStage applyStage = new ApplyStage(this);
     /**
      * Local key-value storage
      */
-    public Map<String, String> storage = new HashMap<>();
+    private StorageEngine storage = new HashStorageEngine();
+    /**
+     * Deadlines of keys with TTL by the storage's partitions
+     */
+    private Partition[] partitions = {new Partition(0)};
+    /**
+     * Replicated clock, it is the timestamp of the last committed operation assigned by the primary
+     */
+    private volatile long clock;
     /**
      * This is an array containing op-number entries. The entries contain the requests that have been received so far in their assigned order.
      */
     private ReplicaLog log = new ReplicaLog();
+    /**
+     * Journal of the log on the disk, null if the log is kept only in memory
+     */
+    private ReplicaJournal journal;
+    /**
+     * The latest checkpoint, null if none was taken
+     */
+    private Checkpoint checkpoint;
+    /**
+     * Minimal number of committed operations between checkpoints, 0 disables checkpoints
+     */
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    /**
+     * Minimal time of the replicated clock between checkpoints, so a write-heavy replica doesn't rewrite
+     * its whole state too often
+     */
+    private long checkpointPeriod = DEFAULT_CHECKPOINT_PERIOD;
+    /**
+     * Commit-number and clock of the last checkpoint decided on, the next one is counted from them
+     */
+    private long checkpointedNumber;
+    private long checkpointedClock;
+    /**
+     * Directory of the checkpoints' files if there is no journal, a temporary one is created if it's not set
+     */
+    private File checkpointDirectory;
+    /**
+     * Maximal number of requests prepared by one PREPARE message, 1 disables batching
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /**
+     * Time in microseconds the primary waits for more requests of the batch
+     */
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+    /**
+     * Number of operations in flight to a backup, the backup keeps PREPARE messages ahead of its log within it as well
+     */
+    private int pipelineWindow = DEFAULT_PIPELINE_WINDOW;
+    /**
+     * Time in milliseconds a backup doesn't join view change for since the last message of the primary,
+     * 0 disables leases and reads are prepared as writes
+     */
+    private long leaseDuration = DEFAULT_LEASE_DURATION;
+    /**
+     * Time in nanoseconds till which the started replica keeps the promise it may have given before it stopped
+     */
+    private long restartPromisedUntil;
+    /**
+     * Capacity of the queues of the apply stage
+     */
+    private int applyQueue = DEFAULT_APPLY_QUEUE;
     /**
      * This is a sorted array containing the 2f + 1 replicas.
      */
     private List<Replica> configuration;
+    /**
+     * Positions in the configuration by the replicas' numbers, -1 for the numbers out of it
+     */
+    private int[] indices = new int[0];
     /**
      * The current view-number, initially 0.
      */
@@ -73,9 +191,21 @@ public class Replica {
     private int timeout;
 
     public Replica(int replicaNumber, String host, int port) throws IOException {
-        this.replicaNumber = replicaNumber;
-        this.host = host;
-        this.port = port;
+        this(new Node(replicaNumber, host, port), 0);
+    }
+
+    /**
+     * Makes the replica of the shard hosted by the node, the node's replicas share its network
+     *
+     * @param node  node
+     * @param shard shard's index, the shards are added to the node in order
+     */
+    public Replica(Node node, int shard) {
+        this.replicaNumber = node.getNodeNumber();
+        this.host = node.getHost();
+        this.port = node.getPort();
+        this.shard = shard;
+        this.wrapper = new Wrapper(this, node, shard);
     }
 
     public long getOperationNumber() {
@@ -104,6 +234,566 @@ public class Replica {
 
     void setLog(ReplicaLog log) {
         this.log = log;
+        // entries of the new log count as durable only when the journal has rewritten them
+        final long viewNumber = this.viewNumber;
+        final long operationNumber = log.getLastNumber();
+        normalState.setDurableNumber(0);
+        Runnable onDurable = new Runnable() {
+            @Override
+            public void run() {
+                normalState.onDurable(viewNumber, operationNumber);
+            }
+        };
+        if (journal != null) {
+            journal.rewrite(log, viewNumber, onDurable);
+        } else {
+            onDurable.run();
+        }
+    }
+
+    /**
+     * Writes the log's entry to the journal
+     *
+     * @param operationNumber op-number of the entry
+     * @param request         request
+     * @param onDurable       called on the replica's thread when the entry is durable, at once if there is no journal,
+     *                        may be null
+     */
+    void persist(long operationNumber, RequestMessage request, Runnable onDurable) {
+        if (journal != null) {
+            journal.append(operationNumber, viewNumber, request, onDurable);
+        } else if (onDurable != null) {
+            onDurable.run();
+        }
+    }
+
+    /**
+     * Writes the commit-number to the journal, so restarted replica knows what to execute
+     */
+    void persistCommit() {
+        if (journal != null) {
+            journal.commit(commitNumber);
+        }
+    }
+
+    /**
+     * Takes checkpoint when both the interval and the period have passed since the previous one and drops log entries
+     * preceding the previous checkpoint, so replicas lagging behind a little still catch up from the log.
+     * The decision depends only on the commit-number and the replicated clock, so all replicas take the same
+     * checkpoints and any of them can serve a part of the image to the recovering one
+     */
+    void checkpointIfNeeded() {
+        if (checkpointInterval <= 0 || commitNumber - checkpointedNumber < checkpointInterval
+                || clock - checkpointedClock < checkpointPeriod) {
+            return;
+        }
+        checkpointedNumber = commitNumber;
+        checkpointedClock = clock;
+        final long number = commitNumber;
+        final long clock = this.clock;
+        final long firstNumber = checkpoint != null ? checkpoint.getNumber() + 1 : log.getFirstNumber();
+        final File directory = getCheckpointDirectory();
+        // the apply thread writes the state right after the operation and hands the checkpoint back
+        applyStage.run(new Runnable() {
+            @Override
+            public void run() {
+                // the partitions which no operation has updated since get the number too, so the reopened
+                // storage is known to hold the operations up to the checkpoint
+                storage.setOperationNumber(number + 1);
+                final Checkpoint taken;
+                try {
+                    taken = takeCheckpoint(directory, number, clock);
+                } catch (IOException e) {
+                    // the log is kept until the next checkpoint succeeds
+                    trace("Can't take checkpoint " + number + ": " + e);
+                    return;
+                }
+                applyStage.complete(new Runnable() {
+                    @Override
+                    public void run() {
+                        onCheckpoint(taken, firstNumber);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keeps the taken checkpoint unless the state has been replaced since
+     *
+     * @param taken       checkpoint
+     * @param firstNumber op-number of the first log entry to keep
+     */
+    private void onCheckpoint(Checkpoint taken, long firstNumber) {
+        if (taken.getNumber() > commitNumber || checkpoint != null && checkpoint.getNumber() >= taken.getNumber()) {
+            if (checkpoint == null || !taken.getFile().equals(checkpoint.getFile())) {
+                taken.delete();
+            }
+            return;
+        }
+        replaceCheckpoint(taken);
+        log.truncateBefore(firstNumber);
+        if (journal != null) {
+            journal.checkpoint(checkpoint, firstNumber);
+        }
+    }
+
+    /**
+     * Makes the checkpoint the latest one, without the journal the previous one's file is deleted at once,
+     * otherwise the journal deletes it once the log preceding the new one is dropped
+     */
+    private void replaceCheckpoint(Checkpoint checkpoint) {
+        if (journal == null && this.checkpoint != null && !this.checkpoint.getFile().equals(checkpoint.getFile())) {
+            this.checkpoint.delete();
+        }
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Writes the state after the last committed operation, called on the apply thread or before it's started
+     *
+     * @return checkpoint
+     * @throws IOException
+     */
+    Checkpoint takeCheckpoint() throws IOException {
+        return takeCheckpoint(getCheckpointDirectory(), commitNumber, clock);
+    }
+
+    /**
+     * Writes the state record by record, called after the operation with the number is executed
+     *
+     * @param directory directory of the checkpoints
+     * @param number    commit-number of the checkpoint
+     * @param clock     replicated clock after the operation
+     * @return checkpoint
+     * @throws IOException
+     */
+    private Checkpoint takeCheckpoint(File directory, long number, long clock) throws IOException {
+        try (Checkpoint.Writer writer = new Checkpoint.Writer(directory, number, clock)) {
+            // only executed requests are captured in the order of ids, so the replicas' images with the same number are equal
+            SortedMap<Integer, ClientEntry> clients = new TreeMap<>(clientTable);
+            for (Map.Entry<Integer, ClientEntry> entry : clients.entrySet()) {
+                ClientEntry client = entry.getValue();
+                if (client.getExecutedNumber() > 0) {
+                    writer.writeClient(entry.getKey(), client.getExecutedNumber(), client.getResult());
+                }
+            }
+            Iterator<Map.Entry<String, String>> iterator = storage.scan(null, null);
+            while (iterator.hasNext()) {
+                Map.Entry<String, String> entry = iterator.next();
+                Long deadline = getExpiryDeadline(entry.getKey());
+                writer.writeEntry(entry.getKey(), entry.getValue(), deadline != null ? deadline : -1);
+            }
+            if (storage.hasState()) {
+                storage.writeState(writer.writeState());
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Replaces the state with the checkpoint's one, the client-table is read at once and the entries are streamed
+     * into the storage by the apply thread
+     *
+     * @param checkpoint checkpoint
+     * @throws IOException if the client-table can't be read
+     */
+    void install(Checkpoint checkpoint) throws IOException {
+        install(checkpoint, true);
+    }
+
+    /**
+     * @param checkpoint checkpoint
+     * @param entries    whether to replace the storage's entries, the storage which has kept them gets
+     *                   only the deadlines
+     * @throws IOException if the client-table can't be read
+     */
+    private void install(final Checkpoint checkpoint, final boolean entries) throws IOException {
+        Map<Integer, ClientEntry> clients = new HashMap<>();
+        try (Checkpoint.Reader reader = checkpoint.read()) {
+            while (reader.next() == Checkpoint.CLIENT) {
+                ClientEntry client = new ClientEntry(reader.getClientId());
+                client.setRequestNumber(reader.getRequestNumber());
+                client.setExecutedNumber(reader.getRequestNumber());
+                client.setResult(reader.getResult());
+                clients.put(reader.getClientId(), client);
+            }
+        }
+        // operations submitted earlier are executed before, their results don't matter anymore
+        applyStage.run(new Runnable() {
+            @Override
+            public void run() {
+                if (entries) {
+                    storage.clear();
+                }
+                for (Partition partition : partitions) {
+                    partition.reset(checkpoint.getClock());
+                }
+                try (Checkpoint.Reader reader = checkpoint.read()) {
+                    for (int type = reader.next(); type != Checkpoint.END; type = reader.next()) {
+                        if (type == Checkpoint.ENTRY) {
+                            if (entries) {
+                                storage.put(reader.getKey(), reader.getValue());
+                            }
+                            if (reader.getDeadline() >= 0) {
+                                partitions[getPartition(reader.getKey())].expiry.schedule(reader.getKey(), reader.getDeadline());
+                            }
+                        } else if (type == Checkpoint.STATE) {
+                            // the state is the last record, the engine without one ignores it
+                            if (entries && storage.hasState()) {
+                                storage.readState(reader.getState());
+                            }
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    // the storage is partly replaced, so the apply stage fails
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        clock = checkpoint.getClock();
+        clientTable.clear();
+        clientTable.putAll(clients);
+        commitNumber = checkpoint.getNumber();
+        checkpointedNumber = checkpoint.getNumber();
+        checkpointedClock = checkpoint.getClock();
+        replaceCheckpoint(checkpoint);
+    }
+
+    /**
+     * Drops the state of the state machine, the replica becomes the one which hasn't executed anything
+     */
+    private void reset() {
+        applyStage.run(new Runnable() {
+            @Override
+            public void run() {
+                storage.clear();
+                for (Partition partition : partitions) {
+                    partition.reset(0);
+                }
+            }
+        });
+        clock = 0;
+        clientTable.clear();
+        commitNumber = 0;
+        checkpointedNumber = 0;
+        checkpointedClock = 0;
+        checkpoint = null;
+    }
+
+    /**
+     * Drops the state the failed task may have partly changed and recovers it from the other replicas,
+     * the replica serves nothing until the recovery replays the committed operations from scratch.
+     * The failed primary makes the backups change the view, they would wait for it otherwise
+     *
+     * @param e failure of the apply stage
+     */
+    void onApplyFailed(Throwable e) {
+        if (!applyStage.isFailed()) {
+            return;
+        }
+        trace("Apply failed: " + e);
+        e.printStackTrace();
+        boolean primary = status == ReplicaStatus.NORMAL && isPrimary();
+        applyStage.stop();
+        applyStage.start(applyQueue);
+        reset();
+        if (primary) {
+            viewChangeState.giveUpView();
+        }
+        if (status == ReplicaStatus.RECOVERING) {
+            restartRecovery();
+        } else {
+            startRecovery();
+        }
+    }
+
+    /**
+     * Executes committed operations of the log
+     *
+     * @param commitNumber commit-number of the last operation to execute
+     */
+    void executeUpTo(long commitNumber) {
+        normalState.commitUpTo(commitNumber);
+    }
+
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public void setCheckpointPeriod(long checkpointPeriod) {
+        if (checkpointPeriod < 0) {
+            throw new IllegalArgumentException("Checkpoint period must not be negative: " + checkpointPeriod);
+        }
+        this.checkpointPeriod = checkpointPeriod;
+    }
+
+    /**
+     * Sets directory of the checkpoints' files used if there is no journal
+     *
+     * @param checkpointDirectory directory
+     */
+    public void setCheckpointDirectory(File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * Gets directory of the checkpoints' files, the journal's one if there is a journal
+     *
+     * @return directory
+     * @throws UncheckedIOException if the temporary directory can't be created
+     */
+    File getCheckpointDirectory() {
+        if (journal != null) {
+            return journal.getDirectory();
+        }
+        if (checkpointDirectory == null) {
+            try {
+                checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            checkpointDirectory.deleteOnExit();
+        }
+        checkpointDirectory.mkdirs();
+        return checkpointDirectory;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    public void setBatchDelay(long batchDelay) {
+        if (batchDelay < 0) {
+            throw new IllegalArgumentException("Batch delay must not be negative: " + batchDelay);
+        }
+        this.batchDelay = batchDelay;
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    public void setPipelineWindow(int pipelineWindow) {
+        if (pipelineWindow < 1) {
+            throw new IllegalArgumentException("Pipeline window must be positive: " + pipelineWindow);
+        }
+        this.pipelineWindow = pipelineWindow;
+    }
+
+    public int getApplyQueue() {
+        return applyQueue;
+    }
+
+    public void setApplyQueue(int applyQueue) {
+        if (applyQueue <= 0) {
+            throw new IllegalArgumentException("Apply queue must be positive: " + applyQueue);
+        }
+        this.applyQueue = applyQueue;
+    }
+
+    ApplyStage getApplyStage() {
+        return applyStage;
+    }
+
+    /**
+     * Runs the task on the state machine after the operations committed so far, e.g. to read the storage
+     *
+     * @param task task
+     */
+    public void runOnStateMachine(Runnable task) {
+        applyStage.run(task);
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(long leaseDuration) {
+        if (leaseDuration < 0) {
+            throw new IllegalArgumentException("Lease duration must not be negative: " + leaseDuration);
+        }
+        this.leaseDuration = leaseDuration;
+    }
+
+    public ReplicaJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sets the journal the replica restarts from. With @code{Durability.BATCH} the restarted replica resumes the normal
+     * protocol with the journaled log, otherwise it executes the journaled committed operations and recovers the rest
+     *
+     * @param journal journal
+     */
+    public void setJournal(ReplicaJournal journal) {
+        this.journal = journal;
+    }
+
+    public StorageEngine getStorage() {
+        return storage;
+    }
+
+    /**
+     * Sets the storage, the partitions of @code{PartitionedStorageEngine} are executed in parallel
+     *
+     * @param storage storage
+     */
+    public void setStorage(StorageEngine storage) {
+        this.storage = storage;
+        int count = storage instanceof PartitionedStorageEngine ? ((PartitionedStorageEngine) storage).getPartitionCount() : 1;
+        partitions = new Partition[count];
+        for (int i = 0; i < count; ++i) {
+            partitions[i] = new Partition(clock);
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Gets the storage's partition of the key
+     *
+     * @param key key
+     * @return partition's index
+     */
+    int getPartition(String key) {
+        return partitions.length == 1 ? 0 : PartitionedStorageEngine.partition(key, partitions.length);
+    }
+
+    /**
+     * Tells the storage of the partition the op-number of the operation executed on it next, called by the thread
+     * executing operations on the partition
+     *
+     * @param partition       partition's index or a negative one for the operation on all the partitions
+     * @param operationNumber op-number
+     */
+    void setOperationNumber(int partition, long operationNumber) {
+        if (partition >= 0 && storage instanceof PartitionedStorageEngine) {
+            ((PartitionedStorageEngine) storage).getPartition(partition).setOperationNumber(operationNumber);
+        } else {
+            storage.setOperationNumber(operationNumber);
+        }
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * Moves the replicated clock to the operation's timestamp, called in the order of operations
+     *
+     * @param timestamp timestamp of the operation
+     * @return clock to execute the operation at
+     */
+    long moveClock(long timestamp) {
+        if (timestamp > clock) {
+            clock = timestamp;
+        }
+        return clock;
+    }
+
+    /**
+     * Moves the replicated clock to the operation's timestamp and drops expired keys of all the partitions
+     *
+     * @param timestamp timestamp of the operation to execute
+     */
+    void advanceClock(long timestamp) {
+        moveClock(timestamp);
+        for (int i = 0; i < partitions.length; ++i) {
+            expire(i, clock);
+        }
+    }
+
+    /**
+     * Drops expired keys of the partition before the operation, so all the replicas drop the same keys
+     * before the same operation on the partition
+     *
+     * @param partition partition's index
+     * @param clock     clock of the operation
+     */
+    void expire(int partition, long clock) {
+        Partition state = partitions[partition];
+        if (clock <= state.clock) {
+            return;
+        }
+        state.clock = clock;
+        for (String key : state.expiry.advance(clock / EXPIRY_TICK)) {
+            storage.delete(key);
+        }
+    }
+
+    /**
+     * Sets the key's deadline, the key lives no shorter than its TTL since the operation's clock
+     *
+     * @param key key
+     * @param ttl time to live in seconds
+     */
+    public void scheduleExpiry(String key, long ttl) {
+        Partition partition = partitions[getPartition(key)];
+        partition.expiry.schedule(key, (partition.clock + ttl * 1000 + EXPIRY_TICK - 1) / EXPIRY_TICK);
+    }
+
+    /**
+     * Makes the key live forever
+     *
+     * @param key key
+     */
+    public void cancelExpiry(String key) {
+        partitions[getPartition(key)].expiry.cancel(key);
+    }
+
+    /**
+     * Gets the expiry tick of the key
+     *
+     * @param key key
+     * @return deadline's tick or null if the key doesn't expire
+     */
+    public Long getExpiryDeadline(String key) {
+        return partitions[getPartition(key)].expiry.getDeadline(key);
+    }
+
+    /**
+     * Checks whether the key is expired by the time though it isn't dropped yet, called by the thread
+     * executing operations on the key's partition
+     *
+     * @param key key
+     * @param now time in milliseconds
+     * @return true if the key's deadline has passed
+     */
+    public boolean isExpired(String key, long now) {
+        Long deadline = getExpiryDeadline(key);
+        return deadline != null && deadline <= now / EXPIRY_TICK;
+    }
+
+    /**
+     * Gets number of keys with TTL
+     *
+     * @return number of keys
+     */
+    public int getExpiringCount() {
+        int count = 0;
+        for (Partition partition : partitions) {
+            count += partition.expiry.size();
+        }
+        return count;
     }
 
     public long getViewNumber() {
@@ -126,12 +816,88 @@ public class Replica {
         return replicaNumber;
     }
 
+    public int getShard() {
+        return shard;
+    }
+
     public void start(int timeout, List<Replica> configuration) throws IOException {
         trace("Replica " + toString() + " starting...");
         this.timeout = timeout;
         this.configuration = configuration;
+        this.indices = indicesOf(configuration);
         this.status = ReplicaStatus.NORMAL;
+        // the promises given to the primary aren't kept anywhere, so the replica acts as if it had just given one
+        this.restartPromisedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseDuration);
+        boolean recovering = false;
+        if (journal != null) {
+            journal.open(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    wrapper.post(command);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    onJournalFailed();
+                }
+            });
+            // restores the checkpoint and the log and executes the operations known to be committed.
+            // The operations only set and delete keys, so redoing them over the entries the storage has kept
+            // since the checkpoint gives the same state as long as the storage holds no later ones
+            Checkpoint recovered = journal.getRecoveredCheckpoint();
+            long from = recovered != null ? recovered.getNumber() : 0;
+            long to = Math.min(journal.getRecoveredCommitNumber(), journal.getRecoveredLog().getLastNumber());
+            boolean kept = storage.holdsOperations(from, to);
+            if (kept) {
+                trace("Storage has kept the operations up to " + from);
+            }
+            if (recovered != null) {
+                install(recovered, !kept);
+            } else if (!kept) {
+                storage.clear();
+            }
+            log = journal.getRecoveredLog();
+            if (log.getLastNumber() < commitNumber) {
+                log.truncateBefore(commitNumber + 1);
+            }
+            operationNumber = log.getLastNumber();
+            viewNumber = journal.getRecoveredViewNumber();
+            normalState.restore(journal.getRecoveredCommitNumber());
+            if (journal.isRestarted() && journal.getDurability() != ReplicaJournal.Durability.BATCH) {
+                // the entries acknowledged before they were synced may be lost, so the replica keeps only
+                // the operations it has executed and gets the rest by the recovery protocol
+                log.truncateAfter(commitNumber);
+                operationNumber = commitNumber;
+                recovering = true;
+            }
+        } else {
+            // the state isn't restored without the journal, so the entries and the checkpoints kept
+            // by the previous run are obsolete
+            storage.clear();
+            if (checkpointDirectory != null) {
+                Checkpoint.deleteBefore(checkpointDirectory, Long.MAX_VALUE);
+            }
+        }
+        applyStage.start(applyQueue);
         wrapper.start(timeout);
+        if (recovering) {
+            startRecovery();
+        }
+    }
+
+    /**
+     * Stops the replica whose journal can't be written, it would acknowledge operations which aren't durable
+     */
+    private void onJournalFailed() {
+        if (!wrapper.isRunning()) {
+            return;
+        }
+        trace("Journal failed: " + journal.getFailure());
+        try {
+            stop();
+        } catch (IOException e) {
+            trace("Can't stop: " + e);
+        }
     }
 
     private void clear() {
@@ -140,11 +906,20 @@ public class Replica {
         this.operationNumber = 0;
         this.status = ReplicaStatus.NORMAL;
         this.log.clear();
+        this.checkpoint = null;
+        this.checkpointedNumber = 0;
+        this.checkpointedClock = 0;
+        this.stateTransferState.cancel();
     }
 
     public void stop() throws IOException {
         trace("Replica " + toString() + " stopping...");
         wrapper.stop();
+        applyStage.stop();
+        stateTransferState.stop();
+        if (journal != null) {
+            journal.close();
+        }
         clear();
     }
 
@@ -166,23 +941,65 @@ public class Replica {
         recoveryState.startRecovery();
     }
 
-    public void onReceivedTimeout() {
-        // Normally the primary informs backups about the commit when it sends the next PREPARE message
-        if (Math.abs(getLastTimestamp() - System.currentTimeMillis()) <= timeout) {
-            return;
+    void restartRecovery() {
+        recoveryState.restartRecovery();
+    }
+
+    void startStateTransfer(List<Integer> donors, long number) {
+        stateTransferState.startStateTransfer(donors, number);
+    }
+
+    void cancelStateTransfer() {
+        stateTransferState.cancel();
+    }
+
+    void onStateTransferred(Checkpoint checkpoint) {
+        if (status == ReplicaStatus.VIEW_CHANGE) {
+            viewChangeState.onStateTransferred(checkpoint);
+        } else {
+            recoveryState.onStateTransferred(checkpoint);
         }
+    }
 
-        // However, if the primary does not receive a new client request in a timely way
-        if (isPrimary()) {
-            // it instead informs the backups of the latest commit by sending them a [COMMIT v, k] message
-            //wrapper.sendToOtherReplicas(new CommitMessage(getViewNumber(), getCommitNumber()));
+    void onStateTransferFailed() {
+        if (status == ReplicaStatus.VIEW_CHANGE) {
+            viewChangeState.onStateTransferFailed();
+        } else {
+            recoveryState.restartRecovery();
         }
     }
 
+    public void onReceivedTimeout() {
+        stateTransferState.onTimeout(timeout);
+        recoveryState.onTimeout(timeout);
+        // the primary also sends COMMIT heartbeats to the backups it hasn't told anything for a while
+        normalState.onTimeout(timeout);
+    }
+
+    /**
+     * Called on the replica's thread when no events are queued
+     */
+    public void onIdle() {
+        normalState.onIdle();
+    }
+
     public void onReceivedRequest(RequestMessage message) {
         normalState.handleRequestMessage(message);
     }
 
+    /**
+     * Executes the read locally if the backup's state satisfies the client's bound, the reply is forwarded
+     * as the primary's one
+     *
+     * @param message     read-only request
+     * @param afterNumber op-number the state has to include
+     * @param maxLag      time in milliseconds the state may be behind the primary's one
+     * @return whether the read is accepted, otherwise it has to go to the primary
+     */
+    public boolean onReceivedBoundedRead(RequestMessage message, long afterNumber, long maxLag) {
+        return normalState.handleBoundedRead(message, afterNumber, maxLag);
+    }
+
     public void onReceivedPrepare(PrepareMessage message) {
         normalState.handlePrepareMessage(message);
     }
@@ -200,6 +1017,14 @@ public class Replica {
     }
 
     public void onPrimaryDisconnected() {
+        if (deferByLease(new Runnable() {
+            @Override
+            public void run() {
+                onPrimaryDisconnected();
+            }
+        })) {
+            return;
+        }
         Utils.log(getReplicaNumber(), "Notice that primary disconnected");
         // notices the need for a view change advances its view-number
         viewChangeState.startViewChange();
@@ -214,14 +1039,46 @@ public class Replica {
         }*/
     }
 
-    public void onReceivedStartViewChange(StartViewChangeMessage message) {
+    public void onReceivedStartViewChange(final StartViewChangeMessage message) {
+        if (message.getViewNumber() > viewNumber && deferByLease(new Runnable() {
+            @Override
+            public void run() {
+                onReceivedStartViewChange(message);
+            }
+        })) {
+            return;
+        }
         viewChangeState.processViewChangeMessage(message);
     }
 
-    public void onReceivedDoViewChange(DoViewChangeMessage message) {
+    public void onReceivedDoViewChange(final DoViewChangeMessage message) {
+        if (message.getViewNumber() > viewNumber && deferByLease(new Runnable() {
+            @Override
+            public void run() {
+                onReceivedDoViewChange(message);
+            }
+        })) {
+            return;
+        }
         viewChangeState.processDoViewChangeMessage(message);
     }
 
+    /**
+     * Postpones the event leading to view change till the promise given to the primary expires, the replica doesn't
+     * join view change for the lease duration after it is started either
+     *
+     * @param event event
+     * @return whether the event is postponed
+     */
+    private boolean deferByLease(Runnable event) {
+        long promise = Math.max(normalState.getLeasePromise(), restartPromisedUntil - System.nanoTime());
+        if (promise <= 0) {
+            return false;
+        }
+        wrapper.postDelayed(event, promise, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
     public void onReceivedStartView(StartViewMessage message) {
         viewChangeState.processStartViewMessage(message);
     }
@@ -234,15 +1091,58 @@ public class Replica {
         recoveryState.handleRecoveryResponseMessage(message);
     }
 
+    public void onReceivedSnapshotRequest(SnapshotRequestMessage message) {
+        stateTransferState.handleSnapshotRequestMessage(message);
+    }
+
+    public void onReceivedSnapshotChunk(SnapshotChunkMessage message) {
+        stateTransferState.handleSnapshotChunkMessage(message);
+    }
+
+    public void onReceivedLogRequest(LogRequestMessage message) {
+        recoveryState.handleLogRequestMessage(message);
+    }
+
+    public void onReceivedLogResponse(LogResponseMessage message) {
+        recoveryState.handleLogResponseMessage(message);
+    }
+
     public boolean isPrimary() {
         return getReplicaNumber() == getPrimaryNumber();
     }
 
     public int getPrimaryNumber() {
+        return getPrimaryNumber(viewNumber);
+    }
+
+    public int getPrimaryNumber(long viewNumber) {
         int offset = (int) (viewNumber % configuration.size());
         return configuration.get(offset).getReplicaNumber();
     }
 
+    /**
+     * Gets position of the replica in the configuration, the replica at v modulo its size is the primary of the view v
+     *
+     * @param replicaNumber replica's number
+     * @return position or -1 if the replica is out of the configuration
+     */
+    public int getIndex(int replicaNumber) {
+        return replicaNumber >= 0 && replicaNumber < indices.length ? indices[replicaNumber] : -1;
+    }
+
+    private static int[] indicesOf(List<Replica> configuration) {
+        int size = 0;
+        for (Replica replica : configuration) {
+            size = Math.max(size, replica.getReplicaNumber() + 1);
+        }
+        int[] indices = new int[size];
+        Arrays.fill(indices, -1);
+        for (int i = 0; i < configuration.size(); ++i) {
+            indices[configuration.get(i).getReplicaNumber()] = i;
+        }
+        return indices;
+    }
+
     public String getHost() {
         return host;
     }
@@ -260,6 +1160,13 @@ public class Replica {
         return configuration;
     }
 
+    /**
+     * Gets timeout of the failure detection in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
     public long getLastTimestamp() {
         return lastTimestamp;
     }
@@ -285,4 +1192,24 @@ public class Replica {
             return connectionId;
         }
     }
+
+    /**
+     * Deadlines of the storage's partition, only the thread executing operations on the partition touches them
+     */
+    private static class Partition {
+        private TimingWheel expiry;
+        /**
+         * Clock of the last operation executed on the partition
+         */
+        private long clock;
+
+        Partition(long clock) {
+            reset(clock);
+        }
+
+        void reset(long clock) {
+            this.clock = clock;
+            this.expiry = new TimingWheel(clock / EXPIRY_TICK);
+        }
+    }
 }
@@ -0,0 +1,495 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.message.Message;
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the replica's log kept in segment files.
+ * <p>
+ * Records [body length, CRC32 of body, type, number, view-number, request] are written by the
+ * journal's thread which takes all the records queued so far and syncs them at once, so concurrent
+ * requests share one fsync. The callback of a record is run by the given executor as soon as the
+ * record is durable according to the durability mode. Replacement of the whole log after view change
+ * or recovery is written as a new segment which obsoletes all the previous ones. Segments holding only
+ * entries preceding the log's first one are deleted after the checkpoint is written. The journal which fails
+ * to write stops its thread and tells it, no callback is run after that.
+ *
+ * @author Victor Khovanskiy
+ */
+public class ReplicaJournal implements Closeable {
+
+    /**
+     * When appended records are considered durable
+     */
+    public enum Durability {
+        /**
+         * After fsync of the batch they were written in
+         */
+        BATCH,
+        /**
+         * After write, the journal is synced periodically
+         */
+        PERIODIC,
+        /**
+         * After write, sync is left to the OS
+         */
+        NONE;
+
+        public static Durability parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.US));
+        }
+    }
+
+    public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+    private static final byte ENTRY = 1;
+    private static final byte COMMIT = 2;
+    private static final int HEADER = 8;
+    private static final int BODY_HEADER = 17;
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SUFFIX = ".wal";
+    /**
+     * Marker which stops the thread, interrupt would close the channel
+     */
+    private static final Task STOP = new Task(new ByteBuffer[0], false, 0, null);
+
+    private final File directory;
+    private final Durability durability;
+    private final long syncInterval;
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private Executor callbacks;
+    private Runnable onFailure;
+    private volatile IOException failure;
+    private Thread thread;
+    private FileChannel channel;
+    private long sequence;
+    private long lastSync;
+    private Checkpoint recoveredCheckpoint;
+    private ReplicaLog recoveredLog;
+    private long recoveredViewNumber;
+    private long recoveredCommitNumber;
+    private boolean restarted;
+
+    /**
+     * @param directory    directory of segment files
+     * @param durability   durability mode
+     * @param syncInterval interval between syncs in milliseconds for @code{Durability.PERIODIC}
+     */
+    public ReplicaJournal(File directory, Durability durability, long syncInterval) {
+        this.directory = directory;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("%020d", sequence) + SUFFIX;
+    }
+
+    private static ByteBuffer record(byte type, long number, long viewNumber, byte[] payload) {
+        ByteBuffer body = ByteBuffer.allocate(BODY_HEADER + payload.length);
+        body.put(type).putLong(number).putLong(viewNumber).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        ByteBuffer record = ByteBuffer.allocate(HEADER + body.capacity());
+        record.putInt(body.capacity()).putInt((int) crc.getValue()).put(body.array());
+        record.flip();
+        return record;
+    }
+
+    private static ByteBuffer entry(long operationNumber, long viewNumber, RequestMessage request) {
+        byte[] payload = Message.encode(request).toString().getBytes(StandardCharsets.UTF_8);
+        return record(ENTRY, operationNumber, viewNumber, payload);
+    }
+
+    /**
+     * Reads the journal and starts its thread
+     *
+     * @param callbacks executor of records' callbacks
+     * @param onFailure run by the executor when the journal fails to write
+     * @throws IOException
+     */
+    public void open(Executor callbacks, Runnable onFailure) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        this.callbacks = callbacks;
+        this.onFailure = onFailure;
+        this.failure = null;
+        replay();
+        roll();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "journal-" + directory.getName());
+        thread.start();
+    }
+
+    /**
+     * Gets the error the journal failed with
+     *
+     * @return error or null if the journal hasn't failed
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Gets the last written checkpoint
+     *
+     * @return checkpoint or null if there is none
+     */
+    public Checkpoint getRecoveredCheckpoint() {
+        return recoveredCheckpoint;
+    }
+
+    /**
+     * Gets directory of the segments, the checkpoints' files are kept in it as well
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the log read by @code{open}
+     */
+    public ReplicaLog getRecoveredLog() {
+        return recoveredLog;
+    }
+
+    /**
+     * Gets the largest view-number of the read entries
+     */
+    public long getRecoveredViewNumber() {
+        return recoveredViewNumber;
+    }
+
+    /**
+     * Whether @code{open} found segments written by a previous run
+     */
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * Gets the last commit-number written to the journal, it may be behind the actual one
+     */
+    public long getRecoveredCommitNumber() {
+        return recoveredCommitNumber;
+    }
+
+    /**
+     * Queues the log's entry
+     *
+     * @param operationNumber op-number of the entry
+     * @param viewNumber      view-number of the replica
+     * @param request         request
+     * @param onDurable       called by the executor when the entry is durable
+     */
+    public void append(long operationNumber, long viewNumber, RequestMessage request, Runnable onDurable) {
+        queue.add(new Task(new ByteBuffer[]{entry(operationNumber, viewNumber, request)}, false, operationNumber, onDurable));
+    }
+
+    /**
+     * Queues the commit-number, it is never waited for
+     *
+     * @param commitNumber commit-number
+     */
+    public void commit(long commitNumber) {
+        queue.add(new Task(new ByteBuffer[]{record(COMMIT, commitNumber, 0, new byte[0])}, false, 0, null));
+    }
+
+    /**
+     * Queues replacement of the whole log
+     *
+     * @param log        new log
+     * @param viewNumber view-number of the replica
+     * @param onDurable  called by the executor when the log is durable
+     */
+    public void rewrite(ReplicaLog log, long viewNumber, Runnable onDurable) {
+        ByteBuffer[] records = new ByteBuffer[log.size()];
+        for (int i = 0; i < records.length; ++i) {
+            long operationNumber = log.getFirstNumber() + i;
+            records[i] = entry(operationNumber, viewNumber, log.get(operationNumber));
+        }
+        queue.add(new Task(records, true, log.getLastNumber(), onDurable));
+    }
+
+    /**
+     * Queues dropping of what the written checkpoint obsoletes: the previous checkpoints' files and segments with
+     * entries preceding the first kept one
+     *
+     * @param checkpoint  checkpoint whose file is written
+     * @param firstNumber op-number of the first entry kept in the log
+     */
+    public void checkpoint(Checkpoint checkpoint, long firstNumber) {
+        Task task = new Task(new ByteBuffer[0], false, 0, null);
+        task.checkpoint = checkpoint;
+        task.firstNumber = firstNumber;
+        queue.add(task);
+    }
+
+    /**
+     * Writes queued records and stops the thread, the journal may be opened again
+     */
+    @Override
+    public void close() throws IOException {
+        if (thread != null) {
+            queue.add(STOP);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (channel != null) {
+            try {
+                // the failed journal is left as it is
+                if (failure == null) {
+                    channel.force(false);
+                }
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private void loop() {
+        List<Task> batch = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                Task task = durability == Durability.PERIODIC
+                        ? queue.poll(Math.max(1, lastSync + syncInterval - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (task != null) {
+                    batch.add(task);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            stopped = batch.remove(STOP);
+            try {
+                write(batch);
+            } catch (IOException e) {
+                // the replica mustn't acknowledge what isn't written, so it is stopped
+                failure = e;
+                callbacks.execute(onFailure);
+                return;
+            }
+            for (Task task : batch) {
+                if (task.callback != null) {
+                    callbacks.execute(task.callback);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<Task> batch) throws IOException {
+        boolean written = false;
+        for (Task task : batch) {
+            Segment current = segments.get(segments.size() - 1);
+            if (task.checkpoint != null) {
+                channel.force(false);
+                Checkpoint.deleteBefore(directory, task.checkpoint.getNumber());
+                for (Segment segment : new ArrayList<>(segments)) {
+                    if (segment != current && segment.lastNumber < task.firstNumber) {
+                        segment.file.delete();
+                        segments.remove(segment);
+                    }
+                }
+            } else if (task.rewrite) {
+                channel.force(false);
+                List<Segment> obsolete = new ArrayList<>(segments);
+                roll();
+                writeFully(task.records);
+                channel.force(false);
+                segments.get(segments.size() - 1).lastNumber = task.lastNumber;
+                for (Segment segment : obsolete) {
+                    segment.file.delete();
+                    segments.remove(segment);
+                }
+            } else {
+                writeFully(task.records);
+                current.lastNumber = Math.max(current.lastNumber, task.lastNumber);
+                written = true;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (durability == Durability.BATCH && written
+                || durability == Durability.PERIODIC && now - lastSync >= syncInterval) {
+            channel.force(false);
+            lastSync = now;
+        }
+        if (channel.size() >= SEGMENT_SIZE) {
+            channel.force(false);
+            roll();
+        }
+    }
+
+    private void writeFully(ByteBuffer[] records) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer record : records) {
+            remaining += record.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(records);
+        }
+    }
+
+    private void roll() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        File segment = new File(directory, segmentName(++sequence));
+        channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.add(new Segment(segment));
+    }
+
+    /**
+     * Reads segments in order, torn tail of the journal is cut off
+     */
+    private void replay() throws IOException {
+        recoveredCheckpoint = Checkpoint.latest(directory);
+        recoveredLog = new ReplicaLog();
+        recoveredViewNumber = 0;
+        recoveredCommitNumber = 0;
+        restarted = false;
+        segments.clear();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        boolean broken = false;
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            sequence = Math.max(sequence, Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+            if (broken) {
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(file);
+            segments.add(segment);
+            restarted = true;
+            long valid = replay(segment);
+            if (valid < file.length()) {
+                try (FileChannel truncated = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    truncated.truncate(valid);
+                }
+                broken = true;
+            }
+        }
+    }
+
+    /**
+     * @return length of the valid prefix of the segment
+     */
+    private long replay(Segment segment) throws IOException {
+        long valid = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = input.readInt();
+                    int checksum = input.readInt();
+                    if (length < BODY_HEADER || length > SEGMENT_SIZE) {
+                        return valid;
+                    }
+                    body = new byte[length];
+                    input.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        return valid;
+                    }
+                } catch (EOFException e) {
+                    return valid;
+                }
+                valid += HEADER + body.length;
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte type = buffer.get();
+                long number = buffer.getLong();
+                long viewNumber = buffer.getLong();
+                if (type == COMMIT) {
+                    recoveredCommitNumber = Math.max(recoveredCommitNumber, number);
+                } else if (type == ENTRY) {
+                    String json = new String(body, BODY_HEADER, body.length - BODY_HEADER, StandardCharsets.UTF_8);
+                    JsonObject jsonObject = Json.createReader(new StringReader(json)).readObject();
+                    // the entry replaces the suffix of the log starting from its op-number
+                    recoveredLog.truncateAfter(number - 1);
+                    if (number > recoveredLog.getLastNumber() + 1) {
+                        recoveredLog.clear();
+                    }
+                    recoveredLog.put(number, (RequestMessage) Message.decode(jsonObject));
+                    recoveredViewNumber = Math.max(recoveredViewNumber, viewNumber);
+                    segment.lastNumber = Math.max(segment.lastNumber, number);
+                }
+            }
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        /**
+         * Largest op-number of the segment's entries
+         */
+        private long lastNumber;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    private static class Task {
+        private final ByteBuffer[] records;
+        private final boolean rewrite;
+        private final long lastNumber;
+        private final Runnable callback;
+        private Checkpoint checkpoint;
+        private long firstNumber;
+
+        Task(ByteBuffer[] records, boolean rewrite, long lastNumber, Runnable callback) {
+            this.records = records;
+            this.rewrite = rewrite;
+            this.lastNumber = lastNumber;
+            this.callback = callback;
+        }
+    }
+}
@@ -5,32 +5,195 @@ import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
 
 import javax.json.*;
 import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
+ * Log of requests indexed by op-number.
+ * <p>
+ * Op-numbers of the log are dense, so the requests are kept in the ring buffer at
+ * @code{opNumber - first} from its head. Append, lookup and truncation of any end
+ * are O(1) and don't allocate except for growing the buffer.
+ *
  * @author Victor Khovanskiy
  */
-public class ReplicaLog extends HashMap<Long, RequestMessage> {
+public class ReplicaLog {
+
+    public static final String FIRST = "first";
+    public static final String ENTRIES = "entries";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private RequestMessage[] entries = new RequestMessage[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+    /**
+     * Op-number of the entry at the head
+     */
+    private long first = 1;
 
     public static ReplicaLog decode(String json) {
         JsonReader jsonReader = Json.createReader(new StringReader(json));
         JsonObject jsonObject = jsonReader.readObject();
 
         ReplicaLog log = new ReplicaLog();
-
-        for (Map.Entry<String, JsonValue> entry : jsonObject.entrySet()) {
-            log.put(Long.parseLong(entry.getKey()), (RequestMessage) Message.decode((JsonObject) entry.getValue()));
+        log.first = jsonObject.getJsonNumber(FIRST).longValue();
+        JsonArray array = jsonObject.getJsonArray(ENTRIES);
+        for (int i = 0; i < array.size(); ++i) {
+            log.put(log.first + i, (RequestMessage) Message.decode(array.getJsonObject(i)));
         }
 
         return log;
     }
 
     public static JsonObject encode(ReplicaLog log) {
-        JsonObjectBuilder builder = Json.createObjectBuilder();
-        for (Map.Entry<Long, RequestMessage> entry : log.entrySet()) {
-            builder.add(entry.getKey().toString(), Message.encode(entry.getValue()));
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (int i = 0; i < log.size; ++i) {
+            array.add(Message.encode(log.entries[log.index(i)]));
+        }
+        return Json.createObjectBuilder()
+                .add(FIRST, log.first)
+                .add(ENTRIES, array)
+                .build();
+    }
+
+    /**
+     * Gets request with the op-number
+     *
+     * @param operationNumber op-number
+     * @return request or null if the log doesn't hold it
+     */
+    public RequestMessage get(long operationNumber) {
+        long offset = operationNumber - first;
+        if (offset < 0 || offset >= size) {
+            return null;
+        }
+        return entries[index((int) offset)];
+    }
+
+    /**
+     * Appends request or replaces the held one
+     *
+     * @param operationNumber op-number, not greater than the last one plus one
+     * @param request         request
+     */
+    public void put(long operationNumber, RequestMessage request) {
+        if (size == 0) {
+            first = operationNumber;
+        }
+        long offset = operationNumber - first;
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("Op-number " + operationNumber + " is out of the log ["
+                    + first + ", " + (first + size) + "]");
+        }
+        if (offset == size) {
+            if (size == entries.length) {
+                grow();
+            }
+            ++size;
+        }
+        entries[index((int) offset)] = request;
+    }
+
+    /**
+     * Copies requests starting from the op-number
+     *
+     * @param operationNumber op-number of the first copied request
+     * @return log holding the requests, empty log begins at the op-number
+     */
+    public ReplicaLog copyFrom(long operationNumber) {
+        return copyRange(operationNumber, getLastNumber());
+    }
+
+    /**
+     * Copies requests between the op-numbers
+     *
+     * @param operationNumber     op-number of the first copied request
+     * @param lastOperationNumber op-number of the last copied request
+     * @return log holding the requests, empty log begins at the first op-number
+     */
+    public ReplicaLog copyRange(long operationNumber, long lastOperationNumber) {
+        ReplicaLog copy = new ReplicaLog();
+        copy.first = Math.max(operationNumber, first);
+        for (long i = copy.first; i <= Math.min(lastOperationNumber, getLastNumber()); ++i) {
+            copy.put(i, get(i));
+        }
+        if (copy.isEmpty()) {
+            copy.first = operationNumber;
+        }
+        return copy;
+    }
+
+    /**
+     * Gets op-number of the first held request
+     *
+     * @return op-number, for the empty log it is the op-number of the next appended request
+     */
+    public long getFirstNumber() {
+        return first;
+    }
+
+    /**
+     * Gets op-number of the last held request
+     *
+     * @return op-number or @code{getFirstNumber() - 1} if the log is empty
+     */
+    public long getLastNumber() {
+        return first + size - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Drops requests preceding the op-number
+     *
+     * @param operationNumber op-number of the first request to keep
+     */
+    public void truncateBefore(long operationNumber) {
+        while (size > 0 && first < operationNumber) {
+            entries[head] = null;
+            head = (head + 1) & (entries.length - 1);
+            --size;
+            ++first;
+        }
+        if (size == 0 && first < operationNumber) {
+            first = operationNumber;
+        }
+    }
+
+    /**
+     * Drops requests following the op-number
+     *
+     * @param operationNumber op-number of the last request to keep
+     */
+    public void truncateAfter(long operationNumber) {
+        while (size > 0 && getLastNumber() > operationNumber) {
+            entries[index(size - 1)] = null;
+            --size;
+        }
+    }
+
+    public void clear() {
+        entries = new RequestMessage[INITIAL_CAPACITY];
+        head = 0;
+        size = 0;
+        first = 1;
+    }
+
+    private int index(int offset) {
+        return (head + offset) & (entries.length - 1);
+    }
+
+    private void grow() {
+        RequestMessage[] grown = new RequestMessage[entries.length * 2];
+        for (int i = 0; i < size; ++i) {
+            grown[i] = entries[index(i)];
         }
-        return builder.build();
+        entries = grown;
+        head = 0;
     }
 }
@@ -0,0 +1,427 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.ReplicaStatus;
+import com.khovanskiy.dkvstorage.vr.Utils;
+import com.khovanskiy.dkvstorage.vr.message.SnapshotChunkMessage;
+import com.khovanskiy.dkvstorage.vr.message.SnapshotRequestMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of state transfer protocol.
+ * <p>
+ * The recovering replica pulls the image of the donor's checkpoint over the bulk channel. The donor keeps
+ * up to @code{WINDOW} chunks in flight per recipient and the recipient acknowledges every chunk, so a slow
+ * recipient throttles the donor instead of filling its send queue with the whole state, and lines of the
+ * protocol are still written ahead of the queued chunks. The chunks are sent straight from the file of the donor's
+ * latest checkpoint, so serving the image costs no heap whatever the size of the state is.
+ * <p>
+ * Replicas take checkpoints at the same commit-numbers and write them alike, so when several replicas have
+ * the checkpoint the recipient splits the image into ranges after the first chunk tells its length and pulls
+ * them from all the donors at once. Chunks are written to a file at their offsets and the stitched image is
+ * verified by its checksum, if a donor fails the image is pulled from the primary alone.
+ *
+ * @author Victor Khovanskiy
+ */
+public class StateTransferState {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * Number of chunks sent ahead of the recipient's acknowledgement
+     */
+    public static final int WINDOW = 4;
+    /**
+     * Time in milliseconds the donor keeps the file of the idle transfer open
+     */
+    private static final long IDLE_TIME = 60 * 1000;
+
+    private final Replica replica;
+    private final Map<Integer, Transfer> transfers = new HashMap<>();
+    /**
+     * Dropped transfers whose chunks may still be queued, their files are closed when they become idle
+     */
+    private final List<Transfer> retired = new ArrayList<>();
+    private boolean active;
+    private long number;
+    /**
+     * Replicas having the checkpoint, the first one is the primary
+     */
+    private List<Integer> donors;
+    private final List<Range> ranges = new ArrayList<>();
+    /**
+     * File the received chunks are written to at their offsets, null until the first chunk tells the length
+     */
+    private File part;
+    private FileChannel received;
+    private long length;
+
+    public StateTransferState(Replica replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Starts pulling the checkpoint
+     *
+     * @param donors numbers of the replicas having the checkpoint, the first one is the primary or, at view change,
+     *               the sender of the chosen log
+     * @param number commit-number of the checkpoint
+     */
+    public void startStateTransfer(List<Integer> donors, long number) {
+        Utils.log(replica.getReplicaNumber(), "Pulls checkpoint " + number + " from " + donors);
+        this.active = true;
+        this.donors = donors;
+        this.number = number;
+        discard();
+        ranges.clear();
+        // the length of the image is unknown until the first chunk comes
+        Range range = new Range(donors.get(0), 0, Long.MAX_VALUE);
+        ranges.add(range);
+        request(range);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void cancel() {
+        active = false;
+        discard();
+        ranges.clear();
+    }
+
+    /**
+     * Closes and deletes the file of the unfinished image
+     */
+    private void discard() {
+        if (received != null) {
+            try {
+                received.close();
+            } catch (IOException ignored) {
+            }
+            received = null;
+            part.delete();
+        }
+    }
+
+    /**
+     * Handles SNAPSHOT_REQUEST message
+     *
+     * @param message SNAPSHOT_REQUEST message
+     */
+    public void handleSnapshotRequestMessage(SnapshotRequestMessage message) {
+        Checkpoint checkpoint = replica.getCheckpoint();
+        // the checkpoint is served during view change too, the lagging new primary pulls it
+        if (replica.getStatus() == ReplicaStatus.RECOVERING || checkpoint == null || checkpoint.getNumber() != message.getNumber()) {
+            reject(message);
+            return;
+        }
+        Transfer transfer = transfers.get(message.getReplicaNumber());
+        if (transfer != null && transfer.number == message.getNumber()) {
+            transfer.end = Math.min(message.getLimit(), transfer.length);
+            acknowledge(transfer, message.getOffset());
+            return;
+        }
+        close(message.getReplicaNumber());
+        transfer = openCheckpointFile(message.getReplicaNumber(), checkpoint);
+        if (transfer == null) {
+            reject(message);
+            return;
+        }
+        start(transfer, message);
+    }
+
+    /**
+     * Handles SNAPSHOT_CHUNK message
+     *
+     * @param message SNAPSHOT_CHUNK message
+     */
+    public void handleSnapshotChunkMessage(SnapshotChunkMessage message) {
+        if (!active || message.getNumber() != number) {
+            return;
+        }
+        // drops the chunks resent after a lost acknowledgement
+        Range range = null;
+        for (Range candidate : ranges) {
+            if (candidate.position == message.getOffset() && candidate.position < candidate.end) {
+                range = candidate;
+            }
+        }
+        if (range == null) {
+            return;
+        }
+        if (message.getLength() < 0 || (received != null && message.getLength() != length)) {
+            // the donor has taken another checkpoint since the recovery began
+            fail(range);
+            return;
+        }
+        Checkpoint checkpoint;
+        try {
+            if (received == null) {
+                part = new File(Checkpoint.fileOf(replica.getCheckpointDirectory(), number).getPath() + ".part");
+                received = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                length = message.getLength();
+                range.end = length;
+                split(range);
+            }
+            ByteBuffer data = message.getData();
+            data.limit(data.position() + (int) Math.min(data.remaining(), range.end - range.position));
+            while (data.hasRemaining()) {
+                range.position += received.write(data, range.position);
+            }
+            request(range);
+            for (Range candidate : ranges) {
+                if (candidate.position < candidate.end) {
+                    return;
+                }
+            }
+            checkpoint = store();
+        } catch (IOException e) {
+            Utils.log(replica.getReplicaNumber(), "Can't write checkpoint file: " + e.getMessage());
+            cancel();
+            replica.onStateTransferFailed();
+            return;
+        }
+        if (checkpoint == null || checkpoint.getNumber() != number) {
+            fail(ranges.size() > 1 ? ranges.get(1) : range);
+            return;
+        }
+        cancel();
+        replica.onStateTransferred(checkpoint);
+    }
+
+    /**
+     * Verifies the stitched image by its checksum and makes it the checkpoint's file
+     *
+     * @return checkpoint or null if the image is broken
+     * @throws IOException
+     */
+    private Checkpoint store() throws IOException {
+        received.force(false);
+        received.close();
+        received = null;
+        if (Checkpoint.open(part) == null) {
+            part.delete();
+            return null;
+        }
+        File file = Checkpoint.fileOf(replica.getCheckpointDirectory(), number);
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Checkpoint.open(file);
+    }
+
+    /**
+     * Retries the lost request and drops the idle transfers
+     *
+     * @param timeout timeout in milliseconds
+     */
+    public void onTimeout(long timeout) {
+        long now = System.currentTimeMillis();
+        if (active) {
+            for (Range range : ranges) {
+                if (range.position < range.end && now - range.requested > timeout) {
+                    request(range);
+                }
+            }
+        }
+        closeIdle(transfers.values().iterator(), now);
+        closeIdle(retired.iterator(), now);
+    }
+
+    /**
+     * Closes the files of the transfers and of the image being received
+     */
+    public void stop() {
+        discard();
+        for (Transfer transfer : transfers.values()) {
+            transfer.close();
+        }
+        for (Transfer transfer : retired) {
+            transfer.close();
+        }
+        transfers.clear();
+        retired.clear();
+    }
+
+    private void request(Range range) {
+        range.requested = System.currentTimeMillis();
+        replica.getWrapper().sendToReplica(range.donor, new SnapshotRequestMessage(replica.getReplicaNumber(), number, range.position, range.end));
+    }
+
+    /**
+     * Gives the rest of the image to other donors, each of them gets at least a window of chunks
+     *
+     * @param first range of the primary
+     */
+    private void split(Range first) {
+        long rest = length - first.position;
+        int count = (int) Math.max(1, Math.min(donors.size(), rest / ((long) WINDOW * CHUNK_SIZE)));
+        if (count == 1) {
+            return;
+        }
+        long size = (rest / count + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+        first.end = first.position + size;
+        for (int i = 1; i < count && first.position + size * i < length; ++i) {
+            Range range = new Range(donors.get(i), first.position + size * i, Math.min(first.position + size * (i + 1), length));
+            ranges.add(range);
+            request(range);
+        }
+    }
+
+    /**
+     * Pulls the image from the primary alone if another donor failed, otherwise gives up the transfer
+     *
+     * @param range range of the failed donor
+     */
+    private void fail(Range range) {
+        if (range.donor != donors.get(0)) {
+            Utils.log(replica.getReplicaNumber(), "Checkpoint from #" + range.donor + " is refused");
+            startStateTransfer(donors.subList(0, 1), number);
+            return;
+        }
+        cancel();
+        replica.onStateTransferFailed();
+    }
+
+    /**
+     * Starts transfer from the checkpoint's file, the open file is served to the end even if a newer checkpoint
+     * deletes it meanwhile
+     *
+     * @param replicaNumber number of the recipient
+     * @param checkpoint    checkpoint
+     * @return transfer or null if the file can't be opened
+     */
+    private Transfer openCheckpointFile(int replicaNumber, Checkpoint checkpoint) {
+        try {
+            FileChannel channel = FileChannel.open(checkpoint.getFile().toPath(), StandardOpenOption.READ);
+            return new Transfer(replicaNumber, checkpoint.getNumber(), channel, checkpoint.getLength());
+        } catch (IOException e) {
+            Utils.log(replica.getReplicaNumber(), "Can't open checkpoint file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void start(Transfer transfer, SnapshotRequestMessage request) {
+        transfers.put(transfer.replicaNumber, transfer);
+        transfer.end = Math.min(request.getLimit(), transfer.length);
+        transfer.sent = Math.min(request.getOffset(), transfer.end);
+        transfer.acknowledged = transfer.sent;
+        pump(transfer);
+    }
+
+    /**
+     * Slides the window of the transfer. The request with the acknowledged offset or below means that the
+     * recipient has lost the chunks in flight or begun anew, so they are sent again. The recipient may also
+     * acknowledge the chunks it got from another donor
+     */
+    private void acknowledge(Transfer transfer, long offset) {
+        if (offset <= transfer.acknowledged) {
+            transfer.sent = offset;
+        }
+        transfer.acknowledged = offset;
+        transfer.sent = Math.max(transfer.sent, offset);
+        if (transfer.acknowledged >= transfer.end) {
+            close(transfer.replicaNumber);
+            return;
+        }
+        pump(transfer);
+    }
+
+    private void pump(Transfer transfer) {
+        transfer.lastActive = System.currentTimeMillis();
+        while (transfer.sent < transfer.end && transfer.sent < transfer.acknowledged + (long) WINDOW * CHUNK_SIZE) {
+            int count = (int) Math.min(CHUNK_SIZE, transfer.end - transfer.sent);
+            SnapshotChunkMessage chunk = new SnapshotChunkMessage(transfer.number, transfer.sent, transfer.length);
+            replica.getWrapper().sendToReplica(transfer.replicaNumber, chunk, transfer.file, transfer.sent, count);
+            transfer.sent += count;
+        }
+    }
+
+    private void close(int replicaNumber) {
+        Transfer transfer = transfers.remove(replicaNumber);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.sent > transfer.acknowledged) {
+            retired.add(transfer);
+        } else {
+            transfer.close();
+        }
+    }
+
+    private static void closeIdle(Iterator<Transfer> iterator, long now) {
+        while (iterator.hasNext()) {
+            Transfer transfer = iterator.next();
+            if (now - transfer.lastActive > IDLE_TIME) {
+                transfer.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void reject(SnapshotRequestMessage request) {
+        close(request.getReplicaNumber());
+        replica.getWrapper().sendToReplica(request.getReplicaNumber(),
+                new SnapshotChunkMessage(request.getNumber(), request.getOffset(), -1), ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Checkpoint's image being sent to the recipient
+     */
+    private static class Transfer {
+        private final int replicaNumber;
+        private final long number;
+        /**
+         * Checkpoint's file
+         */
+        private final FileChannel file;
+        private final long length;
+        /**
+         * Offset of the end of the range requested from the donor
+         */
+        private long end;
+        private long sent;
+        private long acknowledged;
+        private long lastActive;
+
+        Transfer(int replicaNumber, long number, FileChannel file, long length) {
+            this.replicaNumber = replicaNumber;
+            this.number = number;
+            this.file = file;
+            this.length = length;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Range of the image pulled from one donor
+     */
+    private static class Range {
+        private final int donor;
+        private long end;
+        private long position;
+        private long requested;
+
+        Range(int donor, long from, long end) {
+            this.donor = donor;
+            this.end = end;
+            this.position = from;
+        }
+    }
+}
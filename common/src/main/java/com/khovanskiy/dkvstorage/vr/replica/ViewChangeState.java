@@ -7,11 +7,19 @@ import com.khovanskiy.dkvstorage.vr.message.DoViewChangeMessage;
 import com.khovanskiy.dkvstorage.vr.message.StartViewChangeMessage;
 import com.khovanskiy.dkvstorage.vr.message.StartViewMessage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Implementation of ViewChange protocol
+ * Implementation of ViewChange protocol.
+ * <p>
+ * Operations up to a replica's commit-number are the same on all replicas, so the logs are exchanged by suffixes:
+ * the replicas send the new primary the entries after its commit-number and the new primary sends each backup
+ * the entries after the backup's commit-number it learned from START_VIEW_CHANGE or DO_VIEW_CHANGE messages.
+ * <p>
+ * The new primary lagging behind the checkpoint the chosen log was truncated by pulls the checkpoint from
+ * the replicas which have taken it, as the recovering replica does, and starts the view after installing it.
  *
  * @author Victor Khovanskiy
  */
@@ -20,11 +28,31 @@ public class ViewChangeState {
     private final List<StartViewChangeMessage> startViewChangeMessages = new ArrayList<>();
     private final List<DoViewChangeMessage> doViewChangeMessages = new ArrayList<>();
     private long lastNormalViewNumber;
+    private boolean doViewChangeSent;
+    /**
+     * DO_VIEW_CHANGE message with the chosen log, kept while the lagging new primary pulls the checkpoint
+     */
+    private DoViewChangeMessage pending;
+    private long pendingCommitNumber;
 
     public ViewChangeState(Replica replica) {
         this.replica = replica;
     }
 
+    private void clear() {
+        startViewChangeMessages.clear();
+        doViewChangeMessages.clear();
+        doViewChangeSent = false;
+        cancelTransfer();
+    }
+
+    private void cancelTransfer() {
+        if (pending != null) {
+            pending = null;
+            replica.cancelStateTransfer();
+        }
+    }
+
     public int getNextPrimaryNumber(long v) {
         return replica.getConfiguration().get((int) (v % replica.getConfiguration().size())).getReplicaNumber();
     }
@@ -38,18 +66,25 @@ public class ViewChangeState {
         }
 
         if (replica.getViewNumber() < newViewNumber) {
-            startViewChangeMessages.clear();
-            doViewChangeMessages.clear();
+            clear();
 
             if (replica.getStatus() == ReplicaStatus.NORMAL) {
                 replica.setStatus(ReplicaStatus.VIEW_CHANGE);
                 lastNormalViewNumber = replica.getViewNumber();
                 replica.setViewNumber(newViewNumber);
-                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber()));
+                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber(), replica.getCommitNumber()));
             }
         }
     }
 
+    /**
+     * Asks the other replicas to change the view without this primary, which recovers its state meanwhile
+     */
+    public void giveUpView() {
+        replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(replica.getViewNumber() + 1,
+                replica.getReplicaNumber(), replica.getCommitNumber()));
+    }
+
     public void processViewChangeMessage(StartViewChangeMessage event) {
         //Utils.log(replica.getReplicaNumber(), "received from #" + event.getReplicaNumber() + " " + Message.encode(event));
         long newViewNumber = event.getViewNumber();
@@ -64,14 +99,13 @@ public class ViewChangeState {
         }
 
         if (replica.getViewNumber() < newViewNumber) {
-            startViewChangeMessages.clear();
-            doViewChangeMessages.clear();
+            clear();
 
             if (replica.getStatus() == ReplicaStatus.NORMAL) {
                 replica.setStatus(ReplicaStatus.VIEW_CHANGE);
                 lastNormalViewNumber = replica.getViewNumber();
                 replica.setViewNumber(newViewNumber);
-                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber()));
+                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber(), replica.getCommitNumber()));
             }
         }
 
@@ -80,10 +114,20 @@ public class ViewChangeState {
         int f = replica.getConfiguration().size() / 2;
 
         // When replica receives START_VIEW_CHANGE messages for its view-number from f other replicas
-        if (f <= startViewChangeMessages.size()) {
+        if (f <= startViewChangeMessages.size() && !doViewChangeSent) {
             // it sends a [DOVIEWCHANGE v, l, lv, n, k, i] message to the node that will be the primary in the new view
             int newPrimary = getNextPrimaryNumber(replica.getViewNumber());
-            DoViewChangeMessage doViewChange = new DoViewChangeMessage(replica.getViewNumber(), lastNormalViewNumber, replica.getOperationNumber(), replica.getCommitNumber(), replica.getReplicaNumber(), replica.getLog());
+            long primaryCommitNumber = newPrimary == replica.getReplicaNumber() ? replica.getCommitNumber() : getKnownCommitNumber(newPrimary);
+
+            // the log is sent after the new primary's commit-number, so it waits for the new primary's message
+            if (primaryCommitNumber < 0) {
+                return;
+            }
+            doViewChangeSent = true;
+            ReplicaLog suffix = replica.getLog().copyFrom(Math.min(replica.getCommitNumber(), primaryCommitNumber) + 1);
+            Checkpoint checkpoint = replica.getCheckpoint();
+            DoViewChangeMessage doViewChange = new DoViewChangeMessage(replica.getViewNumber(), lastNormalViewNumber, replica.getOperationNumber(),
+                    replica.getCommitNumber(), replica.getReplicaNumber(), suffix, checkpoint != null ? checkpoint.getNumber() : 0);
             if (replica.getReplicaNumber() != newPrimary) {
                 replica.getWrapper().sendToReplica(newPrimary, doViewChange);
             } else {
@@ -106,14 +150,13 @@ public class ViewChangeState {
         }
 
         if (replica.getViewNumber() < newViewNumber) {
-            startViewChangeMessages.clear();
-            doViewChangeMessages.clear();
+            clear();
 
             if (replica.getStatus() == ReplicaStatus.NORMAL) {
                 replica.setStatus(ReplicaStatus.VIEW_CHANGE);
                 lastNormalViewNumber = replica.getViewNumber();
                 replica.setViewNumber(newViewNumber);
-                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber()));
+                replica.getWrapper().sendToOtherReplicas(new StartViewChangeMessage(newViewNumber, replica.getReplicaNumber(), replica.getCommitNumber()));
             }
         }
 
@@ -121,8 +164,16 @@ public class ViewChangeState {
             return;
         }
 
+        if (getDoViewChange(event.getReplicaNumber()) != null) {
+            return;
+        }
         doViewChangeMessages.add(event);
 
+        // the view starts once the checkpoint is pulled
+        if (pending != null) {
+            return;
+        }
+
         int f = replica.getConfiguration().size() / 2;
 
         // the new primary receives f + 1 DO_VIEW_CHANGE messages from different replicas (including itself)
@@ -130,53 +181,186 @@ public class ViewChangeState {
             Utils.log(replica.getReplicaNumber(), "Im a new leader!");
             long largestLastNormalViewNumber = Integer.MIN_VALUE;
             long largestOperationNumber = Integer.MIN_VALUE;
-            long largestCommitNumber = Integer.MIN_VALUE;
+            long largestCommitNumber = replica.getCommitNumber();
+            DoViewChangeMessage chosen = null;
             for (DoViewChangeMessage message : doViewChangeMessages) {
                 // it sets its view-number to that in the messages
                 replica.setViewNumber(message.getViewNumber());
 
                 // selects as the new log the one contained in the message with the largest lv
                 if (largestLastNormalViewNumber < message.getLastNormalViewNumber()) {
-                    replica.setLog(message.getLog());
+                    chosen = message;
                     largestLastNormalViewNumber = message.getLastNormalViewNumber();
                     largestOperationNumber = message.getOperationNumber();
                 } else if (largestLastNormalViewNumber == message.getLastNormalViewNumber()) {
                     // if several messages have the same last-normal-view-number it selects the one among them with the largest operation-number
                     if (largestOperationNumber < message.getOperationNumber()) {
-                        replica.setLog(message.getLog());
+                        chosen = message;
                         largestOperationNumber = message.getOperationNumber();
                     }
                 }
 
-                //  It sets its operation-number to that of the topmost entry in the new log
-                replica.setOperationNumber(largestOperationNumber);
-
                 // sets its commit-number to the largest such number it received in the DOVIEWCHANGE messages
-                if (largestCommitNumber < message.getCommitNumber()) {
-                    largestCommitNumber = message.getCommitNumber();
-                    replica.setCommitNumber(largestCommitNumber);
+                largestCommitNumber = Math.max(largestCommitNumber, message.getCommitNumber());
+            }
+
+            ReplicaLog suffix = chosen.getLog();
+            if (suffix.getFirstNumber() > replica.getCommitNumber() + 1) {
+                // the suffix comes from the log truncated by a checkpoint, the lagging primary can't join it with its own,
+                // so it pulls the checkpoint from the replicas having it, the sender of the chosen log is the first of them
+                pending = chosen;
+                pendingCommitNumber = largestCommitNumber;
+                List<Integer> donors = new ArrayList<>();
+                donors.add(chosen.getReplicaNumber());
+                for (DoViewChangeMessage message : doViewChangeMessages) {
+                    if (message != chosen && message.getReplicaNumber() != replica.getReplicaNumber()
+                            && message.getCheckpointNumber() == chosen.getCheckpointNumber()) {
+                        donors.add(message.getReplicaNumber());
+                    }
                 }
+                replica.startStateTransfer(donors, chosen.getCheckpointNumber());
+                return;
+            }
+
+            // the chosen suffix follows the own committed operations
+            startView(replica.getLog().copyRange(replica.getLog().getFirstNumber(), replica.getCommitNumber()), chosen, largestCommitNumber);
+        }
+    }
+
+    /**
+     * Installs the checkpoint pulled by the lagging new primary and starts the view
+     *
+     * @param checkpoint checkpoint
+     */
+    public void onStateTransferred(Checkpoint checkpoint) {
+        if (replica.getStatus() != ReplicaStatus.VIEW_CHANGE || pending == null) {
+            return;
+        }
+        DoViewChangeMessage chosen = pending;
+        pending = null;
+        try {
+            replica.install(checkpoint);
+        } catch (IOException e) {
+            Utils.log(replica.getReplicaNumber(), "Can't install checkpoint: " + e.getMessage());
+            onStateTransferFailed();
+            return;
+        }
+        ReplicaLog log = new ReplicaLog();
+        log.truncateBefore(replica.getCommitNumber() + 1);
+        startView(log, chosen, pendingCommitNumber);
+    }
+
+    /**
+     * Gives up the view the new primary can't catch up in, it recovers while the others elect another primary
+     */
+    public void onStateTransferFailed() {
+        pending = null;
+        giveUpView();
+        replica.startRecovery();
+    }
+
+    /**
+     * Completes the view change on the new primary
+     *
+     * @param log                 committed operations of the new primary the chosen suffix is appended to
+     * @param chosen              DO_VIEW_CHANGE message with the chosen log
+     * @param largestCommitNumber largest commit-number in the DO_VIEW_CHANGE messages
+     */
+    private void startView(ReplicaLog log, DoViewChangeMessage chosen, long largestCommitNumber) {
+        ReplicaLog suffix = chosen.getLog();
+        for (long i = replica.getCommitNumber() + 1; i <= suffix.getLastNumber(); ++i) {
+            log.put(i, suffix.get(i));
+        }
+        replica.setLog(log);
+
+        //  It sets its operation-number to that of the topmost entry in the new log
+        replica.setOperationNumber(chosen.getOperationNumber());
+
+        // changes its status to normal
+        replica.setStatus(ReplicaStatus.NORMAL);
+
+        // and informs the other replicas of the completion of the view change by sending [STARTVIEW v, l, n, k] messages to the other replicas,
+        // each of them gets the log after its commit-number
+        long lowestCommitNumber = largestCommitNumber;
+        for (StartViewChangeMessage message : startViewChangeMessages) {
+            lowestCommitNumber = Math.min(lowestCommitNumber, message.getCommitNumber());
+        }
+        for (DoViewChangeMessage message : doViewChangeMessages) {
+            lowestCommitNumber = Math.min(lowestCommitNumber, message.getCommitNumber());
+        }
+        for (Replica other : replica.getConfiguration()) {
+            if (other.getReplicaNumber() == replica.getReplicaNumber()) {
+                continue;
             }
+            long commitNumber = getKnownCommitNumber(other.getReplicaNumber());
+            long from = (commitNumber < 0 ? lowestCommitNumber : commitNumber) + 1;
+            replica.getWrapper().sendToReplica(other.getReplicaNumber(), new StartViewMessage(replica.getViewNumber(),
+                    replica.getOperationNumber(), largestCommitNumber, log.copyFrom(from)));
+        }
 
-            // changes its status to normal
-            replica.setStatus(ReplicaStatus.NORMAL);
+        // executes the operations committed in the previous views
+        replica.executeUpTo(largestCommitNumber);
+    }
 
-            // and informs the other replicas of the completion of the view change by sending [STARTVIEW v, l, n, k] messages to the other replicas
-            replica.getWrapper().sendToOtherReplicas(new StartViewMessage(replica.getViewNumber(), replica.getOperationNumber(), replica.getCommitNumber(), replica.getLog()));
+    /**
+     * Gets commit-number the replica told in the view change
+     *
+     * @param replicaNumber replica's number
+     * @return commit-number or -1 if the replica didn't send START_VIEW_CHANGE or DO_VIEW_CHANGE message
+     */
+    private long getKnownCommitNumber(int replicaNumber) {
+        DoViewChangeMessage doViewChange = getDoViewChange(replicaNumber);
+        if (doViewChange != null) {
+            return doViewChange.getCommitNumber();
         }
+        for (StartViewChangeMessage message : startViewChangeMessages) {
+            if (message.getReplicaNumber() == replicaNumber) {
+                return message.getCommitNumber();
+            }
+        }
+        return -1;
+    }
+
+    private DoViewChangeMessage getDoViewChange(int replicaNumber) {
+        for (DoViewChangeMessage message : doViewChangeMessages) {
+            if (message.getReplicaNumber() == replicaNumber) {
+                return message;
+            }
+        }
+        return null;
     }
 
     public void processStartViewMessage(StartViewMessage event) {
         //Utils.log(replica.getReplicaNumber(), "received from #" + getNextPrimaryNumber(event.getViewNumber()) + " " + Message.encode(event));
 
-        // replace their log with the one in the message
-        replica.setLog(event.getLog());
+        // the recovering replica learns the view from the new primary's RECOVERY_RESPONSE
+        if (replica.getStatus() == ReplicaStatus.RECOVERING) {
+            return;
+        }
+        cancelTransfer();
 
-        // , set their op-number to that of the latest entry in the log
-        replica.setOperationNumber(event.getOperationNumber());
+        // the suffix begins beyond what this replica executed, e.g. the new primary didn't know its commit-number
+        // or the log was truncated by the new primary's checkpoint
+        if (replica.getCommitNumber() < event.getLog().getFirstNumber() - 1) {
+            replica.startRecovery();
+            return;
+        }
 
-        // set their view-number to the view number in the message
+        // replace their log after the commit-number with the one in the message
+        ReplicaLog suffix = event.getLog();
+        ReplicaLog log = replica.getLog().copyRange(replica.getLog().getFirstNumber(), suffix.getFirstNumber() - 1);
+        for (long i = suffix.getFirstNumber(); i <= suffix.getLastNumber(); ++i) {
+            log.put(i, suffix.get(i));
+        }
+        if (log.isEmpty()) {
+            log.truncateBefore(suffix.getFirstNumber());
+        }
+        // set their view-number to the view number in the message, the new log is written in it
         replica.setViewNumber(event.getViewNumber());
+        replica.setLog(log);
+
+        // , set their op-number to that of the latest entry in the log
+        replica.setOperationNumber(event.getOperationNumber());
 
         // change their status to normal
         replica.setStatus(ReplicaStatus.NORMAL);
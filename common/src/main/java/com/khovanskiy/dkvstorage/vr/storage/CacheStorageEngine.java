@@ -0,0 +1,373 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Cache limited by the size of its entries which evicts them by W-TinyLFU policy.
+ * <p>
+ * New entries get into the small LRU window. Entry pushed out of the window is admitted
+ * into the main segmented LRU only if it was accessed more often than the main's victim
+ * according to the frequency sketch, so one-time scans don't flush popular keys.
+ * Entries hit in the probation segment move to the protected one.
+ * <p>
+ * Evictions depend only on the sequence of calls, so replicas applying the same operations
+ * keep the same entries. That's why only @code{get} and @code{put} count as accesses and
+ * @code{scan}, @code{snapshot} and @code{peek} don't change the cache. The sketch and the order of
+ * the segments are kept in checkpoints, so a replica restored from a checkpoint evicts as its peers do.
+ *
+ * @author Victor Khovanskiy
+ */
+public class CacheStorageEngine implements StorageEngine {
+
+    public static final String TYPE = "cache";
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    /**
+     * Node of the map and the list, object header and five references
+     */
+    private static final int ENTRY_OVERHEAD = 48 + 40;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Map<String, Node> map = new HashMap<>();
+    private FrequencySketch sketch = new FrequencySketch();
+    /**
+     * Sentinels of the LRU lists, their next is the least recently used node
+     */
+    private final Node[] queues = {new Node(), new Node(), new Node()};
+    private final long[] sizes = new long[3];
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public CacheStorageEngine() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity limit of the size of entries in bytes
+     */
+    public CacheStorageEngine(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal cache capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+        for (Node queue : queues) {
+            queue.previous = queue;
+            queue.next = queue;
+        }
+    }
+
+    private static long weight(String key, String value) {
+        return ENTRY_OVERHEAD + MapStorageEngine.estimate(key) + MapStorageEngine.estimate(value);
+    }
+
+    @Override
+    public String get(String key) {
+        sketch.increment(key);
+        Node node = map.get(key);
+        if (node == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        touch(node);
+        return node.value;
+    }
+
+    /**
+     * Gets value without counting the access
+     *
+     * @param key key
+     * @return value or null if there is no such key
+     */
+    @Override
+    public String peek(String key) {
+        Node node = map.get(key);
+        return node != null ? node.value : null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        sketch.increment(key);
+        long weight = weight(key, value);
+        Node node = map.get(key);
+        if (weight > capacity) {
+            if (node != null) {
+                remove(node);
+            }
+            ++rejections;
+            return;
+        }
+        if (node != null) {
+            sizes[node.queue] += weight - node.weight;
+            node.value = value;
+            node.weight = weight;
+            touch(node);
+        } else {
+            node = new Node();
+            node.key = key;
+            node.value = value;
+            node.weight = weight;
+            map.put(key, node);
+            sketch.ensureCapacity(map.size());
+            append(WINDOW, node);
+        }
+        evict();
+    }
+
+    @Override
+    public boolean delete(String key) {
+        Node node = map.get(key);
+        if (node == null) {
+            return false;
+        }
+        remove(node);
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        String[] keys = new String[map.size()];
+        int count = 0;
+        for (String key : map.keySet()) {
+            if ((fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0)) {
+                keys[count++] = key;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        return new SortedKeyIterator(keys, count) {
+            @Override
+            protected String valueOf(String key) {
+                return peek(key);
+            }
+        };
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        TreeMap<String, String> copy = new TreeMap<>();
+        for (Node node : map.values()) {
+            copy.put(node.key, node.value);
+        }
+        return copy;
+    }
+
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED] + sketch.getBytes();
+    }
+
+    @Override
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = StorageEngine.super.statistics();
+        statistics.put("capacity", capacity);
+        statistics.put("window", sizes[WINDOW]);
+        statistics.put("probation", sizes[PROBATION]);
+        statistics.put("protected", sizes[PROTECTED]);
+        statistics.put("hits", hits);
+        statistics.put("misses", misses);
+        statistics.put("evictions", evictions);
+        statistics.put("rejections", rejections);
+        return statistics;
+    }
+
+    @Override
+    public boolean hasState() {
+        return true;
+    }
+
+    /**
+     * Writes the frequency sketch and the keys of the window, probation and protected segments in LRU order
+     */
+    @Override
+    public void writeState(DataOutput output) throws IOException {
+        sketch.write(output);
+        for (Node queue : queues) {
+            int count = 0;
+            for (Node node = queue.next; node != queue; node = node.next) {
+                ++count;
+            }
+            output.writeInt(count);
+            for (Node node = queue.next; node != queue; node = node.next) {
+                byte[] key = node.key.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(key.length);
+                output.write(key);
+            }
+        }
+    }
+
+    /**
+     * Restores the sketch and moves the entries to their segments in the written order
+     */
+    @Override
+    public void readState(DataInput input) throws IOException {
+        FrequencySketch restored = new FrequencySketch();
+        restored.read(input);
+        Node[] nodes = new Node[map.size()];
+        int[] segments = new int[nodes.length];
+        int count = 0;
+        for (int queue = 0; queue < queues.length; ++queue) {
+            for (int i = input.readInt(); i > 0; --i) {
+                byte[] key = new byte[input.readInt()];
+                input.readFully(key);
+                Node node = map.get(new String(key, StandardCharsets.UTF_8));
+                if (node == null || count == nodes.length) {
+                    throw new IOException("Cache state doesn't match the entries");
+                }
+                nodes[count] = node;
+                segments[count++] = queue;
+            }
+        }
+        if (count != nodes.length) {
+            throw new IOException("Cache state doesn't match the entries");
+        }
+        sketch = restored;
+        for (int i = 0; i < queues.length; ++i) {
+            queues[i].previous = queues[i];
+            queues[i].next = queues[i];
+            sizes[i] = 0;
+        }
+        for (int i = 0; i < count; ++i) {
+            append(segments[i], nodes[i]);
+        }
+    }
+
+    /**
+     * Drops the entries and the access statistics, so the cache behaves as a new one
+     */
+    @Override
+    public void clear() {
+        close();
+        sketch = new FrequencySketch();
+    }
+
+    @Override
+    public void close() {
+        map.clear();
+        for (int i = 0; i < queues.length; ++i) {
+            queues[i].previous = queues[i];
+            queues[i].next = queues[i];
+            sizes[i] = 0;
+        }
+    }
+
+    /**
+     * Moves accessed node to the most recently used end, probation's node is promoted
+     */
+    private void touch(Node node) {
+        unlink(node);
+        if (node.queue == PROBATION) {
+            append(PROTECTED, node);
+            // protected segment's overflow goes back to probation
+            while (sizes[PROTECTED] > protectedCapacity && queues[PROTECTED].next != node) {
+                Node demoted = queues[PROTECTED].next;
+                unlink(demoted);
+                append(PROBATION, demoted);
+            }
+        } else {
+            append(node.queue, node);
+        }
+    }
+
+    /**
+     * Moves window's overflow to the main space where a candidate competes with the main's victims
+     */
+    private void evict() {
+        while (sizes[WINDOW] > windowCapacity && queues[WINDOW].next != queues[WINDOW]) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            append(PROBATION, candidate);
+            while (total() > capacity) {
+                Node victim = victim(candidate);
+                if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    ++rejections;
+                    evict(candidate);
+                    break;
+                }
+                evict(victim);
+            }
+        }
+        // overwrites may grow entries of the main space
+        while (total() > capacity) {
+            Node victim = victim(null);
+            evict(victim != null ? victim : queues[WINDOW].next);
+        }
+    }
+
+    /**
+     * Gets the least recently used node of the main space except the candidate
+     */
+    private Node victim(Node candidate) {
+        for (int queue : new int[]{PROBATION, PROTECTED}) {
+            Node node = queues[queue].next;
+            if (node == candidate) {
+                node = node.next;
+            }
+            if (node != queues[queue]) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private long total() {
+        return sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED];
+    }
+
+    private void evict(Node node) {
+        remove(node);
+        ++evictions;
+    }
+
+    private void remove(Node node) {
+        map.remove(node.key);
+        unlink(node);
+    }
+
+    private void append(int queue, Node node) {
+        Node sentinel = queues[queue];
+        node.queue = queue;
+        node.previous = sentinel.previous;
+        node.next = sentinel;
+        sentinel.previous.next = node;
+        sentinel.previous = node;
+        sizes[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        sizes[node.queue] -= node.weight;
+    }
+
+    private static class Node {
+        private String key;
+        private String value;
+        private long weight;
+        private int queue;
+        private Node previous;
+        private Node next;
+    }
+}
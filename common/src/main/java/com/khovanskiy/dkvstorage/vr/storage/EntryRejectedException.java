@@ -0,0 +1,15 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+/**
+ * Thrown by the storage which can't keep the entry, e.g. its key is too long, before the storage changes.
+ * The replicas with the same storage reject the operation alike, so it is answered by an error
+ * rather than taken for a failure of the state machine.
+ *
+ * @author Victor Khovanskiy
+ */
+public class EntryRejectedException extends IllegalArgumentException {
+
+    public EntryRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,117 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often keys were accessed recently.
+ * All counters are halved after a sample of increments, so old popularity fades away.
+ * Hashes depend only on keys' contents, so replicas which see the same accesses keep
+ * the same sketch.
+ *
+ * @author Victor Khovanskiy
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MIN_LENGTH = 16;
+
+    private long[] table = new long[MIN_LENGTH];
+    private int sampleSize = 10 * MIN_LENGTH;
+    private int additions;
+
+    /**
+     * Grows the sketch to count the given number of keys precisely enough, growing drops the counts
+     *
+     * @param keys expected number of keys
+     */
+    void ensureCapacity(int keys) {
+        if (keys <= table.length) {
+            return;
+        }
+        int length = Integer.highestOneBit(keys - 1) << 1;
+        table = new long[length];
+        sampleSize = 10 * length;
+        additions = 0;
+    }
+
+    int frequency(String key) {
+        long hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; ++i) {
+            long h = rehash(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index(h)] >>> offset(h)) & 0xf));
+        }
+        return frequency;
+    }
+
+    void increment(String key) {
+        long hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; ++i) {
+            long h = rehash(hash, i);
+            int index = index(h);
+            int offset = offset(h);
+            if (((table[index] >>> offset) & 0xf) != 0xf) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeInt(table.length);
+        for (long counters : table) {
+            output.writeLong(counters);
+        }
+        output.writeInt(sampleSize);
+        output.writeInt(additions);
+    }
+
+    void read(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < MIN_LENGTH || Integer.bitCount(length) != 1) {
+            throw new IOException("Illegal sketch length: " + length);
+        }
+        table = new long[length];
+        for (int i = 0; i < length; ++i) {
+            table[i] = input.readLong();
+        }
+        sampleSize = input.readInt();
+        additions = input.readInt();
+    }
+
+    long getBytes() {
+        return 8L * table.length;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static long spread(int hash) {
+        long h = hash * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static long rehash(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[(i + 1) % SEEDS.length];
+        return h ^ (h >>> 29);
+    }
+
+    private int index(long h) {
+        return (int) (h >>> 4) & (table.length - 1);
+    }
+
+    private static int offset(long h) {
+        return (int) (h & 0xf) << 2;
+    }
+}
@@ -0,0 +1,22 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.util.HashMap;
+
+/**
+ * Unordered heap storage, the fastest one for point lookups
+ *
+ * @author Victor Khovanskiy
+ */
+public class HashStorageEngine extends MapStorageEngine {
+
+    public static final String TYPE = "hash";
+
+    /**
+     * @code{HashMap.Node} plus table slot
+     */
+    private static final int ENTRY_OVERHEAD = 40;
+
+    public HashStorageEngine() {
+        super(new HashMap<String, String>(), ENTRY_OVERHEAD);
+    }
+}
@@ -0,0 +1,107 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Base of heap storages backed by @code{java.util.Map}
+ *
+ * @author Victor Khovanskiy
+ */
+abstract class MapStorageEngine implements StorageEngine {
+
+    /**
+     * Object header, hash, length and array reference of @code{java.lang.String}
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    private final Map<String, String> map;
+    private final int entryOverhead;
+    private long memoryUsage;
+
+    protected MapStorageEngine(Map<String, String> map, int entryOverhead) {
+        this.map = map;
+        this.entryOverhead = entryOverhead;
+    }
+
+    static long estimate(String s) {
+        return STRING_OVERHEAD + 2L * s.length();
+    }
+
+    protected Map<String, String> getMap() {
+        return map;
+    }
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        String previous = map.put(key, value);
+        if (previous == null) {
+            memoryUsage += entryOverhead + estimate(key) + estimate(value);
+        } else {
+            memoryUsage += estimate(value) - estimate(previous);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        String previous = map.remove(key);
+        if (previous == null) {
+            return false;
+        }
+        memoryUsage -= entryOverhead + estimate(key) + estimate(previous);
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        // unordered map has to be filtered and sorted, only the keys are copied and values are looked up lazily
+        String[] keys = new String[map.size()];
+        int count = 0;
+        for (String key : map.keySet()) {
+            if ((fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0)) {
+                keys[count++] = key;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        return new SortedKeyIterator(keys, count) {
+            @Override
+            protected String valueOf(String key) {
+                return map.get(key);
+            }
+        };
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        return new TreeMap<>(map);
+    }
+
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return memoryUsage;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        memoryUsage = 0;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+}
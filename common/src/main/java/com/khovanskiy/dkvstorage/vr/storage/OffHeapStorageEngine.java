@@ -0,0 +1,371 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Hash table keeping UTF-8 keys and values in direct memory slabs.
+ * <p>
+ * Records [key length, value length, key, value] are appended to the current slab,
+ * the index is an open-addressing table of primitive longs where every slot packs
+ * 15 bits of key's hash, slab number and offset in the slab. So the heap holds only
+ * the index and slab references whatever the number of keys is.
+ *
+ * @author Victor Khovanskiy
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+
+    public static final String TYPE = "offheap";
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = 1;
+    private static final long LIVE = 1L << 63;
+    private static final int MAX_SLABS = 1 << 16;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private ByteBuffer current;
+    private long[] index = new long[INITIAL_CAPACITY];
+    private int size;
+    private int tombstones;
+    private long liveBytes;
+    private long garbageBytes;
+
+    public OffHeapStorageEngine() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapStorageEngine(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < length; ++i) {
+            h = (h ^ (bytes[offset + i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static long tag(int hash) {
+        return (long) (hash >>> 17) << 48;
+    }
+
+    private static long pack(int hash, int slab, int offset) {
+        return LIVE | tag(hash) | ((long) slab << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int slabOf(long slot) {
+        return (int) (slot >>> 32) & 0xffff;
+    }
+
+    private static int offsetOf(long slot) {
+        return (int) slot;
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = encode(key);
+        int position = find(keyBytes, hash(keyBytes, 0, keyBytes.length));
+        if (position < 0) {
+            return null;
+        }
+        long slot = index[position];
+        ByteBuffer slab = slabs.get(slabOf(slot));
+        int offset = offsetOf(slot);
+        return readString(slab, offset + HEADER_SIZE + slab.getInt(offset), slab.getInt(offset + 4));
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = encode(key);
+        byte[] valueBytes = encode(value);
+        int hash = hash(keyBytes, 0, keyBytes.length);
+        int position = find(keyBytes, hash);
+        if (position >= 0) {
+            long slot = index[position];
+            ByteBuffer slab = slabs.get(slabOf(slot));
+            int offset = offsetOf(slot);
+            if (slab.getInt(offset + 4) == valueBytes.length) {
+                // same length value is overwritten in place
+                write(slab, offset + HEADER_SIZE + keyBytes.length, valueBytes);
+                return;
+            }
+            // the new record is appended first, so the rejected value leaves the old one
+            long appended = append(keyBytes, valueBytes, hash);
+            release(slot);
+            index[position] = appended;
+            compactIfNeeded();
+            return;
+        }
+        if ((size + tombstones + 1) * 4L > index.length * 3L) {
+            rehash(size * 4 > index.length ? index.length * 2 : index.length);
+        }
+        position = freePosition(hash);
+        if (index[position] == TOMBSTONE) {
+            --tombstones;
+        }
+        index[position] = append(keyBytes, valueBytes, hash);
+        ++size;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        byte[] keyBytes = encode(key);
+        int position = find(keyBytes, hash(keyBytes, 0, keyBytes.length));
+        if (position < 0) {
+            return false;
+        }
+        release(index[position]);
+        index[position] = TOMBSTONE;
+        --size;
+        ++tombstones;
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        // only the keys are decoded to be sorted, values stay in the slabs until the entries are reached
+        String[] keys = new String[size];
+        int count = 0;
+        for (long slot : index) {
+            if ((slot & LIVE) == 0) {
+                continue;
+            }
+            ByteBuffer slab = slabs.get(slabOf(slot));
+            int offset = offsetOf(slot);
+            String key = readString(slab, offset + HEADER_SIZE, slab.getInt(offset));
+            if ((fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0)) {
+                keys[count++] = key;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        return new SortedKeyIterator(keys, count) {
+            @Override
+            protected String valueOf(String key) {
+                return get(key);
+            }
+        };
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        TreeMap<String, String> copy = new TreeMap<>();
+        Iterator<Map.Entry<String, String>> iterator = scan(null, null);
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets direct memory reserved by slabs plus the heap index
+     *
+     * @return bytes used
+     */
+    @Override
+    public long memoryUsage() {
+        long reserved = 0;
+        for (ByteBuffer slab : slabs) {
+            reserved += slab.capacity();
+        }
+        return reserved + 8L * index.length;
+    }
+
+    /**
+     * Gets bytes occupied by live records in slabs
+     *
+     * @return bytes of live records
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Gets bytes of overwritten and deleted records waiting for compaction
+     *
+     * @return bytes of garbage
+     */
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    @Override
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = StorageEngine.super.statistics();
+        statistics.put("slabs", (long) slabs.size());
+        statistics.put("live", liveBytes);
+        statistics.put("garbage", garbageBytes);
+        return statistics;
+    }
+
+    @Override
+    public void clear() {
+        close();
+    }
+
+    @Override
+    public void close() {
+        // direct buffers are freed as soon as they become unreachable
+        slabs.clear();
+        current = null;
+        index = new long[INITIAL_CAPACITY];
+        size = 0;
+        tombstones = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    private int find(byte[] keyBytes, int hash) {
+        int mask = index.length - 1;
+        long tag = tag(hash);
+        for (int position = hash & mask; ; position = (position + 1) & mask) {
+            long slot = index[position];
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if ((slot & LIVE) != 0 && (slot & 0x7fff000000000000L) == tag && equalsKey(slot, keyBytes)) {
+                return position;
+            }
+        }
+    }
+
+    private int freePosition(int hash) {
+        int mask = index.length - 1;
+        int position = hash & mask;
+        while ((index[position] & LIVE) != 0) {
+            position = (position + 1) & mask;
+        }
+        return position;
+    }
+
+    private boolean equalsKey(long slot, byte[] keyBytes) {
+        ByteBuffer slab = slabs.get(slabOf(slot));
+        int offset = offsetOf(slot);
+        if (slab.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        offset += HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; ++i) {
+            if (slab.get(offset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(byte[] keyBytes, byte[] valueBytes, int hash) {
+        int length = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (current == null || current.capacity() - current.position() < length) {
+            if (slabs.size() == MAX_SLABS) {
+                throw new EntryRejectedException("Off-heap storage is exhausted");
+            }
+            current = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+            slabs.add(current);
+        }
+        int offset = current.position();
+        current.putInt(keyBytes.length);
+        current.putInt(valueBytes.length);
+        current.put(keyBytes);
+        current.put(valueBytes);
+        liveBytes += length;
+        return pack(hash, slabs.size() - 1, offset);
+    }
+
+    private void release(long slot) {
+        ByteBuffer slab = slabs.get(slabOf(slot));
+        int offset = offsetOf(slot);
+        int length = HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = index;
+        index = new long[capacity];
+        tombstones = 0;
+        for (long slot : old) {
+            if ((slot & LIVE) != 0) {
+                index[freePosition(hashOf(slot))] = slot;
+            }
+        }
+    }
+
+    private int hashOf(long slot) {
+        ByteBuffer slab = slabs.get(slabOf(slot));
+        int offset = offsetOf(slot);
+        int keyLength = slab.getInt(offset);
+        byte[] keyBytes = new byte[keyLength];
+        read(slab, offset + HEADER_SIZE, keyBytes);
+        return hash(keyBytes, 0, keyLength);
+    }
+
+    private void compactIfNeeded() {
+        if (garbageBytes > slabSize && garbageBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves live records to new slabs releasing space of overwritten and deleted ones
+     */
+    private void compact() {
+        List<ByteBuffer> old = new ArrayList<>(slabs);
+        slabs.clear();
+        current = null;
+        liveBytes = 0;
+        garbageBytes = 0;
+        for (int position = 0; position < index.length; ++position) {
+            long slot = index[position];
+            if ((slot & LIVE) == 0) {
+                continue;
+            }
+            ByteBuffer slab = old.get(slabOf(slot));
+            int offset = offsetOf(slot);
+            byte[] keyBytes = new byte[slab.getInt(offset)];
+            byte[] valueBytes = new byte[slab.getInt(offset + 4)];
+            read(slab, offset + HEADER_SIZE, keyBytes);
+            read(slab, offset + HEADER_SIZE + keyBytes.length, valueBytes);
+            index[position] = append(keyBytes, valueBytes, hash(keyBytes, 0, keyBytes.length));
+        }
+    }
+
+    private static String readString(ByteBuffer slab, int offset, int length) {
+        byte[] bytes = new byte[length];
+        read(slab, offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void read(ByteBuffer slab, int offset, byte[] bytes) {
+        ByteBuffer view = slab.duplicate();
+        view.position(offset);
+        view.get(bytes);
+    }
+
+    private static void write(ByteBuffer slab, int offset, byte[] bytes) {
+        ByteBuffer view = slab.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+}
@@ -0,0 +1,267 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Storage split into partitions by the hash of the key.
+ * <p>
+ * A key always lives in the same partition, so operations on keys of different partitions touch different
+ * engines and may run on different threads. Operations on many keys, such as scans and snapshots, merge
+ * all the partitions and must not run concurrently with others.
+ *
+ * @author Victor Khovanskiy
+ */
+public class PartitionedStorageEngine implements StorageEngine {
+
+    private final StorageEngine[] partitions;
+
+    /**
+     * @param partitions engines of the partitions
+     */
+    public PartitionedStorageEngine(List<StorageEngine> partitions) {
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("No partitions");
+        }
+        this.partitions = partitions.toArray(new StorageEngine[partitions.size()]);
+    }
+
+    /**
+     * Gets the partition of the key, it is the same on all the replicas
+     *
+     * @param key   key
+     * @param count number of partitions
+     * @return partition's index
+     */
+    public static int partition(String key, int count) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % count;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public StorageEngine getPartition(int index) {
+        return partitions[index];
+    }
+
+    private StorageEngine partitionOf(String key) {
+        return partitions[partition(key, partitions.length)];
+    }
+
+    @Override
+    public String get(String key) {
+        return partitionOf(key).get(key);
+    }
+
+    @Override
+    public String peek(String key) {
+        return partitionOf(key).peek(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        partitionOf(key).put(key, value);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return partitionOf(key).delete(key);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        return new MergingIterator(partitions, fromKey, toKey);
+    }
+
+    @Override
+    public void clear() {
+        for (StorageEngine partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public void setOperationNumber(long number) {
+        for (StorageEngine partition : partitions) {
+            partition.setOperationNumber(number);
+        }
+    }
+
+    @Override
+    public boolean holdsOperations(long from, long to) {
+        for (StorageEngine partition : partitions) {
+            if (!partition.holdsOperations(from, to)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasState() {
+        for (StorageEngine partition : partitions) {
+            if (partition.hasState()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the number of partitions and their states in order
+     */
+    @Override
+    public void writeState(DataOutput output) throws IOException {
+        output.writeInt(partitions.length);
+        for (StorageEngine partition : partitions) {
+            partition.writeState(output);
+        }
+    }
+
+    @Override
+    public void readState(DataInput input) throws IOException {
+        int count = input.readInt();
+        if (count != partitions.length) {
+            throw new IOException("State of " + count + " partitions doesn't match " + partitions.length + " partitions");
+        }
+        for (StorageEngine partition : partitions) {
+            partition.readState(input);
+        }
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        SortedMap<String, String> snapshot = new TreeMap<>();
+        for (StorageEngine partition : partitions) {
+            snapshot.putAll(partition.snapshot());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (StorageEngine partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int getMaxKeyLength() {
+        int maxKeyLength = Integer.MAX_VALUE;
+        for (StorageEngine partition : partitions) {
+            maxKeyLength = Math.min(maxKeyLength, partition.getMaxKeyLength());
+        }
+        return maxKeyLength;
+    }
+
+    @Override
+    public long memoryUsage() {
+        long memoryUsage = 0;
+        for (StorageEngine partition : partitions) {
+            memoryUsage += partition.memoryUsage();
+        }
+        return memoryUsage;
+    }
+
+    /**
+     * Sums the counters of the partitions
+     *
+     * @return statistics by their names
+     */
+    @Override
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        for (StorageEngine partition : partitions) {
+            for (Map.Entry<String, Long> entry : partition.statistics().entrySet()) {
+                Long value = statistics.get(entry.getKey());
+                statistics.put(entry.getKey(), value != null ? value + entry.getValue() : entry.getValue());
+            }
+        }
+        statistics.put("partitions", (long) partitions.length);
+        return statistics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (StorageEngine partition : partitions) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Merges ranges of the partitions, their keys don't intersect
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, String>> {
+        private final PriorityQueue<Source> queue = new PriorityQueue<>();
+
+        MergingIterator(StorageEngine[] partitions, String fromKey, String toKey) {
+            for (StorageEngine partition : partitions) {
+                Source source = new Source(partition.scan(fromKey, toKey));
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            Source top = queue.poll();
+            if (top == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = top.current;
+            if (top.advance()) {
+                queue.add(top);
+            }
+            return entry;
+        }
+    }
+
+    private static class Source implements Comparable<Source> {
+        private final Iterator<Map.Entry<String, String>> iterator;
+        private Map.Entry<String, String> current;
+
+        Source(Iterator<Map.Entry<String, String>> iterator) {
+            this.iterator = iterator;
+        }
+
+        boolean advance() {
+            current = iterator.hasNext() ? iterator.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            return current.getKey().compareTo(o.current.getKey());
+        }
+    }
+}
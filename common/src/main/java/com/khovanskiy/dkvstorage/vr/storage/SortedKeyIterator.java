@@ -0,0 +1,59 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the sorted keys of an unordered storage, values are looked up as the entries are reached,
+ * so a scan copies only references to the keys. Keys deleted since the scan began are skipped.
+ *
+ * @author Victor Khovanskiy
+ */
+abstract class SortedKeyIterator implements Iterator<Map.Entry<String, String>> {
+    private final String[] keys;
+    private final int count;
+    private int position;
+    private Map.Entry<String, String> next;
+
+    /**
+     * @param keys  keys sorted in ascending order
+     * @param count number of the keys
+     */
+    SortedKeyIterator(String[] keys, int count) {
+        this.keys = keys;
+        this.count = count;
+    }
+
+    /**
+     * Gets current value of the key
+     *
+     * @param key key
+     * @return value or null if the key is deleted
+     */
+    protected abstract String valueOf(String key);
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && position < count) {
+            String key = keys[position];
+            keys[position++] = null;
+            String value = valueOf(key);
+            if (value != null) {
+                next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> entry = next;
+        next = null;
+        return entry;
+    }
+}
@@ -0,0 +1,182 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Key-value state machine storage used by replica's up-calls
+ *
+ * @author Victor Khovanskiy
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Number of keys deleted per scan by @code{clear}
+     */
+    int CLEAR_BATCH = 1024;
+
+    /**
+     * Gets value assigned to the key
+     *
+     * @param key key
+     * @return value or null if there is no such key
+     */
+    String get(String key);
+
+    /**
+     * Gets value assigned to the key without changing the engine's state, e.g. access statistics,
+     * so the reads served apart from the replicated log leave the replicas' states equal
+     *
+     * @param key key
+     * @return value or null if there is no such key
+     */
+    default String peek(String key) {
+        return get(key);
+    }
+
+    /**
+     * Assigns value to the key replacing previous one
+     *
+     * @param key   key
+     * @param value value
+     * @throws EntryRejectedException if the storage can't keep the entry, the storage isn't changed then
+     */
+    void put(String key, String value);
+
+    /**
+     * Removes the key
+     *
+     * @param key key
+     * @return true if the key was present
+     */
+    boolean delete(String key);
+
+    /**
+     * Iterates entries in ascending key order
+     *
+     * @param fromKey lowest key (inclusive) or null for unbounded
+     * @param toKey   highest key (exclusive) or null for unbounded
+     * @return iterator over entries in the range
+     */
+    Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey);
+
+    /**
+     * Removes all the keys, by default they are deleted in batches of the scan so the keys are never copied at once
+     */
+    default void clear() {
+        List<String> keys = new ArrayList<>();
+        String fromKey = null;
+        while (true) {
+            Iterator<Map.Entry<String, String>> iterator = scan(fromKey, null);
+            while (iterator.hasNext() && keys.size() < CLEAR_BATCH) {
+                keys.add(iterator.next().getKey());
+            }
+            if (keys.isEmpty()) {
+                return;
+            }
+            for (String key : keys) {
+                delete(key);
+            }
+            fromKey = keys.get(keys.size() - 1);
+            keys.clear();
+        }
+    }
+
+    /**
+     * Tells the op-number of the operation whose updates follow. A persistent engine keeps the greatest number
+     * it's told since it was cleared along with its entries, so after reopen it knows the operations they hold
+     *
+     * @param number op-number
+     */
+    default void setOperationNumber(long number) {
+    }
+
+    /**
+     * Whether the entries hold all the updates made while the op-number told was at most @code{from}
+     * and none of the ones made after it exceeded @code{to}
+     *
+     * @param from op-number of the last operation which must be held
+     * @param to   op-number of the last operation which may be held
+     * @return false if the engine doesn't know, e.g. it doesn't keep its entries
+     */
+    default boolean holdsOperations(long from, long to) {
+        return false;
+    }
+
+    /**
+     * Whether the engine's behaviour depends on the state besides its entries, e.g. the admission and recency
+     * state of a cache, such state is kept in checkpoints so a restored engine evicts the same keys as its peers
+     *
+     * @return true if the engine writes its state
+     */
+    default boolean hasState() {
+        return false;
+    }
+
+    /**
+     * Writes the state besides the entries
+     *
+     * @param output output
+     * @throws IOException
+     */
+    default void writeState(DataOutput output) throws IOException {
+    }
+
+    /**
+     * Restores the state written by @code{writeState}, called after the engine gets the same entries
+     *
+     * @param input input
+     * @throws IOException if the state doesn't match the engine
+     */
+    default void readState(DataInput input) throws IOException {
+    }
+
+    /**
+     * Gets the limit of key's length, @code{put} rejects longer keys
+     *
+     * @return maximal number of UTF-8 bytes of the key
+     */
+    default int getMaxKeyLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Makes point-in-time copy of all entries
+     *
+     * @return sorted copy of the storage
+     */
+    SortedMap<String, String> snapshot();
+
+    /**
+     * Gets number of stored keys
+     *
+     * @return number of keys
+     */
+    long size();
+
+    /**
+     * Gets estimated number of bytes occupied by keys, values and indexes
+     *
+     * @return bytes used
+     */
+    long memoryUsage();
+
+    /**
+     * Gets engine's counters for monitoring
+     *
+     * @return statistics by their names
+     */
+    default Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("memory", memoryUsage());
+        return statistics;
+    }
+}
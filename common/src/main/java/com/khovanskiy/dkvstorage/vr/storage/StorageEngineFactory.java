@@ -0,0 +1,124 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import com.khovanskiy.dkvstorage.vr.storage.btree.BTreeStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.lsm.LsmStorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates storage engines by their configuration names
+ *
+ * @author Victor Khovanskiy
+ */
+public class StorageEngineFactory {
+
+    public static final String DEFAULT_TYPE = HashStorageEngine.TYPE;
+
+    /**
+     * Creates storage engine
+     *
+     * @param type      engine's name from the configuration
+     * @param directory directory of the replica's data for persistent engines
+     * @return new storage engine
+     * @throws IOException if persistent engine can't be opened
+     */
+    public static StorageEngine create(String type, File directory) throws IOException {
+        return create(type, directory, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Creates storage engine tuned by options: "memtable.size", "block.size", "cache.size"
+     * and "bloom.bits" of the LSM engine, "page.size" of the B+tree engine, "capacity" of the cache
+     *
+     * @param type      engine's name from the configuration
+     * @param directory directory of the replica's data for persistent engines
+     * @param options   engine's options by their names
+     * @return new storage engine
+     * @throws IOException if persistent engine can't be opened
+     */
+    public static StorageEngine create(String type, File directory, Map<String, String> options) throws IOException {
+        switch (type) {
+            case HashStorageEngine.TYPE:
+                return new HashStorageEngine();
+            case TreeStorageEngine.TYPE:
+                return new TreeStorageEngine();
+            case OffHeapStorageEngine.TYPE:
+                return new OffHeapStorageEngine();
+            case CacheStorageEngine.TYPE:
+                return new CacheStorageEngine(getSize(options, "capacity", CacheStorageEngine.DEFAULT_CAPACITY));
+            case LsmStorageEngine.TYPE:
+                return new LsmStorageEngine(directory,
+                        (int) getSize(options, "memtable.size", LsmStorageEngine.DEFAULT_MEMTABLE_SIZE),
+                        (int) getSize(options, "block.size", LsmStorageEngine.DEFAULT_BLOCK_SIZE),
+                        getSize(options, "cache.size", LsmStorageEngine.DEFAULT_CACHE_SIZE),
+                        (int) getSize(options, "bloom.bits", LsmStorageEngine.DEFAULT_BITS_PER_KEY));
+            case BTreeStorageEngine.TYPE:
+                return new BTreeStorageEngine(directory,
+                        (int) getSize(options, "page.size", BTreeStorageEngine.DEFAULT_PAGE_SIZE));
+        }
+        throw new IllegalArgumentException("Unknown storage engine: \"" + type + "\"");
+    }
+
+    /**
+     * Creates storage engine split into partitions, each partition is the engine of the type tuned by the options
+     * and persistent ones keep their data in the subdirectories "p0", "p1", ... The sizes of the memory budgets,
+     * "capacity" of the cache and "memtable.size" and "cache.size" of the LSM engine, are divided between
+     * the partitions, so the partitioned storage takes as much memory as the plain one
+     *
+     * @param type       engine's name from the configuration
+     * @param directory  directory of the replica's data for persistent engines
+     * @param options    engine's options by their names
+     * @param partitions number of partitions, a single partition is the plain engine
+     * @return new storage engine
+     * @throws IOException if persistent engine can't be opened
+     */
+    public static StorageEngine create(String type, File directory, Map<String, String> options, int partitions) throws IOException {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Illegal number of partitions: " + partitions);
+        }
+        if (partitions == 1) {
+            return create(type, directory, options);
+        }
+        Map<String, String> shared = new HashMap<>(options);
+        switch (type) {
+            case CacheStorageEngine.TYPE:
+                divide(shared, "capacity", CacheStorageEngine.DEFAULT_CAPACITY, partitions);
+                break;
+            case LsmStorageEngine.TYPE:
+                divide(shared, "memtable.size", LsmStorageEngine.DEFAULT_MEMTABLE_SIZE, partitions);
+                divide(shared, "cache.size", LsmStorageEngine.DEFAULT_CACHE_SIZE, partitions);
+                break;
+        }
+        List<StorageEngine> engines = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; ++i) {
+            engines.add(create(type, new File(directory, "p" + i), shared));
+        }
+        return new PartitionedStorageEngine(engines);
+    }
+
+    /**
+     * Replaces the size by the partition's share of it, the disabling 0 stays
+     */
+    private static void divide(Map<String, String> options, String name, long defaultValue, int partitions) {
+        long size = getSize(options, name, defaultValue);
+        options.put(name, Long.toString(size > 0 ? Math.max(1, size / partitions) : size));
+    }
+
+    private static long getSize(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value of storage option \"" + name + "\": " + value);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of keys' deadlines in ticks.
+ * <p>
+ * Every level has 64 slots, a slot of the level L spans 64^L ticks. A timer is put at the lowest
+ * level whose range covers its deadline and moves down when the clock reaches its slot, so
+ * scheduling, cancelling and expiring a key costs O(1) whatever the number of timers is.
+ * Timers are linked into their slots and found by the key, so a cancelled timer frees its
+ * memory at once.
+ *
+ * @author Victor Khovanskiy
+ */
+public class TimingWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+    private final Map<String, Timer> timers = new HashMap<>();
+    private long tick;
+
+    public TimingWheel(long tick) {
+        this.tick = tick;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public int size() {
+        return timers.size();
+    }
+
+    /**
+     * Gets deadline of the key
+     *
+     * @param key key
+     * @return deadline's tick or null if the key has no timer
+     */
+    public Long getDeadline(String key) {
+        Timer timer = timers.get(key);
+        return timer != null ? timer.deadline : null;
+    }
+
+    /**
+     * Gets all the timers
+     *
+     * @return deadlines by keys
+     */
+    public Map<String, Long> getDeadlines() {
+        Map<String, Long> deadlines = new HashMap<>();
+        for (Timer timer : timers.values()) {
+            deadlines.put(timer.key, timer.deadline);
+        }
+        return deadlines;
+    }
+
+    /**
+     * Sets timer of the key replacing the previous one
+     *
+     * @param key      key
+     * @param deadline tick when the key expires, past deadlines expire on the next tick
+     */
+    public void schedule(String key, long deadline) {
+        cancel(key);
+        Timer timer = new Timer(key, Math.max(deadline, tick + 1));
+        timers.put(key, timer);
+        link(timer);
+    }
+
+    /**
+     * Removes timer of the key
+     *
+     * @param key key
+     * @return true if the key had timer
+     */
+    public boolean cancel(String key) {
+        Timer timer = timers.remove(key);
+        if (timer == null) {
+            return false;
+        }
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * Moves the clock forward
+     *
+     * @param target new tick, the clock never goes back
+     * @return expired keys in order of their deadlines
+     */
+    public List<String> advance(long target) {
+        List<String> expired = new ArrayList<>();
+        while (tick < target) {
+            if (timers.isEmpty()) {
+                tick = target;
+                break;
+            }
+            ++tick;
+            // the slots of upper levels which begin at this tick are spread over lower levels
+            for (int level = 1; level < LEVELS && (tick & ((1L << (BITS * level)) - 1)) == 0; ++level) {
+                int slot = (int) ((tick >>> (BITS * level)) & MASK);
+                Timer timer = wheels[level][slot];
+                wheels[level][slot] = null;
+                while (timer != null) {
+                    Timer next = timer.next;
+                    link(timer);
+                    timer = next;
+                }
+            }
+            int slot = (int) (tick & MASK);
+            Timer timer = wheels[0][slot];
+            wheels[0][slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.previous = null;
+                timer.next = null;
+                if (timer.deadline <= tick) {
+                    timers.remove(timer.key);
+                    expired.add(timer.key);
+                } else {
+                    link(timer);
+                }
+                timer = next;
+            }
+        }
+        return expired;
+    }
+
+    private void link(Timer timer) {
+        long delay = timer.deadline - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (BITS * (level + 1)))) {
+            ++level;
+        }
+        int slot = (int) ((timer.deadline >>> (BITS * level)) & MASK);
+        timer.level = level;
+        timer.slot = slot;
+        timer.previous = null;
+        timer.next = wheels[level][slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        wheels[level][slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            wheels[timer.level][timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    private static class Timer {
+        private final String key;
+        private final long deadline;
+        private int level;
+        private int slot;
+        private Timer previous;
+        private Timer next;
+
+        Timer(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
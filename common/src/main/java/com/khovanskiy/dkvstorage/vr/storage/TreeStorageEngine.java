@@ -0,0 +1,37 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Ordered heap storage with cheap range scans
+ *
+ * @author Victor Khovanskiy
+ */
+public class TreeStorageEngine extends MapStorageEngine {
+
+    public static final String TYPE = "tree";
+
+    /**
+     * @code{TreeMap.Entry} with parent, children and color
+     */
+    private static final int ENTRY_OVERHEAD = 48;
+
+    public TreeStorageEngine() {
+        super(new TreeMap<String, String>(), ENTRY_OVERHEAD);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        NavigableMap<String, String> map = (NavigableMap<String, String>) getMap();
+        if (fromKey != null) {
+            map = map.tailMap(fromKey, true);
+        }
+        if (toKey != null) {
+            map = map.headMap(toKey, false);
+        }
+        return map.entrySet().iterator();
+    }
+}
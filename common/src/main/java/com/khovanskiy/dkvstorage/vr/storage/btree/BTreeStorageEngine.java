@@ -0,0 +1,580 @@
+package com.khovanskiy.dkvstorage.vr.storage.btree;
+
+import com.khovanskiy.dkvstorage.vr.storage.EntryRejectedException;
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * B+tree over memory-mapped file of pages.
+ * <p>
+ * Lookups compare keys right in the mapped pages, opening the storage maps the file
+ * without reading it. Updates change heap copies of their pages which are committed with
+ * the meta page through the journal of @code{PageFile} once enough pages are modified and on close,
+ * so a commit holds whole updates. After a crash the store is restored to its last commit:
+ * the interrupted commit is redone from the journal and the later updates are lost. The meta page keeps
+ * the greatest op-number told by @code{setOperationNumber}, so the restored commit knows its operations.
+ * Deleted cells are reclaimed within their page, pages are never merged.
+ * <p>
+ * Keys are kept as UTF-8 bytes and ordered as by @code{String.compareTo}. All methods are called
+ * from one thread, iterators returned by @code{scan} are valid until the next update.
+ *
+ * @author Victor Khovanskiy
+ */
+public class BTreeStorageEngine implements StorageEngine {
+
+    public static final String TYPE = "btree";
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private static final String FILE_NAME = "btree.db";
+    private static final String JOURNAL_NAME = "btree.journal";
+    private static final int PAGES_PER_SEGMENT = 16384;
+    private static final int MAGIC = 0xB7EE0004;
+    /**
+     * Number of modified pages which triggers the commit
+     */
+    private static final int MAX_DIRTY_PAGES = 1024;
+
+    // meta page fields
+    private static final int META_MAGIC = 0;
+    private static final int META_PAGE_SIZE = 4;
+    private static final int META_ROOT = 8;
+    private static final int META_PAGE_COUNT = 12;
+    private static final int META_FREE_HEAD = 16;
+    private static final int META_FREE_COUNT = 20;
+    private static final int META_HEIGHT = 24;
+    private static final int META_SIZE = 28;
+    private static final int META_OPERATION = 36;
+    private static final int META_CHECKSUM = 44;
+    private static final int META_LENGTH = 48;
+
+    private final PageFile file;
+    private final int pageSize;
+    /**
+     * Cell size limit which guarantees at least four cells per page
+     */
+    private final int maxCell;
+    private int root;
+    private int height;
+    private int pageCount;
+    private int freeHead;
+    private int freeCount;
+    private long size;
+    /**
+     * Greatest op-number told since the storage is cleared, -1 if none
+     */
+    private long operationNumber = -1;
+
+    public BTreeStorageEngine(File directory) throws IOException {
+        this(directory, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @param directory directory of the storage's file
+     * @param pageSize  page size of a new file from 512 to 32768 bytes, existing file keeps its own
+     * @throws IOException
+     */
+    public BTreeStorageEngine(File directory, int pageSize) throws IOException {
+        if (pageSize < 512 || pageSize > 32768) {
+            throw new IllegalArgumentException("Illegal page size: " + pageSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File path = new File(directory, FILE_NAME);
+        File journal = new File(directory, JOURNAL_NAME);
+        PageFile.recover(path, journal);
+        ByteBuffer meta = readMeta(path);
+        boolean valid = meta != null && meta.getInt(META_MAGIC) == MAGIC;
+        if (valid && meta.getInt(META_CHECKSUM) != checksum(meta)) {
+            throw new IOException("Corrupted meta page of " + path);
+        }
+        if (meta != null && !valid) {
+            // the file's first commit didn't complete, so it holds no entries
+            path.delete();
+        }
+        this.pageSize = valid ? meta.getInt(META_PAGE_SIZE) : pageSize;
+        this.maxCell = (this.pageSize - Node.HEADER) / 4 - 2;
+        this.file = new PageFile(path, journal, this.pageSize, PAGES_PER_SEGMENT);
+        if (valid) {
+            root = meta.getInt(META_ROOT);
+            pageCount = meta.getInt(META_PAGE_COUNT);
+            freeHead = meta.getInt(META_FREE_HEAD);
+            freeCount = meta.getInt(META_FREE_COUNT);
+            height = meta.getInt(META_HEIGHT);
+            size = meta.getLong(META_SIZE);
+            operationNumber = meta.getLong(META_OPERATION);
+            file.ensureCapacity(pageCount);
+        } else {
+            initialize();
+        }
+    }
+
+    /**
+     * Makes the empty tree of one leaf, the pages after it are reused as the tree grows
+     *
+     * @throws IOException
+     */
+    private void initialize() throws IOException {
+        pageCount = 1;
+        freeHead = 0;
+        freeCount = 0;
+        size = 0;
+        operationNumber = -1;
+        file.ensureCapacity(pageCount);
+        root = allocate();
+        modify(root).init(Node.LEAF, 0);
+        height = 1;
+        commit();
+    }
+
+    private static ByteBuffer readMeta(File path) throws IOException {
+        if (!path.exists() || path.length() < META_LENGTH) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer meta = ByteBuffer.allocate(META_LENGTH);
+            while (meta.hasRemaining() && channel.read(meta) >= 0) {
+            }
+            return meta;
+        }
+    }
+
+    private static int checksum(ByteBuffer meta) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < META_CHECKSUM; ++i) {
+            crc.update(meta.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = bytes(key);
+        Node leaf = node(findLeaf(keyBytes, null, null));
+        int index = leaf.search(keyBytes);
+        return index >= 0 ? value(leaf, index) : null;
+    }
+
+    /**
+     * The key is kept in the leaf's cell, so it leaves room for the reference to the value's overflow pages
+     *
+     * @return maximal number of UTF-8 bytes of the key
+     */
+    @Override
+    public int getMaxKeyLength() {
+        return maxCell - Node.LEAF_CELL_HEADER - 4;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = bytes(key);
+        byte[] valueBytes = bytes(value);
+        if (keyBytes.length > getMaxKeyLength()) {
+            throw new EntryRejectedException("Key is too long: " + keyBytes.length + " bytes");
+        }
+        int[] path = new int[height];
+        int[] positions = new int[height];
+        int page = findLeaf(keyBytes, path, positions);
+        Node leaf = modify(page);
+        int index = leaf.search(keyBytes);
+        boolean inline = Node.LEAF_CELL_HEADER + keyBytes.length + valueBytes.length <= maxCell;
+        if (index >= 0) {
+            if (inline && leaf.valueFlag(index) == Node.INLINE && leaf.valueLength(index) == valueBytes.length) {
+                leaf.write(leaf.valuePosition(index), valueBytes);
+                commitIfNeeded();
+                return;
+            }
+            if (leaf.valueFlag(index) == Node.OVERFLOW) {
+                freeOverflow(leaf.overflowPage(index));
+            }
+            leaf.remove(index);
+        } else {
+            index = -(index + 1);
+            ++size;
+        }
+        byte[] cell;
+        if (inline) {
+            cell = Node.leafCell(keyBytes, Node.INLINE, valueBytes.length, valueBytes);
+        } else {
+            byte[] first = ByteBuffer.allocate(4).putInt(writeOverflow(valueBytes)).array();
+            cell = Node.leafCell(keyBytes, Node.OVERFLOW, valueBytes.length, first);
+        }
+        insert(path, positions, page, index, cell);
+        commitIfNeeded();
+    }
+
+    @Override
+    public boolean delete(String key) {
+        byte[] keyBytes = bytes(key);
+        int page = findLeaf(keyBytes, null, null);
+        int index = node(page).search(keyBytes);
+        if (index < 0) {
+            return false;
+        }
+        Node leaf = modify(page);
+        if (leaf.valueFlag(index) == Node.OVERFLOW) {
+            freeOverflow(leaf.overflowPage(index));
+        }
+        leaf.remove(index);
+        --size;
+        commitIfNeeded();
+        return true;
+    }
+
+    /**
+     * Commits the empty tree instead of deleting the keys one by one
+     */
+    @Override
+    public void clear() {
+        try {
+            initialize();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void setOperationNumber(long number) {
+        operationNumber = Math.max(operationNumber, number);
+    }
+
+    /**
+     * The commit holds the updates made before it and keeps the number told by then
+     */
+    @Override
+    public boolean holdsOperations(long from, long to) {
+        return from < operationNumber && operationNumber <= to;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        int page;
+        int index;
+        if (fromKey != null) {
+            byte[] from = bytes(fromKey);
+            page = findLeaf(from, null, null);
+            index = node(page).search(from);
+            index = index >= 0 ? index : -(index + 1);
+        } else {
+            page = root;
+            for (Node node = node(page); !node.isLeaf(); node = node(page)) {
+                page = node.getNext();
+            }
+            index = 0;
+        }
+        return new LeafIterator(page, index, toKey != null ? bytes(toKey) : null);
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        TreeMap<String, String> copy = new TreeMap<>();
+        Iterator<Map.Entry<String, String>> iterator = scan(null, null);
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets bytes of pages in use, they live in the OS page cache rather than in the heap
+     *
+     * @return bytes used
+     */
+    @Override
+    public long memoryUsage() {
+        return (long) pageCount * pageSize;
+    }
+
+    @Override
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = StorageEngine.super.statistics();
+        statistics.put("mapped", file.getMappedBytes());
+        statistics.put("pages", (long) pageCount);
+        statistics.put("pages.free", (long) freeCount);
+        statistics.put("height", (long) height);
+        return statistics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        file.close();
+    }
+
+    /**
+     * Descends to the leaf which may contain the key
+     *
+     * @param key       UTF-8 bytes of the key
+     * @param path      receives pages of inner nodes by levels or null
+     * @param positions receives positions of children in inner nodes or null
+     * @return leaf's page
+     */
+    private int findLeaf(byte[] key, int[] path, int[] positions) {
+        int page = root;
+        for (int level = 0; ; ++level) {
+            Node node = node(page);
+            if (node.isLeaf()) {
+                return page;
+            }
+            int position = node.childPosition(key);
+            if (path != null) {
+                path[level] = page;
+                positions[level] = position;
+            }
+            page = node.child(position);
+        }
+    }
+
+    /**
+     * Inserts the cell into the leaf splitting full nodes up to the root
+     */
+    private void insert(int[] path, int[] positions, int page, int index, byte[] cell) {
+        for (int level = height - 1; ; --level) {
+            Node node = modify(page);
+            if (node.insert(index, cell)) {
+                return;
+            }
+            List<byte[]> cells = node.cells();
+            cells.add(index, cell);
+            int middle = splitPoint(cells);
+            int right = allocate();
+            Node rightNode = modify(right);
+            byte[] separator;
+            if (node.isLeaf()) {
+                rightNode.init(Node.LEAF, node.getNext());
+                rightNode.rebuild(cells.subList(middle, cells.size()));
+                node.setNext(right);
+                node.rebuild(cells.subList(0, middle));
+                separator = Node.cellKey(cells.get(middle), true);
+            } else {
+                // the middle key moves up and its child becomes the leftmost child of the right node
+                rightNode.init(Node.INNER, Node.cellChild(cells.get(middle)));
+                rightNode.rebuild(cells.subList(middle + 1, cells.size()));
+                node.rebuild(cells.subList(0, middle));
+                separator = Node.cellKey(cells.get(middle), false);
+            }
+            cell = Node.innerCell(separator, right);
+            if (level == 0) {
+                int newRoot = allocate();
+                Node rootNode = modify(newRoot);
+                rootNode.init(Node.INNER, page);
+                rootNode.insert(0, cell);
+                root = newRoot;
+                ++height;
+                return;
+            }
+            page = path[level - 1];
+            index = positions[level - 1];
+        }
+    }
+
+    /**
+     * Finds index of the first cell of the right half so both halves have about the same size
+     */
+    private int splitPoint(List<byte[]> cells) {
+        int total = 0;
+        for (byte[] cell : cells) {
+            total += cell.length + 2;
+        }
+        int left = 0;
+        int middle = 0;
+        while (middle < cells.size() - 1 && left + cells.get(middle).length + 2 <= total / 2) {
+            left += cells.get(middle).length + 2;
+            ++middle;
+        }
+        return Math.max(middle, 1);
+    }
+
+    private String value(Node leaf, int index) {
+        int length = leaf.valueLength(index);
+        if (leaf.valueFlag(index) == Node.INLINE) {
+            return leaf.string(leaf.valuePosition(index), length);
+        }
+        byte[] bytes = new byte[length];
+        int page = leaf.overflowPage(index);
+        for (int offset = 0; offset < length; page = file.buffer(page).getInt(file.offset(page))) {
+            ByteBuffer buffer = file.buffer(page);
+            int base = file.offset(page) + 4;
+            int chunk = Math.min(length - offset, pageSize - 4);
+            for (int i = 0; i < chunk; ++i) {
+                bytes[offset++] = buffer.get(base + i);
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the value into the chain of overflow pages [next page, bytes]
+     *
+     * @return first page of the chain
+     */
+    private int writeOverflow(byte[] value) {
+        int first = 0;
+        int previous = 0;
+        for (int offset = 0; offset < value.length; ) {
+            int page = allocate();
+            file.modify(page);
+            ByteBuffer buffer = file.buffer(page);
+            int base = file.offset(page);
+            buffer.putInt(base, 0);
+            int chunk = Math.min(value.length - offset, pageSize - 4);
+            for (int i = 0; i < chunk; ++i) {
+                buffer.put(base + 4 + i, value[offset++]);
+            }
+            if (previous == 0) {
+                first = page;
+            } else {
+                file.buffer(previous).putInt(file.offset(previous), page);
+            }
+            previous = page;
+        }
+        return first;
+    }
+
+    private void freeOverflow(int page) {
+        while (page != 0) {
+            int next = file.buffer(page).getInt(file.offset(page));
+            free(page);
+            page = next;
+        }
+    }
+
+    private int allocate() {
+        if (freeHead != 0) {
+            int page = freeHead;
+            freeHead = file.buffer(page).getInt(file.offset(page));
+            --freeCount;
+            return page;
+        }
+        try {
+            file.ensureCapacity(pageCount + 1L);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return pageCount++;
+    }
+
+    private void free(int page) {
+        file.modify(page);
+        file.buffer(page).putInt(file.offset(page), freeHead);
+        freeHead = page;
+        ++freeCount;
+    }
+
+    private Node node(int page) {
+        return new Node(file.buffer(page), file.offset(page), pageSize);
+    }
+
+    /**
+     * Gets the node to update, its page is copied until the commit
+     */
+    private Node modify(int page) {
+        file.modify(page);
+        return node(page);
+    }
+
+    /**
+     * Commits once enough pages are modified, called between updates so a commit holds whole updates
+     */
+    private void commitIfNeeded() {
+        if (file.getDirtyCount() >= MAX_DIRTY_PAGES) {
+            try {
+                commit();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void commit() throws IOException {
+        writeMeta();
+        file.commit();
+    }
+
+    private void writeMeta() {
+        file.modify(0);
+        ByteBuffer meta = file.buffer(0);
+        meta.putInt(META_MAGIC, MAGIC);
+        meta.putInt(META_PAGE_SIZE, pageSize);
+        meta.putInt(META_ROOT, root);
+        meta.putInt(META_PAGE_COUNT, pageCount);
+        meta.putInt(META_FREE_HEAD, freeHead);
+        meta.putInt(META_FREE_COUNT, freeCount);
+        meta.putInt(META_HEIGHT, height);
+        meta.putLong(META_SIZE, size);
+        meta.putLong(META_OPERATION, operationNumber);
+        meta.putInt(META_CHECKSUM, checksum(meta));
+    }
+
+    private class LeafIterator implements Iterator<Map.Entry<String, String>> {
+        private final byte[] toKey;
+        private int page;
+        private int index;
+        private Map.Entry<String, String> next;
+
+        LeafIterator(int page, int index, byte[] toKey) {
+            this.page = page;
+            this.index = index;
+            this.toKey = toKey;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (page != 0) {
+                Node leaf = node(page);
+                if (index < leaf.getCount()) {
+                    if (toKey == null || leaf.compare(index, toKey) < 0) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(leaf.key(index), value(leaf, index));
+                        ++index;
+                    } else {
+                        page = 0;
+                    }
+                    return;
+                }
+                page = leaf.getNext();
+                index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.khovanskiy.dkvstorage.vr.storage.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * View of a slotted tree page inside the mapped segment.
+ * <p>
+ * Page layout: header [type, count, cell start, fragmented bytes, next], then slots with offsets
+ * of cells sorted by key, cells are allocated from the end of the page. Leaf's cell is
+ * [key length, value flag, value length, key, value or first overflow page] and leaf's next
+ * is its right sibling. Inner's cell is [key length, child, key] where the child holds keys
+ * not less than the key, inner's next is the leftmost child.
+ *
+ * @author Victor Khovanskiy
+ */
+class Node {
+
+    static final byte LEAF = 1;
+    static final byte INNER = 2;
+    static final byte INLINE = 0;
+    static final byte OVERFLOW = 1;
+    static final int HEADER = 12;
+    static final int LEAF_CELL_HEADER = 7;
+    static final int INNER_CELL_HEADER = 6;
+
+    private static final int TYPE = 0;
+    private static final int COUNT = 2;
+    private static final int CELL_START = 4;
+    private static final int FRAGMENTED = 6;
+    private static final int NEXT = 8;
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int pageSize;
+
+    Node(ByteBuffer buffer, int base, int pageSize) {
+        this.buffer = buffer;
+        this.base = base;
+        this.pageSize = pageSize;
+    }
+
+    static byte[] leafCell(byte[] key, byte flag, int valueLength, byte[] payload) {
+        ByteBuffer cell = ByteBuffer.allocate(LEAF_CELL_HEADER + key.length + payload.length);
+        cell.putChar((char) key.length).put(flag).putInt(valueLength).put(key).put(payload);
+        return cell.array();
+    }
+
+    static byte[] innerCell(byte[] key, int child) {
+        ByteBuffer cell = ByteBuffer.allocate(INNER_CELL_HEADER + key.length);
+        cell.putChar((char) key.length).putInt(child).put(key);
+        return cell.array();
+    }
+
+    static byte[] cellKey(byte[] cell, boolean leaf) {
+        int length = ((cell[0] & 0xff) << 8) | (cell[1] & 0xff);
+        byte[] key = new byte[length];
+        System.arraycopy(cell, leaf ? LEAF_CELL_HEADER : INNER_CELL_HEADER, key, 0, length);
+        return key;
+    }
+
+    static int cellChild(byte[] cell) {
+        return ByteBuffer.wrap(cell).getInt(2);
+    }
+
+    void init(byte type, int next) {
+        buffer.put(base + TYPE, type);
+        setCount(0);
+        buffer.putChar(base + CELL_START, (char) pageSize);
+        buffer.putChar(base + FRAGMENTED, (char) 0);
+        setNext(next);
+    }
+
+    boolean isLeaf() {
+        return buffer.get(base + TYPE) == LEAF;
+    }
+
+    int getCount() {
+        return buffer.getChar(base + COUNT);
+    }
+
+    int getNext() {
+        return buffer.getInt(base + NEXT);
+    }
+
+    void setNext(int next) {
+        buffer.putInt(base + NEXT, next);
+    }
+
+    /**
+     * Searches the key in the sorted cells
+     *
+     * @param key UTF-8 bytes of the key
+     * @return index of the cell or (-(insertion point) - 1)
+     */
+    int search(byte[] key) {
+        int low = 0;
+        int high = getCount() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = compare(middle, key);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Finds position of the inner's child which may contain the key
+     *
+     * @param key UTF-8 bytes of the key
+     * @return number of cells with keys not greater than the key
+     */
+    int childPosition(byte[] key) {
+        int index = search(key);
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    int child(int position) {
+        return position == 0 ? getNext() : buffer.getInt(cell(position - 1) + 2);
+    }
+
+    /**
+     * Compares key of the cell with the key without copying it out of the page, in the order of @code{String.compareTo}
+     */
+    int compare(int index, byte[] key) {
+        int cell = cell(index);
+        int length = buffer.getChar(cell);
+        int position = cell + (isLeaf() ? LEAF_CELL_HEADER : INNER_CELL_HEADER);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; ++i) {
+            int compare = weight(buffer.get(position + i)) - weight(key[i]);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Gets weight of UTF-8 byte in the order of UTF-16 units. The first differing bytes of two keys are both either
+     * leading or continuation ones, and the orders differ only for characters above U+FFFF, which are written
+     * as surrogates preceding U+E000..U+FFFF, so their leading bytes 0xF0..0xF4 are put before 0xEE and 0xEF
+     */
+    private static int weight(byte b) {
+        int value = b & 0xff;
+        return value == 0xee || value == 0xef ? value + 0x10 : value;
+    }
+
+    String key(int index) {
+        int cell = cell(index);
+        return string(cell + LEAF_CELL_HEADER, buffer.getChar(cell));
+    }
+
+    byte valueFlag(int index) {
+        return buffer.get(cell(index) + 2);
+    }
+
+    int valueLength(int index) {
+        return buffer.getInt(cell(index) + 3);
+    }
+
+    /**
+     * Gets absolute position of inline value or of the first overflow page's number
+     */
+    int valuePosition(int index) {
+        int cell = cell(index);
+        return cell + LEAF_CELL_HEADER + buffer.getChar(cell);
+    }
+
+    int overflowPage(int index) {
+        return buffer.getInt(valuePosition(index));
+    }
+
+    String string(int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void write(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; ++i) {
+            buffer.put(position + i, bytes[i]);
+        }
+    }
+
+    /**
+     * Inserts the cell at the index compacting the page if needed
+     *
+     * @return false if the page has no room for the cell
+     */
+    boolean insert(int index, byte[] cell) {
+        int count = getCount();
+        int free = buffer.getChar(base + CELL_START) - (HEADER + 2 * (count + 1));
+        if (free < cell.length) {
+            if (free + buffer.getChar(base + FRAGMENTED) < cell.length) {
+                return false;
+            }
+            rebuild(cells());
+        }
+        int start = buffer.getChar(base + CELL_START) - cell.length;
+        write(base + start, cell);
+        buffer.putChar(base + CELL_START, (char) start);
+        for (int i = count; i > index; --i) {
+            buffer.putChar(slot(i), buffer.getChar(slot(i - 1)));
+        }
+        buffer.putChar(slot(index), (char) start);
+        setCount(count + 1);
+        return true;
+    }
+
+    void remove(int index) {
+        int count = getCount();
+        buffer.putChar(base + FRAGMENTED, (char) (buffer.getChar(base + FRAGMENTED) + cellSize(index)));
+        for (int i = index; i < count - 1; ++i) {
+            buffer.putChar(slot(i), buffer.getChar(slot(i + 1)));
+        }
+        setCount(count - 1);
+    }
+
+    /**
+     * Copies cells out of the page
+     *
+     * @return cells in key order
+     */
+    List<byte[]> cells() {
+        int count = getCount();
+        List<byte[]> cells = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; ++i) {
+            int cell = cell(i);
+            byte[] bytes = new byte[cellSize(i)];
+            for (int j = 0; j < bytes.length; ++j) {
+                bytes[j] = buffer.get(cell + j);
+            }
+            cells.add(bytes);
+        }
+        return cells;
+    }
+
+    /**
+     * Rewrites the page with the cells keeping its type and next
+     */
+    void rebuild(List<byte[]> cells) {
+        init(buffer.get(base + TYPE), getNext());
+        for (int i = 0; i < cells.size(); ++i) {
+            insert(i, cells.get(i));
+        }
+    }
+
+    private int cellSize(int index) {
+        int cell = cell(index);
+        int keyLength = buffer.getChar(cell);
+        if (!isLeaf()) {
+            return INNER_CELL_HEADER + keyLength;
+        }
+        int payload = buffer.get(cell + 2) == INLINE ? buffer.getInt(cell + 3) : 4;
+        return LEAF_CELL_HEADER + keyLength + payload;
+    }
+
+    private int cell(int index) {
+        return base + buffer.getChar(slot(index));
+    }
+
+    private int slot(int index) {
+        return base + HEADER + 2 * index;
+    }
+
+    private void setCount(int count) {
+        buffer.putChar(base + COUNT, (char) count);
+    }
+}
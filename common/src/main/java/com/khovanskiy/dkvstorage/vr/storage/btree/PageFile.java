@@ -0,0 +1,247 @@
+package com.khovanskiy.dkvstorage.vr.storage.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * File of fixed-size pages mapped into memory by segments.
+ * Segments are mapped on demand and a page never crosses segment's boundary.
+ * <p>
+ * Modified pages are copied to the heap and reach the mapped file only on @code{commit}.
+ * The commit writes them to the journal [magic, page size, count, CRC32 of records] and records
+ * [page, bytes], forces it and only then copies the pages into the file, so a commit interrupted
+ * by a crash is redone by @code{recover} and the journal torn before the force is ignored
+ * as the file still holds the previous commit.
+ *
+ * @author Victor Khovanskiy
+ */
+class PageFile implements Closeable {
+
+    private static final int JOURNAL_MAGIC = 0x9A6E0001;
+    private static final int JOURNAL_HEADER = 16;
+
+    private final FileChannel channel;
+    private final File journal;
+    private final int pageSize;
+    private final int pagesPerSegment;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /**
+     * Copies of the pages modified since the last commit
+     */
+    private final Map<Integer, ByteBuffer> dirty = new HashMap<>();
+
+    PageFile(File file, File journal, int pageSize, int pagesPerSegment) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journal = journal;
+        this.pageSize = pageSize;
+        this.pagesPerSegment = pagesPerSegment;
+    }
+
+    /**
+     * Writes the pages of the complete journal into the file and empties the journal
+     *
+     * @param file    file of pages
+     * @param journal journal of the last commit
+     * @return true if the journal was redone
+     * @throws IOException
+     */
+    static boolean recover(File file, File journal) throws IOException {
+        if (!journal.exists()) {
+            return false;
+        }
+        boolean redone = false;
+        try (FileChannel input = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+            read(input, header, 0);
+            boolean complete = header.limit() == JOURNAL_HEADER && header.getInt(0) == JOURNAL_MAGIC;
+            int pageSize = complete ? header.getInt(4) : 0;
+            int count = complete ? header.getInt(8) : 0;
+            if (pageSize > 0 && count > 0
+                    && input.size() == JOURNAL_HEADER + (long) count * (4 + pageSize)) {
+                ByteBuffer records = ByteBuffer.allocate(count * (4 + pageSize));
+                read(input, records, JOURNAL_HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(records.array());
+                if ((int) crc.getValue() == header.getInt(12)) {
+                    try (FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE)) {
+                        for (int i = 0; i < count; ++i) {
+                            int base = i * (4 + pageSize);
+                            int page = records.getInt(base);
+                            records.limit(base + 4 + pageSize).position(base + 4);
+                            write(output, records, (long) page * pageSize);
+                            records.clear();
+                        }
+                        output.force(true);
+                    }
+                    redone = true;
+                }
+            }
+        }
+        // the pages are in the file or the commit didn't start writing them
+        truncate(journal);
+        return redone;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void truncate(File journal) throws IOException {
+        FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING).close();
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Maps segments to cover the given number of pages, the file grows if needed
+     *
+     * @param pages number of pages
+     * @throws IOException
+     */
+    void ensureCapacity(long pages) throws IOException {
+        long segmentSize = (long) pagesPerSegment * pageSize;
+        while ((long) segments.size() * pagesPerSegment < pages) {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentSize, segmentSize));
+        }
+    }
+
+    /**
+     * Gets buffer of the segment containing the page or the page's copy if it was modified
+     *
+     * @param page page's number
+     * @return buffer, use absolute access at @code{offset(page)}
+     */
+    ByteBuffer buffer(int page) {
+        if (!dirty.isEmpty()) {
+            ByteBuffer copy = dirty.get(page);
+            if (copy != null) {
+                return copy;
+            }
+        }
+        return segments.get(page / pagesPerSegment);
+    }
+
+    int offset(int page) {
+        return !dirty.isEmpty() && dirty.containsKey(page) ? 0 : (page % pagesPerSegment) * pageSize;
+    }
+
+    /**
+     * Copies the page before its update, buffers got earlier don't see the updates
+     *
+     * @param page page's number
+     */
+    void modify(int page) {
+        if (dirty.containsKey(page)) {
+            return;
+        }
+        int offset = (page % pagesPerSegment) * pageSize;
+        ByteBuffer source = segments.get(page / pagesPerSegment).duplicate();
+        source.limit(offset + pageSize).position(offset);
+        ByteBuffer copy = ByteBuffer.allocate(pageSize);
+        copy.put(source).clear();
+        dirty.put(page, copy);
+    }
+
+    int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Writes the modified pages into the file through the journal
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        writeJournal();
+        for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+            ByteBuffer target = segments.get(entry.getKey() / pagesPerSegment).duplicate();
+            target.position((entry.getKey() % pagesPerSegment) * pageSize);
+            target.put(entry.getValue());
+        }
+        dirty.clear();
+        force();
+        truncate(journal);
+    }
+
+    /**
+     * Writes the modified pages to the journal and forces it, the file isn't changed yet
+     *
+     * @throws IOException
+     */
+    void writeJournal() throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel output = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = JOURNAL_HEADER;
+            ByteBuffer number = ByteBuffer.allocate(4);
+            for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+                number.clear();
+                number.putInt(0, entry.getKey());
+                crc.update(number.array());
+                crc.update(entry.getValue().array());
+                write(output, number, position);
+                write(output, entry.getValue(), position + 4);
+                entry.getValue().clear();
+                position += 4 + pageSize;
+            }
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+            header.putInt(JOURNAL_MAGIC).putInt(pageSize).putInt(dirty.size()).putInt((int) crc.getValue()).flip();
+            write(output, header, 0);
+            output.force(true);
+        }
+    }
+
+    long getMappedBytes() {
+        return (long) segments.size() * pagesPerSegment * pageSize;
+    }
+
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Closes the file dropping the pages modified since the last commit
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        // mapped segments are unmapped by GC when they become unreachable
+        segments.clear();
+        dirty.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,81 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of table's data blocks limited by total size of the blocks
+ *
+ * @author Victor Khovanskiy
+ */
+class BlockCache {
+
+    private final long capacity;
+    private final LinkedHashMap<Long, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    BlockCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    private static long key(long tableNumber, int block) {
+        return (tableNumber << 32) | (block & 0xffffffffL);
+    }
+
+    /**
+     * Gets cached block
+     *
+     * @return own view of the block which mustn't be modified or null if it isn't cached
+     */
+    synchronized ByteBuffer get(long tableNumber, int block) {
+        ByteBuffer buffer = blocks.get(key(tableNumber, block));
+        if (buffer == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return buffer.duplicate();
+    }
+
+    synchronized void put(long tableNumber, int block, ByteBuffer buffer) {
+        if (buffer.capacity() > capacity) {
+            return;
+        }
+        ByteBuffer previous = blocks.put(key(tableNumber, block), buffer);
+        if (previous != null) {
+            size -= previous.capacity();
+        }
+        size += buffer.capacity();
+        Iterator<Map.Entry<Long, ByteBuffer>> iterator = blocks.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().getValue().capacity();
+            iterator.remove();
+            ++evictions;
+        }
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,100 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter of table's keys, probes are derived from one 64-bit hash by double hashing
+ *
+ * @author Victor Khovanskiy
+ */
+class BloomFilter {
+
+    private final long[] bits;
+    private final int hashes;
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Builds filter of given key hashes
+     *
+     * @param keyHashes   hashes made by @code{hash}
+     * @param count       number of hashes
+     * @param bitsPerKey  bits per key, 10 gives about 1% of false positives
+     * @return filter
+     */
+    static BloomFilter build(long[] keyHashes, int count, int bitsPerKey) {
+        long size = Math.max(64, (long) count * bitsPerKey);
+        long[] bits = new long[(int) ((size + 63) / 64)];
+        int hashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+        BloomFilter filter = new BloomFilter(bits, hashes);
+        for (int i = 0; i < count; ++i) {
+            filter.add(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    static BloomFilter read(ByteBuffer buffer) {
+        int hashes = buffer.getInt();
+        long[] bits = new long[buffer.getInt()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = buffer.getLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    static long hash(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        // final mix of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(hashes);
+        output.writeInt(bits.length);
+        for (long word : bits) {
+            output.writeLong(word);
+        }
+    }
+
+    long getBytes() {
+        return 8L * bits.length;
+    }
+
+    boolean mightContain(long hash) {
+        long size = 64L * bits.length;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; ++i) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        long size = 64L * bits.length;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; ++i) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log-structured merge tree storage.
+ * <p>
+ * Updates are appended to the memtable log and put into the sorted memtable. Full memtable
+ * is flushed by the background thread to an immutable table, and tables of the same size tier
+ * are merged by size-tiered compaction. The list of live tables is kept in the MANIFEST file.
+ * <p>
+ * The op-number told by @code{setOperationNumber} is logged before the updates it's changed for, and
+ * the manifest keeps the one of the last flushed memtable, so the reopened storage knows the operations
+ * its entries hold.
+ * <p>
+ * All methods are called from one thread, iterators returned by @code{scan} are valid until
+ * the next call of the storage.
+ *
+ * @author Victor Khovanskiy
+ */
+public class LsmStorageEngine implements StorageEngine {
+
+    public static final String TYPE = "lsm";
+    public static final int DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    /**
+     * Number of tables of one size tier which triggers their compaction
+     */
+    private static final int COMPACTION_THRESHOLD = 4;
+    /**
+     * Tables smaller than this size share the lowest tier
+     */
+    private static final long MIN_TIER_SIZE = 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 48 + 2 * 40;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final File directory;
+    private final int memTableSize;
+    private final int blockSize;
+    private final int bitsPerKey;
+    private final BlockCache cache;
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+    private final Queue<SSTable> obsolete = new ConcurrentLinkedQueue<>();
+    private TreeMap<String, String> memTable = new TreeMap<>();
+    private long memTableBytes;
+    private MemTableLog log;
+    private volatile NavigableMap<String, String> immutable;
+    private volatile long immutableBytes;
+    private Future<?> flushing;
+    /**
+     * Live tables from the oldest to the newest, replaced only by the background thread
+     */
+    private volatile List<SSTable> tables = Collections.emptyList();
+    private long nextNumber = 1;
+    /**
+     * Greatest op-number told since the storage is cleared, -1 if none
+     */
+    private long operationNumber = -1;
+    /**
+     * Op-number the updates of the current memtable log are made by
+     */
+    private long loggedNumber = -1;
+    /**
+     * Op-number of the updates of the last flushed memtable, it is written to the manifest
+     */
+    private volatile long flushedNumber = -1;
+    private long filterNegatives;
+    private long filterPositives;
+    private long falsePositives;
+
+    public LsmStorageEngine(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+
+    public LsmStorageEngine(File directory, int memTableSize, int blockSize) throws IOException {
+        this(directory, memTableSize, blockSize, DEFAULT_CACHE_SIZE, DEFAULT_BITS_PER_KEY);
+    }
+
+    /**
+     * @param directory    directory of the storage's files
+     * @param memTableSize memtable's size which triggers its flush
+     * @param blockSize    size of table's data blocks
+     * @param cacheSize    size of the block cache, 0 disables it
+     * @param bitsPerKey   bits per key of the tables' Bloom filters
+     * @throws IOException
+     */
+    public LsmStorageEngine(File directory, int memTableSize, int blockSize, long cacheSize, int bitsPerKey) throws IOException {
+        this.directory = directory;
+        this.memTableSize = memTableSize;
+        this.blockSize = blockSize;
+        this.bitsPerKey = bitsPerKey;
+        this.cache = cacheSize > 0 ? new BlockCache(cacheSize) : null;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        open();
+    }
+
+    private static long parseNumber(String name) {
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    private static long estimate(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + (value != null ? 2L * value.length() : 0);
+    }
+
+    private static int tier(SSTable table) {
+        int tier = 0;
+        for (long size = table.getFileSize(); size >= MIN_TIER_SIZE; size /= COMPACTION_THRESHOLD) {
+            ++tier;
+        }
+        return tier;
+    }
+
+    private void open() throws IOException {
+        List<SSTable> opened = new ArrayList<>();
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] slices = line.split(" ");
+                    if (slices[0].equals("next")) {
+                        nextNumber = Long.parseLong(slices[1]);
+                    } else if (slices[0].equals("operation")) {
+                        flushedNumber = Long.parseLong(slices[1]);
+                    } else if (slices[0].equals("table")) {
+                        opened.add(new SSTable(new File(directory, slices[1]), parseNumber(slices[1]), cache));
+                    }
+                }
+            }
+        }
+        tables = Collections.unmodifiableList(opened);
+
+        // files which aren't in the manifest are leftovers of interrupted flush or compaction
+        List<File> logs = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(LOG_SUFFIX)) {
+                    logs.add(file);
+                } else if (name.endsWith(".tmp") || (name.endsWith(TABLE_SUFFIX) && !contains(opened, file))) {
+                    file.delete();
+                }
+            }
+        }
+        Collections.sort(logs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(parseNumber(a.getName()), parseNumber(b.getName()));
+            }
+        });
+        operationNumber = flushedNumber;
+        for (File file : logs) {
+            operationNumber = Math.max(operationNumber, MemTableLog.replay(file, memTable));
+        }
+        if (!memTable.isEmpty()) {
+            flush(memTable, operationNumber);
+            memTable = new TreeMap<>();
+        }
+        for (File file : logs) {
+            file.delete();
+        }
+        log = new MemTableLog(new File(directory, allocateNumber() + LOG_SUFFIX));
+        loggedNumber = operationNumber;
+        flushedNumber = operationNumber;
+        writeManifest(tables);
+    }
+
+    private boolean contains(List<SSTable> list, File file) {
+        for (SSTable table : list) {
+            if (table.getFile().getName().equals(file.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String get(String key) {
+        closeObsolete();
+        if (memTable.containsKey(key)) {
+            return memTable.get(key);
+        }
+        NavigableMap<String, String> flushed = immutable;
+        if (flushed != null && flushed.containsKey(key)) {
+            return flushed.get(key);
+        }
+        List<SSTable> current = tables;
+        long hash = BloomFilter.hash(key);
+        try {
+            for (int i = current.size() - 1; i >= 0; --i) {
+                SSTable table = current.get(i);
+                if (!table.mightContain(hash)) {
+                    ++filterNegatives;
+                    continue;
+                }
+                ++filterPositives;
+                Map.Entry<String, String> entry = table.find(key);
+                if (entry != null) {
+                    return entry.getValue();
+                }
+                ++falsePositives;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        update(key, value);
+    }
+
+    /**
+     * Looks the key up to report its presence and appends tombstone
+     *
+     * @param key key
+     * @return true if the key was present
+     */
+    @Override
+    public boolean delete(String key) {
+        boolean present = get(key) != null;
+        if (present) {
+            update(key, null);
+        }
+        return present;
+    }
+
+    @Override
+    public void setOperationNumber(long number) {
+        operationNumber = Math.max(operationNumber, number);
+    }
+
+    /**
+     * The updates made by the numbers up to @code{from} are logged before the greater number
+     */
+    @Override
+    public boolean holdsOperations(long from, long to) {
+        return from < operationNumber && operationNumber <= to;
+    }
+
+    /**
+     * Removes the log and the tables instead of deleting the keys one by one, the manifest without the tables
+     * is written before they are removed
+     */
+    @Override
+    public void clear() {
+        waitForFlush();
+        closeObsolete();
+        List<SSTable> removed = tables;
+        try {
+            log.close();
+            log.getFile().delete();
+            operationNumber = -1;
+            loggedNumber = -1;
+            flushedNumber = -1;
+            tables = Collections.emptyList();
+            writeManifest(tables);
+            for (SSTable table : removed) {
+                table.close();
+                table.getFile().delete();
+            }
+            log = new MemTableLog(new File(directory, allocateNumber() + LOG_SUFFIX));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        memTable = new TreeMap<>();
+        memTableBytes = 0;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        closeObsolete();
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add((fromKey != null ? memTable.tailMap(fromKey, true) : memTable).entrySet().iterator());
+        NavigableMap<String, String> flushed = immutable;
+        if (flushed != null) {
+            sources.add((fromKey != null ? flushed.tailMap(fromKey, true) : flushed).entrySet().iterator());
+        }
+        List<SSTable> current = tables;
+        for (int i = current.size() - 1; i >= 0; --i) {
+            sources.add(current.get(i).iterator(fromKey));
+        }
+        return new MergingIterator(sources, toKey, true);
+    }
+
+    @Override
+    public SortedMap<String, String> snapshot() {
+        TreeMap<String, String> copy = new TreeMap<>();
+        Iterator<Map.Entry<String, String>> iterator = scan(null, null);
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Counts live keys by merging all the tables, so it reads the whole storage
+     *
+     * @return number of keys
+     */
+    @Override
+    public long size() {
+        long size = 0;
+        Iterator<Map.Entry<String, String>> iterator = scan(null, null);
+        while (iterator.hasNext()) {
+            iterator.next();
+            ++size;
+        }
+        return size;
+    }
+
+    /**
+     * Gets heap occupied by memtables, block cache and Bloom filters and block indexes of tables
+     *
+     * @return bytes used
+     */
+    @Override
+    public long memoryUsage() {
+        long bytes = memTableBytes + immutableBytes + (cache != null ? cache.getSize() : 0);
+        for (SSTable table : tables) {
+            bytes += table.getIndexBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets size of live tables on disk
+     *
+     * @return bytes on disk
+     */
+    public long diskUsage() {
+        long bytes = 0;
+        for (SSTable table : tables) {
+            bytes += table.getFileSize();
+        }
+        return bytes;
+    }
+
+    public int getTableCount() {
+        return tables.size();
+    }
+
+    /**
+     * Reports tables, Bloom filter and block cache counters besides memory usage
+     *
+     * @return statistics by their names
+     */
+    @Override
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("memory", memoryUsage());
+        statistics.put("disk", diskUsage());
+        statistics.put("tables", (long) getTableCount());
+        statistics.put("bloom.negatives", filterNegatives);
+        statistics.put("bloom.positives", filterPositives);
+        statistics.put("bloom.false_positives", falsePositives);
+        if (cache != null) {
+            statistics.put("cache.capacity", cache.getCapacity());
+            statistics.put("cache.size", cache.getSize());
+            statistics.put("cache.hits", cache.getHits());
+            statistics.put("cache.misses", cache.getMisses());
+            statistics.put("cache.evictions", cache.getEvictions());
+        }
+        return statistics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        waitForFlush();
+        backgroundExecutor.shutdown();
+        try {
+            backgroundExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+        if (loggedNumber != operationNumber) {
+            log.appendNumber(operationNumber);
+        }
+        log.sync();
+        log.close();
+        closeObsolete();
+        for (SSTable table : tables) {
+            table.close();
+        }
+    }
+
+    private void update(String key, String value) {
+        closeObsolete();
+        try {
+            if (loggedNumber != operationNumber) {
+                log.appendNumber(operationNumber);
+                loggedNumber = operationNumber;
+            }
+            log.append(key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (memTable.containsKey(key)) {
+            memTableBytes -= estimate(key, memTable.get(key));
+        }
+        memTable.put(key, value);
+        memTableBytes += estimate(key, value);
+        if (memTableBytes >= memTableSize) {
+            rotate();
+        }
+    }
+
+    /**
+     * Hands the full memtable over to the background thread and starts new one
+     */
+    private void rotate() {
+        waitForFlush();
+        final NavigableMap<String, String> full = memTable;
+        final MemTableLog fullLog = log;
+        final long fullNumber = loggedNumber;
+        try {
+            log = new MemTableLog(new File(directory, allocateNumber() + LOG_SUFFIX));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        immutableBytes = memTableBytes;
+        immutable = full;
+        memTable = new TreeMap<>();
+        memTableBytes = 0;
+        flushing = backgroundExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                flush(full, fullNumber);
+                immutable = null;
+                immutableBytes = 0;
+                fullLog.close();
+                fullLog.getFile().delete();
+                compact();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for the background flush of the full memtable and the compaction following it
+     */
+    public void waitForFlush() {
+        if (flushing == null) {
+            return;
+        }
+        try {
+            flushing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException(new IOException("Flush of memtable failed", e.getCause()));
+        } finally {
+            flushing = null;
+        }
+    }
+
+    /**
+     * @param entries entries of the memtable
+     * @param number  op-number of the memtable's last updates
+     * @throws IOException
+     */
+    private void flush(NavigableMap<String, String> entries, long number) throws IOException {
+        SSTable table = write(entries.entrySet().iterator());
+        List<SSTable> updated = new ArrayList<>(tables);
+        if (table != null) {
+            updated.add(table);
+        }
+        flushedNumber = number;
+        writeManifest(updated);
+        tables = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Merges runs of tables of the same size tier
+     */
+    private void compact() throws IOException {
+        while (true) {
+            List<SSTable> current = tables;
+            int start = 0;
+            int end = 0;
+            for (int i = 1; i <= current.size(); ++i) {
+                if (i == current.size() || tier(current.get(i)) != tier(current.get(start))) {
+                    if (i - start >= COMPACTION_THRESHOLD) {
+                        end = i;
+                        break;
+                    }
+                    start = i;
+                }
+            }
+            if (end == 0) {
+                return;
+            }
+            List<SSTable> run = current.subList(start, end);
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            for (int i = run.size() - 1; i >= 0; --i) {
+                sources.add(run.get(i).iterator(null));
+            }
+            // tombstones are needed only while there are older tables
+            SSTable merged = write(new MergingIterator(sources, null, start == 0));
+
+            List<SSTable> updated = new ArrayList<>(current.subList(0, start));
+            if (merged != null) {
+                updated.add(merged);
+            }
+            updated.addAll(current.subList(end, current.size()));
+            writeManifest(updated);
+            tables = Collections.unmodifiableList(updated);
+            obsolete.addAll(run);
+        }
+    }
+
+    private SSTable write(Iterator<Map.Entry<String, String>> entries) throws IOException {
+        long number = allocateNumber();
+        File file = new File(directory, number + TABLE_SUFFIX);
+        SSTableWriter writer = new SSTableWriter(file, blockSize, bitsPerKey);
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                writer.append(entry.getKey(), entry.getValue());
+            }
+            if (writer.getCount() == 0) {
+                writer.abort();
+                return null;
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        return new SSTable(file, number, cache);
+    }
+
+    private synchronized long allocateNumber() {
+        return nextNumber++;
+    }
+
+    private synchronized void writeManifest(List<SSTable> list) throws IOException {
+        File temporary = new File(directory, MANIFEST + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary)) {
+            Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            writer.write("next " + nextNumber + "\n");
+            writer.write("operation " + flushedNumber + "\n");
+            for (SSTable table : list) {
+                writer.write("table " + table.getFile().getName() + "\n");
+            }
+            writer.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Closes and removes tables replaced by compaction, called from the owner's thread
+     * so no iterator over them is alive
+     */
+    private void closeObsolete() {
+        SSTable table;
+        while ((table = obsolete.poll()) != null) {
+            try {
+                table.close();
+            } catch (IOException ignored) {
+            }
+            table.getFile().delete();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Append-only log of memtable's updates replayed after restart.
+ * The op-number the following updates are made by is logged before them when it changes.
+ *
+ * @author Victor Khovanskiy
+ */
+class MemTableLog implements Closeable {
+
+    private static final byte NUMBER = 2;
+
+    private final File file;
+    private final FileOutputStream fileStream;
+    private final DataOutputStream output;
+
+    MemTableLog(File file) throws IOException {
+        this.file = file;
+        this.fileStream = new FileOutputStream(file, true);
+        this.output = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+    }
+
+    /**
+     * Replays the log into the memtable, torn tail of the log is ignored
+     *
+     * @param file     log file
+     * @param memTable memtable with null values for deleted keys
+     * @return the last op-number logged or -1 if there is none
+     * @throws IOException
+     */
+    static long replay(File file, Map<String, String> memTable) throws IOException {
+        long number = -1;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                String key;
+                String value;
+                try {
+                    byte flag = input.readByte();
+                    if (flag == NUMBER) {
+                        number = input.readLong();
+                        continue;
+                    }
+                    key = readString(input);
+                    value = flag == SSTableWriter.VALUE ? readString(input) : null;
+                } catch (EOFException e) {
+                    return number;
+                }
+                memTable.put(key, value);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends update and hands it to the OS
+     *
+     * @param key   key
+     * @param value value or null for deleted key
+     * @throws IOException
+     */
+    void append(String key, String value) throws IOException {
+        if (value != null) {
+            output.writeByte(SSTableWriter.VALUE);
+            SSTableWriter.writeBytes(output, key);
+            SSTableWriter.writeBytes(output, value);
+        } else {
+            output.writeByte(SSTableWriter.TOMBSTONE);
+            SSTableWriter.writeBytes(output, key);
+        }
+        output.flush();
+    }
+
+    /**
+     * Appends op-number of the updates which follow, it reaches the OS with the first of them
+     *
+     * @param number op-number
+     * @throws IOException
+     */
+    void appendNumber(long number) throws IOException {
+        output.writeByte(NUMBER);
+        output.writeLong(number);
+    }
+
+    void sync() throws IOException {
+        output.flush();
+        fileStream.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted sources, for equal keys the entry of the newest source wins
+ *
+ * @author Victor Khovanskiy
+ */
+class MergingIterator implements Iterator<Map.Entry<String, String>> {
+
+    private final PriorityQueue<Source> queue = new PriorityQueue<>();
+    private final String toKey;
+    private final boolean skipDeleted;
+    private Map.Entry<String, String> next;
+
+    /**
+     * @param sources     iterators ordered from the newest to the oldest
+     * @param toKey       highest key (exclusive) or null
+     * @param skipDeleted whether entries of deleted keys are dropped
+     */
+    MergingIterator(List<Iterator<Map.Entry<String, String>>> sources, String toKey, boolean skipDeleted) {
+        this.toKey = toKey;
+        this.skipDeleted = skipDeleted;
+        for (int i = 0; i < sources.size(); ++i) {
+            Source source = new Source(sources.get(i), i);
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+        advance();
+    }
+
+    private void advance() {
+        next = null;
+        while (next == null && !queue.isEmpty()) {
+            Source top = queue.poll();
+            Map.Entry<String, String> entry = top.current;
+            if (top.advance()) {
+                queue.add(top);
+            }
+            // older versions of the same key are shadowed
+            while (!queue.isEmpty() && queue.peek().current.getKey().equals(entry.getKey())) {
+                Source older = queue.poll();
+                if (older.advance()) {
+                    queue.add(older);
+                }
+            }
+            if (toKey != null && entry.getKey().compareTo(toKey) >= 0) {
+                queue.clear();
+                return;
+            }
+            if (entry.getValue() != null || !skipDeleted) {
+                next = entry;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> result = next;
+        advance();
+        return result;
+    }
+
+    private static class Source implements Comparable<Source> {
+        private final Iterator<Map.Entry<String, String>> iterator;
+        private final int rank;
+        private Map.Entry<String, String> current;
+
+        Source(Iterator<Map.Entry<String, String>> iterator, int rank) {
+            this.iterator = iterator;
+            this.rank = rank;
+        }
+
+        boolean advance() {
+            current = iterator.hasNext() ? iterator.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            int compare = current.getKey().compareTo(o.current.getKey());
+            return compare != 0 ? compare : Integer.compare(rank, o.rank);
+        }
+    }
+}
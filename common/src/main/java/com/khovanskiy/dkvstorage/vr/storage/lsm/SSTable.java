@@ -0,0 +1,250 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted table written by @code{SSTableWriter}.
+ * Only the Bloom filter and the block index are kept in memory, blocks are read on demand
+ * through the shared block cache for point lookups and directly for iteration.
+ *
+ * @author Victor Khovanskiy
+ */
+class SSTable implements Closeable {
+
+    private final File file;
+    private final long number;
+    private final FileChannel channel;
+    private final BlockCache cache;
+    private final BloomFilter filter;
+    private final String[] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long count;
+    private final long indexBytes;
+
+    /**
+     * Opens the table
+     *
+     * @param file   table's file
+     * @param number table's number unique within the storage
+     * @param cache  block cache shared by the tables or null
+     * @throws IOException
+     */
+    SSTable(File file, long number, BlockCache cache) throws IOException {
+        this.file = file;
+        this.number = number;
+        this.cache = cache;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = read(channel.size() - SSTableWriter.FOOTER_SIZE, SSTableWriter.FOOTER_SIZE);
+            long filterOffset = footer.getLong();
+            long indexOffset = footer.getLong();
+            this.count = footer.getLong();
+            if (footer.getInt() != SSTableWriter.MAGIC) {
+                throw new IOException("Broken table " + file);
+            }
+            this.filter = BloomFilter.read(read(filterOffset, (int) (indexOffset - filterOffset)));
+            ByteBuffer index = read(indexOffset, (int) (channel.size() - SSTableWriter.FOOTER_SIZE - indexOffset));
+            int blocks = index.getInt();
+            this.firstKeys = new String[blocks];
+            this.offsets = new long[blocks];
+            this.lengths = new int[blocks];
+            long bytes = 0;
+            for (int i = 0; i < blocks; ++i) {
+                firstKeys[i] = readString(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                bytes += 2L * firstKeys[i].length() + 60;
+            }
+            this.indexBytes = bytes + filter.getBytes();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getFileSize() {
+        return file.length();
+    }
+
+    long getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * Checks the Bloom filter
+     *
+     * @param keyHash hash of the key made by @code{BloomFilter.hash}
+     * @return false if the table surely doesn't contain the key
+     */
+    boolean mightContain(long keyHash) {
+        return filter.mightContain(keyHash);
+    }
+
+    /**
+     * Looks the key up
+     *
+     * @param key key
+     * @return entry with value or null value for deleted key, null if table doesn't contain the key
+     * @throws IOException
+     */
+    Map.Entry<String, String> find(String key) throws IOException {
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer buffer = cache != null ? cache.get(number, block) : null;
+        if (buffer == null) {
+            buffer = readBlock(block);
+            if (cache != null) {
+                cache.put(number, block, buffer.duplicate());
+            }
+        }
+        while (buffer.hasRemaining()) {
+            String current = readString(buffer);
+            int compare = current.compareTo(key);
+            boolean hasValue = buffer.get() == SSTableWriter.VALUE;
+            if (compare == 0) {
+                return new AbstractMap.SimpleImmutableEntry<>(key, hasValue ? readString(buffer) : null);
+            }
+            if (compare > 0) {
+                return null;
+            }
+            if (hasValue) {
+                skipString(buffer);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterates entries including deleted ones starting from the key
+     *
+     * @param fromKey lowest key (inclusive) or null
+     * @return iterator over entries with null values for deleted keys
+     */
+    Iterator<Map.Entry<String, String>> iterator(String fromKey) {
+        int block = fromKey != null ? Math.max(findBlock(fromKey), 0) : 0;
+        return new TableIterator(block, fromKey);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Finds the last block with the first key not greater than the key
+     */
+    private int findBlock(String key) {
+        int low = 0;
+        int high = firstKeys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstKeys[middle].compareTo(key) <= 0) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        return read(offsets[block], lengths[block]);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+    }
+
+    private class TableIterator implements Iterator<Map.Entry<String, String>> {
+        private int block;
+        private ByteBuffer buffer;
+        private Map.Entry<String, String> next;
+
+        TableIterator(int block, String fromKey) {
+            this.block = block;
+            advance();
+            while (fromKey != null && next != null && next.getKey().compareTo(fromKey) < 0) {
+                advance();
+            }
+        }
+
+        private void advance() {
+            try {
+                while (buffer == null || !buffer.hasRemaining()) {
+                    if (block >= firstKeys.length) {
+                        next = null;
+                        return;
+                    }
+                    buffer = readBlock(block++);
+                }
+                String key = readString(buffer);
+                String value = buffer.get() == SSTableWriter.VALUE ? readString(buffer) : null;
+                next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read " + file, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+    }
+}
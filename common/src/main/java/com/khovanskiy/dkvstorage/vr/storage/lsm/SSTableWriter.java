@@ -0,0 +1,143 @@
+package com.khovanskiy.dkvstorage.vr.storage.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes sorted entries into immutable table file.
+ * <p>
+ * File layout: data blocks of records [key length, key, flag, value length, value],
+ * then the Bloom filter of the keys [hashes, words, bits...],
+ * the block index [count, (first key, offset, length)...]
+ * and the footer [filter offset, index offset, entry count, magic].
+ *
+ * @author Victor Khovanskiy
+ */
+class SSTableWriter {
+
+    static final int MAGIC = 0x55AB1E02;
+    static final int FOOTER_SIZE = 28;
+    static final byte VALUE = 1;
+    static final byte TOMBSTONE = 0;
+
+    private final File file;
+    private final int blockSize;
+    private final int bitsPerKey;
+    private final FileOutputStream fileStream;
+    private final DataOutputStream output;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOutput = new DataOutputStream(block);
+    private final List<String> firstKeys = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private long[] keyHashes = new long[1024];
+    private String blockFirstKey;
+    private String lastKey;
+    private long offset;
+    private long count;
+
+    SSTableWriter(File file, int blockSize, int bitsPerKey) throws IOException {
+        this.file = file;
+        this.blockSize = blockSize;
+        this.bitsPerKey = bitsPerKey;
+        this.fileStream = new FileOutputStream(file);
+        this.output = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+    }
+
+    /**
+     * Appends entry, keys must go in ascending order
+     *
+     * @param key   key
+     * @param value value or null for deleted key
+     * @throws IOException
+     */
+    void append(String key, String value) throws IOException {
+        if (lastKey != null && lastKey.compareTo(key) >= 0) {
+            throw new IllegalArgumentException("Keys are out of order: \"" + lastKey + "\" >= \"" + key + "\"");
+        }
+        if (blockFirstKey == null) {
+            blockFirstKey = key;
+        }
+        writeBytes(blockOutput, key);
+        if (value != null) {
+            blockOutput.writeByte(VALUE);
+            writeBytes(blockOutput, value);
+        } else {
+            blockOutput.writeByte(TOMBSTONE);
+        }
+        if (count == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, 2 * keyHashes.length);
+        }
+        keyHashes[(int) count] = BloomFilter.hash(key);
+        lastKey = key;
+        ++count;
+        if (block.size() >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes filter, index and footer and syncs the file
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        flushBlock();
+        long filterOffset = offset;
+        BloomFilter filter = BloomFilter.build(keyHashes, (int) count, bitsPerKey);
+        filter.write(output);
+        long indexOffset = filterOffset + 8 + filter.getBytes();
+        output.writeInt(firstKeys.size());
+        for (int i = 0; i < firstKeys.size(); ++i) {
+            writeBytes(output, firstKeys.get(i));
+            output.writeLong(offsets.get(i));
+            output.writeInt(lengths.get(i));
+        }
+        output.writeLong(filterOffset);
+        output.writeLong(indexOffset);
+        output.writeLong(count);
+        output.writeInt(MAGIC);
+        output.flush();
+        fileStream.getFD().sync();
+        output.close();
+    }
+
+    void abort() {
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.size() == 0) {
+            return;
+        }
+        firstKeys.add(blockFirstKey);
+        offsets.add(offset);
+        lengths.add(block.size());
+        block.writeTo(output);
+        offset += block.size();
+        block.reset();
+        blockFirstKey = null;
+    }
+
+    static void writeBytes(DataOutputStream output, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
@@ -0,0 +1,108 @@
+package com.khovanskiy.dkvstorage.vr;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class NetworkTest {
+
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private Network network;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        network = new Network();
+        network.setMaxBulkLength(16);
+        network.setConnectionListener(new Network.ConnectionListener() {
+            @Override
+            public void onAccept(int connectionId) {
+            }
+
+            @Override
+            public void onReceived(int connectionId, String line) {
+                received.add(line);
+            }
+
+            @Override
+            public void onReceivedBulk(int connectionId, String header, ByteBuffer payload) {
+                received.add(header + ":" + StandardCharsets.UTF_8.decode(payload));
+            }
+
+            @Override
+            public void onDisconnected(int connectionId) {
+            }
+
+            @Override
+            public boolean isPeerIdentification(String line) {
+                return line.equals("node 1");
+            }
+        });
+        network.server("localhost", port);
+        network.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        network.stop();
+    }
+
+    private static void write(Socket socket, String text) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    private static boolean isClosed(Socket socket) throws IOException {
+        socket.setSoTimeout(2000);
+        InputStream input = socket.getInputStream();
+        try {
+            return input.read() < 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testBulkFromPeer() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            write(socket, "node 1\n#5 header\nchunkline\n");
+            Assert.assertEquals("node 1", received.poll(2, TimeUnit.SECONDS));
+            Assert.assertEquals("header:chunk", received.poll(2, TimeUnit.SECONDS));
+            Assert.assertEquals("line", received.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testRejectedBulk() throws Exception {
+        String[] lines = {"#\n", "#x y\n", "#2000000000 x\n", "#3 header\nabc\n", "node 1\n#17 header\n"};
+        for (String line : lines) {
+            try (Socket socket = new Socket("localhost", port)) {
+                write(socket, line + "after\n");
+                // the connection is dropped, but the network goes on serving the others
+                Assert.assertTrue(line, isClosed(socket));
+            }
+        }
+        received.remove("node 1");
+        Assert.assertTrue(received.isEmpty());
+        try (Socket socket = new Socket("localhost", port)) {
+            write(socket, "get key\n");
+            Assert.assertEquals("get key", received.poll(2, TimeUnit.SECONDS));
+        }
+    }
+}
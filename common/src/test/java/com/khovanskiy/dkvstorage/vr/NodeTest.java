@@ -0,0 +1,30 @@
+package com.khovanskiy.dkvstorage.vr;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NodeTest {
+
+    @Test
+    public void testShards() {
+        int[] sizes = new int[5];
+        for (int i = 0; i < 10000; ++i) {
+            int shard = Node.getShard("key" + i, sizes.length);
+            Assert.assertTrue(shard >= 0 && shard < sizes.length);
+            ++sizes[shard];
+        }
+        for (int size : sizes) {
+            Assert.assertTrue(size > 1600 && size < 2400);
+        }
+        Assert.assertEquals(0, Node.getShard("key", 1));
+    }
+
+    @Test
+    public void testNewShardTakesKeysOfOthers() {
+        for (int i = 0; i < 10000; ++i) {
+            int shard = Node.getShard("key" + i, 6);
+            // a key either stays or moves to the new shard
+            Assert.assertTrue(shard == 5 || shard == Node.getShard("key" + i, 5));
+        }
+    }
+}
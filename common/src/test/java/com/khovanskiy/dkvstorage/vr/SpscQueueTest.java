@@ -0,0 +1,69 @@
+package com.khovanskiy.dkvstorage.vr;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpscQueueTest {
+
+    @Test
+    public void testRing() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        Assert.assertEquals(4, queue.capacity());
+        Assert.assertNull(queue.poll());
+        // positions wrap around the ring several times
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 4; ++i) {
+                Assert.assertTrue(queue.offer(round * 4 + i));
+            }
+            Assert.assertFalse(queue.offer(-1));
+            Assert.assertEquals(4, queue.size());
+            for (int i = 0; i < 4; ++i) {
+                Assert.assertEquals(round * 4 + i, (int) queue.poll());
+            }
+            Assert.assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void testClose() {
+        SpscQueue<Integer> queue = new SpscQueue<>(1);
+        queue.offer(1);
+        queue.close();
+        Assert.assertFalse(queue.put(2));
+        // the closed queue is still drained by poll
+        Assert.assertEquals(1, (int) queue.poll());
+        Assert.assertNull(queue.take());
+    }
+
+    @Test(timeout = 10000)
+    public void testTransfer() throws InterruptedException {
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        final int count = 200000;
+        final int[] received = new int[1];
+        final boolean[] ordered = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (Integer element = queue.take(); element != null; element = queue.take()) {
+                    ordered[0] &= element == received[0];
+                    ++received[0];
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; ++i) {
+            Assert.assertTrue(queue.put(i));
+            if (i % 10000 == 0) {
+                // lets the consumer park on the empty queue
+                Thread.sleep(1);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Thread.yield();
+        }
+        queue.close();
+        consumer.join();
+        Assert.assertTrue(ordered[0]);
+        Assert.assertEquals(count, received[0]);
+    }
+}
@@ -0,0 +1,29 @@
+package com.khovanskiy.dkvstorage.vr.operation;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+import com.khovanskiy.dkvstorage.vr.storage.CacheStorageEngine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class GetOperationTest {
+
+    @Test
+    public void testReadSkipsExpiredKeys() throws IOException {
+        Replica replica = new Replica(0, "localhost", 0);
+        replica.setStorage(new CacheStorageEngine(1 << 20));
+        replica.getStorage().put("key", "value");
+        replica.getStorage().put("other", "value");
+        // the replicated clock is 0, the key expires at the first second
+        replica.scheduleExpiry("key", 1);
+
+        Assert.assertEquals("VALUE key value", new GetOperation("key").delegateRead(replica, 999));
+        Assert.assertEquals("NOT_FOUND", new GetOperation("key").delegateRead(replica, 1000));
+        Assert.assertEquals("VALUE other value\nEND", new ScanOperation(null, null, 10, null).delegateRead(replica, 1000));
+        // the read doesn't drop the key, the next operation of the log does it on every replica
+        Assert.assertEquals("value", replica.getStorage().peek("key"));
+        Assert.assertEquals(Long.valueOf(0), replica.getStorage().statistics().get("hits"));
+        Assert.assertEquals(Long.valueOf(0), replica.getStorage().statistics().get("misses"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.khovanskiy.dkvstorage.vr.operation;
+
+import com.khovanskiy.dkvstorage.vr.replica.Replica;
+import com.khovanskiy.dkvstorage.vr.storage.TreeStorageEngine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScanOperationTest {
+
+    private Replica replica;
+
+    @Before
+    public void setUp() throws IOException {
+        replica = new Replica(0, "localhost", 0);
+        replica.setStorage(new TreeStorageEngine());
+        for (int i = 0; i < 250; ++i) {
+            replica.getStorage().put(String.format("key%03d", i), "value" + i);
+        }
+        replica.getStorage().put("other", "value");
+    }
+
+    @Test
+    public void testPages() {
+        List<String> keys = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        while (true) {
+            String[] lines = new ScanOperation("key", "key2", 30, token).delegateUpCall(replica).split("\n");
+            ++pages;
+            for (int i = 0; i < lines.length - 1; ++i) {
+                keys.add(lines[i].split(" ")[1]);
+            }
+            String last = lines[lines.length - 1];
+            if (last.equals("END")) {
+                break;
+            }
+            Assert.assertTrue(last.startsWith("NEXT "));
+            token = last.substring("NEXT ".length());
+        }
+        Assert.assertEquals(200, keys.size());
+        Assert.assertEquals(7, pages);
+        Assert.assertEquals("key000", keys.get(0));
+        Assert.assertEquals("key199", keys.get(199));
+    }
+
+    @Test
+    public void testPrefix() {
+        String reply = ScanOperation.prefix("key24", 100, null).delegateUpCall(replica);
+        Assert.assertEquals(11, reply.split("\n").length);
+        Assert.assertTrue(reply.startsWith("VALUE key240 value240\n"));
+        Assert.assertTrue(reply.endsWith("\nEND"));
+        Assert.assertEquals("END", ScanOperation.prefix("missing", 100, null).delegateUpCall(replica));
+    }
+
+    @Test
+    public void testMergedPages() throws IOException {
+        // the keys are split between the parts, the merged pages are the same as of the whole storage
+        List<Replica> parts = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            Replica part = new Replica(i, "localhost", 0);
+            part.setStorage(new TreeStorageEngine());
+            parts.add(part);
+        }
+        for (int i = 0; i < 250; ++i) {
+            String key = String.format("key%03d", i);
+            parts.get(i * 7 % 3).getStorage().put(key, "value" + i);
+        }
+        String token = null;
+        while (true) {
+            ScanOperation scan = new ScanOperation("key", "key2", 30, token);
+            List<String> pages = new ArrayList<>();
+            for (Replica part : parts) {
+                pages.add(scan.delegateUpCall(part));
+            }
+            String page = ScanOperation.merge(pages, scan.getLimit());
+            Assert.assertEquals(scan.delegateUpCall(replica), page);
+            String[] lines = page.split("\n");
+            String last = lines[lines.length - 1];
+            if (last.equals("END")) {
+                break;
+            }
+            token = last.substring("NEXT ".length());
+        }
+        Assert.assertEquals("END", ScanOperation.merge(Arrays.asList("END", "END"), 10));
+    }
+
+    @Test
+    public void testLimitIsClamped() {
+        String reply = new ScanOperation(null, null, 1000000, null).delegateUpCall(replica);
+        Assert.assertEquals(ScanOperation.MAX_LIMIT, new ScanOperation(null, null, 1000000, null).getLimit());
+        Assert.assertTrue(reply.endsWith("END"));
+        Assert.assertEquals(252, reply.split("\n").length);
+    }
+
+    @Test
+    public void testTokens() {
+        String token = ScanOperation.encodeToken("key\u00e9");
+        Assert.assertTrue(ScanOperation.isToken(token));
+        Assert.assertEquals("key\u00e9", ScanOperation.decodeToken(token));
+        Assert.assertTrue(ScanOperation.isToken(""));
+        Assert.assertFalse(ScanOperation.isToken("abc"));
+        Assert.assertFalse(ScanOperation.isToken("zz"));
+        Assert.assertFalse(ScanOperation.isToken("6b-1"));
+    }
+}
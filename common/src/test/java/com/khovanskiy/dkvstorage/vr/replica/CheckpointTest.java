@@ -0,0 +1,238 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.message.Message;
+import com.khovanskiy.dkvstorage.vr.message.SnapshotChunkMessage;
+import com.khovanskiy.dkvstorage.vr.storage.CacheStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.HashStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngineFactory;
+import com.khovanskiy.dkvstorage.vr.storage.TreeStorageEngine;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Replica replica() throws IOException {
+        Replica replica = new Replica(0, "localhost", 0);
+        replica.setStorage(new TreeStorageEngine());
+        replica.setCheckpointDirectory(folder.newFolder());
+        return replica;
+    }
+
+    private static byte[] image(Checkpoint checkpoint) throws IOException {
+        return Files.readAllBytes(checkpoint.getFile().toPath());
+    }
+
+    @Test
+    public void testInstall() throws IOException {
+        Replica source = replica();
+        for (int i = 0; i < 100; ++i) {
+            source.getStorage().put("key" + i, "value" + i);
+        }
+        source.advanceClock(5000);
+        source.scheduleExpiry("key7", 10);
+        source.getClient(3).setRequestNumber(42);
+        source.getClient(3).setExecutedNumber(42);
+        source.getClient(3).setResult("STORED");
+        source.setCommitNumber(120);
+
+        Checkpoint checkpoint = Checkpoint.open(source.takeCheckpoint().getFile());
+        Assert.assertNotNull(checkpoint);
+        Assert.assertEquals(120, checkpoint.getNumber());
+
+        Replica target = replica();
+        target.getStorage().put("stale", "value");
+        target.getStorage().put("key1", "other");
+        target.install(checkpoint);
+        Assert.assertEquals(source.getStorage().snapshot(), target.getStorage().snapshot());
+        Assert.assertEquals(120, target.getCommitNumber());
+        Assert.assertEquals(5000, target.getClock());
+        Assert.assertEquals(source.getExpiryDeadline("key7"), target.getExpiryDeadline("key7"));
+        Assert.assertEquals(42, target.getClient(3).getRequestNumber());
+        Assert.assertEquals("STORED", target.getClient(3).getResult());
+
+        target.advanceClock(16000);
+        Assert.assertNull(target.getStorage().get("key7"));
+    }
+
+    @Test
+    public void testEqualImages() throws IOException {
+        Replica first = replica();
+        Replica second = replica();
+        for (int i = 0; i < 50; ++i) {
+            first.getStorage().put("key" + i, "value" + i);
+            first.scheduleExpiry("key" + i, i + 1);
+            first.getClient(i).setExecutedNumber(i + 1);
+            second.getStorage().put("key" + (49 - i), "value" + (49 - i));
+            second.scheduleExpiry("key" + (49 - i), 50 - i);
+            second.getClient(49 - i).setExecutedNumber(50 - i);
+        }
+        // the request being prepared on the primary isn't a part of the state
+        first.getClient(7).setRequestNumber(100);
+        first.getClient(100).setRequestNumber(1);
+        first.setCommitNumber(60);
+        second.setCommitNumber(60);
+        Assert.assertArrayEquals(image(first.takeCheckpoint()), image(second.takeCheckpoint()));
+    }
+
+    @Test
+    public void testPartitionedImage() throws IOException {
+        Replica plain = replica();
+        Replica partitioned = replica();
+        partitioned.setStorage(StorageEngineFactory.create(TreeStorageEngine.TYPE, folder.newFolder(), Collections.<String, String>emptyMap(), 4));
+        Assert.assertEquals(4, partitioned.getPartitionCount());
+        for (Replica replica : Arrays.asList(plain, partitioned)) {
+            for (int i = 0; i < 100; ++i) {
+                replica.getStorage().put("key" + i, "value" + i);
+                if (i % 3 == 0) {
+                    replica.scheduleExpiry("key" + i, i % 20 + 1);
+                }
+            }
+            replica.advanceClock(10000);
+            replica.setCommitNumber(100);
+        }
+        Assert.assertEquals(plain.getExpiringCount(), partitioned.getExpiringCount());
+        Assert.assertArrayEquals(image(plain.takeCheckpoint()), image(partitioned.takeCheckpoint()));
+
+        Replica target = replica();
+        target.setStorage(StorageEngineFactory.create(HashStorageEngine.TYPE, folder.newFolder(), Collections.<String, String>emptyMap(), 3));
+        target.install(partitioned.takeCheckpoint());
+        Assert.assertEquals(plain.getStorage().snapshot(), target.getStorage().snapshot());
+        Assert.assertEquals(plain.getExpiryDeadline("key99"), target.getExpiryDeadline("key99"));
+    }
+
+    private static void access(StorageEngine cache, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < 20000; ++i) {
+            String key = "key" + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(10000));
+            if (random.nextInt(3) == 0) {
+                cache.put(key, "value" + i);
+            } else {
+                cache.get(key);
+            }
+        }
+    }
+
+    @Test
+    public void testCacheState() throws IOException {
+        Replica source = replica();
+        source.setStorage(new CacheStorageEngine(64 * 1024));
+        access(source.getStorage(), 3);
+        source.setCommitNumber(100);
+
+        Replica target = replica();
+        target.setStorage(new CacheStorageEngine(64 * 1024));
+        target.install(source.takeCheckpoint());
+        Assert.assertEquals(source.getStorage().snapshot(), target.getStorage().snapshot());
+
+        // the restored sketch and segments make the same operations evict the same keys
+        access(source.getStorage(), 5);
+        access(target.getStorage(), 5);
+        Assert.assertEquals(source.getStorage().snapshot(), target.getStorage().snapshot());
+        source.setCommitNumber(200);
+        target.setCommitNumber(200);
+        Assert.assertArrayEquals(image(source.takeCheckpoint()), image(target.takeCheckpoint()));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        Replica source = replica();
+        source.getStorage().put("key", "value");
+        source.setCommitNumber(7);
+        File file = source.takeCheckpoint().getFile();
+        Assert.assertEquals(Checkpoint.fileOf(file.getParentFile(), 7), file);
+
+        Checkpoint checkpoint = Checkpoint.latest(file.getParentFile());
+        Assert.assertNotNull(checkpoint);
+        Assert.assertEquals(7, checkpoint.getNumber());
+        try (Checkpoint.Reader reader = checkpoint.read()) {
+            Assert.assertEquals(Checkpoint.ENTRY, reader.next());
+            Assert.assertEquals("key", reader.getKey());
+            Assert.assertEquals("value", reader.getValue());
+            Assert.assertEquals(-1, reader.getDeadline());
+            Assert.assertEquals(Checkpoint.END, reader.next());
+        }
+
+        try (RandomAccessFile corrupted = new RandomAccessFile(file, "rw")) {
+            corrupted.seek(corrupted.length() - 3);
+            corrupted.write('x');
+        }
+        Assert.assertNull(Checkpoint.open(file));
+        Assert.assertNull(Checkpoint.latest(file.getParentFile()));
+    }
+
+    @Test
+    public void testInterval() throws IOException {
+        Replica replica = replica();
+        replica.setCheckpointInterval(10);
+        replica.setCheckpointPeriod(5000);
+        for (int i = 1; i <= 40; ++i) {
+            replica.getStorage().put("key" + i, "value" + i);
+            replica.advanceClock(i * 300);
+            replica.setCommitNumber(i);
+            replica.checkpointIfNeeded();
+            // at least 10 operations and 5 seconds of the clock pass between checkpoints
+            if (i == 16) {
+                Assert.assertNull(replica.getCheckpoint());
+            }
+            if (i == 17 || i == 33) {
+                Assert.assertEquals(17, replica.getCheckpoint().getNumber());
+            }
+        }
+        Assert.assertEquals(34, replica.getCheckpoint().getNumber());
+        // the previous checkpoint's file is deleted
+        Assert.assertArrayEquals(new String[]{replica.getCheckpoint().getFile().getName()},
+                replica.getCheckpointDirectory().list());
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        Replica source = replica();
+        for (int i = 0; i < 5000; ++i) {
+            source.getStorage().put("key" + i, "value" + i + "\u0436\n\"");
+        }
+        source.setCommitNumber(300);
+        byte[] image = image(source.takeCheckpoint());
+        Assert.assertTrue(image.length > 2 * StateTransferState.CHUNK_SIZE);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < image.length) {
+            int from = received.size();
+            int to = Math.min(from + StateTransferState.CHUNK_SIZE, image.length);
+            String header = Message.encode(new SnapshotChunkMessage(300, from, image.length)).toString();
+            SnapshotChunkMessage chunk = (SnapshotChunkMessage) Message.decode(header)
+                    .withPayload(ByteBuffer.wrap(Arrays.copyOfRange(image, from, to)));
+            Assert.assertEquals(from, chunk.getOffset());
+            Assert.assertEquals(image.length, chunk.getLength());
+            received.write(chunk.getData().array(), 0, chunk.getData().remaining());
+        }
+        File file = Checkpoint.fileOf(folder.newFolder(), 300);
+        Files.write(file.toPath(), received.toByteArray());
+        Checkpoint checkpoint = Checkpoint.open(file);
+        Assert.assertNotNull(checkpoint);
+        Assert.assertEquals(300, checkpoint.getNumber());
+
+        Replica target = replica();
+        target.install(checkpoint);
+        Assert.assertEquals(source.getStorage().snapshot(), target.getStorage().snapshot());
+
+        image[image.length / 2] ^= 1;
+        Files.write(file.toPath(), image);
+        Assert.assertNull(Checkpoint.open(file));
+    }
+}
@@ -0,0 +1,149 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.message.Message;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peer of the replica under test played by the test. It accepts the replica's connection and collects
+ * the messages the replica sends, and sends its own messages to the replica's port
+ */
+class FakeReplica implements Closeable {
+    static final String HOST = "127.0.0.1";
+
+    private final int replicaNumber;
+    private final ServerSocket server;
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private Writer writer;
+
+    FakeReplica(int replicaNumber) throws IOException {
+        this.replicaNumber = replicaNumber;
+        this.server = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        listen(server.accept());
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }, "fake-" + replicaNumber);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets a free port for the replica under test
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName(HOST))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    int getReplicaNumber() {
+        return replicaNumber;
+    }
+
+    /**
+     * Makes the entry of the configuration the replica under test connects to
+     */
+    Replica toPeer() throws IOException {
+        return new Replica(replicaNumber, HOST, server.getLocalPort());
+    }
+
+    /**
+     * Connects to the replica under test, which takes the connection for the one of this replica
+     *
+     * @param port port of the replica under test
+     */
+    void connect(int port) throws IOException {
+        Socket socket = new Socket(HOST, port);
+        socket.setTcpNoDelay(true);
+        writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        send("node " + replicaNumber);
+        listen(socket);
+    }
+
+    void send(Message message) throws IOException {
+        send(Message.encode(message).toString());
+    }
+
+    private void send(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Waits for the next message of the type, the messages of other types are skipped
+     *
+     * @param type    type of the message
+     * @param timeout timeout in milliseconds
+     * @return message or null if none is received in time
+     */
+    <T extends Message> T receive(Class<T> type, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            Message message = received.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (message == null) {
+                return null;
+            }
+            if (type.isInstance(message)) {
+                return type.cast(message);
+            }
+        }
+    }
+
+    /**
+     * Forgets the messages received so far
+     */
+    void clear() {
+        received.clear();
+    }
+
+    private void listen(final Socket socket) {
+        sockets.add(socket);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        // "node <number>" introduces the replica
+                        if (line.startsWith("{")) {
+                            received.add(Message.decode(line));
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }, "fake-" + replicaNumber + "-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.Node;
+import com.khovanskiy.dkvstorage.vr.ReplicaStatus;
+import com.khovanskiy.dkvstorage.vr.message.CommitMessage;
+import com.khovanskiy.dkvstorage.vr.message.DoViewChangeMessage;
+import com.khovanskiy.dkvstorage.vr.message.PrepareMessage;
+import com.khovanskiy.dkvstorage.vr.message.PrepareOkMessage;
+import com.khovanskiy.dkvstorage.vr.message.RecoveryMessage;
+import com.khovanskiy.dkvstorage.vr.message.RecoveryResponseMessage;
+import com.khovanskiy.dkvstorage.vr.message.ReplyMessage;
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+import com.khovanskiy.dkvstorage.vr.message.StartViewChangeMessage;
+import com.khovanskiy.dkvstorage.vr.message.StartViewMessage;
+import com.khovanskiy.dkvstorage.vr.operation.GetOperation;
+import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
+import com.khovanskiy.dkvstorage.vr.storage.CacheStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.EntryRejectedException;
+import com.khovanskiy.dkvstorage.vr.storage.TreeStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.btree.BTreeStorageEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Normal protocol of the replica under test, the other replicas of the configuration are played by the test
+ */
+public class NormalStateTest {
+
+    private static final int TIMEOUT = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Replica replica;
+    private int port;
+    private FakeReplica[] fakes;
+    private final List<TextConnection> connections = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (TextConnection connection : connections) {
+            connection.close();
+        }
+        if (replica != null) {
+            replica.stop();
+        }
+        for (FakeReplica fake : fakes) {
+            if (fake != null) {
+                fake.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the replica of the position in the configuration of the size, the replica at 0 is the primary
+     */
+    private Replica create(int size, int index) throws IOException {
+        port = FakeReplica.freePort();
+        replica = new Replica(new Node(index, FakeReplica.HOST, port), 0);
+        replica.setStorage(new TreeStorageEngine());
+        fakes = new FakeReplica[size];
+        for (int i = 0; i < size; ++i) {
+            if (i != index) {
+                fakes[i] = new FakeReplica(i);
+            }
+        }
+        return replica;
+    }
+
+    private void start() throws IOException {
+        List<Replica> configuration = new ArrayList<>();
+        for (FakeReplica fake : fakes) {
+            configuration.add(fake != null ? fake.toPeer() : replica);
+        }
+        replica.start(TIMEOUT, configuration);
+        for (FakeReplica fake : fakes) {
+            if (fake != null) {
+                fake.connect(port);
+            }
+        }
+    }
+
+    private TextConnection connect() throws IOException {
+        TextConnection connection = new TextConnection(port);
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Waits for the PREPARE message up to the op-number
+     */
+    private static PrepareMessage receivePrepare(FakeReplica fake, long operationNumber) throws InterruptedException {
+        for (PrepareMessage prepare = fake.receive(PrepareMessage.class, TIMEOUT); prepare != null; prepare = fake.receive(PrepareMessage.class, TIMEOUT)) {
+            if (prepare.getOperationNumber() >= operationNumber) {
+                return prepare;
+            }
+        }
+        throw new AssertionError("No PREPARE of " + operationNumber);
+    }
+
+    /**
+     * Answers the primary's lease renewal, the configuration of three replicas needs one promise
+     *
+     * @return lease timestamp of the renewal
+     */
+    private long grantLease(FakeReplica fake) throws InterruptedException, IOException {
+        CommitMessage commit = fake.receive(CommitMessage.class, TIMEOUT);
+        Assert.assertNotNull(commit);
+        fake.send(new PrepareOkMessage(0, 0, fake.getReplicaNumber(), false, commit.getLeaseTimestamp()));
+        return commit.getLeaseTimestamp();
+    }
+
+    /**
+     * Makes the backup under test prepare the operations from the primary at 0 and commit some of them
+     *
+     * @return prepared requests
+     */
+    private List<RequestMessage> prepare(int count, long commitNumber) throws Exception {
+        List<RequestMessage> requests = new ArrayList<>();
+        for (int i = 1; i <= count; ++i) {
+            requests.add(new RequestMessage(new SetOperation("key" + i, "value" + i, 0), 100, i).withTimestamp(System.currentTimeMillis()));
+        }
+        fakes[0].send(new PrepareMessage(requests, 0, count, 0));
+        Assert.assertNotNull(fakes[0].receive(PrepareOkMessage.class, TIMEOUT));
+        fakes[0].send(new CommitMessage(0, commitNumber));
+        for (int i = 0; i < 50 && replica.getCommitNumber() < commitNumber; ++i) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(commitNumber, replica.getCommitNumber());
+        return requests;
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        replica.setBatchSize(3);
+        replica.setBatchDelay(500000);
+        start();
+        List<TextConnection> clients = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            clients.add(connect());
+            clients.get(i).send("set key" + i + " value" + i);
+        }
+        // the full batch goes by one PREPARE
+        PrepareMessage prepare = receivePrepare(fakes[1], 3);
+        Assert.assertEquals(1, prepare.getFirstOperationNumber());
+        Assert.assertEquals(3, prepare.getRequests().size());
+        fakes[1].send(new PrepareOkMessage(0, 3, 1));
+        for (TextConnection client : clients) {
+            Assert.assertEquals("STORED", client.receive(TIMEOUT));
+        }
+
+        // the request alone waits for the batch delay, the delay of the first batch is over
+        Thread.sleep(600);
+        long sent = System.nanoTime();
+        clients.get(0).send("set key value");
+        prepare = receivePrepare(fakes[1], 4);
+        Assert.assertTrue(System.nanoTime() - sent >= 400000000L);
+        Assert.assertEquals(1, prepare.getRequests().size());
+    }
+
+    @Test
+    public void testOutOfOrderAcknowledgements() throws Exception {
+        // f = 2, an operation commits once two backups have prepared it
+        create(5, 0).setLeaseDuration(0);
+        replica.setBatchSize(1);
+        start();
+        TextConnection client = connect();
+        for (int i = 1; i <= 3; ++i) {
+            client.send("set key" + i + " value" + i);
+        }
+        // the window lets all the operations go before any is acknowledged
+        receivePrepare(fakes[1], 3);
+        receivePrepare(fakes[2], 3);
+
+        fakes[1].send(new PrepareOkMessage(0, 3, 1));
+        Assert.assertNull(client.receive(300));
+        fakes[2].send(new PrepareOkMessage(0, 1, 2));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+        Assert.assertNull(client.receive(300));
+        fakes[2].send(new PrepareOkMessage(0, 2, 2));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+        // the late acknowledgement of an earlier operation changes nothing
+        fakes[2].send(new PrepareOkMessage(0, 1, 2));
+        Assert.assertNull(client.receive(300));
+        fakes[3].send(new PrepareOkMessage(0, 3, 3));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+    }
+
+    @Test
+    public void testCommitHeartbeat() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        start();
+        TextConnection client = connect();
+        client.send("set key value");
+        receivePrepare(fakes[1], 1);
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+        // no PREPARE follows, so both backups learn the commit from COMMIT long before the timer
+        for (int i = 1; i <= 2; ++i) {
+            CommitMessage commit = fakes[i].receive(CommitMessage.class, 200);
+            while (commit != null && commit.getCommitNumber() < 1) {
+                commit = fakes[i].receive(CommitMessage.class, 200);
+            }
+            Assert.assertNotNull(commit);
+            Assert.assertEquals(1, commit.getCommitNumber());
+        }
+    }
+
+    @Test
+    public void testRetriedWrite() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        start();
+        TextConnection first = connect();
+        TextConnection second = connect();
+        for (TextConnection client : new TextConnection[]{first, second}) {
+            client.send("session -5");
+            Assert.assertEquals("ACCEPTED", client.receive(TIMEOUT));
+        }
+        first.send("request 7 set key value");
+        receivePrepare(fakes[1], 1);
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+        Assert.assertEquals("STORED", first.receive(TIMEOUT));
+        // the retry of the executed write gets the recorded result
+        second.send("request 7 set key value");
+        Assert.assertEquals("STORED", second.receive(TIMEOUT));
+        Assert.assertNull(fakes[1].receive(PrepareMessage.class, 300));
+
+        // the retry of the write in flight gets its reply once it is executed
+        first.send("request 8 delete key");
+        receivePrepare(fakes[1], 2);
+        second.send("request 8 delete key");
+        Assert.assertNull(fakes[1].receive(PrepareMessage.class, 300));
+        fakes[1].send(new PrepareOkMessage(0, 2, 1));
+        Assert.assertEquals("DELETED", second.receive(TIMEOUT));
+        Assert.assertEquals(2, replica.getOperationNumber());
+    }
+
+    @Test
+    public void testReadWaitsForCommit() throws Exception {
+        create(3, 0).setLeaseDuration(2000);
+        start();
+        grantLease(fakes[1]);
+        TextConnection writer = connect();
+        TextConnection reader = connect();
+        writer.send("set key value");
+        PrepareMessage prepare = receivePrepare(fakes[1], 1);
+        // the read follows the write, which isn't committed yet
+        reader.send("get key");
+        Assert.assertNull(reader.receive(300));
+        fakes[1].send(new PrepareOkMessage(0, 1, 1, false, prepare.getLeaseTimestamp()));
+        Assert.assertEquals("STORED", writer.receive(TIMEOUT));
+        Assert.assertEquals("VALUE key value", reader.receive(TIMEOUT));
+        // the read is served under the lease, it isn't prepared
+        Assert.assertNull(fakes[1].receive(PrepareMessage.class, 300));
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        create(3, 0).setLeaseDuration(1000);
+        start();
+        grantLease(fakes[1]);
+        TextConnection client = connect();
+        client.send("get key");
+        Assert.assertEquals("NOT_FOUND", client.receive(300));
+
+        // the backups stop answering, the lease runs out and reads go through the log again
+        Thread.sleep(1000);
+        fakes[1].clear();
+        client.send("get key");
+        PrepareMessage prepare = receivePrepare(fakes[1], 1);
+        Assert.assertTrue(prepare.getRequests().get(0).getOperation() instanceof GetOperation);
+        Assert.assertNull(client.receive(300));
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+        Assert.assertEquals("NOT_FOUND", client.receive(TIMEOUT));
+    }
+
+    @Test
+    public void testViewChangeWaitsForLease() throws Exception {
+        create(3, 1).setLeaseDuration(1000);
+        start();
+        // the backup promises the primary not to join view change for the lease duration
+        fakes[0].send(new CommitMessage(0, 0, System.nanoTime()));
+        Assert.assertNotNull(fakes[0].receive(PrepareOkMessage.class, TIMEOUT));
+        long promised = System.nanoTime();
+        fakes[2].send(new StartViewChangeMessage(1, 2, 0));
+        Assert.assertNull(fakes[2].receive(StartViewChangeMessage.class, 600));
+        StartViewChangeMessage startViewChange = fakes[2].receive(StartViewChangeMessage.class, 2 * TIMEOUT);
+        Assert.assertNotNull(startViewChange);
+        Assert.assertEquals(1, startViewChange.getViewNumber());
+        Assert.assertTrue(System.nanoTime() - promised >= 900000000L);
+    }
+
+    @Test
+    public void testViewChangeWaitsAfterStart() throws Exception {
+        create(3, 1).setLeaseDuration(1000);
+        long started = System.nanoTime();
+        start();
+        // the promise the replica may have given before it stopped is kept for the lease duration
+        fakes[2].send(new StartViewChangeMessage(1, 2, 0));
+        Assert.assertNull(fakes[2].receive(StartViewChangeMessage.class, 600));
+        StartViewChangeMessage startViewChange = fakes[2].receive(StartViewChangeMessage.class, 2 * TIMEOUT);
+        Assert.assertNotNull(startViewChange);
+        Assert.assertEquals(1, startViewChange.getViewNumber());
+        Assert.assertTrue(System.nanoTime() - started >= 1000000000L);
+    }
+
+    @Test
+    public void testStartViewFromLowestCommitNumber() throws Exception {
+        create(3, 1).setLeaseDuration(0);
+        start();
+        List<RequestMessage> requests = prepare(3, 2);
+        RequestMessage request = new RequestMessage(new SetOperation("key4", "value4", 0), 100, 4).withTimestamp(System.currentTimeMillis());
+        fakes[2].send(new StartViewChangeMessage(1, 2, 3));
+        ReplicaLog log = new ReplicaLog();
+        log.truncateBefore(3);
+        log.put(3, requests.get(2));
+        log.put(4, request);
+        fakes[2].send(new DoViewChangeMessage(1, 0, 4, 3, 2, log, 0));
+
+        // the replica 0 told nothing, so it gets the log after the lowest commit-number known
+        StartViewMessage startView = fakes[0].receive(StartViewMessage.class, TIMEOUT);
+        Assert.assertNotNull(startView);
+        Assert.assertEquals(1, startView.getViewNumber());
+        Assert.assertEquals(3, startView.getCommitNumber());
+        Assert.assertEquals(3, startView.getLog().getFirstNumber());
+        Assert.assertEquals(4, startView.getLog().getLastNumber());
+        startView = fakes[2].receive(StartViewMessage.class, TIMEOUT);
+        Assert.assertNotNull(startView);
+        Assert.assertEquals(4, startView.getLog().getFirstNumber());
+        Assert.assertEquals(4, startView.getLog().getLastNumber());
+        for (int i = 0; i < 50 && replica.getCommitNumber() < 3; ++i) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(ReplicaStatus.NORMAL, replica.getStatus());
+        Assert.assertEquals(3, replica.getCommitNumber());
+        Assert.assertEquals(4, replica.getOperationNumber());
+    }
+
+    @Test
+    public void testDoViewChangeWaitsForNewPrimary() throws Exception {
+        create(3, 2).setLeaseDuration(0);
+        start();
+        prepare(3, 2);
+        fakes[0].send(new StartViewChangeMessage(1, 0, 2));
+        Assert.assertNotNull(fakes[1].receive(StartViewChangeMessage.class, TIMEOUT));
+
+        // the log is sent after the new primary's commit-number, which isn't known yet
+        Assert.assertNull(fakes[1].receive(DoViewChangeMessage.class, 300));
+        fakes[1].send(new StartViewChangeMessage(1, 1, 1));
+        DoViewChangeMessage doViewChange = fakes[1].receive(DoViewChangeMessage.class, TIMEOUT);
+        Assert.assertNotNull(doViewChange);
+        Assert.assertEquals(1, doViewChange.getViewNumber());
+        Assert.assertEquals(2, doViewChange.getCommitNumber());
+        Assert.assertEquals(3, doViewChange.getOperationNumber());
+        Assert.assertEquals(2, doViewChange.getLog().getFirstNumber());
+        Assert.assertEquals(3, doViewChange.getLog().getLastNumber());
+    }
+
+    @Test
+    public void testBoundedRead() throws Exception {
+        create(3, 1).setStorage(new CacheStorageEngine(1 << 20));
+        start();
+        RequestMessage set = new RequestMessage(new SetOperation("key", "value", 0), 100, 1).withTimestamp(System.currentTimeMillis());
+        fakes[0].send(new PrepareMessage(Collections.singletonList(set), 0, 1, 0));
+        Assert.assertNotNull(fakes[0].receive(PrepareOkMessage.class, TIMEOUT));
+        fakes[0].send(new CommitMessage(0, 1));
+
+        // the backup has just executed everything the primary committed
+        TextConnection client = connect();
+        client.send("get key lag 5000");
+        Assert.assertEquals("VALUE key value", client.receive(TIMEOUT));
+        // the read leaves the cache's statistics as the log made them
+        Assert.assertEquals(Long.valueOf(0), replica.getStorage().statistics().get("hits"));
+
+        // the state is older than the client's bound now, so the read goes to the primary
+        Thread.sleep(300);
+        client.send("get key lag 100");
+        RequestMessage request = fakes[0].receive(RequestMessage.class, TIMEOUT);
+        Assert.assertNotNull(request);
+        Assert.assertTrue(request.getOperation() instanceof GetOperation);
+        fakes[0].send(new ReplyMessage(0, request.getClientId(), request.getRequestNumber(), "VALUE key newer", 2));
+        Assert.assertEquals("VALUE key newer", client.receive(TIMEOUT));
+
+        // the state doesn't include the operation the client has seen
+        client.send("get key after 2");
+        Assert.assertNotNull(fakes[0].receive(RequestMessage.class, TIMEOUT));
+    }
+
+    @Test
+    public void testApplyFailure() throws Exception {
+        create(3, 1).setStorage(new TreeStorageEngine() {
+            private boolean failed;
+
+            @Override
+            public void put(String key, String value) {
+                if (!failed && key.equals("bad")) {
+                    failed = true;
+                    throw new IllegalStateException("Disk is full");
+                }
+                super.put(key, value);
+            }
+        });
+        start();
+        RequestMessage good = new RequestMessage(new SetOperation("good", "value", 0), 100, 1).withTimestamp(System.currentTimeMillis());
+        RequestMessage bad = new RequestMessage(new SetOperation("bad", "value", 0), 100, 2).withTimestamp(System.currentTimeMillis());
+        fakes[0].send(new PrepareMessage(Arrays.asList(good, bad), 0, 2, 0));
+        Assert.assertNotNull(fakes[0].receive(PrepareOkMessage.class, TIMEOUT));
+        fakes[0].send(new CommitMessage(0, 2));
+
+        // the replica drops the state the failed operation has left and recovers from scratch
+        RecoveryMessage recovery = fakes[0].receive(RecoveryMessage.class, TIMEOUT);
+        Assert.assertNotNull(recovery);
+        Assert.assertEquals(0, recovery.getCommitNumber());
+        Assert.assertEquals(ReplicaStatus.RECOVERING, replica.getStatus());
+        ReplicaLog log = new ReplicaLog();
+        log.put(1, good);
+        log.put(2, bad);
+        fakes[0].send(new RecoveryResponseMessage(0, 2, 2, recovery.getTimestamp(), log, 0, 0));
+        fakes[2].send(new RecoveryResponseMessage(0, 2, 2, recovery.getTimestamp(), null, 0, 2));
+        for (int i = 0; i < 50 && replica.getStatus() != ReplicaStatus.NORMAL; ++i) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(ReplicaStatus.NORMAL, replica.getStatus());
+
+        TextConnection client = connect();
+        client.send("get bad lag 5000");
+        Assert.assertEquals("VALUE bad value", client.receive(TIMEOUT));
+        client.send("get good lag 5000");
+        Assert.assertEquals("VALUE good value", client.receive(TIMEOUT));
+    }
+
+    @Test
+    public void testRejectedOperation() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        replica.setStorage(new TreeStorageEngine() {
+            @Override
+            public void put(String key, String value) {
+                if (key.equals("bad")) {
+                    throw new EntryRejectedException("Key is too long");
+                }
+                super.put(key, value);
+            }
+        });
+        start();
+        TextConnection client = connect();
+        client.send("set bad value");
+        receivePrepare(fakes[1], 1);
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+        // every replica rejects the operation alike, so it is answered and the replica goes on
+        Assert.assertEquals("SERVER_ERROR Key is too long", client.receive(TIMEOUT));
+        client.send("set good value");
+        receivePrepare(fakes[1], 2);
+        fakes[1].send(new PrepareOkMessage(0, 2, 1));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+        Assert.assertEquals(ReplicaStatus.NORMAL, replica.getStatus());
+    }
+
+    @Test
+    public void testPrimaryApplyFailure() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        replica.setStorage(new TreeStorageEngine() {
+            private boolean failed;
+
+            @Override
+            public void put(String key, String value) {
+                if (!failed && key.equals("bad")) {
+                    failed = true;
+                    throw new IllegalStateException("Disk is full");
+                }
+                super.put(key, value);
+            }
+        });
+        start();
+        TextConnection client = connect();
+        client.send("set bad value");
+        receivePrepare(fakes[1], 1);
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+
+        // the failed primary makes the backups elect another one while it recovers
+        for (int i = 1; i <= 2; ++i) {
+            StartViewChangeMessage startViewChange = fakes[i].receive(StartViewChangeMessage.class, TIMEOUT);
+            Assert.assertNotNull(startViewChange);
+            Assert.assertEquals(1, startViewChange.getViewNumber());
+            Assert.assertNotNull(fakes[i].receive(RecoveryMessage.class, TIMEOUT));
+        }
+        Assert.assertEquals(ReplicaStatus.RECOVERING, replica.getStatus());
+        Assert.assertNull(client.receive(300));
+    }
+
+    @Test
+    public void testKeyTooLong() throws Exception {
+        create(3, 0).setLeaseDuration(0);
+        replica.setStorage(new TreeStorageEngine() {
+            @Override
+            public int getMaxKeyLength() {
+                return 8;
+            }
+        });
+        start();
+        TextConnection client = connect();
+        // the key is rejected before it's replicated
+        client.send("set long_key_ value");
+        Assert.assertEquals("CLIENT_ERROR key is too long", client.receive(TIMEOUT));
+        Assert.assertNull(fakes[1].receive(PrepareMessage.class, 300));
+        client.send("set key value");
+        receivePrepare(fakes[1], 1);
+        fakes[1].send(new PrepareOkMessage(0, 1, 1));
+        Assert.assertEquals("STORED", client.receive(TIMEOUT));
+    }
+
+    @Test
+    public void testJournalFailure() throws Exception {
+        File directory = new File(folder.newFolder(), "journal");
+        create(3, 2).setJournal(new ReplicaJournal(directory, ReplicaJournal.Durability.BATCH, ReplicaJournal.DEFAULT_SYNC_INTERVAL));
+        start();
+        prepare(3, 2);
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+
+        // the log of the new view can't be written, so the replica stops
+        ReplicaLog log = new ReplicaLog();
+        log.truncateBefore(3);
+        fakes[1].send(new StartViewMessage(1, 3, 2, log));
+        for (int i = 0; i < 50 && replica.getWrapper().isRunning(); ++i) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse(replica.getWrapper().isRunning());
+        replica = null;
+    }
+
+    @Test
+    public void testRestartRecoversWithoutSync() throws Exception {
+        File directory = folder.newFolder();
+        for (int run = 0; run < 2; ++run) {
+            create(3, 1).setJournal(new ReplicaJournal(directory, ReplicaJournal.Durability.PERIODIC,
+                    ReplicaJournal.DEFAULT_SYNC_INTERVAL));
+            start();
+            if (run == 0) {
+                prepare(3, 2);
+                replica.stop();
+                for (FakeReplica fake : fakes) {
+                    if (fake != null) {
+                        fake.close();
+                    }
+                }
+            }
+        }
+        // the prepared operation may be lost, so the replica recovers after the journaled commit-number
+        Assert.assertEquals(ReplicaStatus.RECOVERING, replica.getStatus());
+        Assert.assertEquals(2, replica.getCommitNumber());
+        RecoveryMessage recovery = fakes[0].receive(RecoveryMessage.class, TIMEOUT);
+        Assert.assertNotNull(recovery);
+        Assert.assertEquals(2, recovery.getCommitNumber());
+        ReplicaLog log = new ReplicaLog();
+        log.truncateBefore(3);
+        log.put(3, new RequestMessage(new SetOperation("key3", "value3", 0), 100, 3).withTimestamp(System.currentTimeMillis()));
+        fakes[0].send(new RecoveryResponseMessage(0, 3, 3, recovery.getTimestamp(), log, 0, 0));
+        fakes[2].send(new RecoveryResponseMessage(0, 3, 3, recovery.getTimestamp(), null, 0, 2));
+        for (int i = 0; i < 50 && replica.getCommitNumber() < 3; ++i) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(ReplicaStatus.NORMAL, replica.getStatus());
+        Assert.assertEquals(3, replica.getCommitNumber());
+        Assert.assertEquals("value3", replica.getStorage().get("key3"));
+    }
+
+    @Test
+    public void testRestartKeepsStorage() throws Exception {
+        File directory = folder.newFolder();
+        final int[] clears = new int[1];
+        for (int run = 0; run < 2; ++run) {
+            create(3, 1).setJournal(new ReplicaJournal(new File(directory, "journal"), ReplicaJournal.Durability.BATCH,
+                    ReplicaJournal.DEFAULT_SYNC_INTERVAL));
+            replica.setStorage(new BTreeStorageEngine(new File(directory, "storage")) {
+                @Override
+                public void clear() {
+                    ++clears[0];
+                    super.clear();
+                }
+            });
+            start();
+            if (run == 0) {
+                // the new storage is cleared, it's empty anyway
+                clears[0] = 0;
+                prepare(3, 3);
+                replica.stop();
+                replica.getStorage().close();
+                for (FakeReplica fake : fakes) {
+                    if (fake != null) {
+                        fake.close();
+                    }
+                }
+            }
+        }
+        // the operations are redone over the entries the storage has kept rather than the wiped storage
+        Assert.assertEquals(0, clears[0]);
+        Assert.assertEquals(3, replica.getCommitNumber());
+        RequestMessage request = new RequestMessage(new SetOperation("key4", "value4", 0), 100, 4).withTimestamp(System.currentTimeMillis());
+        fakes[0].send(new PrepareMessage(Collections.singletonList(request), 0, 4, 3));
+        Assert.assertNotNull(fakes[0].receive(PrepareOkMessage.class, TIMEOUT));
+        fakes[0].send(new CommitMessage(0, 4));
+        TextConnection client = connect();
+        client.send("get key3 lag 5000");
+        Assert.assertEquals("VALUE key3 value3", client.receive(TIMEOUT));
+        client.send("get key4 lag 5000");
+        Assert.assertEquals("VALUE key4 value4", client.receive(TIMEOUT));
+        replica.stop();
+        replica.getStorage().close();
+        replica = null;
+    }
+}
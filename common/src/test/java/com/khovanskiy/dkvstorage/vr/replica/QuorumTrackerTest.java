@@ -0,0 +1,38 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuorumTrackerTest {
+
+    @Test
+    public void testQuorum() {
+        // f = 2, the primary waits for two backups
+        QuorumTracker tracker = new QuorumTracker(5, 1);
+        tracker.reset(10);
+        Assert.assertEquals(10, tracker.getQuorumNumber());
+
+        Assert.assertTrue(tracker.acknowledge(0, 15));
+        Assert.assertEquals(10, tracker.getQuorumNumber());
+        Assert.assertTrue(tracker.acknowledge(4, 12));
+        Assert.assertEquals(12, tracker.getQuorumNumber());
+        Assert.assertTrue(tracker.acknowledge(3, 20));
+        Assert.assertEquals(15, tracker.getQuorumNumber());
+
+        // acknowledgements are cumulative, late ones don't move the point back
+        Assert.assertFalse(tracker.acknowledge(3, 18));
+        Assert.assertEquals(20, tracker.getAcknowledged(3));
+        // the primary doesn't vote
+        Assert.assertFalse(tracker.acknowledge(1, 100));
+        Assert.assertEquals(15, tracker.getQuorumNumber());
+
+        tracker.reset(30);
+        Assert.assertEquals(30, tracker.getQuorumNumber());
+    }
+
+    @Test
+    public void testSingleReplica() {
+        QuorumTracker tracker = new QuorumTracker(1, 0);
+        Assert.assertEquals(Long.MAX_VALUE, tracker.getQuorumNumber());
+    }
+}
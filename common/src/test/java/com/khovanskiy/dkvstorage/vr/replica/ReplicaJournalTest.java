@@ -0,0 +1,194 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class ReplicaJournalTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RequestMessage request(long number) {
+        return new RequestMessage(new SetOperation("key" + number, "value" + number), 1, number);
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testReplay() throws IOException, InterruptedException {
+        File directory = folder.newFolder();
+        ReplicaJournal journal = new ReplicaJournal(directory, ReplicaJournal.Durability.BATCH, ReplicaJournal.DEFAULT_SYNC_INTERVAL);
+        journal.open(DIRECT, null);
+        Assert.assertFalse(journal.isRestarted());
+        CountDownLatch latch = new CountDownLatch(100);
+        for (long i = 1; i <= 100; ++i) {
+            journal.append(i, 1, request(i), countDown(latch));
+        }
+        journal.commit(60);
+        // the suffix replaced after view change
+        journal.append(81, 2, request(1000), countDown(latch));
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        journal.close();
+
+        journal.open(DIRECT, null);
+        Assert.assertTrue(journal.isRestarted());
+        ReplicaLog log = journal.getRecoveredLog();
+        Assert.assertEquals(1, log.getFirstNumber());
+        Assert.assertEquals(81, log.getLastNumber());
+        Assert.assertEquals(1000, log.get(81).getRequestNumber());
+        Assert.assertEquals("set key17 value17", log.get(17).getOperation().toString());
+        Assert.assertEquals(60, journal.getRecoveredCommitNumber());
+        Assert.assertEquals(2, journal.getRecoveredViewNumber());
+        journal.close();
+    }
+
+    @Test
+    public void testRewrite() throws IOException, InterruptedException {
+        File directory = folder.newFolder();
+        ReplicaJournal journal = new ReplicaJournal(directory, ReplicaJournal.Durability.NONE, ReplicaJournal.DEFAULT_SYNC_INTERVAL);
+        journal.open(DIRECT, null);
+        for (long i = 1; i <= 50; ++i) {
+            journal.append(i, 1, request(i), null);
+        }
+        ReplicaLog log = new ReplicaLog();
+        for (long i = 1; i <= 20; ++i) {
+            log.put(i, request(i + 500));
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        journal.rewrite(log, 3, countDown(latch));
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        journal.close();
+
+        journal.open(DIRECT, null);
+        Assert.assertEquals(20, journal.getRecoveredLog().getLastNumber());
+        Assert.assertEquals(510, journal.getRecoveredLog().get(10).getRequestNumber());
+        Assert.assertEquals(3, journal.getRecoveredViewNumber());
+        journal.close();
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        File directory = folder.newFolder();
+        ReplicaJournal journal = new ReplicaJournal(directory, ReplicaJournal.Durability.PERIODIC, 10);
+        journal.open(DIRECT, null);
+        for (long i = 1; i <= 10; ++i) {
+            journal.append(i, 1, request(i), null);
+        }
+        journal.close();
+
+        File segment = null;
+        for (File file : directory.listFiles()) {
+            if (file.length() > 0) {
+                segment = file;
+            }
+        }
+        Assert.assertNotNull(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        journal.open(DIRECT, null);
+        Assert.assertEquals(9, journal.getRecoveredLog().getLastNumber());
+        journal.append(10, 1, request(10), null);
+        journal.close();
+
+        journal.open(DIRECT, null);
+        Assert.assertEquals(10, journal.getRecoveredLog().getLastNumber());
+        journal.close();
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        File directory = folder.newFolder();
+        ReplicaJournal journal = new ReplicaJournal(directory, ReplicaJournal.Durability.BATCH, ReplicaJournal.DEFAULT_SYNC_INTERVAL);
+        journal.open(DIRECT, null);
+        for (long i = 1; i <= 10; ++i) {
+            journal.append(i, 1, request(i), null);
+        }
+        journal.close();
+
+        journal.open(DIRECT, null);
+        for (long i = 11; i <= 20; ++i) {
+            journal.append(i, 1, request(i), null);
+        }
+        Checkpoint.Writer previous = new Checkpoint.Writer(directory, 5, 0);
+        previous.finish();
+        Checkpoint.Writer writer = new Checkpoint.Writer(directory, 15, 0);
+        writer.writeEntry("key", "value", -1);
+        journal.checkpoint(writer.finish(), 11);
+        journal.close();
+        Assert.assertFalse(Checkpoint.fileOf(directory, 5).exists());
+        // the checkpoint interrupted by a crash is ignored
+        Checkpoint.Writer crashed = new Checkpoint.Writer(directory, 20, 0);
+        crashed.writeEntry("key", "other", -1);
+
+        journal.open(DIRECT, null);
+        Checkpoint checkpoint = journal.getRecoveredCheckpoint();
+        Assert.assertEquals(15, checkpoint.getNumber());
+        try (Checkpoint.Reader reader = checkpoint.read()) {
+            Assert.assertEquals(Checkpoint.ENTRY, reader.next());
+            Assert.assertEquals("value", reader.getValue());
+            Assert.assertEquals(Checkpoint.END, reader.next());
+        }
+        Assert.assertEquals(1, directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("checkpoint");
+            }
+        }).length);
+        Assert.assertEquals(11, journal.getRecoveredLog().getFirstNumber());
+        Assert.assertEquals(20, journal.getRecoveredLog().getLastNumber());
+        journal.close();
+        crashed.close();
+    }
+
+    @Test
+    public void testFailure() throws IOException, InterruptedException {
+        File directory = folder.newFolder();
+        ReplicaJournal journal = new ReplicaJournal(directory, ReplicaJournal.Durability.BATCH, ReplicaJournal.DEFAULT_SYNC_INTERVAL);
+        CountDownLatch failed = new CountDownLatch(1);
+        journal.open(DIRECT, countDown(failed));
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+
+        // the new segment of the rewritten log can't be created
+        ReplicaLog log = new ReplicaLog();
+        log.put(1, request(1));
+        CountDownLatch durable = new CountDownLatch(2);
+        journal.rewrite(log, 1, countDown(durable));
+        Assert.assertTrue(failed.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(journal.getFailure());
+        journal.append(2, 1, request(2), countDown(durable));
+        Assert.assertFalse(durable.await(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, durable.getCount());
+        journal.close();
+    }
+}
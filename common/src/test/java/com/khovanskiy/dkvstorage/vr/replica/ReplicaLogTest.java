@@ -0,0 +1,76 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplicaLogTest {
+
+    private static RequestMessage request(long number) {
+        return new RequestMessage(new SetOperation("key" + number, "value" + number), 1, number);
+    }
+
+    @Test
+    public void testAppendAndTruncate() {
+        ReplicaLog log = new ReplicaLog();
+        for (long i = 1; i <= 100; ++i) {
+            log.put(i, request(i));
+        }
+        log.truncateBefore(41);
+        for (long i = 101; i <= 150; ++i) {
+            log.put(i, request(i));
+        }
+        Assert.assertEquals(41, log.getFirstNumber());
+        Assert.assertEquals(150, log.getLastNumber());
+        Assert.assertNull(log.get(40));
+        Assert.assertNull(log.get(151));
+        for (long i = 41; i <= 150; ++i) {
+            Assert.assertEquals(i, log.get(i).getRequestNumber());
+        }
+
+        log.truncateAfter(120);
+        Assert.assertEquals(120, log.getLastNumber());
+        log.put(121, request(1000));
+        Assert.assertEquals(1000, log.get(121).getRequestNumber());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGap() {
+        ReplicaLog log = new ReplicaLog();
+        log.put(5, request(5));
+        log.put(7, request(7));
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        ReplicaLog log = new ReplicaLog();
+        for (long i = 10; i <= 30; ++i) {
+            log.put(i, request(i));
+        }
+        ReplicaLog decoded = ReplicaLog.decode(ReplicaLog.encode(log).toString());
+        Assert.assertEquals(10, decoded.getFirstNumber());
+        Assert.assertEquals(30, decoded.getLastNumber());
+        Assert.assertEquals("set key17 value17", decoded.get(17).getOperation().toString());
+    }
+
+    @Test
+    public void testCopyFrom() {
+        ReplicaLog log = new ReplicaLog();
+        for (long i = 10; i <= 30; ++i) {
+            log.put(i, request(i));
+        }
+        ReplicaLog suffix = log.copyFrom(25);
+        Assert.assertEquals(25, suffix.getFirstNumber());
+        Assert.assertEquals(30, suffix.getLastNumber());
+        Assert.assertEquals(27, suffix.get(27).getRequestNumber());
+        Assert.assertEquals(10, log.copyFrom(1).getFirstNumber());
+        ReplicaLog empty = log.copyFrom(31);
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertEquals(31, empty.getFirstNumber());
+        ReplicaLog range = log.copyRange(12, 20);
+        Assert.assertEquals(12, range.getFirstNumber());
+        Assert.assertEquals(20, range.getLastNumber());
+        Assert.assertEquals(9, range.size());
+    }
+}
@@ -0,0 +1,156 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import com.khovanskiy.dkvstorage.vr.ReplicaStatus;
+import com.khovanskiy.dkvstorage.vr.message.CommitMessage;
+import com.khovanskiy.dkvstorage.vr.message.PrepareMessage;
+import com.khovanskiy.dkvstorage.vr.message.RequestMessage;
+import com.khovanskiy.dkvstorage.vr.operation.SetOperation;
+import com.khovanskiy.dkvstorage.vr.storage.TreeStorageEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State transfer between replicas of one process, the replica started late pulls the checkpoint from the others
+ */
+public class StateTransferTest {
+
+    private static final int TIMEOUT = 300;
+    private static final int SIZE = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Replica[] replicas = new Replica[SIZE];
+    private final int[] ports = new int[SIZE];
+    private final List<TextConnection> connections = new ArrayList<>();
+    private FakeReplica fake;
+
+    @After
+    public void tearDown() throws IOException {
+        for (TextConnection connection : connections) {
+            connection.close();
+        }
+        for (Replica replica : replicas) {
+            if (replica != null) {
+                replica.stop();
+            }
+        }
+        if (fake != null) {
+            fake.close();
+        }
+    }
+
+    private void start(int index) throws IOException {
+        List<Replica> configuration = new ArrayList<>();
+        for (int i = 0; i < SIZE; ++i) {
+            if (fake != null && i == fake.getReplicaNumber()) {
+                configuration.add(fake.toPeer());
+            } else {
+                configuration.add(i == index ? replicas[i] : new Replica(i, FakeReplica.HOST, ports[i]));
+            }
+        }
+        replicas[index].start(TIMEOUT, configuration);
+    }
+
+    private void create() throws IOException {
+        for (int i = 0; i < SIZE; ++i) {
+            ports[i] = FakeReplica.freePort();
+        }
+        for (int i = 0; i < SIZE; ++i) {
+            replicas[i] = new Replica(i, FakeReplica.HOST, ports[i]);
+            replicas[i].setStorage(new TreeStorageEngine());
+            replicas[i].setCheckpointDirectory(folder.newFolder());
+            replicas[i].setCheckpointInterval(10);
+            replicas[i].setCheckpointPeriod(0);
+        }
+    }
+
+    @Test
+    public void testLateReplica() throws Exception {
+        create();
+        start(0);
+        start(1);
+
+        // the image is long enough to be split between the primary and the backup
+        char[] value = new char[10 * 1024];
+        Arrays.fill(value, 'v');
+        TextConnection client = new TextConnection(ports[0]);
+        connections.add(client);
+        for (int i = 0; i < 70; ++i) {
+            client.send("set key" + i + " " + new String(value) + i);
+            Assert.assertEquals("STORED", client.receive(5 * TIMEOUT));
+        }
+        Checkpoint checkpoint = replicas[0].getCheckpoint();
+        Assert.assertNotNull(checkpoint);
+        Assert.assertTrue(checkpoint.getLength() > 2L * StateTransferState.WINDOW * StateTransferState.CHUNK_SIZE);
+
+        // the log preceding the checkpoint is dropped, so the late replica recovers from the checkpoint
+        start(2);
+        for (int i = 0; i < 200 && (replicas[2].getStatus() != ReplicaStatus.NORMAL || replicas[2].getCommitNumber() < 70); ++i) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(ReplicaStatus.NORMAL, replicas[2].getStatus());
+        Assert.assertEquals(70, replicas[2].getCommitNumber());
+        Assert.assertNotNull(replicas[2].getCheckpoint());
+        Assert.assertEquals(replicas[0].getStorage().snapshot(), replicas[2].getStorage().snapshot());
+        // only the installed checkpoint's file is left of the received chunks
+        Assert.assertArrayEquals(new String[]{replicas[2].getCheckpoint().getFile().getName()},
+                replicas[2].getCheckpointDirectory().list());
+    }
+
+    @Test
+    public void testLaggingNewPrimary() throws Exception {
+        create();
+        // the primary of view 0 is played by the test, it doesn't tell anything to the next primary
+        replicas[0] = null;
+        fake = new FakeReplica(0);
+        start(1);
+        start(2);
+        fake.connect(ports[2]);
+        for (int i = 1; i <= 70; ++i) {
+            RequestMessage request = new RequestMessage(new SetOperation("key" + i, "value" + i, 0), 100, i).withTimestamp(System.currentTimeMillis());
+            fake.send(new PrepareMessage(Collections.singletonList(request), 0, i, 0));
+            if (i % 10 == 0) {
+                fake.send(new CommitMessage(0, i));
+                for (int j = 0; j < 100 && (replicas[2].getCheckpoint() == null || replicas[2].getCheckpoint().getNumber() < i); ++j) {
+                    Thread.sleep(20);
+                }
+            }
+        }
+        Assert.assertEquals(70, replicas[2].getCheckpoint().getNumber());
+        Assert.assertEquals(61, replicas[2].getLog().getFirstNumber());
+        Assert.assertEquals(0, replicas[1].getCommitNumber());
+
+        // the log of the backup is truncated after the new primary's commit-number, so the new primary
+        // pulls the checkpoint before it starts the view
+        fake.close();
+        for (int i = 0; i < 200 && (replicas[1].getStatus() != ReplicaStatus.NORMAL || replicas[1].getCommitNumber() < 70
+                || replicas[2].getViewNumber() < 1 || replicas[2].getStatus() != ReplicaStatus.NORMAL); ++i) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(ReplicaStatus.NORMAL, replicas[1].getStatus());
+        Assert.assertEquals(1, replicas[1].getViewNumber());
+        Assert.assertEquals(70, replicas[1].getCommitNumber());
+        Assert.assertEquals(70, replicas[1].getCheckpoint().getNumber());
+        Assert.assertEquals(ReplicaStatus.NORMAL, replicas[2].getStatus());
+        Assert.assertEquals(1, replicas[2].getViewNumber());
+        Assert.assertEquals(replicas[2].getStorage().snapshot(), replicas[1].getStorage().snapshot());
+
+        // the new primary serves the clients
+        TextConnection client = new TextConnection(ports[1]);
+        connections.add(client);
+        client.send("get key70");
+        Assert.assertEquals("VALUE key70 value70", client.receive(5 * TIMEOUT));
+        client.send("set key71 value71");
+        Assert.assertEquals("STORED", client.receive(5 * TIMEOUT));
+    }
+}
@@ -0,0 +1,53 @@
+package com.khovanskiy.dkvstorage.vr.replica;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client connection of the text protocol
+ */
+class TextConnection implements Closeable {
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+
+    TextConnection(int port) throws IOException {
+        socket = new Socket(FakeReplica.HOST, port);
+        socket.setTcpNoDelay(true);
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    void send(String command) throws IOException {
+        writer.write(command);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Waits for the next line of the reply
+     *
+     * @param timeout timeout in milliseconds
+     * @return line or null if none comes in time
+     */
+    String receive(long timeout) throws IOException {
+        socket.setSoTimeout((int) timeout);
+        try {
+            return reader.readLine();
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
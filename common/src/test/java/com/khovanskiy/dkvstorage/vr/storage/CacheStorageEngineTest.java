@@ -0,0 +1,73 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+public class CacheStorageEngineTest {
+
+    private static final long CAPACITY = 200 * 1024;
+
+    @Test
+    public void testCapacityIsKept() {
+        CacheStorageEngine cache = new CacheStorageEngine(CAPACITY);
+        for (int i = 0; i < 10000; ++i) {
+            cache.put("key" + i, "value" + i);
+            Map<String, Long> statistics = cache.statistics();
+            Assert.assertTrue(statistics.get("window") + statistics.get("probation") + statistics.get("protected") <= CAPACITY);
+        }
+        Assert.assertTrue(cache.size() > 500);
+        Assert.assertTrue(cache.statistics().get("evictions") > 0);
+    }
+
+    @Test
+    public void testPartitionedCapacity() throws IOException {
+        StorageEngine cache = StorageEngineFactory.create(CacheStorageEngine.TYPE, null,
+                Collections.singletonMap("capacity", Long.toString(CAPACITY)), 4);
+        // the partitions share the capacity rather than take it each
+        Assert.assertEquals(CAPACITY, (long) cache.statistics().get("capacity"));
+    }
+
+    @Test
+    public void testDeterministic() {
+        CacheStorageEngine first = new CacheStorageEngine(CAPACITY);
+        CacheStorageEngine second = new CacheStorageEngine(CAPACITY);
+        for (CacheStorageEngine cache : new CacheStorageEngine[]{first, second}) {
+            Random random = new Random(3);
+            for (int i = 0; i < 50000; ++i) {
+                String key = "key" + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(100000));
+                if (random.nextInt(3) == 0) {
+                    cache.put(key, "value" + i);
+                } else {
+                    cache.get(key);
+                }
+            }
+        }
+        Assert.assertEquals(first.snapshot(), second.snapshot());
+    }
+
+    @Test
+    public void testScanResistance() {
+        CacheStorageEngine cache = new CacheStorageEngine(CAPACITY);
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 300; ++i) {
+                cache.put("hot" + i, "value" + i);
+                cache.get("hot" + i);
+            }
+        }
+        for (int i = 0; i < 20000; ++i) {
+            cache.put("cold" + i, "value" + i);
+        }
+        int hot = 0;
+        for (int i = 0; i < 300; ++i) {
+            if (cache.peek("hot" + i) != null) {
+                ++hot;
+            }
+        }
+        Assert.assertTrue("Only " + hot + " hot keys survived", hot > 270);
+    }
+}
@@ -0,0 +1,290 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import com.khovanskiy.dkvstorage.vr.storage.btree.BTreeStorageEngine;
+import com.khovanskiy.dkvstorage.vr.storage.lsm.LsmStorageEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+@RunWith(Parameterized.class)
+public class StorageEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String type;
+    private final int partitions;
+    private File directory;
+    private StorageEngine storage;
+
+    public StorageEngineTest(String type, int partitions) {
+        this.type = type;
+        this.partitions = partitions;
+    }
+
+    private static boolean isPersistent(String type) {
+        return type.equals(LsmStorageEngine.TYPE) || type.equals(BTreeStorageEngine.TYPE);
+    }
+
+    @Parameterized.Parameters(name = "{0} x{1}")
+    public static Collection<Object[]> types() {
+        return Arrays.asList(new Object[][]{
+                {HashStorageEngine.TYPE, 1},
+                {TreeStorageEngine.TYPE, 1},
+                {OffHeapStorageEngine.TYPE, 1},
+                {CacheStorageEngine.TYPE, 1},
+                {LsmStorageEngine.TYPE, 1},
+                {BTreeStorageEngine.TYPE, 1},
+                {HashStorageEngine.TYPE, 4},
+                {LsmStorageEngine.TYPE, 2},
+        });
+    }
+
+    private static Map<String, String> options() {
+        // small memtables, blocks and pages make engines flush, compact and split
+        Map<String, String> options = new HashMap<>();
+        options.put("memtable.size", "16384");
+        options.put("block.size", "512");
+        options.put("cache.size", "4096");
+        options.put("page.size", "512");
+        return options;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Test
+    public void testPutGetDelete() {
+        Assert.assertNull(storage.get("a"));
+        storage.put("a", "1");
+        storage.put("b", "2");
+        storage.put("a", "3");
+        Assert.assertEquals("3", storage.get("a"));
+        Assert.assertEquals("2", storage.get("b"));
+        Assert.assertEquals(2, storage.size());
+        Assert.assertTrue(storage.memoryUsage() > 0);
+
+        Assert.assertTrue(storage.delete("a"));
+        Assert.assertFalse(storage.delete("a"));
+        Assert.assertNull(storage.get("a"));
+        Assert.assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void testScan() {
+        for (int i = 0; i < 100; ++i) {
+            storage.put(String.format("key%03d", i), "value" + i);
+        }
+        List<String> keys = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> iterator = storage.scan("key010", "key020");
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().getKey());
+        }
+        Assert.assertEquals(10, keys.size());
+        Assert.assertEquals("key010", keys.get(0));
+        Assert.assertEquals("key019", keys.get(9));
+
+        SortedMap<String, String> snapshot = storage.snapshot();
+        Assert.assertEquals(100, snapshot.size());
+        Assert.assertEquals("key000", snapshot.firstKey());
+        Assert.assertEquals("value99", snapshot.get("key099"));
+    }
+
+    @Test
+    public void testScanOrder() {
+        // UTF-16 puts the supplementary characters before U+E000..U+FFFF, their UTF-8 bytes come after
+        List<String> expected = new ArrayList<>(Arrays.asList("a~", "a\u00e9", "a\ud83d\ude00", "a\ud83d\ude00b", "a\ue000", "a\uffff"));
+        for (int i = 0; i < 200; ++i) {
+            expected.add(String.format("b%03d\ud800\udc00", i));
+            expected.add(String.format("b%03d\uef00", i));
+        }
+        Collections.sort(expected);
+        for (int i = expected.size() - 1; i >= 0; --i) {
+            storage.put(expected.get(i), "value");
+        }
+        List<String> keys = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> iterator = storage.scan(null, null);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().getKey());
+        }
+        Assert.assertEquals(expected, keys);
+        for (String key : expected) {
+            Assert.assertEquals("value", storage.get(key));
+        }
+
+        keys.clear();
+        iterator = storage.scan("a\u00e9", "a\ue000");
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().getKey());
+        }
+        Assert.assertEquals(expected.subList(1, 4), keys);
+    }
+
+    @Test
+    public void testClear() {
+        for (int i = 0; i < 3000; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.clear();
+        Assert.assertEquals(0, storage.size());
+        Assert.assertNull(storage.get("key1"));
+        Assert.assertFalse(storage.scan(null, null).hasNext());
+        storage.put("key1", "other");
+        Assert.assertEquals("other", storage.get("key1"));
+    }
+
+    @Test
+    public void testOverwriteAndGrowth() {
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < 5000; ++i) {
+                storage.put("key" + i, "value" + i + "-" + round + (i % 7 == 0 ? "-longer" : ""));
+            }
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            Assert.assertTrue(storage.delete("key" + i));
+        }
+        Assert.assertEquals(2500, storage.size());
+        for (int i = 0; i < 5000; ++i) {
+            String expected = i % 2 == 0 ? null : "value" + i + "-2" + (i % 7 == 0 ? "-longer" : "");
+            Assert.assertEquals(expected, storage.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        Assume.assumeTrue(isPersistent(type));
+        for (int i = 0; i < 1000; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key1");
+        storage.close();
+
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+        Assert.assertNull(storage.get("key1"));
+        Assert.assertEquals("value999", storage.get("key999"));
+    }
+
+    @Test
+    public void testOperationNumber() throws IOException {
+        Assume.assumeTrue(isPersistent(type));
+        Assert.assertFalse(storage.holdsOperations(0, 100));
+        for (int i = 1; i <= 100; ++i) {
+            storage.setOperationNumber(i);
+            storage.put("key" + i, "value" + i);
+        }
+        storage.close();
+
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+        Assert.assertTrue(storage.holdsOperations(0, 100));
+        Assert.assertTrue(storage.holdsOperations(99, 120));
+        Assert.assertFalse(storage.holdsOperations(100, 120));
+        Assert.assertFalse(storage.holdsOperations(0, 99));
+        // the replayed operations don't move the number back
+        storage.setOperationNumber(50);
+        Assert.assertTrue(storage.holdsOperations(99, 100));
+
+        storage.clear();
+        Assert.assertFalse(storage.holdsOperations(0, 100));
+        storage.close();
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+        Assert.assertEquals(0, storage.size());
+        Assert.assertNull(storage.get("key1"));
+        Assert.assertFalse(storage.holdsOperations(0, 100));
+    }
+
+    @Test
+    public void testCrash() throws IOException {
+        Assume.assumeTrue(type.equals(BTreeStorageEngine.TYPE));
+        for (int i = 0; i < 1000; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.close();
+
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+        for (int i = 0; i < 20000; ++i) {
+            storage.setOperationNumber(i + 1);
+            storage.put("key" + i, "other" + i);
+        }
+        // the storage isn't closed, so it is restored to the last commit which holds the updates of some prefix
+        storage = StorageEngineFactory.create(type, directory, options(), partitions);
+        int updated = 0;
+        while (updated < 20000 && ("other" + updated).equals(storage.get("key" + updated))) {
+            ++updated;
+        }
+        Assert.assertTrue(updated > 1000 && updated < 20000);
+        for (int i = updated; i < 20000; ++i) {
+            Assert.assertEquals(i < 1000 ? "value" + i : null, storage.get("key" + i));
+        }
+        Assert.assertEquals(updated, storage.size());
+        // the commit knows the operation it was made by
+        Assert.assertTrue(storage.holdsOperations(updated - 1, updated));
+        Assert.assertFalse(storage.holdsOperations(updated, 20000));
+    }
+
+    @Test
+    public void testMaxKeyLength() {
+        int maxKeyLength = storage.getMaxKeyLength();
+        Assume.assumeTrue(maxKeyLength != Integer.MAX_VALUE);
+        char[] key = new char[maxKeyLength + 1];
+        Arrays.fill(key, 'k');
+        try {
+            storage.put(new String(key), "value");
+            Assert.fail();
+        } catch (EntryRejectedException e) {
+            Assert.assertEquals(0, storage.size());
+        }
+        storage.put(new String(key, 0, maxKeyLength), "value");
+        Assert.assertEquals("value", storage.get(new String(key, 0, maxKeyLength)));
+    }
+
+    @Test
+    public void testStatistics() {
+        for (int i = 0; i < 1000; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            Assert.assertNull(storage.get("absent" + i));
+        }
+        // the background flush changes the memory usage, so it is read when no flush is running
+        for (int i = 0; i < partitions; ++i) {
+            StorageEngine partition = partitions > 1 ? ((PartitionedStorageEngine) storage).getPartition(i) : storage;
+            if (partition instanceof LsmStorageEngine) {
+                ((LsmStorageEngine) partition).waitForFlush();
+            }
+        }
+        Map<String, Long> statistics = storage.statistics();
+        Assert.assertEquals(Long.valueOf(storage.memoryUsage()), statistics.get("memory"));
+        Assert.assertTrue(statistics.get("memory") > 0);
+        if (type.equals(LsmStorageEngine.TYPE)) {
+            Assert.assertTrue(statistics.get("tables") > 0);
+            Assert.assertEquals(4096, (long) statistics.get("cache.capacity"));
+            Assert.assertTrue(statistics.get("bloom.negatives") > statistics.get("bloom.false_positives"));
+        }
+    }
+}
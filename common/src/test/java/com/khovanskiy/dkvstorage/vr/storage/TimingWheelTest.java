@@ -0,0 +1,73 @@
+package com.khovanskiy.dkvstorage.vr.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiresOnDeadline() {
+        TimingWheel wheel = new TimingWheel(100);
+        wheel.schedule("a", 101);
+        wheel.schedule("b", 100 + 64 * 64 + 5);
+        wheel.schedule("c", 100 + 64 * 64 * 64 * 3);
+        Assert.assertEquals(3, wheel.size());
+        Assert.assertEquals(list("a"), wheel.advance(101));
+        Assert.assertEquals(list(), wheel.advance(100 + 64 * 64 + 4));
+        Assert.assertEquals(list("b"), wheel.advance(100 + 64 * 64 + 5));
+        Assert.assertEquals(list("c"), wheel.advance(1000000));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimingWheel wheel = new TimingWheel(0);
+        wheel.schedule("a", 10);
+        wheel.schedule("b", 10);
+        Assert.assertTrue(wheel.cancel("a"));
+        Assert.assertFalse(wheel.cancel("a"));
+        wheel.schedule("b", 5000);
+        Assert.assertEquals(Long.valueOf(5000), wheel.getDeadline("b"));
+        Assert.assertEquals(list(), wheel.advance(4999));
+        Assert.assertEquals(list("b"), wheel.advance(5000));
+    }
+
+    @Test
+    public void testRandomDeadlines() {
+        Random random = new Random(7);
+        TimingWheel wheel = new TimingWheel(0);
+        Map<String, Long> deadlines = new HashMap<>();
+        long tick = 0;
+        for (int step = 0; step < 2000; ++step) {
+            for (int i = 0; i < 10; ++i) {
+                String key = "key" + random.nextInt(500);
+                long deadline = tick + 1 + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(300000));
+                wheel.schedule(key, deadline);
+                deadlines.put(key, deadline);
+            }
+            tick += random.nextInt(random.nextBoolean() ? 10 : 5000);
+            List<String> expired = wheel.advance(tick);
+            for (String key : expired) {
+                Assert.assertTrue(deadlines.remove(key) <= tick);
+            }
+            for (long deadline : deadlines.values()) {
+                Assert.assertTrue(deadline > tick);
+            }
+            Assert.assertEquals(deadlines.size(), wheel.size());
+        }
+    }
+
+    private static List<String> list(String... keys) {
+        List<String> list = new ArrayList<>();
+        for (String key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,119 @@
+package com.khovanskiy.dkvstorage.vr.storage.btree;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class PageFileTest {
+
+    private static final int PAGE_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        File directory = folder.newFolder();
+        file = new File(directory, "pages");
+        journal = new File(directory, "journal");
+    }
+
+    private PageFile open() throws IOException {
+        PageFile pages = new PageFile(file, journal, PAGE_SIZE, 4);
+        pages.ensureCapacity(8);
+        return pages;
+    }
+
+    private static void fill(PageFile pages, int page, int value) {
+        pages.modify(page);
+        ByteBuffer buffer = pages.buffer(page);
+        for (int i = 0; i < PAGE_SIZE; ++i) {
+            buffer.put(pages.offset(page) + i, (byte) value);
+        }
+    }
+
+    private static byte[] filled(int value) {
+        byte[] bytes = new byte[PAGE_SIZE];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private byte[] page(int page) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        return Arrays.copyOfRange(bytes, page * PAGE_SIZE, (page + 1) * PAGE_SIZE);
+    }
+
+    @Test
+    public void testCommit() throws IOException {
+        PageFile pages = open();
+        fill(pages, 1, 1);
+        fill(pages, 5, 1);
+        Assert.assertEquals(1, pages.buffer(5).get(pages.offset(5)));
+        Assert.assertArrayEquals(filled(0), page(5));
+        pages.commit();
+        Assert.assertEquals(0, pages.getDirtyCount());
+        Assert.assertArrayEquals(filled(1), page(1));
+        Assert.assertArrayEquals(filled(1), page(5));
+        Assert.assertEquals(0, journal.length());
+
+        // the pages modified after the commit are lost by the crash
+        fill(pages, 1, 2);
+        pages.close();
+        Assert.assertFalse(PageFile.recover(file, journal));
+        Assert.assertArrayEquals(filled(1), page(1));
+    }
+
+    @Test
+    public void testRedo() throws IOException {
+        PageFile pages = open();
+        fill(pages, 1, 1);
+        pages.commit();
+        fill(pages, 1, 2);
+        fill(pages, 6, 2);
+        pages.writeJournal();
+        pages.close();
+        // the crash tears the page being copied into the file
+        try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+            torn.seek(PAGE_SIZE);
+            torn.write(filled(2), 0, PAGE_SIZE / 2);
+        }
+
+        Assert.assertTrue(PageFile.recover(file, journal));
+        Assert.assertArrayEquals(filled(2), page(1));
+        Assert.assertArrayEquals(filled(2), page(6));
+        Assert.assertEquals(0, journal.length());
+    }
+
+    @Test
+    public void testTornJournal() throws IOException {
+        PageFile pages = open();
+        fill(pages, 1, 1);
+        pages.commit();
+        fill(pages, 1, 2);
+        fill(pages, 2, 2);
+        pages.writeJournal();
+        pages.close();
+        try (RandomAccessFile torn = new RandomAccessFile(journal, "rw")) {
+            torn.seek(journal.length() - 10);
+            torn.write(7);
+        }
+
+        // the file wasn't changed before the journal was complete
+        Assert.assertFalse(PageFile.recover(file, journal));
+        Assert.assertArrayEquals(filled(1), page(1));
+        Assert.assertArrayEquals(filled(0), page(2));
+        Assert.assertEquals(0, journal.length());
+    }
+}
@@ -1,12 +1,17 @@
 package com.khovanskiy.dkvstorage.server;
 
+import com.khovanskiy.dkvstorage.vr.Node;
 import com.khovanskiy.dkvstorage.vr.replica.Replica;
+import com.khovanskiy.dkvstorage.vr.replica.ReplicaJournal;
+import com.khovanskiy.dkvstorage.vr.storage.StorageEngineFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,9 +22,15 @@ import java.util.Map;
 public class ServerMain {
     private static final String DEFAULT_CONFIG_FILENAME = "dkvs.properties";
     private static final int DEFAULT_TIMEOUT = 1000;
+    private static final String DEFAULT_DATA_DIRECTORY = "data";
+    private static final int DEFAULT_SHARDS = 1;
 
-    private Map<Integer, Replica> replicas = new HashMap<>();
-    private Replica current;
+    /**
+     * Replicas of the nodes' shards by the nodes' numbers
+     */
+    private Map<Integer, List<Replica>> replicas = new HashMap<>();
+    private Map<String, String> settings = new HashMap<>();
+    private Node current;
     private int timeout = DEFAULT_TIMEOUT;
 
     public static void main(String[] args) throws IOException {
@@ -33,31 +44,65 @@ public class ServerMain {
         } else {
             return;
         }
-        List<Replica> configuration = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(DEFAULT_CONFIG_FILENAME))) {
             while (reader.ready()) {
-                String[] line = reader.readLine().split("=");
+                String text = reader.readLine().trim();
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+                String[] line = text.split("=", 2);
                 if (line[0].equals("timeout")) {
                     timeout = Integer.parseInt(line[1]);
-                } else {
+                } else if (line[0].startsWith("node.")) {
                     String[] left = line[0].split("\\.");
                     String[] right = line[1].split(":");
                     int id = Integer.parseInt(left[1]);
                     String host = right[0];
                     int port = Integer.parseInt(right[1]);
 
-                    Replica replica = new Replica(id, host, port);
+                    Node node = new Node(id, host, port);
                     if (id == replicaNumber) {
-                        current = replica;
+                        current = node;
                     }
-                    configuration.add(replica);
-                    replicas.put(id, replica);
+                    nodes.add(node);
+                } else {
+                    settings.put(line[0], line[1]);
                 }
             }
         }
 
-        for (Replica replica : configuration) {
-            replica.start(timeout, configuration);
+        // each shard is replicated by all the nodes, the shard's configuration starts at its own node,
+        // so the primaries of view 0 are spread over the nodes
+        int shards = Integer.parseInt(settings.containsKey("shards") ? settings.get("shards") : String.valueOf(DEFAULT_SHARDS));
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+        }
+        final List<List<Replica>> configurations = new ArrayList<>();
+        for (int shard = 0; shard < shards; ++shard) {
+            configurations.add(new ArrayList<Replica>());
+        }
+        for (Node node : nodes) {
+            List<Replica> hosted = new ArrayList<>();
+            for (int shard = 0; shard < shards; ++shard) {
+                Replica replica = new Replica(node, shard);
+                configurations.get(shard).add(replica);
+                hosted.add(replica);
+            }
+            replicas.put(node.getNodeNumber(), hosted);
+        }
+        for (int shard = 0; shard < shards; ++shard) {
+            Collections.rotate(configurations.get(shard), -(shard % nodes.size()));
+        }
+
+        for (List<Replica> hosted : replicas.values()) {
+            for (Replica replica : hosted) {
+                setUp(replica, shards);
+            }
+        }
+
+        for (Node node : nodes) {
+            start(node.getNodeNumber(), configurations);
         }
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -75,10 +120,12 @@ public class ServerMain {
                         String[] slices = line.trim().split(" +");
                         if (slices[0].equals("kill")) {
                             int replicaId = Integer.parseInt(slices[1]);
-                            replicas.get(replicaId).stop();
+                            for (Replica replica : replicas.get(replicaId)) {
+                                replica.stop();
+                            }
                         } else if (slices[0].equals("start") || slices[0].equals("dkvs_node")) {
                             int replicaId = Integer.parseInt(slices[1]);
-                            replicas.get(replicaId).start(timeout, configuration);
+                            start(replicaId, configurations);
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -87,4 +134,87 @@ public class ServerMain {
             }
         }).start();
     }
+
+    /**
+     * Starts replicas of all the shards hosted by the node
+     *
+     * @param nodeNumber     node's number
+     * @param configurations configurations of the shards
+     */
+    private void start(int nodeNumber, List<List<Replica>> configurations) throws IOException {
+        List<Replica> hosted = replicas.get(nodeNumber);
+        for (int shard = 0; shard < hosted.size(); ++shard) {
+            hosted.get(shard).start(timeout, configurations.get(shard));
+        }
+    }
+
+    /**
+     * Applies the settings to the replica, the shards of a node keep their data in separate directories
+     *
+     * @param replica replica
+     * @param shards  number of shards
+     */
+    private void setUp(Replica replica, int shards) throws IOException {
+        File directory = new File(getSetting("data.dir", replica.getReplicaNumber(), DEFAULT_DATA_DIRECTORY), "node" + replica.getReplicaNumber());
+        if (shards > 1) {
+            directory = new File(directory, "shard" + replica.getShard());
+        }
+        String storage = getSetting("storage", replica.getReplicaNumber(), StorageEngineFactory.DEFAULT_TYPE);
+        Map<String, String> options = getSettings("storage.", replica.getReplicaNumber());
+        int partitions = Integer.parseInt(getSetting("apply.partitions", replica.getReplicaNumber(), "1"));
+        replica.setStorage(StorageEngineFactory.create(storage, new File(directory, "storage"), options, partitions));
+        replica.setCheckpointInterval(Integer.parseInt(getSetting("checkpoint.interval", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_CHECKPOINT_INTERVAL))));
+        replica.setCheckpointPeriod(Long.parseLong(getSetting("checkpoint.period", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_CHECKPOINT_PERIOD))));
+        replica.setCheckpointDirectory(new File(directory, "checkpoints"));
+        replica.setBatchSize(Integer.parseInt(getSetting("batch.size", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_BATCH_SIZE))));
+        replica.setBatchDelay(Long.parseLong(getSetting("batch.delay", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_BATCH_DELAY))));
+        replica.setPipelineWindow(Integer.parseInt(getSetting("pipeline.window", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_PIPELINE_WINDOW))));
+        replica.setLeaseDuration(Long.parseLong(getSetting("lease.duration", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_LEASE_DURATION))));
+        replica.setApplyQueue(Integer.parseInt(getSetting("apply.queue", replica.getReplicaNumber(), String.valueOf(Replica.DEFAULT_APPLY_QUEUE))));
+        String durability = getSetting("journal.durability", replica.getReplicaNumber(), null);
+        if (durability != null) {
+            long interval = Long.parseLong(getSetting("journal.interval", replica.getReplicaNumber(), String.valueOf(ReplicaJournal.DEFAULT_SYNC_INTERVAL)));
+            replica.setJournal(new ReplicaJournal(new File(directory, "journal"), ReplicaJournal.Durability.parse(durability), interval));
+        }
+    }
+
+    /**
+     * Gets setting of the replica: "name.replicaNumber" overrides common "name"
+     *
+     * @param name          setting's name
+     * @param replicaNumber replica's number
+     * @param defaultValue  value if the setting is absent
+     * @return setting's value
+     */
+    private String getSetting(String name, int replicaNumber, String defaultValue) {
+        String value = settings.get(name + "." + replicaNumber);
+        if (value == null) {
+            value = settings.get(name);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Gets settings of the replica starting with the prefix
+     *
+     * @param prefix        common prefix of the settings
+     * @param replicaNumber replica's number
+     * @return settings' values by their names without the prefix
+     */
+    private Map<String, String> getSettings(String prefix, int replicaNumber) {
+        Map<String, String> result = new HashMap<>();
+        for (String name : settings.keySet()) {
+            if (!name.startsWith(prefix) || name.matches(".*\\.\\d+")) {
+                continue;
+            }
+            result.put(name.substring(prefix.length()), settings.get(name));
+        }
+        String suffix = "." + replicaNumber;
+        for (String name : settings.keySet()) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                result.put(name.substring(prefix.length(), name.length() - suffix.length()), settings.get(name));
+            }
+        }
+        return result;
+    }
 }